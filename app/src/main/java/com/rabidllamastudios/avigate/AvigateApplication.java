@@ -2,9 +2,20 @@ package com.rabidllamastudios.avigate;
 
 import android.app.Application;
 
+import com.rabidllamastudios.avigate.helpers.IntentBridge;
+
 /**
  * Class used to reference the application package path when creating custom Intent actions
+ * Also installs the IntentBridge, so activities receive the flight topics of the EventBus as
+ * Intents (and their Arduino commands reach the bus) for as long as the process runs. The bridge
+ * is never closed, so no reference to it is kept.
  * Created by Ryan Staatz on 11/12/15.
  */
 public class AvigateApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        IntentBridge.createDefault(this);
+    }
 }
@@ -26,8 +26,8 @@ import com.rabidllamastudios.avigate.models.ConnectionPacket;
 import com.rabidllamastudios.avigate.services.NetworkService;
 import com.rabidllamastudios.avigate.services.UsbSerialService;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This activity is intended as a flight configuration and test for USB-OTG connected Arduinos
@@ -39,6 +39,7 @@ public class ConfigureArduinoActivity extends AppCompatActivity {
     private static final int BAUD_RATE = 115200;
 
     private boolean mUsbSerialIsReady = false;
+    private boolean mIsConnected = false;
     private String mCraftProfileName = null;
 
     private SharedPreferencesManager mSharedPreferencesManager;
@@ -310,8 +311,12 @@ public class ConfigureArduinoActivity extends AppCompatActivity {
         public void onReceive(Context context, Intent intent) {
             if (intent.getAction().equals(ConnectionPacket.INTENT_ACTION)) {
                 TextView statusTV = (TextView) findViewById(R.id.tv_arduino_value_status);
+                //ConnectionPackets are also broadcast periodically: act on status changes only
+                boolean wasConnected = mIsConnected;
+                mIsConnected = new ConnectionPacket(intent.getExtras()).isConnected();
+                if (mIsConnected == wasConnected) return;
                 //If connected, query the status of the Arduino
-                if (new ConnectionPacket(intent.getExtras()).isConnected()) {
+                if (mIsConnected) {
                     ArduinoPacket statusRequestArduinoPacket = new ArduinoPacket();
                     statusRequestArduinoPacket.addStatusRequest();
                     sendBroadcast(
@@ -439,16 +444,22 @@ public class ConfigureArduinoActivity extends AppCompatActivity {
 
     //Configure and start the network service.
     private void startNetworkService() {
-        List<String> localSubs = new ArrayList<>();
-        List<String> remoteSubs = new ArrayList<>();
-        localSubs.add(ArduinoPacket.INTENT_ACTION_INPUT);
-        remoteSubs.add(ArduinoPacket.INTENT_ACTION_OUTPUT);
-        remoteSubs.add(UsbSerialService.INTENT_ACTION_USB_READY);
-        remoteSubs.add(UsbSerialService.INTENT_ACTION_USB_PERMISSION_GRANTED);
-        remoteSubs.add(UsbSerialService.INTENT_ACTION_NO_USB);
-        remoteSubs.add(UsbSerialService.INTENT_ACTION_USB_DISCONNECTED);
-        remoteSubs.add(UsbSerialService.INTENT_ACTION_USB_NOT_SUPPORTED);
-        remoteSubs.add(UsbSerialService.INTENT_ACTION_USB_PERMISSION_NOT_GRANTED);
+        Map<String, NetworkService.DeliveryPolicy> localSubs = new LinkedHashMap<>();
+        Map<String, NetworkService.DeliveryPolicy> remoteSubs = new LinkedHashMap<>();
+        localSubs.put(ArduinoPacket.INTENT_ACTION_INPUT, NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(ArduinoPacket.INTENT_ACTION_OUTPUT, NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(UsbSerialService.INTENT_ACTION_USB_READY,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(UsbSerialService.INTENT_ACTION_USB_PERMISSION_GRANTED,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(UsbSerialService.INTENT_ACTION_NO_USB,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(UsbSerialService.INTENT_ACTION_USB_DISCONNECTED,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(UsbSerialService.INTENT_ACTION_USB_NOT_SUPPORTED,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(UsbSerialService.INTENT_ACTION_USB_PERMISSION_NOT_GRANTED,
+                NetworkService.DeliveryPolicy.RELIABLE);
         mNetworkService = NetworkService.getConfiguredIntent(this, localSubs, remoteSubs,
                 NetworkService.DeviceType.CONTROLLER);
         startService(mNetworkService);
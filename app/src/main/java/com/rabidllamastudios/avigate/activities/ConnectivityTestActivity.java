@@ -128,8 +128,8 @@ public class ConnectivityTestActivity extends AppCompatActivity {
         }
 
         @Override
-        public void messageArrived(String topic, String message) {
-            mMessageOutput.append("\n" + "Received: " + topic + "/" + message);
+        public void messageArrived(String topic, byte[] payload) {
+            mMessageOutput.append("\n" + "Received: " + topic + "/" + new String(payload));
         }
     };
 
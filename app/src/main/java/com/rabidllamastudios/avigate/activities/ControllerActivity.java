@@ -1,22 +1,35 @@
 package com.rabidllamastudios.avigate.activities;
 
+import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.EditText;
 
 import com.rabidllamastudios.avigate.R;
+import com.rabidllamastudios.avigate.helpers.RelayAutotuner;
 import com.rabidllamastudios.avigate.helpers.SharedPreferencesManager;
 import com.rabidllamastudios.avigate.models.ConnectionPacket;
 import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.LinkQualityPacket;
+import com.rabidllamastudios.avigate.models.MissionPacket;
+import com.rabidllamastudios.avigate.models.PidGains;
 import com.rabidllamastudios.avigate.services.NetworkService;
 import com.rabidllamastudios.avigate.services.FlightControlService;
+import com.rabidllamastudios.avigate.services.SensorService;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Remotely manages a flight over the network. Can be used to start, stop, and command a craft.
@@ -25,8 +38,25 @@ import java.util.List;
  */
 public class ControllerActivity extends AppCompatActivity {
 
+    //Autotune relay amplitude in servo degrees
+    private static final double AUTOTUNE_RELAY_AMPLITUDE = 10;
+    //Integrator limit (in servo degrees) of autotuned gains if the profile has none for the axis
+    private static final double DEFAULT_INTEGRATOR_LIMIT = 10;
+    //Change of the held altitude per climb or descend command in meters
+    private static final double ALTITUDE_STEP = 10;
+    //Time in ms without a heartbeat of the craft after which the subtitle shows the last heard age
+    private static final float LAST_HEARD_WARNING = 1000;
+
+    private ArduinoPacket.ControlAxis mAutotuneAxis = null;
+    private boolean mIsCalibratingCompass = false;
+    //Altitude hold state of the craft, as last reported by its FlightControlService
+    private boolean mIsHoldingAltitude = false;
+    private boolean mIsConnected = false;
+    private ConnectionPacket mConnectionPacket = null;
+    private float mCraftTelemetryRate = -1;
     private Intent mNetworkService;
     private ArduinoPacket mConfigArduinoPacket;
+    private String mCraftProfileName;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -49,12 +79,53 @@ public class ControllerActivity extends AppCompatActivity {
         IntentFilter servoPacketIntentFilter = new IntentFilter(ArduinoPacket.INTENT_ACTION_OUTPUT);
         registerReceiver(mArduinoOutputReceiver, servoPacketIntentFilter);
 
+        //Register a magnetometer calibration result IntentFilter and associated Broadcast Receiver
+        registerReceiver(mMagnetometerCalibrationReceiver, new IntentFilter(
+                SensorService.INTENT_ACTION_MAGNETOMETER_CALIBRATION_RESULT));
+
+        //Register an autotune result IntentFilter and associated Broadcast Receiver
+        registerReceiver(mAutotuneReceiver, new IntentFilter(
+                FlightControlService.INTENT_ACTION_AUTOTUNE_RESULT));
+
+        //Register a link quality IntentFilter and associated Broadcast Receiver
+        registerReceiver(mLinkQualityReceiver, new IntentFilter(LinkQualityPacket.INTENT_ACTION));
+
+        //Register an altitude hold status IntentFilter and associated Broadcast Receiver
+        registerReceiver(mAltitudeHoldStatusReceiver, new IntentFilter(
+                FlightControlService.INTENT_ACTION_ALTITUDE_HOLD_STATUS));
+
         //Configure and start NetworkService
-        List<String> localSubs = new ArrayList<>();
-        List<String> remoteSubs = new ArrayList<>();
-        localSubs.add(FlightControlService.INTENT_ACTION_CONFIGURE_FLIGHT_CONTROL_SERVICE);
-        localSubs.add(ArduinoPacket.INTENT_ACTION_INPUT);
-        remoteSubs.add(ArduinoPacket.INTENT_ACTION_OUTPUT);
+        Map<String, NetworkService.DeliveryPolicy> localSubs = new LinkedHashMap<>();
+        Map<String, NetworkService.DeliveryPolicy> remoteSubs = new LinkedHashMap<>();
+        localSubs.put(FlightControlService.INTENT_ACTION_CONFIGURE_FLIGHT_CONTROL_SERVICE,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(ArduinoPacket.INTENT_ACTION_INPUT, NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(SensorService.INTENT_ACTION_START_MAGNETOMETER_CALIBRATION,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(SensorService.INTENT_ACTION_STOP_MAGNETOMETER_CALIBRATION,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(FlightControlService.INTENT_ACTION_START_AUTOTUNE,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(FlightControlService.INTENT_ACTION_STOP_AUTOTUNE,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(FlightControlService.INTENT_ACTION_SET_GAINS,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(MissionPacket.INTENT_ACTION, NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(FlightControlService.INTENT_ACTION_HOLD_ALTITUDE,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(FlightControlService.INTENT_ACTION_RELEASE_ALTITUDE,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(FlightControlService.INTENT_ACTION_REQUEST_ALTITUDE_HOLD_STATUS,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(ArduinoPacket.INTENT_ACTION_OUTPUT,
+                NetworkService.DeliveryPolicy.LATEST_VALUE);
+        remoteSubs.put(SensorService.INTENT_ACTION_MAGNETOMETER_CALIBRATION_RESULT,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(FlightControlService.INTENT_ACTION_AUTOTUNE_RESULT,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(LinkQualityPacket.INTENT_ACTION, NetworkService.DeliveryPolicy.LATEST_VALUE);
+        remoteSubs.put(FlightControlService.INTENT_ACTION_ALTITUDE_HOLD_STATUS,
+                NetworkService.DeliveryPolicy.RELIABLE);
         mNetworkService = NetworkService.getConfiguredIntent(this, localSubs, remoteSubs,
                 NetworkService.DeviceType.CONTROLLER);
         startService(mNetworkService);
@@ -65,10 +136,99 @@ public class ControllerActivity extends AppCompatActivity {
         //Unregister receivers and stop NetworkService
         unregisterReceiver(mArduinoOutputReceiver);
         unregisterReceiver(mConnectionReceiver);
+        unregisterReceiver(mMagnetometerCalibrationReceiver);
+        unregisterReceiver(mAutotuneReceiver);
+        unregisterReceiver(mLinkQualityReceiver);
+        unregisterReceiver(mAltitudeHoldStatusReceiver);
         if (mNetworkService != null) stopService(mNetworkService);
         super.onDestroy();
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_controller, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        //Show whether selecting the item engages or releases altitude hold, and the altitude
+        //adjustments only while altitude is held
+        MenuItem holdAltitudeItem = menu.findItem(R.id.item_hold_altitude);
+        if (mIsHoldingAltitude) {
+            holdAltitudeItem.setTitle(R.string.item_release_altitude);
+        } else {
+            holdAltitudeItem.setTitle(R.string.item_hold_altitude);
+        }
+        menu.findItem(R.id.item_climb).setVisible(mIsHoldingAltitude);
+        menu.findItem(R.id.item_descend).setVisible(mIsHoldingAltitude);
+        //Show whether selecting the item starts or stops the autotune experiment
+        MenuItem autotuneItem = menu.findItem(R.id.item_autotune);
+        if (mAutotuneAxis != null) {
+            autotuneItem.setTitle(R.string.item_stop_autotune);
+        } else {
+            autotuneItem.setTitle(R.string.item_autotune);
+        }
+        //Show whether selecting the item starts or stops the compass calibration
+        MenuItem calibrateCompassItem = menu.findItem(R.id.item_calibrate_compass);
+        if (mIsCalibratingCompass) {
+            calibrateCompassItem.setTitle(R.string.item_stop_compass_calibration);
+        } else {
+            calibrateCompassItem.setTitle(R.string.item_calibrate_compass);
+        }
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.item_hold_altitude:
+                //Hold the current altitude of the craft, or release altitude hold. The menu
+                //follows once the craft reports its altitude hold status.
+                if (mIsHoldingAltitude) {
+                    sendBroadcast(new Intent(FlightControlService.INTENT_ACTION_RELEASE_ALTITUDE));
+                } else {
+                    sendBroadcast(FlightControlService.getHoldAltitudeIntent(0));
+                }
+                return true;
+            case R.id.item_climb:
+                sendBroadcast(FlightControlService.getHoldAltitudeIntent(ALTITUDE_STEP));
+                return true;
+            case R.id.item_descend:
+                sendBroadcast(FlightControlService.getHoldAltitudeIntent(-ALTITUDE_STEP));
+                return true;
+            case R.id.item_autotune:
+                //Stop the running autotune experiment, or pick an axis to start one
+                if (mAutotuneAxis != null) {
+                    sendBroadcast(new Intent(FlightControlService.INTENT_ACTION_STOP_AUTOTUNE));
+                    mAutotuneAxis = null;
+                } else {
+                    showAutotuneAxisDialog();
+                }
+                return true;
+            case R.id.item_calibrate_compass:
+                //Start the guided compass calibration, or stop it and let the craft fit the data
+                if (mIsCalibratingCompass) {
+                    sendBroadcast(new Intent(
+                            SensorService.INTENT_ACTION_STOP_MAGNETOMETER_CALIBRATION));
+                } else {
+                    sendBroadcast(new Intent(
+                            SensorService.INTENT_ACTION_START_MAGNETOMETER_CALIBRATION));
+                    showSnackbar("Slowly rotate the craft through all orientations");
+                }
+                mIsCalibratingCompass = !mIsCalibratingCompass;
+                return true;
+            case R.id.item_mission:
+                showMissionDialog();
+                return true;
+            case R.id.item_peer_address:
+                showPeerAddressDialog();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
     //Broadcast receiver for output received from the Arduino
     private BroadcastReceiver mArduinoOutputReceiver = new BroadcastReceiver() {
         @Override
@@ -91,11 +251,20 @@ public class ControllerActivity extends AppCompatActivity {
             //If the intent is type connection packet, if connected, query the Arduino status
             if (intent.getAction().equals(ConnectionPacket.INTENT_ACTION)) {
                 ConnectionPacket connectionPacket = new ConnectionPacket(intent.getExtras());
-                if (connectionPacket.isConnected()) {
+                mConnectionPacket = connectionPacket;
+                updateLinkSubtitle();
+                //ConnectionPackets are also broadcast periodically: act on status changes only
+                boolean wasConnected = mIsConnected;
+                mIsConnected = connectionPacket.isConnected();
+                if (mIsConnected == wasConnected) return;
+                if (mIsConnected) {
                     //Request the status of the Arduino after a connection is established
                     ArduinoPacket arduinoPacket = new ArduinoPacket();
                     arduinoPacket.addStatusRequest();
                     sendBroadcast(arduinoPacket.toIntent(ArduinoPacket.INTENT_ACTION_INPUT));
+                    //Request the altitude hold state, which may have changed while disconnected
+                    sendBroadcast(new Intent(
+                            FlightControlService.INTENT_ACTION_REQUEST_ALTITUDE_HOLD_STATUS));
                 } else {
                     //TODO do stuff when disconnected
                 }
@@ -103,13 +272,293 @@ public class ControllerActivity extends AppCompatActivity {
         }
     };
 
+    //Broadcast receiver for the altitude hold status of the craft. Updates the menu.
+    private BroadcastReceiver mAltitudeHoldStatusReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getAction().equals(
+                    FlightControlService.INTENT_ACTION_ALTITUDE_HOLD_STATUS)) {
+                mIsHoldingAltitude = intent.hasExtra(FlightControlService.EXTRA_ALTITUDE);
+                invalidateOptionsMenu();
+            }
+        }
+    };
+
+    //Broadcast receiver for magnetometer calibration results. Saves them to the craft profile.
+    private BroadcastReceiver mMagnetometerCalibrationReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getAction().equals(
+                    SensorService.INTENT_ACTION_MAGNETOMETER_CALIBRATION_RESULT)) {
+                mIsCalibratingCompass = false;
+                ArduinoPacket resultArduinoPacket = new ArduinoPacket(intent.getExtras());
+                if (resultArduinoPacket.hasMagnetometerCalibration()) {
+                    mConfigArduinoPacket.setMagnetometerCalibration(
+                            resultArduinoPacket.getMagnetometerOffset(),
+                            resultArduinoPacket.getMagnetometerMatrix());
+                    if (mCraftProfileName != null) {
+                        new SharedPreferencesManager(ControllerActivity.this)
+                                .updateCraftConfiguration(mCraftProfileName,
+                                        mConfigArduinoPacket.toJsonString());
+                    }
+                    showSnackbar("Compass calibration saved");
+                } else {
+                    showSnackbar("Compass calibration failed, rotate the craft further");
+                }
+            }
+        }
+    };
+
+    //Broadcast receiver for autotune results. Proposes gains to be saved to the craft profile.
+    private BroadcastReceiver mAutotuneReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getAction().equals(FlightControlService.INTENT_ACTION_AUTOTUNE_RESULT)) {
+                mAutotuneAxis = null;
+                ArduinoPacket.ControlAxis controlAxis = FlightControlService.getControlAxis(
+                        intent.getStringExtra(FlightControlService.EXTRA_AUTOTUNE_AXIS));
+                if (controlAxis != null
+                        && intent.hasExtra(FlightControlService.EXTRA_ULTIMATE_GAIN)) {
+                    showAutotuneResultDialog(controlAxis,
+                            intent.getDoubleExtra(FlightControlService.EXTRA_ULTIMATE_GAIN, 0),
+                            intent.getDoubleExtra(FlightControlService.EXTRA_ULTIMATE_PERIOD, 0));
+                } else {
+                    showSnackbar("Autotune did not complete");
+                }
+            }
+        }
+    };
+
+    //Broadcast receiver for the link quality of the craft. Updates its telemetry rate.
+    private BroadcastReceiver mLinkQualityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getAction().equals(LinkQualityPacket.INTENT_ACTION)) {
+                LinkQualityPacket linkQualityPacket = new LinkQualityPacket(intent.getExtras());
+                //The local NetworkService broadcasts the link quality of the controller as well
+                if (!NetworkService.DeviceType.CRAFT.name().equals(
+                        linkQualityPacket.getDeviceType())) return;
+                mCraftTelemetryRate =
+                        linkQualityPacket.getTopicRate(CraftStatePacket.INTENT_ACTION);
+                updateLinkSubtitle();
+            }
+        }
+    };
+
+    //Shows the metrics of the link to the craft and its telemetry rate in the subtitle
+    private void updateLinkSubtitle() {
+        if (getSupportActionBar() == null) return;
+        if (mConnectionPacket == null || mConnectionPacket.getRoundTripTimeMedian() < 0) {
+            getSupportActionBar().setSubtitle("Craft link: no RTT yet");
+            return;
+        }
+        String subtitle = String.format(Locale.US,
+                "Craft link: RTT %.0f/%.0f ms, loss %.0f%%, jitter %.0f ms",
+                mConnectionPacket.getRoundTripTimeMedian(), mConnectionPacket.getRoundTripTimeP95(),
+                mConnectionPacket.getLossRatio() * 100, mConnectionPacket.getJitter());
+        if (mConnectionPacket.getLastHeardAge() > LAST_HEARD_WARNING) {
+            subtitle += String.format(Locale.US, ", silent %.1f s",
+                    mConnectionPacket.getLastHeardAge() / 1000);
+        }
+        if (mCraftTelemetryRate >= 0) {
+            subtitle += String.format(Locale.US, ", telemetry %.1f Hz", mCraftTelemetryRate);
+        }
+        getSupportActionBar().setSubtitle(subtitle);
+    }
+
+    //Shows a dialog to set the address of the craft for the direct UDP link (empty to discover it
+    //on the local networks), then restarts NetworkService so the new address takes effect
+    private void showPeerAddressDialog() {
+        final SharedPreferencesManager sharedPreferencesManager =
+                new SharedPreferencesManager(this);
+        final EditText peerAddressField = new EditText(this);
+        peerAddressField.setHint("Discover on local networks");
+        peerAddressField.setText(sharedPreferencesManager.getPeerAddress());
+        AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(this);
+        alertDialogBuilder.setTitle("Peer address");
+        alertDialogBuilder.setView(peerAddressField);
+        alertDialogBuilder.setPositiveButton("Save", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                String peerAddress = peerAddressField.getText().toString().trim();
+                sharedPreferencesManager.updatePeerAddress(
+                        peerAddress.isEmpty() ? null : peerAddress);
+                if (mNetworkService != null) {
+                    stopService(mNetworkService);
+                    startService(mNetworkService);
+                }
+            }
+        });
+        alertDialogBuilder.setNegativeButton("Cancel", null);
+        alertDialogBuilder.create().show();
+    }
+
+    //Shows a dialog to edit the waypoints of the mission (one "latitude, longitude[, altitude]"
+    //per line), then stores the mission and sends it to the craft. Clearing stops navigation.
+    private void showMissionDialog() {
+        final SharedPreferencesManager sharedPreferencesManager =
+                new SharedPreferencesManager(this);
+        final EditText waypointsField = new EditText(this);
+        waypointsField.setHint("latitude, longitude, altitude");
+        waypointsField.setMinLines(3);
+        String missionJson = sharedPreferencesManager.getMission();
+        if (missionJson != null) {
+            waypointsField.setText(getWaypointText(new MissionPacket(missionJson)));
+        }
+        AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(this);
+        alertDialogBuilder.setTitle("Mission waypoints");
+        alertDialogBuilder.setView(waypointsField);
+        alertDialogBuilder.setPositiveButton("Send", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                MissionPacket missionPacket;
+                try {
+                    missionPacket = parseWaypointText(waypointsField.getText().toString());
+                } catch (NumberFormatException e) {
+                    showSnackbar("Invalid waypoint: " + e.getMessage());
+                    return;
+                }
+                if (missionPacket.getWaypointCount() == 0) {
+                    showSnackbar("Mission has no waypoints");
+                    return;
+                }
+                sharedPreferencesManager.updateMission(missionPacket.toJsonString());
+                sendBroadcast(missionPacket.toIntent());
+                showSnackbar("Mission sent: " + missionPacket.getWaypointCount() + " waypoints");
+            }
+        });
+        alertDialogBuilder.setNeutralButton("Clear", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                //A mission without waypoints clears the mission of the craft
+                sharedPreferencesManager.updateMission(null);
+                sendBroadcast(new MissionPacket().toIntent());
+                showSnackbar("Mission cleared");
+            }
+        });
+        alertDialogBuilder.setNegativeButton("Cancel", null);
+        alertDialogBuilder.create().show();
+    }
+
+    //Returns the waypoints of the input mission as text, one "latitude, longitude[, altitude]" per
+    //line (the format read by parseWaypointText)
+    private static String getWaypointText(MissionPacket missionPacket) {
+        StringBuilder waypointText = new StringBuilder();
+        for (int i = 0; i < missionPacket.getWaypointCount(); i++) {
+            if (i > 0) waypointText.append('\n');
+            waypointText.append(String.format(Locale.US, "%.6f, %.6f",
+                    missionPacket.getWaypointLatitude(i), missionPacket.getWaypointLongitude(i)));
+            double altitude = missionPacket.getWaypointAltitude(i);
+            if (!Double.isNaN(altitude)) {
+                waypointText.append(String.format(Locale.US, ", %.1f", altitude));
+            }
+        }
+        return waypointText.toString();
+    }
+
+    //Returns a mission with one waypoint per non-empty line of the input text. The first waypoint
+    //is the home point of the mission. Throws NumberFormatException for a malformed line.
+    private static MissionPacket parseWaypointText(String waypointText) {
+        MissionPacket missionPacket = new MissionPacket();
+        for (String line : waypointText.split("\n")) {
+            if (line.trim().isEmpty()) continue;
+            String[] values = line.split(",");
+            if (values.length < 2 || values.length > 3) throw new NumberFormatException(line);
+            double latitude = Double.parseDouble(values[0].trim());
+            double longitude = Double.parseDouble(values[1].trim());
+            double altitude = values.length == 3
+                    ? Double.parseDouble(values[2].trim()) : Double.NaN;
+            if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180) {
+                throw new NumberFormatException(line);
+            }
+            missionPacket.addWaypoint(latitude, longitude, altitude);
+        }
+        return missionPacket;
+    }
+
+    //Shows a dialog to pick the axis to autotune, then starts the experiment on the craft
+    private void showAutotuneAxisDialog() {
+        final ArduinoPacket.ControlAxis[] controlAxes = {ArduinoPacket.ControlAxis.ROLL,
+                ArduinoPacket.ControlAxis.PITCH, ArduinoPacket.ControlAxis.YAW};
+        String[] axisNames = new String[controlAxes.length];
+        for (int i = 0; i < controlAxes.length; i++) {
+            axisNames[i] = controlAxes[i].getStringValue();
+        }
+        AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(this);
+        alertDialogBuilder.setTitle("Autotune axis");
+        alertDialogBuilder.setItems(axisNames, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                mAutotuneAxis = controlAxes[which];
+                sendBroadcast(FlightControlService.getStartAutotuneIntent(mAutotuneAxis,
+                        AUTOTUNE_RELAY_AMPLITUDE));
+                showSnackbar("Autotuning " + mAutotuneAxis.getStringValue()
+                        + ", hold steady flight");
+            }
+        });
+        alertDialogBuilder.setNegativeButton("Cancel", null);
+        alertDialogBuilder.create().show();
+    }
+
+    //Shows the gains proposed by each tuning rule and saves the selected gains on confirmation
+    private void showAutotuneResultDialog(final ArduinoPacket.ControlAxis controlAxis,
+                                          double ultimateGain, double ultimatePeriod) {
+        //Keep the integrator limit of the existing gains, if there are any
+        PidGains currentGains = mConfigArduinoPacket.getPidGains(controlAxis);
+        double integratorLimit = currentGains != null
+                ? currentGains.getIntegratorLimit() : DEFAULT_INTEGRATOR_LIMIT;
+        final RelayAutotuner.TuningRule[] tuningRules = RelayAutotuner.TuningRule.values();
+        final PidGains[] proposedGains = new PidGains[tuningRules.length];
+        String[] gainDescriptions = new String[tuningRules.length];
+        for (int i = 0; i < tuningRules.length; i++) {
+            proposedGains[i] = RelayAutotuner.computeGains(ultimateGain, ultimatePeriod,
+                    tuningRules[i], integratorLimit);
+            gainDescriptions[i] = String.format(Locale.US, "%s: kp %.3f ki %.3f kd %.3f",
+                    tuningRules[i] == RelayAutotuner.TuningRule.ZIEGLER_NICHOLS
+                            ? "Ziegler-Nichols" : "Tyreus-Luyben",
+                    proposedGains[i].getProportionalGain(), proposedGains[i].getIntegralGain(),
+                    proposedGains[i].getDerivativeGain());
+        }
+        //Tyreus-Luyben is the conservative default
+        final int[] selection = {RelayAutotuner.TuningRule.TYREUS_LUYBEN.ordinal()};
+        AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(this);
+        alertDialogBuilder.setTitle(String.format(Locale.US, "%s: Ku %.3f, Pu %.2f s",
+                controlAxis.getStringValue(), ultimateGain, ultimatePeriod));
+        alertDialogBuilder.setSingleChoiceItems(gainDescriptions, selection[0],
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        selection[0] = which;
+                    }
+                });
+        alertDialogBuilder.setPositiveButton("Save", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int whichButton) {
+                saveAutotunedGains(controlAxis, proposedGains[selection[0]]);
+            }
+        });
+        alertDialogBuilder.setNegativeButton("Discard", null);
+        alertDialogBuilder.create().show();
+    }
+
+    //Saves the input gains to the craft profile and sets them on the craft. Only the tuned axis
+    //changes: the craft is not reconfigured, so its other controllers and sensors are untouched.
+    private void saveAutotunedGains(ArduinoPacket.ControlAxis controlAxis, PidGains pidGains) {
+        mConfigArduinoPacket.setPidGains(controlAxis, pidGains);
+        if (mCraftProfileName != null) {
+            new SharedPreferencesManager(this).updateCraftConfiguration(mCraftProfileName,
+                    mConfigArduinoPacket.toJsonString());
+        }
+        sendBroadcast(FlightControlService.getSetGainsIntent(controlAxis, pidGains));
+        showSnackbar(controlAxis.getStringValue() + " gains saved");
+    }
+
+    //Shows a short Snackbar message
+    private void showSnackbar(String message) {
+        Snackbar.make(findViewById(android.R.id.content), message, Snackbar.LENGTH_SHORT).show();
+    }
+
     //Loads the Arduino configuration into a ArduinoPacket from SharedPreferences
     private void loadArduinoConfiguration(Intent intent) {
         mConfigArduinoPacket = new ArduinoPacket();
-        String craftProfileName = intent.getStringExtra(SharedPreferencesManager.KEY_CRAFT_NAME);
+        mCraftProfileName = intent.getStringExtra(SharedPreferencesManager.KEY_CRAFT_NAME);
         SharedPreferencesManager sharedPreferencesManager = new SharedPreferencesManager(this);
-        if (craftProfileName != null) {
-            String config = sharedPreferencesManager.getCraftConfiguration(craftProfileName);
+        if (mCraftProfileName != null) {
+            String config = sharedPreferencesManager.getCraftConfiguration(mCraftProfileName);
             if (config != null) {
                 mConfigArduinoPacket = new ArduinoPacket(config);
             }
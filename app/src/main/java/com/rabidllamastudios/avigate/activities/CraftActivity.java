@@ -10,32 +10,46 @@ import android.location.Location;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.TextView;
 
 import com.rabidllamastudios.avigate.R;
 import com.rabidllamastudios.avigate.helpers.PermissionsChecker;
+import com.rabidllamastudios.avigate.helpers.SharedPreferencesManager;
 import com.rabidllamastudios.avigate.models.ConnectionPacket;
 import com.rabidllamastudios.avigate.models.CraftStatePacket;
 import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.LatencyPacket;
 import com.rabidllamastudios.avigate.services.MasterFlightService;
 import com.rabidllamastudios.avigate.services.NetworkService;
 import com.rabidllamastudios.avigate.services.UsbSerialService;
 
+import java.util.ArrayDeque;
+import java.util.Locale;
+
 /**
  * This activity is launched when an Arduino is connected over USB-OTG. Displays craft debug data.
  * Responsible for starting the MasterFlightService foreground service that manages the flight.
+ * Shows the sensor to servo latency breakdown, which can be exported as CSV from the menu.
  * Created by Ryan Staatz on 11/11/2015
  */
 public class CraftActivity extends AppCompatActivity {
 
     private static final String DEGREES = " °";
     private static final String DEGREES_PER_SECOND = " °/s";
+    //Maximum number of latency reports kept for export (one hour at one report per second)
+    private static final int MAX_LATENCY_ROWS = 3600;
 
     private IntentFilter mArduinoOutputIntentFilter;
     private IntentFilter mConnectionIntentFilter;
     private IntentFilter mCraftStateIntentFilter;
+    private IntentFilter mLatencyIntentFilter;
     private IntentFilter mUsbIntentFilter;
     private PermissionsChecker mPermissionsChecker;
+    private boolean mIsConnected = false;
+    //CSV rows of the latency reports received while this activity was visible, oldest first
+    private final ArrayDeque<String> mLatencyRows = new ArrayDeque<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -51,6 +65,7 @@ public class CraftActivity extends AppCompatActivity {
         mArduinoOutputIntentFilter = new IntentFilter(ArduinoPacket.INTENT_ACTION_OUTPUT);
         mConnectionIntentFilter = new IntentFilter(ConnectionPacket.INTENT_ACTION);
         mCraftStateIntentFilter = new IntentFilter(CraftStatePacket.INTENT_ACTION);
+        mLatencyIntentFilter = new IntentFilter(LatencyPacket.INTENT_ACTION);
 
         //Initialize and add multiple Intent actions for mUsbIntentFilter
         mUsbIntentFilter = new IntentFilter();
@@ -71,6 +86,7 @@ public class CraftActivity extends AppCompatActivity {
         unregisterReceiver(mArduinoOutputReceiver);
         unregisterReceiver(mConnectionReceiver);
         unregisterReceiver(mCraftStateReceiver);
+        unregisterReceiver(mLatencyReceiver);
         unregisterReceiver(mUsbReceiver);
         //Call super method
         super.onPause();
@@ -82,11 +98,12 @@ public class CraftActivity extends AppCompatActivity {
         registerReceiver(mArduinoOutputReceiver, mArduinoOutputIntentFilter);
         registerReceiver(mConnectionReceiver, mConnectionIntentFilter);
         registerReceiver(mCraftStateReceiver, mCraftStateIntentFilter);
+        registerReceiver(mLatencyReceiver, mLatencyIntentFilter);
         registerReceiver(mUsbReceiver, mUsbIntentFilter);
         //Check for location permissions before attempting to start the MasterFlightService
         if (mPermissionsChecker.hasPermission(this, Manifest.permission.ACCESS_FINE_LOCATION,
                 PermissionsChecker.PERMISSIONS_REQUEST_READ_LOCATION_FINE)) {
-            startMasterFlightService();
+            startMasterFlightService(false);
         }
         //Request the connection status from NetworkService
         sendBroadcast(new Intent(NetworkService.INTENT_ACTION_REQUEST_CONNECTION_STATUS));
@@ -94,6 +111,53 @@ public class CraftActivity extends AppCompatActivity {
         super.onResume();
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_craft, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        //Show whether the craft is simulated
+        menu.findItem(R.id.item_simulate_craft).setChecked(
+                new SharedPreferencesManager(this).isSimulatingCraft());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.item_export_latency:
+                exportLatency();
+                return true;
+            case R.id.item_simulate_craft:
+                //Switch between the simulated craft and the real hardware, restarting the flight
+                SharedPreferencesManager sharedPreferencesManager =
+                        new SharedPreferencesManager(this);
+                sharedPreferencesManager.updateSimulateCraft(
+                        !sharedPreferencesManager.isSimulatingCraft());
+                if (isServiceRunning(MasterFlightService.class)) {
+                    stopService(new Intent(getApplicationContext(), MasterFlightService.class));
+                    startMasterFlightService(true);
+                }
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    //Shares the recorded latency reports as CSV text (e.g. to email or save them)
+    private void exportLatency() {
+        StringBuilder csv = new StringBuilder(LatencyPacket.getCsvHeader()).append('\n');
+        for (String row : mLatencyRows) csv.append(row).append('\n');
+        Intent shareIntent = new Intent(Intent.ACTION_SEND);
+        shareIntent.setType("text/csv");
+        shareIntent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.tv_craft_title_latency));
+        shareIntent.putExtra(Intent.EXTRA_TEXT, csv.toString());
+        startActivity(Intent.createChooser(shareIntent, getString(R.string.item_export_latency)));
+    }
+
     // If the user allows location permissions, start the MasterFlightService
     private PermissionsChecker.Callback mPermissionsCheckerCallback =
             new PermissionsChecker.Callback() {
@@ -101,15 +165,17 @@ public class CraftActivity extends AppCompatActivity {
                 public void permissionGranted(int permissionsConstant) {
                     if (permissionsConstant ==
                             PermissionsChecker.PERMISSIONS_REQUEST_READ_LOCATION_FINE) {
-                        startMasterFlightService();
+                        startMasterFlightService(false);
                     }
                 }
             };
 
-    //Starts the MasterFlightService if it is not already running
-    private void startMasterFlightService() {
-        if (!isServiceRunning(MasterFlightService.class)) {
-            startService(MasterFlightService.getConfiguredIntent(getApplicationContext()));
+    //Starts the MasterFlightService (with a simulated craft if set) if it is not already running.
+    //If isRestart is true, the service is being stopped, so it is started regardless.
+    private void startMasterFlightService(boolean isRestart) {
+        if (isRestart || !isServiceRunning(MasterFlightService.class)) {
+            startService(MasterFlightService.getConfiguredIntent(getApplicationContext(),
+                    new SharedPreferencesManager(this).isSimulatingCraft()));
         }
     }
 
@@ -169,8 +235,12 @@ public class CraftActivity extends AppCompatActivity {
             //If the Intent is type ConnectionPacket, update corresponding TextView value
             if (intent.getAction().equals(ConnectionPacket.INTENT_ACTION)) {
                 TextView connectionStatusTV = (TextView) findViewById(R.id.tv_craft_value_connect);
+                //ConnectionPackets are also broadcast periodically: act on status changes only
+                boolean wasConnected = mIsConnected;
+                mIsConnected = new ConnectionPacket(intent.getExtras()).isConnected();
+                if (mIsConnected == wasConnected) return;
                 //If ConnectionPacket method isConnected is true, show the network is connected
-                if (new ConnectionPacket(intent.getExtras()).isConnected()) {
+                if (mIsConnected) {
                     connectionStatusTV.setText(
                             getResources().getString(R.string.tv_placeholder_connected));
                     //TODO get Arduino status without notifying NetworkService of status response
@@ -258,6 +328,30 @@ public class CraftActivity extends AppCompatActivity {
         }
     };
 
+    //Listens for LatencyPackets, shows the latency of each stage and records them for export
+    private final BroadcastReceiver mLatencyReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getAction().equals(LatencyPacket.INTENT_ACTION)) {
+                LatencyPacket latencyPacket = new LatencyPacket(intent.getExtras());
+                StringBuilder breakdown = new StringBuilder();
+                for (int i = 0; i < LatencyPacket.ENTRY_COUNT; i++) {
+                    LatencyPacket.StageLatency stageLatency = latencyPacket.getStageLatency(i);
+                    if (stageLatency == null) continue;
+                    if (breakdown.length() > 0) breakdown.append('\n');
+                    breakdown.append(String.format(Locale.US, "%s: %.1f / %.1f / %.1f ms",
+                            LatencyPacket.getEntryName(i), stageLatency.getP50(),
+                            stageLatency.getP99(), stageLatency.getMax()));
+                }
+                TextView latencyTV = (TextView) findViewById(R.id.tv_craft_value_latency);
+                latencyTV.setText(breakdown.toString());
+                //Keep a bounded history of reports for export
+                if (mLatencyRows.size() >= MAX_LATENCY_ROWS) mLatencyRows.removeFirst();
+                mLatencyRows.addLast(latencyPacket.toCsvRow(System.currentTimeMillis()));
+            }
+        }
+    };
+
     //Listens for USB state notifications from UsbSerialService and updates a TextView accordingly
     private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
         @Override
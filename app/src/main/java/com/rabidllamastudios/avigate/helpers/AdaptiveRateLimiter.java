@@ -0,0 +1,105 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits the rate of messages per topic, adapting the rates to the congestion of the link
+ * (additive increase, multiplicative decrease, as TCP): each update while the link is congested
+ * halves the rate of every topic (down to its minimum rate); each update while it is not raises
+ * them by a fraction of their maximum rate, so rates recover gradually when the link improves.
+ * Messages over the rate of their topic are dropped, which suits telemetry where only the latest
+ * value matters. Topics without a limit are never dropped.
+ * Not thread safe: use from a single thread (e.g. the main thread).
+ */
+public class AdaptiveRateLimiter {
+    //Factor applied to the rates on congestion
+    private static final double DECREASE_FACTOR = 0.5;
+    //Fraction of the maximum rate added on each update without congestion
+    private static final double INCREASE_FRACTION = 0.1;
+    //Messages that may be sent back to back, so the jitter of a source at the rate is tolerated
+    private static final double BURST = 2;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final Map<String, TopicLimit> mTopicLimits = new HashMap<>();
+    private final List<String> mTopics = new ArrayList<>();
+
+    public AdaptiveRateLimiter() {}
+
+    /** Limits the rate of a topic. Its rate starts at the maximum rate. Adding a limited topic
+     * again only updates its limits: its current rate (within the new limits) is kept.
+     * @param topic the topic to limit (e.g. an Intent action)
+     * @param maxRate the maximum rate in messages per second (e.g. the rate of its source)
+     * @param minRate the rate in messages per second below which congestion does not reduce it
+     */
+    public void addTopic(String topic, double maxRate, double minRate) {
+        TopicLimit topicLimit = mTopicLimits.get(topic);
+        if (topicLimit == null) {
+            mTopics.add(topic);
+            mTopicLimits.put(topic, new TopicLimit(maxRate, minRate));
+            return;
+        }
+        topicLimit.mMaxRate = maxRate;
+        topicLimit.mMinRate = minRate;
+        topicLimit.mRate = Math.max(minRate, Math.min(maxRate, topicLimit.mRate));
+    }
+
+    /** Returns the current rate of the input topic in messages per second (-1 if not limited) */
+    public double getRate(String topic) {
+        TopicLimit topicLimit = mTopicLimits.get(topic);
+        return topicLimit != null ? topicLimit.mRate : -1;
+    }
+
+    /** Returns the limited topics, in the order they were added */
+    public List<String> getTopics() {
+        return mTopics;
+    }
+
+    /** Returns true if a message on the input topic may be sent now, false if it must be dropped
+     * @param nowNanos the current time (System.nanoTime)
+     */
+    public boolean tryAcquire(String topic, long nowNanos) {
+        TopicLimit topicLimit = mTopicLimits.get(topic);
+        if (topicLimit == null) return true;
+        if (topicLimit.mLastNanos != 0) {
+            double elapsed = (nowNanos - topicLimit.mLastNanos) / NANOS_PER_SECOND;
+            topicLimit.mTokens = Math.min(BURST, topicLimit.mTokens + elapsed * topicLimit.mRate);
+        }
+        topicLimit.mLastNanos = nowNanos;
+        if (topicLimit.mTokens < 1) return false;
+        topicLimit.mTokens -= 1;
+        return true;
+    }
+
+    /** Adapts the rate of every topic to the congestion of the link. Call at a regular interval
+     * (e.g. once per RTT probe), since the rates recover by a step per call.
+     */
+    public void update(boolean isCongested) {
+        for (TopicLimit topicLimit : mTopicLimits.values()) {
+            if (isCongested) {
+                topicLimit.mRate = Math.max(topicLimit.mMinRate,
+                        topicLimit.mRate * DECREASE_FACTOR);
+            } else {
+                topicLimit.mRate = Math.min(topicLimit.mMaxRate,
+                        topicLimit.mRate + topicLimit.mMaxRate * INCREASE_FRACTION);
+            }
+        }
+    }
+
+    //The rate limit and token bucket of a topic
+    private static class TopicLimit {
+        private double mMaxRate;
+        private double mMinRate;
+        private double mRate;
+        private double mTokens = BURST;
+        private long mLastNanos = 0;
+
+        private TopicLimit(double maxRate, double minRate) {
+            mMaxRate = maxRate;
+            mMinRate = minRate;
+            mRate = maxRate;
+        }
+    }
+}
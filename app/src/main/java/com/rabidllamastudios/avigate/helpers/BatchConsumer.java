@@ -0,0 +1,114 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Consumes a RingBuffer on a dedicated thread: waits (parked) until slots are published, then
+ * processes every published slot in one batch. Slots published while the consumer was stopped
+ * are stale and skipped when it starts.
+ * Also an Executor of the consumer thread: tasks run between batches, in order, so the thread
+ * can own a resource (e.g. a serial port) that other work must not use concurrently.
+ */
+public class BatchConsumer<E> implements Executor {
+    private static final String CLASS_NAME = BatchConsumer.class.getSimpleName();
+    //Maximum time the thread stays parked before checking whether it should stop in milliseconds
+    private static final long PARK_TIMEOUT = 100;
+
+    private final RingBuffer<E> mRingBuffer;
+    private final RingBuffer.Handler<? super E> mHandler;
+    private final String mName;
+    private final int mThreadPriority;
+
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean mIsRunning = false;
+    private volatile Thread mThread = null;
+
+    /** Constructs a BatchConsumer. Use start to start the consumer thread.
+     * @param name the name of the consumer thread (also used when logging)
+     * @param threadPriority the Linux thread priority (e.g. Process.THREAD_PRIORITY_URGENT_DISPLAY)
+     * @param ringBuffer the ring to consume. It must not have another consumer.
+     * @param handler processes each slot on the consumer thread
+     */
+    public BatchConsumer(String name, int threadPriority, RingBuffer<E> ringBuffer,
+                         RingBuffer.Handler<? super E> handler) {
+        mName = name;
+        mThreadPriority = threadPriority;
+        mRingBuffer = ringBuffer;
+        mHandler = handler;
+    }
+
+    /** Starts the consumer thread. Does nothing if it is already running. */
+    public synchronized void start() {
+        if (mIsRunning) return;
+        mIsRunning = true;
+        mThread = new Thread(mConsumerRunnable, mName);
+        mThread.start();
+    }
+
+    /** Stops the consumer thread and waits for the current batch to complete */
+    public synchronized void stop() {
+        if (!mIsRunning) return;
+        mIsRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /** Runs the input task on the consumer thread after the current batch. Tasks still queued
+     * when the consumer stops are discarded.
+     */
+    @Override
+    public void execute(Runnable task) {
+        mTasks.add(task);
+        Thread thread = mThread;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /** Returns true if the consumer thread is running */
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    //Processes published slots until stopped
+    private final Runnable mConsumerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(mThreadPriority);
+            int skipped = mRingBuffer.skip();
+            if (skipped > 0) Log.i(CLASS_NAME, mName + " skipped " + skipped + " stale slots");
+            while (mIsRunning) {
+                try {
+                    mRingBuffer.await(mHandler, PARK_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (RuntimeException e) {
+                    //A failed slot must not stop the consumer. The rest of its batch is skipped.
+                    Log.e(CLASS_NAME, mName + " failed to process a slot", e);
+                    mRingBuffer.skip();
+                }
+                runTasks();
+            }
+            mTasks.clear();
+        }
+    };
+
+    //Runs the queued tasks. A failed task must not stop the consumer either.
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(CLASS_NAME, mName + " failed to run a task", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a control step at a fixed rate on a dedicated high priority thread
+ * Deadlines are absolute (start time + n * period), so scheduling delays do not accumulate. If a
+ * step overruns one or more periods, the missed deadlines are counted and skipped (not replayed).
+ * Records the loop period jitter, execution time and deadline misses, and logs them periodically.
+ */
+public class ControlLoop {
+    private static final String CLASS_NAME = ControlLoop.class.getSimpleName();
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    //Interval at which the loop metrics are logged (then reset) in seconds
+    private static final int METRICS_LOG_INTERVAL = 10;
+
+    private final Callback mCallback;
+    private final String mName;
+    private final long mPeriodNanos;
+    private final int mThreadPriority;
+
+    //Metrics. Only accessed on the loop thread.
+    private final TimingStatistics mExecutionStatistics = new TimingStatistics();
+    private final TimingStatistics mJitterStatistics = new TimingStatistics();
+    private long mDeadlineMisses = 0;
+
+    private volatile boolean mIsRunning = false;
+    private Thread mThread = null;
+
+    /** Callback that is called once per period on the control loop thread */
+    public interface Callback {
+        /** Performs a single control step
+         * @param dt the time since the previous step in seconds (the period for the first step)
+         */
+        void onControlStep(double dt);
+    }
+
+    /** Constructs a ControlLoop. Use start to start the loop thread.
+     * @param name the name of the loop thread (also used when logging)
+     * @param rate the loop rate in Hertz (Hz)
+     * @param threadPriority the Linux thread priority (e.g. Process.THREAD_PRIORITY_URGENT_DISPLAY)
+     * @param callback the callback that performs each control step
+     */
+    public ControlLoop(String name, int rate, int threadPriority, Callback callback) {
+        if (rate <= 0) throw new IllegalArgumentException("Loop rate must be positive: " + rate);
+        mName = name;
+        mPeriodNanos = NANOS_PER_SECOND / rate;
+        mThreadPriority = threadPriority;
+        mCallback = callback;
+    }
+
+    /** Starts the loop thread. Does nothing if the loop is already running. */
+    public synchronized void start() {
+        if (mIsRunning) return;
+        mIsRunning = true;
+        mThread = new Thread(mLoopRunnable, mName);
+        mThread.start();
+    }
+
+    /** Stops the loop thread and waits for the current step to complete */
+    public synchronized void stop() {
+        if (!mIsRunning) return;
+        mIsRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /** Returns true if the loop thread is running */
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    //Runs control steps at fixed deadlines until stopped
+    private final Runnable mLoopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(mThreadPriority);
+            long cyclesPerLog = METRICS_LOG_INTERVAL * NANOS_PER_SECOND / mPeriodNanos;
+            long cycles = 0;
+            long deadline = System.nanoTime();
+            long previousStart = deadline - mPeriodNanos;
+            while (mIsRunning) {
+                //Sleep until the deadline. parkNanos may return early, so check the time again.
+                long remaining = deadline - System.nanoTime();
+                while (remaining > 0 && mIsRunning) {
+                    LockSupport.parkNanos(remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+                if (!mIsRunning) break;
+                long start = System.nanoTime();
+                mJitterStatistics.record(Math.abs(start - previousStart - mPeriodNanos));
+                try {
+                    mCallback.onControlStep((start - previousStart) / (double) NANOS_PER_SECOND);
+                } catch (RuntimeException e) {
+                    //A failed step must not stop the control loop
+                    Log.e(CLASS_NAME, mName + " control step failed", e);
+                }
+                long end = System.nanoTime();
+                mExecutionStatistics.record(end - start);
+                previousStart = start;
+                //Advance to the next deadline, skipping (and counting) any deadlines already missed
+                deadline += mPeriodNanos;
+                if (end > deadline) {
+                    long missed = (end - deadline) / mPeriodNanos + 1;
+                    mDeadlineMisses += missed;
+                    deadline += missed * mPeriodNanos;
+                }
+                if (++cycles % cyclesPerLog == 0) logMetrics();
+            }
+        }
+    };
+
+    //Logs the loop metrics, then resets them. Called on the loop thread, after a step.
+    private void logMetrics() {
+        Log.i(CLASS_NAME, mName + " period jitter: [" + mJitterStatistics.toString()
+                + "] execution: [" + mExecutionStatistics.toString() + "] deadline misses: "
+                + mDeadlineMisses);
+        mJitterStatistics.reset();
+        mExecutionStatistics.reset();
+        mDeadlineMisses = 0;
+    }
+}
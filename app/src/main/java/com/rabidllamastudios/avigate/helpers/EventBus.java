@@ -0,0 +1,241 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process, typed publish/subscribe bus between the flight services (which share one process)
+ * Events are delivered as the published object itself (no Bundle marshalling, binder IPC or
+ * re-parsing), so a published packet must not be modified afterwards.
+ * Each subscription runs on its own executor and receives events in publish order, one at a time.
+ * IMMEDIATE delivers on the publishing thread, so the subscriber must be fast and thread safe.
+ * Other subscriptions queue undelivered events, without bound unless a queue capacity is given.
+ * A bounded queue drops its oldest events when full (LATEST_ONLY keeps only the latest event), so
+ * a slow subscriber of a snapshot topic falls behind by at most the capacity.
+ * Activities still use Intents: IntentBridge forwards selected topics between both.
+ */
+public class EventBus {
+    private static final EventBus DEFAULT = new EventBus();
+
+    /** Delivers events on the publishing thread (e.g. to store the latest value in a volatile) */
+    public static final Executor IMMEDIATE = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /** Queue capacity of a subscription that only delivers the latest undelivered event */
+    public static final int LATEST_ONLY = 1;
+    /** Queue capacity of a subscription that delivers every event */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final ConcurrentMap<String, CopyOnWriteArrayList<Subscription<?>>> mSubscriptions =
+            new ConcurrentHashMap<>();
+
+    public EventBus() {}
+
+    /** Returns the bus shared by all services of the process */
+    public static EventBus getDefault() {
+        return DEFAULT;
+    }
+
+    /** Returns an Executor that delivers events on the main (UI) thread */
+    public static Executor createMainThreadExecutor() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                handler.post(runnable);
+            }
+        };
+    }
+
+    /** Returns true if the input Topic has at least one subscriber */
+    public boolean hasSubscribers(Topic<?> topic) {
+        CopyOnWriteArrayList<Subscription<?>> subscriptions = mSubscriptions.get(topic.getName());
+        return subscriptions != null && !subscriptions.isEmpty();
+    }
+
+    /** Delivers the input event to every subscriber of the input Topic
+     * @param topic the Topic of the event
+     * @param event the event. Shared with all subscribers, so it must not be modified afterwards.
+     */
+    public <T> void publish(Topic<T> topic, T event) {
+        CopyOnWriteArrayList<Subscription<?>> subscriptions = mSubscriptions.get(topic.getName());
+        if (subscriptions == null) return;
+        for (Subscription<?> subscription : subscriptions) {
+            subscription.deliver(event);
+        }
+    }
+
+    /** Subscribes to the input Topic
+     * @param topic the Topic to subscribe to
+     * @param executor the executor that runs the subscriber (e.g. IMMEDIATE, a single thread
+     *                 executor or createMainThreadExecutor)
+     * @param subscriber receives each event of the Topic
+     * @return the Subscription, to unsubscribe with
+     */
+    public <T> Subscription<T> subscribe(Topic<T> topic, Executor executor,
+                                         Subscriber<? super T> subscriber) {
+        return subscribe(topic, executor, subscriber, UNBOUNDED);
+    }
+
+    /** Subscribes to the input Topic with a bounded queue of undelivered events
+     * @param topic the Topic to subscribe to
+     * @param executor the executor that runs the subscriber (not IMMEDIATE, which never queues)
+     * @param subscriber receives the events of the Topic that are not dropped
+     * @param queueCapacity the maximum number of undelivered events (e.g. LATEST_ONLY). When the
+     *                      queue is full, the oldest undelivered event is dropped.
+     * @return the Subscription, to unsubscribe with
+     */
+    public <T> Subscription<T> subscribe(Topic<T> topic, Executor executor,
+                                         Subscriber<? super T> subscriber, int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1");
+        }
+        Subscription<T> subscription =
+                new Subscription<>(topic, executor, subscriber, queueCapacity);
+        CopyOnWriteArrayList<Subscription<?>> subscriptions = mSubscriptions.get(topic.getName());
+        if (subscriptions == null) {
+            subscriptions = new CopyOnWriteArrayList<>();
+            CopyOnWriteArrayList<Subscription<?>> existing =
+                    mSubscriptions.putIfAbsent(topic.getName(), subscriptions);
+            if (existing != null) subscriptions = existing;
+        }
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /** Cancels the input Subscription. Events not yet delivered to it are dropped. May be null. */
+    public void unsubscribe(Subscription<?> subscription) {
+        if (subscription == null) return;
+        subscription.mCancelled = true;
+        CopyOnWriteArrayList<Subscription<?>> subscriptions =
+                mSubscriptions.get(subscription.mTopic.getName());
+        if (subscriptions != null) subscriptions.remove(subscription);
+    }
+
+    /** Receives the events of a Topic */
+    public interface Subscriber<T> {
+        void onEvent(T event);
+    }
+
+    /** A named event type. Topics of the same name (e.g. an Intent action) are the same Topic. */
+    public static final class Topic<T> {
+        private final String mName;
+        private final Class<T> mType;
+
+        /** Constructs a Topic
+         * @param name the name of the Topic (the Intent action of its events, if bridged)
+         * @param type the type of its events
+         */
+        public Topic(String name, Class<T> type) {
+            mName = name;
+            mType = type;
+        }
+
+        /** Returns the name of the Topic */
+        public String getName() {
+            return mName;
+        }
+
+        /** Returns the type of the events of the Topic */
+        public Class<T> getType() {
+            return mType;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    /** A subscriber with its executor and queue of undelivered events
+     * The queue is drained by a single task at a time, so events are delivered in order and
+     * never concurrently, even on a multi-threaded executor. Beyond its capacity, the oldest
+     * undelivered events are dropped.
+     */
+    public static final class Subscription<T> implements Runnable {
+        private final Topic<T> mTopic;
+        private final Executor mExecutor;
+        private final Subscriber<? super T> mSubscriber;
+        private final int mQueueCapacity;
+        private final Queue<Object> mQueue = new ConcurrentLinkedQueue<>();
+        //Size of mQueue (ConcurrentLinkedQueue.size is not constant time)
+        private final AtomicInteger mQueueSize = new AtomicInteger(0);
+        private final AtomicLong mDroppedCount = new AtomicLong(0);
+        private final AtomicBoolean mIsScheduled = new AtomicBoolean(false);
+        private volatile boolean mCancelled = false;
+
+        private Subscription(Topic<T> topic, Executor executor, Subscriber<? super T> subscriber,
+                             int queueCapacity) {
+            mTopic = topic;
+            mExecutor = executor;
+            mSubscriber = subscriber;
+            mQueueCapacity = queueCapacity;
+        }
+
+        /** Returns the Topic of this Subscription */
+        public Topic<T> getTopic() {
+            return mTopic;
+        }
+
+        /** Returns true once the Subscription has been cancelled (see EventBus.unsubscribe) */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /** Returns the number of events dropped because the queue of this Subscription was full */
+        public long getDroppedCount() {
+            return mDroppedCount.get();
+        }
+
+        //Delivers the event directly if immediate, otherwise queues it and schedules a drain
+        private void deliver(Object event) {
+            if (mCancelled) return;
+            if (mExecutor == IMMEDIATE) {
+                mSubscriber.onEvent(mTopic.getType().cast(event));
+                return;
+            }
+            mQueue.offer(event);
+            //Drops the oldest events beyond the capacity. The drain may poll concurrently, so
+            //only events actually removed here are counted.
+            if (mQueueSize.incrementAndGet() > mQueueCapacity) {
+                while (mQueueSize.get() > mQueueCapacity && mQueue.poll() != null) {
+                    mQueueSize.decrementAndGet();
+                    mDroppedCount.incrementAndGet();
+                }
+            }
+            if (mIsScheduled.compareAndSet(false, true)) mExecutor.execute(this);
+        }
+
+        //Drains the queue. Reschedules itself if an event was queued after the last poll.
+        @Override
+        public void run() {
+            Object event;
+            while ((event = mQueue.poll()) != null) {
+                mQueueSize.decrementAndGet();
+                if (mCancelled) {
+                    mQueue.clear();
+                    break;
+                }
+                mSubscriber.onEvent(mTopic.getType().cast(event));
+            }
+            mIsScheduled.set(false);
+            if (!mQueue.isEmpty() && !mCancelled && mIsScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+        }
+    }
+}
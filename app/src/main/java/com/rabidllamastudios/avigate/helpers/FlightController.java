@@ -0,0 +1,342 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.PidGains;
+
+/**
+ * Three-axis (plus speed) autopilot built from one PidController per ControlAxis
+ * Roll and pitch hold an attitude (degrees) using the gyro rates for damping, yaw damps the yaw
+ * rate (degrees/second) and speed holds a groundspeed (m/s) with the throttle.
+ * Altitude hold cascades two loops ahead of pitch: altitude (m) commands a climb rate (m/s),
+ * and the climb rate commands the pitch setpoint (degrees). It is engaged when both have gains.
+ * An axis is only controlled once gains have been set for it. Outputs are in servo degrees.
+ * The control law is set up from the craft profile (fromProfile), and outputs are mapped to servo
+ * values by a ServoMixer, as FlightControlService does.
+ * Plain Java with no Android dependencies. update() does not allocate.
+ * Not thread safe: all methods should be called from the control loop thread.
+ */
+public class FlightController {
+    //Time constant of the derivative low pass filter in seconds
+    private static final double DERIVATIVE_FILTER_TIME_CONSTANT = 0.05;
+    //Maximum rate of change of each output in servo degrees per second
+    private static final double OUTPUT_SLEW_RATE = 360;
+
+    //Default roll gains, checked by flying roll steps on the FixedWingModel (see
+    //FlightControllerTest): a 20 degree bank settles within 2 degrees in under 1 s with under
+    //0.5 degrees of overshoot, while 2.5 times the gains oscillate for over 5 s
+    /** Default roll gains if the profile has none (servo degrees per degree & per degree/second)
+     * Equivalent to the original roll stabilization: -3 * roll - 0.5 * roll rate
+     */
+    public static final PidGains DEFAULT_ROLL_GAINS = new PidGains(3, 0, 0.5, 0);
+
+    //Default altitude hold gains if the profile has none, chosen by flying altitude steps on the
+    //FixedWingModel (see FlightControllerTest): a 20 m step settles within 1 m in about 10 s
+    //with under 1 m of overshoot, and the airspeed stays within 1.5 m/s of cruise
+    /** Default pitch gains (servo degrees per degree & per degree/second) used by altitude hold if
+     * the profile has none. The same as the default roll gains.
+     */
+    public static final PidGains DEFAULT_PITCH_GAINS = new PidGains(3, 0, 0.5, 0);
+    /** Default altitude gains (m/s of climb rate per meter): a 6 m error commands the maximum
+     * climb rate of a small craft (3 m/s), a time constant of 2 s
+     */
+    public static final PidGains DEFAULT_ALTITUDE_GAINS = new PidGains(0.5, 0, 0, 0);
+    /** Default climb rate gains (degrees of pitch per m/s). The integrator (up to 10 degrees)
+     * finds the pitch trim, since the pitch loop has none.
+     */
+    public static final PidGains DEFAULT_CLIMB_RATE_GAINS = new PidGains(3, 1, 0, 10);
+    /** Default throttle feedforward in servo degrees per m/s of commanded climb rate
+     * Climbing at 1 m/s takes m * g * 1 m/s (12 W) more power, 0.8 N more thrust at a 15 m/s
+     * cruise: about 16% of the thrust a small propeller still has at that speed, or 28 degrees
+     * of a 180 degree throttle range. Rounded down, since the speed loop makes up the rest.
+     */
+    public static final double DEFAULT_CLIMB_THROTTLE = 25;
+
+    //Indices of each ControlAxis in the controller, setpoint and output arrays
+    private static final int ROLL = ArduinoPacket.ControlAxis.ROLL.ordinal();
+    private static final int PITCH = ArduinoPacket.ControlAxis.PITCH.ordinal();
+    private static final int YAW = ArduinoPacket.ControlAxis.YAW.ordinal();
+    private static final int SPEED = ArduinoPacket.ControlAxis.SPEED.ordinal();
+    private static final int ALTITUDE = ArduinoPacket.ControlAxis.ALTITUDE.ordinal();
+    private static final int CLIMB_RATE = ArduinoPacket.ControlAxis.CLIMB_RATE.ordinal();
+    private static final int AXIS_COUNT = ArduinoPacket.ControlAxis.values().length;
+
+    private final PidController[] mControllers = new PidController[AXIS_COUNT];
+    private final double[] mSetpoints = new double[AXIS_COUNT];
+    private final double[] mOutputs = new double[AXIS_COUNT];
+
+    public FlightController() {}
+
+    /** Creates a FlightController with the gains and servo ranges from the input craft profile
+     * Roll falls back to DEFAULT_ROLL_GAINS, other axes are only controlled if configured
+     * @param configArduinoPacket the craft profile. If null, no axis is controlled.
+     */
+    public static FlightController fromProfile(ArduinoPacket configArduinoPacket) {
+        FlightController flightController = new FlightController();
+        if (configArduinoPacket == null) return flightController;
+        flightController.setProfileGains(ArduinoPacket.ControlAxis.ROLL, configArduinoPacket);
+        flightController.setProfileGains(ArduinoPacket.ControlAxis.PITCH, configArduinoPacket);
+        flightController.setProfileGains(ArduinoPacket.ControlAxis.YAW, configArduinoPacket);
+        flightController.setProfileGains(ArduinoPacket.ControlAxis.SPEED, configArduinoPacket);
+        return flightController;
+    }
+
+    /** Returns the latest output of the input ControlAxis in servo degrees (0 if not enabled) */
+    public double getOutput(ArduinoPacket.ControlAxis controlAxis) {
+        return mOutputs[controlAxis.ordinal()];
+    }
+
+    /** Returns the setpoint of the input ControlAxis */
+    public double getSetpoint(ArduinoPacket.ControlAxis controlAxis) {
+        return mSetpoints[controlAxis.ordinal()];
+    }
+
+    /** Returns true if both altitude hold loops have gains, so altitude is held */
+    public boolean isAltitudeHoldEnabled() {
+        return mControllers[ALTITUDE] != null && mControllers[CLIMB_RATE] != null;
+    }
+
+    /** Returns true if the input ControlAxis has gains and is controlled */
+    public boolean isEnabled(ArduinoPacket.ControlAxis controlAxis) {
+        return mControllers[controlAxis.ordinal()] != null;
+    }
+
+    /** Clears the state of all controllers and outputs (e.g. when control is handed back) */
+    public void reset() {
+        for (int i = 0; i < AXIS_COUNT; i++) {
+            if (mControllers[i] != null) mControllers[i].reset();
+            mOutputs[i] = 0;
+        }
+    }
+
+    /** Clears the state and output of the controller of the input ControlAxis */
+    public void reset(ArduinoPacket.ControlAxis controlAxis) {
+        int axis = controlAxis.ordinal();
+        if (mControllers[axis] != null) mControllers[axis].reset();
+        mOutputs[axis] = 0;
+    }
+
+    /** Sets the gains of the input ControlAxis and enables it. Null gains disable the axis. */
+    public void setGains(ArduinoPacket.ControlAxis controlAxis, PidGains pidGains) {
+        int axis = controlAxis.ordinal();
+        if (pidGains == null) {
+            mControllers[axis] = null;
+            mOutputs[axis] = 0;
+            return;
+        }
+        if (mControllers[axis] == null) {
+            mControllers[axis] = new PidController(pidGains.getProportionalGain(),
+                    pidGains.getIntegralGain(), pidGains.getDerivativeGain());
+            mControllers[axis].setDerivativeFilter(DERIVATIVE_FILTER_TIME_CONSTANT);
+            mControllers[axis].setSlewRate(OUTPUT_SLEW_RATE);
+        } else {
+            mControllers[axis].setGains(pidGains.getProportionalGain(),
+                    pidGains.getIntegralGain(), pidGains.getDerivativeGain());
+        }
+        mControllers[axis].setIntegratorLimit(pidGains.getIntegratorLimit());
+    }
+
+    /** Sets the gains and output range of the input ControlAxis from the input craft profile, as
+     * fromProfile does. The other axes keep their state, so one axis can be retuned in flight.
+     * Roll falls back to DEFAULT_ROLL_GAINS, and speed is only controlled with a cruise speed.
+     * @param controlAxis roll, pitch, yaw or speed. Altitude hold gains are set by the caller.
+     * @param configArduinoPacket the craft profile
+     */
+    public void setProfileGains(ArduinoPacket.ControlAxis controlAxis,
+                                ArduinoPacket configArduinoPacket) {
+        PidGains pidGains = configArduinoPacket.getPidGains(controlAxis);
+        //Attitude outputs are offsets from the servo center, throttle is an offset from its min
+        switch (controlAxis) {
+            case ROLL:
+                setGains(controlAxis, pidGains != null ? pidGains : DEFAULT_ROLL_GAINS);
+                setServoOutputLimits(controlAxis, configArduinoPacket,
+                        ArduinoPacket.ServoType.AILERON);
+                break;
+            case PITCH:
+                setGains(controlAxis, pidGains);
+                setServoOutputLimits(controlAxis, configArduinoPacket,
+                        ArduinoPacket.ServoType.ELEVATOR);
+                break;
+            case YAW:
+                setGains(controlAxis, pidGains);
+                setServoOutputLimits(controlAxis, configArduinoPacket,
+                        ArduinoPacket.ServoType.RUDDER);
+                break;
+            case SPEED:
+                if (configArduinoPacket.getCruiseSpeed() <= 0) break;
+                setGains(controlAxis, pidGains);
+                setSetpoint(controlAxis, configArduinoPacket.getCruiseSpeed());
+                int throttleRange =
+                        configArduinoPacket.getOutputMax(ArduinoPacket.ServoType.THROTTLE)
+                        - configArduinoPacket.getOutputMin(ArduinoPacket.ServoType.THROTTLE);
+                setOutputLimits(controlAxis, 0, Math.max(0, throttleRange));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Sets the output range of the input ControlAxis in servo degrees. Requires gains. */
+    public void setOutputLimits(ArduinoPacket.ControlAxis controlAxis, double outputMin,
+                                double outputMax) {
+        PidController controller = mControllers[controlAxis.ordinal()];
+        if (controller != null) controller.setOutputLimits(outputMin, outputMax);
+    }
+
+    /** Limits the output of the input ControlAxis to +/- half the range of the input ServoType
+     * @param controlAxis the axis to limit. Requires gains.
+     * @param configArduinoPacket the craft profile, for the output range of the servo
+     * @param servoType the servo driven by the axis
+     */
+    public void setServoOutputLimits(ArduinoPacket.ControlAxis controlAxis,
+                                     ArduinoPacket configArduinoPacket,
+                                     ArduinoPacket.ServoType servoType) {
+        double halfRange = Math.max(0, configArduinoPacket.getOutputMax(servoType)
+                - configArduinoPacket.getOutputMin(servoType)) / 2.0;
+        setOutputLimits(controlAxis, -halfRange, halfRange);
+    }
+
+    /** Sets the setpoint of the input ControlAxis
+     * Roll and pitch in degrees, yaw as a yaw rate in degrees per second, speed in m/s,
+     * altitude in meters. While altitude is held, the pitch setpoint is set by the climb rate loop.
+     */
+    public void setSetpoint(ArduinoPacket.ControlAxis controlAxis, double setpoint) {
+        mSetpoints[controlAxis.ordinal()] = setpoint;
+    }
+
+    /** Updates the outputs of all enabled axes from the input State
+     * @param state the latest state of the craft
+     * @param dt the time since the previous update in seconds
+     */
+    public void update(State state, double dt) {
+        if (isAltitudeHoldEnabled()) {
+            if (state.mHasAltitude) {
+                mOutputs[ALTITUDE] = mControllers[ALTITUDE].update(mSetpoints[ALTITUDE],
+                        state.mAltitude, state.mClimbRate, dt);
+                mSetpoints[CLIMB_RATE] = mOutputs[ALTITUDE];
+                mOutputs[CLIMB_RATE] = mControllers[CLIMB_RATE].update(mSetpoints[CLIMB_RATE],
+                        state.mClimbRate, dt);
+                mSetpoints[PITCH] = mOutputs[CLIMB_RATE];
+            } else {
+                //Without an altitude estimate, hold a level pitch attitude
+                mControllers[ALTITUDE].reset();
+                mControllers[CLIMB_RATE].reset();
+                mOutputs[ALTITUDE] = 0;
+                mOutputs[CLIMB_RATE] = 0;
+                mSetpoints[CLIMB_RATE] = 0;
+                mSetpoints[PITCH] = 0;
+            }
+        }
+        if (mControllers[ROLL] != null) {
+            mOutputs[ROLL] = mControllers[ROLL].update(mSetpoints[ROLL], state.mRoll,
+                    state.mRollRate, dt);
+        }
+        if (mControllers[PITCH] != null) {
+            mOutputs[PITCH] = mControllers[PITCH].update(mSetpoints[PITCH], state.mPitch,
+                    state.mPitchRate, dt);
+        }
+        if (mControllers[YAW] != null) {
+            mOutputs[YAW] = mControllers[YAW].update(mSetpoints[YAW], state.mYawRate, dt);
+        }
+        if (mControllers[SPEED] != null) {
+            if (state.mHasSpeed) {
+                mOutputs[SPEED] = mControllers[SPEED].update(mSetpoints[SPEED], state.mSpeed, dt);
+            } else {
+                //Without a speed measurement, hold the last throttle output
+                mOutputs[SPEED] = mControllers[SPEED].getOutput();
+            }
+        }
+    }
+
+    /** A mutable snapshot of the craft state used as the input of the FlightController
+     * Reused between updates so that the control loop does not allocate
+     */
+    public static class State {
+        private double mRoll, mPitch;
+        private double mRollRate, mPitchRate, mYawRate;
+        private boolean mHasSpeed = false;
+        private double mSpeed;
+        private boolean mHasAltitude = false;
+        private double mAltitude, mClimbRate;
+
+        public State() {}
+
+        /** Sets the attitude and rates of the craft
+         * @param roll the roll angle in degrees
+         * @param pitch the pitch angle in degrees
+         * @param rollRate the roll rate in degrees per second
+         * @param pitchRate the pitch rate in degrees per second
+         * @param yawRate the yaw rate in degrees per second
+         */
+        public void setAttitude(double roll, double pitch, double rollRate, double pitchRate,
+                                double yawRate) {
+            mRoll = roll;
+            mPitch = pitch;
+            mRollRate = rollRate;
+            mPitchRate = pitchRate;
+            mYawRate = yawRate;
+        }
+
+        /** Sets the speed of the craft in m/s. Use clearSpeed if no measurement is available */
+        public void setSpeed(double speed) {
+            mSpeed = speed;
+            mHasSpeed = true;
+        }
+
+        /** Marks the speed as unavailable */
+        public void clearSpeed() {
+            mHasSpeed = false;
+        }
+
+        /** Sets the altitude in meters and the climb rate in m/s (positive is up) */
+        public void setAltitude(double altitude, double climbRate) {
+            mAltitude = altitude;
+            mClimbRate = climbRate;
+            mHasAltitude = true;
+        }
+
+        /** Marks the altitude and climb rate as unavailable */
+        public void clearAltitude() {
+            mHasAltitude = false;
+        }
+
+        /** Returns the altitude in meters */
+        public double getAltitude() {
+            return mAltitude;
+        }
+
+        /** Returns the climb rate in m/s (positive is up) */
+        public double getClimbRate() {
+            return mClimbRate;
+        }
+
+        /** Returns the pitch angle in degrees */
+        public double getPitch() {
+            return mPitch;
+        }
+
+        /** Returns the roll angle in degrees */
+        public double getRoll() {
+            return mRoll;
+        }
+
+        /** Returns the speed in m/s */
+        public double getSpeed() {
+            return mSpeed;
+        }
+
+        /** Returns the yaw rate in degrees per second */
+        public double getYawRate() {
+            return mYawRate;
+        }
+
+        /** Returns true if an altitude estimate is available */
+        public boolean hasAltitude() {
+            return mHasAltitude;
+        }
+
+        /** Returns true if a speed measurement is available */
+        public boolean hasSpeed() {
+            return mHasSpeed;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.SensorSample;
+import com.rabidllamastudios.avigate.models.ServoFrame;
+
+/**
+ * The steady state sensor to servo path of the craft, as two preallocated RingBuffers:
+ * sensor samples: attitude samples (gyroscope, rotation vector) from the sensor thread of
+ * SensorService (or SimulationService) to the control loop of FlightControlService, which drains
+ * them at the start of every control step.
+ * servo frames: the servo values of each control step that changed, from the control loop to the
+ * serial writer thread of UsbSerialService (or SimulationService), which encodes and writes them.
+ * Each ring has one producer and one consumer thread, and neither allocates nor takes a lock.
+ * Slower data (position, altitude, validity) still travels in CraftStatePackets on the EventBus.
+ */
+public class FlightPipeline {
+    //Slots of each ring. Holds several control steps of samples (two sensors at up to ~200 Hz)
+    //and frames, beyond which the consumer is considered stalled and new slots are dropped.
+    private static final int SENSOR_SAMPLE_CAPACITY = 64;
+    private static final int SERVO_FRAME_CAPACITY = 16;
+
+    private static final FlightPipeline DEFAULT = new FlightPipeline();
+
+    private final RingBuffer<SensorSample> mSensorSamples;
+    private final RingBuffer<ServoFrame> mServoFrames;
+
+    public FlightPipeline() {
+        mSensorSamples = new RingBuffer<>(SENSOR_SAMPLE_CAPACITY,
+                new RingBuffer.Factory<SensorSample>() {
+            @Override
+            public SensorSample create() {
+                return new SensorSample();
+            }
+        });
+        mServoFrames = new RingBuffer<>(SERVO_FRAME_CAPACITY,
+                new RingBuffer.Factory<ServoFrame>() {
+            @Override
+            public ServoFrame create() {
+                return new ServoFrame();
+            }
+        });
+    }
+
+    /** Returns the pipeline shared by all services of the process */
+    public static FlightPipeline getDefault() {
+        return DEFAULT;
+    }
+
+    /** Returns the ring of attitude samples (sensor thread to control loop) */
+    public RingBuffer<SensorSample> getSensorSamples() {
+        return mSensorSamples;
+    }
+
+    /** Returns the ring of servo frames (control loop to serial writer) */
+    public RingBuffer<ServoFrame> getServoFrames() {
+        return mServoFrames;
+    }
+
+    /** Publishes a bias corrected gyroscope sample in rad/s (sensor sample producer only)
+     * @param deliveryNanos the time at which the sample was delivered (System.nanoTime)
+     * @return false if the sample was dropped, since the control loop is not draining the ring
+     */
+    public boolean publishAngularVelocity(long deliveryNanos, float x, float y, float z) {
+        long sequence = mSensorSamples.claim();
+        if (sequence < 0) return false;
+        SensorSample sensorSample = mSensorSamples.get(sequence);
+        sensorSample.setAngularVelocity(deliveryNanos, x, y, z);
+        sensorSample.setPublishNanos(System.nanoTime());
+        mSensorSamples.publish(sequence);
+        return true;
+    }
+
+    /** Publishes a rotation vector sample (the raw orientation quaternion, sensor sample producer
+     * only)
+     * @param deliveryNanos the time at which the sample was delivered (System.nanoTime)
+     * @return false if the sample was dropped, since the control loop is not draining the ring
+     */
+    public boolean publishOrientation(long deliveryNanos, float w, float x, float y, float z) {
+        long sequence = mSensorSamples.claim();
+        if (sequence < 0) return false;
+        SensorSample sensorSample = mSensorSamples.get(sequence);
+        sensorSample.setOrientation(deliveryNanos, w, x, y, z);
+        sensorSample.setPublishNanos(System.nanoTime());
+        mSensorSamples.publish(sequence);
+        return true;
+    }
+}
@@ -0,0 +1,30 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.LatencyPacket;
+import com.rabidllamastudios.avigate.models.SensorHealthPacket;
+
+/**
+ * The EventBus Topics exchanged between the flight services
+ * Each Topic is named after the Intent action of its packets, so IntentBridge can forward it
+ */
+public final class FlightTopics {
+    /** Commands and configuration sent to the Arduino (servo values, servo config, requests) */
+    public static final EventBus.Topic<ArduinoPacket> ARDUINO_INPUT =
+            new EventBus.Topic<>(ArduinoPacket.INTENT_ACTION_INPUT, ArduinoPacket.class);
+    /** Data received from the Arduino (status, receiver servo values, errors) */
+    public static final EventBus.Topic<ArduinoPacket> ARDUINO_OUTPUT =
+            new EventBus.Topic<>(ArduinoPacket.INTENT_ACTION_OUTPUT, ArduinoPacket.class);
+    /** Sensor data snapshots, from SensorService (or SimulationService) */
+    public static final EventBus.Topic<CraftStatePacket> CRAFT_STATE =
+            new EventBus.Topic<>(CraftStatePacket.INTENT_ACTION, CraftStatePacket.class);
+    /** Sensor to servo latency statistics */
+    public static final EventBus.Topic<LatencyPacket> LATENCY =
+            new EventBus.Topic<>(LatencyPacket.INTENT_ACTION, LatencyPacket.class);
+    /** Sensor delivery statistics */
+    public static final EventBus.Topic<SensorHealthPacket> SENSOR_HEALTH =
+            new EventBus.Topic<>(SensorHealthPacket.INTENT_ACTION, SensorHealthPacket.class);
+
+    private FlightTopics() {}
+}
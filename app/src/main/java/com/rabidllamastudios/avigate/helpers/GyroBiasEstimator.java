@@ -0,0 +1,121 @@
+package com.rabidllamastudios.avigate.helpers;
+
+/**
+ * Estimates the gyroscope bias (zero-rate offset) while the craft is stationary
+ * Samples are grouped into fixed size windows. A window is considered stationary if every sample
+ * is below a rate threshold and the per axis standard deviation is small. The mean of each
+ * stationary window updates the bias estimate. Once locked (e.g. when armed), the bias is frozen.
+ * Not thread safe: all methods should be called from the thread that receives the gyro events.
+ */
+public class GyroBiasEstimator {
+    //Number of samples per window (~3 seconds at SENSOR_DELAY_UI)
+    private static final int DEFAULT_WINDOW_SIZE = 50;
+    //Maximum angular velocity of any sample in a stationary window in rad/s
+    private static final double MAX_STATIONARY_RATE = 0.1;
+    //Maximum per axis standard deviation of a stationary window in rad/s
+    private static final double MAX_STATIONARY_DEVIATION = 0.01;
+    //Weight of each new stationary window after the first (exponential smoothing)
+    private static final double BIAS_SMOOTHING = 0.3;
+
+    private final int mWindowSize;
+    private boolean mIsLocked = false;
+    private boolean mHasBias = false;
+    private float mBiasX, mBiasY, mBiasZ;
+
+    //Running sums of the current window
+    private int mWindowCount = 0;
+    private boolean mWindowStationary = true;
+    private double mSumX, mSumY, mSumZ;
+    private double mSumSquaresX, mSumSquaresY, mSumSquaresZ;
+
+    public GyroBiasEstimator() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /** Constructs a GyroBiasEstimator with the input number of samples per window */
+    public GyroBiasEstimator(int windowSize) {
+        mWindowSize = windowSize;
+    }
+
+    /** Adds a raw (uncorrected) gyroscope sample in rad/s. Ignored while locked. */
+    public void addSample(float x, float y, float z) {
+        if (mIsLocked) return;
+        if (Math.abs(x) > MAX_STATIONARY_RATE || Math.abs(y) > MAX_STATIONARY_RATE
+                || Math.abs(z) > MAX_STATIONARY_RATE) {
+            mWindowStationary = false;
+        }
+        mSumX += x;
+        mSumY += y;
+        mSumZ += z;
+        mSumSquaresX += x * x;
+        mSumSquaresY += y * y;
+        mSumSquaresZ += z * z;
+        if (++mWindowCount >= mWindowSize) completeWindow();
+    }
+
+    /** Freezes the bias estimate. Samples added while locked are ignored. */
+    public void lock() {
+        mIsLocked = true;
+        resetWindow();
+    }
+
+    /** Resumes bias estimation */
+    public void unlock() {
+        mIsLocked = false;
+    }
+
+    /** Returns the estimated bias of the x axis in rad/s. Returns 0 until a bias is estimated. */
+    public float getBiasX() {
+        return mBiasX;
+    }
+
+    /** Returns the estimated bias of the y axis in rad/s. Returns 0 until a bias is estimated. */
+    public float getBiasY() {
+        return mBiasY;
+    }
+
+    /** Returns the estimated bias of the z axis in rad/s. Returns 0 until a bias is estimated. */
+    public float getBiasZ() {
+        return mBiasZ;
+    }
+
+    /** Returns true if at least one stationary window has been observed */
+    public boolean hasBias() {
+        return mHasBias;
+    }
+
+    /** Returns true if the bias estimate is frozen */
+    public boolean isLocked() {
+        return mIsLocked;
+    }
+
+    //Updates the bias from the current window if it was stationary, then starts a new window
+    private void completeWindow() {
+        double meanX = mSumX / mWindowCount;
+        double meanY = mSumY / mWindowCount;
+        double meanZ = mSumZ / mWindowCount;
+        double maxVariance = MAX_STATIONARY_DEVIATION * MAX_STATIONARY_DEVIATION;
+        if (mWindowStationary && mSumSquaresX / mWindowCount - meanX * meanX < maxVariance
+                && mSumSquaresY / mWindowCount - meanY * meanY < maxVariance
+                && mSumSquaresZ / mWindowCount - meanZ * meanZ < maxVariance) {
+            double weight = mHasBias ? BIAS_SMOOTHING : 1;
+            mBiasX += (float) (weight * (meanX - mBiasX));
+            mBiasY += (float) (weight * (meanY - mBiasY));
+            mBiasZ += (float) (weight * (meanZ - mBiasZ));
+            mHasBias = true;
+        }
+        resetWindow();
+    }
+
+    //Clears the running sums of the current window
+    private void resetWindow() {
+        mWindowCount = 0;
+        mWindowStationary = true;
+        mSumX = 0;
+        mSumY = 0;
+        mSumZ = 0;
+        mSumSquaresX = 0;
+        mSumSquaresY = 0;
+        mSumSquaresZ = 0;
+    }
+}
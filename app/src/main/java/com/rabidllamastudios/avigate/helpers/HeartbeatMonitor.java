@@ -0,0 +1,156 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the link to the peer device (craft or controller) with the heartbeats both devices
+ * send each other at a regular interval
+ * A heartbeat carries the session of its sender, its sequence and send time, and echoes the
+ * send time of the latest heartbeat received from the peer with the time it was held since, so
+ * the round trip time (RTT) is measured without synchronized clocks. From the received
+ * heartbeats, computes the RTT percentiles over the most recent samples, the loss ratio over the
+ * most recent sequences, the interarrival jitter (RFC 3550) and the age of the latest heartbeat.
+ * Each monitor has a random session, so when the peer restarts (with a new monitor) the
+ * measurements start over, however close its new sequences are to the previous ones.
+ * Not thread safe: use from a single thread (e.g. the main thread).
+ */
+public class HeartbeatMonitor {
+    //Number of most recent RTT samples the percentiles are computed over
+    private static final int ROUND_TRIP_WINDOW = 64;
+    //Number of most recent sequences the loss ratio is computed over
+    private static final int SEQUENCE_WINDOW = 64;
+    //Gain of the jitter estimate (RFC 3550)
+    private static final double JITTER_GAIN = 1.0 / 16;
+    private static final double NANOS_PER_MILLI = 1e6;
+    //Length of a heartbeat: session and sequence (ints), send time, echoed send time and hold
+    //time (longs). The hold time is -1 if the sender has not received a heartbeat to echo yet.
+    private static final int HEARTBEAT_LENGTH = 32;
+
+    private final int mSessionId = new Random().nextInt();
+    private int mNextSequence = 0;
+
+    //Latest heartbeat received from the peer: session, sequence, send time (peer clock) and
+    //arrival time
+    private boolean mHasPeerHeartbeat = false;
+    private int mPeerSessionId;
+    private int mPeerSequence;
+    private long mPeerSendNanos;
+    private long mPeerArrivalNanos;
+
+    private final double[] mRoundTripTimes = new double[ROUND_TRIP_WINDOW];
+    private int mRoundTripCount = 0;
+    private boolean mHasEcho = false;
+    private long mLastEchoNanos;
+    private double mJitter = 0;
+
+    //Per slot (sequence modulo SEQUENCE_WINDOW): the latest sequence received in it
+    private final int[] mReceivedSequences = new int[SEQUENCE_WINDOW];
+    private int mFirstSequence;
+
+    public HeartbeatMonitor() {}
+
+    /** Returns the payload of a new heartbeat
+     * @param nowNanos the current time (System.nanoTime), at which the heartbeat is sent
+     */
+    public byte[] createHeartbeat(long nowNanos) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEARTBEAT_LENGTH);
+        buffer.putInt(mSessionId).putInt(mNextSequence++).putLong(nowNanos);
+        if (mHasPeerHeartbeat) {
+            buffer.putLong(mPeerSendNanos).putLong(nowNanos - mPeerArrivalNanos);
+        } else {
+            buffer.putLong(0).putLong(-1);
+        }
+        return buffer.array();
+    }
+
+    /** Returns the interarrival jitter of the heartbeats in ms (0 before two have arrived) */
+    public double getJitterMillis() {
+        return mJitter;
+    }
+
+    /** Returns the time in ms since the latest heartbeat arrived (-1 if none has arrived) */
+    public double getLastHeardAgeMillis(long nowNanos) {
+        if (!mHasPeerHeartbeat) return -1;
+        return (nowNanos - mPeerArrivalNanos) / NANOS_PER_MILLI;
+    }
+
+    /** Returns the ratio of missing heartbeats among the most recent sequences received (0 if
+     * none has arrived). Heartbeats that stop altogether show in the last heard age instead.
+     */
+    public double getLossRatio() {
+        if (!mHasPeerHeartbeat) return 0;
+        int sequenceCount = Math.min(SEQUENCE_WINDOW, mPeerSequence - mFirstSequence + 1);
+        int receivedCount = 0;
+        for (int receivedSequence : mReceivedSequences) {
+            if (mPeerSequence - receivedSequence < sequenceCount
+                    && mPeerSequence - receivedSequence >= 0) {
+                receivedCount++;
+            }
+        }
+        return 1 - (double) receivedCount / sequenceCount;
+    }
+
+    /** Returns the input percentile (0 to 100) of the most recent RTT samples in ms (-1 if there
+     * is no sample yet)
+     */
+    public double getRoundTripTimePercentileMillis(double percentile) {
+        int sampleCount = Math.min(mRoundTripCount, ROUND_TRIP_WINDOW);
+        if (sampleCount == 0) return -1;
+        double[] roundTripTimes = Arrays.copyOf(mRoundTripTimes, sampleCount);
+        Arrays.sort(roundTripTimes);
+        //Nearest rank
+        int rank = (int) Math.ceil(percentile / 100 * sampleCount);
+        return roundTripTimes[Math.max(0, Math.min(sampleCount - 1, rank - 1))];
+    }
+
+    /** Processes a heartbeat received from the peer. Ignores malformed payloads.
+     * @param payload the payload of the heartbeat, as created by createHeartbeat on the peer
+     * @param nowNanos the current time (System.nanoTime), at which the heartbeat arrived
+     */
+    public void onHeartbeat(byte[] payload, long nowNanos) {
+        if (payload.length != HEARTBEAT_LENGTH) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int sessionId = buffer.getInt();
+        int sequence = buffer.getInt();
+        long sendNanos = buffer.getLong();
+        long echoNanos = buffer.getLong();
+        long holdNanos = buffer.getLong();
+        //A new session means the peer restarted: start over
+        if (mHasPeerHeartbeat && sessionId != mPeerSessionId) reset();
+        if (!mHasPeerHeartbeat) {
+            Arrays.fill(mReceivedSequences, Integer.MIN_VALUE);
+            mFirstSequence = sequence;
+        }
+        mReceivedSequences[Math.abs(sequence % SEQUENCE_WINDOW)] = sequence;
+        if (mHasPeerHeartbeat && sequence - mPeerSequence <= 0) return;  //Late or duplicate
+        if (mHasPeerHeartbeat) {
+            double transitDifference = ((nowNanos - mPeerArrivalNanos)
+                    - (sendNanos - mPeerSendNanos)) / NANOS_PER_MILLI;
+            mJitter += JITTER_GAIN * (Math.abs(transitDifference) - mJitter);
+        }
+        //The peer echoes the same heartbeat until a newer one of this device arrives: sample once
+        boolean isNewEcho = holdNanos >= 0 && (!mHasEcho || echoNanos != mLastEchoNanos);
+        if (isNewEcho && nowNanos - echoNanos - holdNanos >= 0) {
+            mHasEcho = true;
+            mLastEchoNanos = echoNanos;
+            mRoundTripTimes[mRoundTripCount % ROUND_TRIP_WINDOW] =
+                    (nowNanos - echoNanos - holdNanos) / NANOS_PER_MILLI;
+            mRoundTripCount++;
+        }
+        mHasPeerHeartbeat = true;
+        mPeerSessionId = sessionId;
+        mPeerSequence = sequence;
+        mPeerSendNanos = sendNanos;
+        mPeerArrivalNanos = nowNanos;
+    }
+
+    /** Clears all measurements of the heartbeats received */
+    public void reset() {
+        mHasPeerHeartbeat = false;
+        mRoundTripCount = 0;
+        mHasEcho = false;
+        mJitter = 0;
+    }
+}
@@ -0,0 +1,173 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import com.rabidllamastudios.avigate.AvigateApplication;
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.LatencyPacket;
+import com.rabidllamastudios.avigate.models.SensorHealthPacket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Adapter between the in-process EventBus and Intents, for the activities and NetworkService
+ * Outgoing topics are broadcast as Intents (converted on the bridge thread, so publishers do not
+ * pay for the marshalling). Incoming Intents (e.g. Arduino commands from an activity or from the
+ * network) are published on the bus. Intents broadcast by the bridge are marked, so a topic
+ * forwarded both ways is not published twice.
+ */
+public class IntentBridge {
+    private static final String PACKAGE_NAME = AvigateApplication.class.getPackage().getName();
+
+    //Marks Intents broadcast by the bridge
+    private static final String EXTRA_BRIDGED = PACKAGE_NAME + ".extra.BRIDGED";
+
+    private final Context mContext;
+    private final EventBus mEventBus;
+    private final ExecutorService mBridgeExecutor;
+    private final List<EventBus.Subscription<?>> mSubscriptions = new ArrayList<>();
+    private final List<BroadcastReceiver> mReceivers = new ArrayList<>();
+
+    /** Constructs an IntentBridge without any forwarded topics
+     * @param context the context used to broadcast and receive Intents
+     * @param eventBus the bus to forward topics from and to
+     */
+    public IntentBridge(Context context, EventBus eventBus) {
+        mContext = context;
+        mEventBus = eventBus;
+        mBridgeExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /** Creates an IntentBridge that forwards the flight topics of the default EventBus
+     * Sensor data, Arduino output, latency and sensor health are broadcast as Intents. Arduino
+     * input Intents are published on the bus. Servo values from FlightControlService therefore
+     * never leave the process as Intents. Sensor data and sensor health are snapshots, so only
+     * the latest one is broadcast if the bridge falls behind.
+     */
+    public static IntentBridge createDefault(Context context) {
+        IntentBridge intentBridge = new IntentBridge(context, EventBus.getDefault());
+        intentBridge.forwardToIntents(FlightTopics.CRAFT_STATE, EventBus.LATEST_ONLY,
+                new Converter<CraftStatePacket>() {
+            @Override
+            public Intent toIntent(CraftStatePacket craftStatePacket) {
+                return craftStatePacket.toIntent();
+            }
+
+            @Override
+            public CraftStatePacket fromIntent(Intent intent) {
+                return new CraftStatePacket(intent.getExtras());
+            }
+        });
+        intentBridge.forwardToIntents(FlightTopics.ARDUINO_OUTPUT,
+                createArduinoConverter(ArduinoPacket.INTENT_ACTION_OUTPUT));
+        intentBridge.forwardFromIntents(FlightTopics.ARDUINO_INPUT,
+                createArduinoConverter(ArduinoPacket.INTENT_ACTION_INPUT));
+        intentBridge.forwardToIntents(FlightTopics.LATENCY, new Converter<LatencyPacket>() {
+            @Override
+            public Intent toIntent(LatencyPacket latencyPacket) {
+                return latencyPacket.toIntent();
+            }
+
+            @Override
+            public LatencyPacket fromIntent(Intent intent) {
+                return new LatencyPacket(intent.getExtras());
+            }
+        });
+        intentBridge.forwardToIntents(FlightTopics.SENSOR_HEALTH, EventBus.LATEST_ONLY,
+                new Converter<SensorHealthPacket>() {
+            @Override
+            public Intent toIntent(SensorHealthPacket sensorHealthPacket) {
+                return sensorHealthPacket.toIntent();
+            }
+
+            @Override
+            public SensorHealthPacket fromIntent(Intent intent) {
+                return new SensorHealthPacket(intent.getExtras());
+            }
+        });
+        return intentBridge;
+    }
+
+    /** Broadcasts each event of the input Topic as an Intent */
+    public <T> void forwardToIntents(EventBus.Topic<T> topic, Converter<T> converter) {
+        forwardToIntents(topic, EventBus.UNBOUNDED, converter);
+    }
+
+    /** Broadcasts the events of the input Topic as Intents
+     * @param topic the Topic to forward
+     * @param queueCapacity the maximum number of events waiting to be broadcast (e.g.
+     *                      EventBus.LATEST_ONLY). Beyond it, the oldest waiting events are dropped.
+     * @param converter converts each event to an Intent
+     */
+    public <T> void forwardToIntents(EventBus.Topic<T> topic, int queueCapacity,
+                                     final Converter<T> converter) {
+        mSubscriptions.add(mEventBus.subscribe(topic, mBridgeExecutor,
+                new EventBus.Subscriber<T>() {
+            @Override
+            public void onEvent(T event) {
+                Intent intent = converter.toIntent(event);
+                intent.putExtra(EXTRA_BRIDGED, true);
+                mContext.sendBroadcast(intent);
+            }
+        }, queueCapacity));
+    }
+
+    /** Publishes each received Intent with the action of the input Topic on the bus */
+    public <T> void forwardFromIntents(final EventBus.Topic<T> topic,
+                                       final Converter<T> converter) {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getBooleanExtra(EXTRA_BRIDGED, false)) return;
+                if (intent.getExtras() == null) return;
+                mEventBus.publish(topic, converter.fromIntent(intent));
+            }
+        };
+        mContext.registerReceiver(receiver, new IntentFilter(topic.getName()));
+        mReceivers.add(receiver);
+    }
+
+    /** Stops forwarding all topics */
+    public void close() {
+        for (EventBus.Subscription<?> subscription : mSubscriptions) {
+            mEventBus.unsubscribe(subscription);
+        }
+        mSubscriptions.clear();
+        for (BroadcastReceiver receiver : mReceivers) {
+            mContext.unregisterReceiver(receiver);
+        }
+        mReceivers.clear();
+        mBridgeExecutor.shutdown();
+    }
+
+    /** Converts the events of a Topic to and from Intents */
+    public interface Converter<T> {
+        /** Returns the input event as an Intent (with the action of its Topic) */
+        Intent toIntent(T event);
+
+        /** Returns the event contained in the input Intent */
+        T fromIntent(Intent intent);
+    }
+
+    //Returns a Converter for ArduinoPackets with the input Intent action
+    private static Converter<ArduinoPacket> createArduinoConverter(final String intentAction) {
+        return new Converter<ArduinoPacket>() {
+            @Override
+            public Intent toIntent(ArduinoPacket arduinoPacket) {
+                return arduinoPacket.toIntent(intentAction);
+            }
+
+            @Override
+            public ArduinoPacket fromIntent(Intent intent) {
+                return new ArduinoPacket(intent.getExtras());
+            }
+        };
+    }
+}
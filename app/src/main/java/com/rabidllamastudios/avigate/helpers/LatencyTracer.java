@@ -0,0 +1,53 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.LatencyPacket;
+import com.rabidllamastudios.avigate.models.LatencyTrace;
+
+/**
+ * Records completed LatencyTraces into one latency histogram (TimingStatistics) per stage, plus
+ * one for the end to end latency. Stages that were not traced are skipped.
+ * Thread safe: traces are recorded on the serial port thread and reported on a broadcast thread.
+ * Recording does not allocate.
+ */
+public class LatencyTracer {
+    private final TimingStatistics[] mStatistics = new TimingStatistics[LatencyPacket.ENTRY_COUNT];
+
+    public LatencyTracer() {
+        for (int i = 0; i < LatencyPacket.ENTRY_COUNT; i++) {
+            mStatistics[i] = new TimingStatistics();
+        }
+    }
+
+    /** Records the stage durations and the total latency of a completed LatencyTrace */
+    public synchronized void record(LatencyTrace latencyTrace) {
+        for (int i = 0; i < LatencyTrace.STAGE_COUNT; i++) {
+            long stageNanos = latencyTrace.getStageNanos(i);
+            if (stageNanos >= 0) mStatistics[i].record(stageNanos);
+        }
+        long totalNanos = latencyTrace.getTotalNanos();
+        if (totalNanos >= 0) mStatistics[LatencyPacket.TOTAL].record(totalNanos);
+    }
+
+    /** Returns the number of traces recorded since the last reset */
+    public synchronized long getTraceCount() {
+        return mStatistics[LatencyPacket.TOTAL].getCount();
+    }
+
+    /** Returns a LatencyPacket with the statistics recorded since the last reset, then resets */
+    public synchronized LatencyPacket report() {
+        LatencyPacket latencyPacket = new LatencyPacket();
+        for (int i = 0; i < LatencyPacket.ENTRY_COUNT; i++) {
+            TimingStatistics statistics = mStatistics[i];
+            if (statistics.getCount() > 0) {
+                latencyPacket.setStageLatency(i, new LatencyPacket.StageLatency(
+                        (int) statistics.getCount(),
+                        (float) statistics.getPercentileMillis(50),
+                        (float) statistics.getPercentileMillis(95),
+                        (float) statistics.getPercentileMillis(99),
+                        (float) statistics.getMaxMillis()));
+            }
+            statistics.reset();
+        }
+        return latencyPacket;
+    }
+}
@@ -0,0 +1,151 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the round trip time (RTT) and the loss of a message link with probes
+ * The owner publishes each probe created by this class on a topic it is subscribed to (so it
+ * travels to the broker and back) and passes it back to onProbeReturned when it arrives.
+ * RTT samples are smoothed as in TCP (RFC 6298). A probe that has not returned within the probe
+ * timeout is lost. Not thread safe: use from a single thread (e.g. the main thread).
+ */
+public class LinkMonitor {
+    //Number of most recent probes that the loss ratio is computed over
+    private static final int PROBE_WINDOW = 20;
+    private static final double NANOS_PER_MILLI = 1e6;
+    //Gains of the smoothed RTT and RTT variation (RFC 6298)
+    private static final double RTT_GAIN = 1.0 / 8;
+    private static final double RTT_VARIATION_GAIN = 1.0 / 4;
+
+    //Outcomes of a probe
+    private static final byte OUTCOME_NONE = 0;
+    private static final byte OUTCOME_PENDING = 1;
+    private static final byte OUTCOME_RETURNED = 2;
+    private static final byte OUTCOME_LOST = 3;
+
+    private final long mProbeTimeoutNanos;
+    //Per slot (sequence modulo PROBE_WINDOW): sequence, send time and outcome of the probe
+    private final long[] mProbeSequences = new long[PROBE_WINDOW];
+    private final long[] mProbeSendNanos = new long[PROBE_WINDOW];
+    private final byte[] mProbeOutcomes = new byte[PROBE_WINDOW];
+
+    private long mNextSequence = 0;
+    private boolean mHasRoundTripTime = false;
+    private double mRoundTripTime = 0;
+    private double mRoundTripVariation = 0;
+    private double mLastRoundTripTime = 0;
+
+    /** Constructs a LinkMonitor
+     * @param probeTimeoutMillis the time after which a probe that has not returned is lost
+     */
+    public LinkMonitor(long probeTimeoutMillis) {
+        mProbeTimeoutNanos = (long) (probeTimeoutMillis * NANOS_PER_MILLI);
+    }
+
+    /** Returns the payload of a new probe
+     * @param nowNanos the current time (System.nanoTime), at which the probe is sent
+     */
+    public byte[] createProbe(long nowNanos) {
+        expireProbes(nowNanos);
+        long sequence = mNextSequence++;
+        int slot = (int) (sequence % PROBE_WINDOW);
+        mProbeSequences[slot] = sequence;
+        mProbeSendNanos[slot] = nowNanos;
+        mProbeOutcomes[slot] = OUTCOME_PENDING;
+        return ByteBuffer.allocate(8).putLong(sequence).array();
+    }
+
+    /** Returns the ratio of lost probes among the most recent probes that returned or were lost */
+    public double getLossRatio() {
+        int lostCount = 0;
+        int completedCount = 0;
+        for (byte outcome : mProbeOutcomes) {
+            if (outcome == OUTCOME_LOST) lostCount++;
+            if (outcome == OUTCOME_LOST || outcome == OUTCOME_RETURNED) completedCount++;
+        }
+        return completedCount > 0 ? (double) lostCount / completedCount : 0;
+    }
+
+    /** Returns the age in ms of the oldest probe that has neither returned nor been lost yet
+     * (0 if there is none). Detects a slow link before the RTT samples arrive.
+     */
+    public double getOldestPendingProbeAgeMillis(long nowNanos) {
+        long oldestSendNanos = nowNanos;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            if (mProbeOutcomes[i] == OUTCOME_PENDING && mProbeSendNanos[i] < oldestSendNanos) {
+                oldestSendNanos = mProbeSendNanos[i];
+            }
+        }
+        return (nowNanos - oldestSendNanos) / NANOS_PER_MILLI;
+    }
+
+    /** Returns the smoothed round trip time in ms (use hasRoundTripTime first) */
+    public double getRoundTripTimeMillis() {
+        return mRoundTripTime;
+    }
+
+    /** Returns the round trip time variation (mean deviation) in ms */
+    public double getRoundTripVariationMillis() {
+        return mRoundTripVariation;
+    }
+
+    /** Returns true once a probe has returned */
+    public boolean hasRoundTripTime() {
+        return mHasRoundTripTime;
+    }
+
+    /** Returns true if the link is slower than the input latency target: the latest RTT sample,
+     * or the age of a pending probe, exceeds the target. The latest sample (not the smoothed RTT)
+     * is used, so the decision follows the link within a probe when it recovers.
+     */
+    public boolean isCongested(long nowNanos, double latencyTargetMillis) {
+        expireProbes(nowNanos);
+        if (mHasRoundTripTime && mLastRoundTripTime > latencyTargetMillis) return true;
+        return getOldestPendingProbeAgeMillis(nowNanos) > latencyTargetMillis;
+    }
+
+    /** Processes a returned probe. Ignores probes that are unknown or were already lost.
+     * @param payload the payload of the probe, as created by createProbe
+     * @param nowNanos the current time (System.nanoTime), at which the probe arrived
+     */
+    public void onProbeReturned(byte[] payload, long nowNanos) {
+        if (payload.length != 8) return;
+        long sequence = ByteBuffer.wrap(payload).getLong();
+        if (sequence < 0) return;
+        int slot = (int) (sequence % PROBE_WINDOW);
+        if (mProbeSequences[slot] != sequence || mProbeOutcomes[slot] != OUTCOME_PENDING) return;
+        mProbeOutcomes[slot] = OUTCOME_RETURNED;
+        double roundTripTime = (nowNanos - mProbeSendNanos[slot]) / NANOS_PER_MILLI;
+        mLastRoundTripTime = roundTripTime;
+        if (!mHasRoundTripTime) {
+            mRoundTripTime = roundTripTime;
+            mRoundTripVariation = roundTripTime / 2;
+            mHasRoundTripTime = true;
+        } else {
+            mRoundTripVariation += RTT_VARIATION_GAIN
+                    * (Math.abs(mRoundTripTime - roundTripTime) - mRoundTripVariation);
+            mRoundTripTime += RTT_GAIN * (roundTripTime - mRoundTripTime);
+        }
+    }
+
+    /** Clears all measurements (e.g. after reconnecting). Probes still in flight are ignored. */
+    public void reset() {
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            mProbeOutcomes[i] = OUTCOME_NONE;
+        }
+        mHasRoundTripTime = false;
+        mRoundTripTime = 0;
+        mRoundTripVariation = 0;
+        mLastRoundTripTime = 0;
+    }
+
+    //Marks pending probes older than the probe timeout as lost
+    private void expireProbes(long nowNanos) {
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            if (mProbeOutcomes[i] == OUTCOME_PENDING
+                    && nowNanos - mProbeSendNanos[i] > mProbeTimeoutNanos) {
+                mProbeOutcomes[i] = OUTCOME_LOST;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.rabidllamastudios.avigate.helpers;
+
+/**
+ * A local east-north-up (ENU) frame anchored at a reference latitude and longitude
+ * Uses an equirectangular projection with the meters per degree precomputed once, so converting
+ * between geodetic and local coordinates is a multiply and an add (no trigonometry per call).
+ * Accurate to well under a meter within a few kilometers of the reference point.
+ */
+public class LocalFrame {
+    //Mean radius of the earth in meters
+    private static final double EARTH_RADIUS = 6371008.8;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS;
+
+    private final double mReferenceLatitude;
+    private final double mReferenceLongitude;
+    private final double mMetersPerDegreeLatitude;
+    private final double mMetersPerDegreeLongitude;
+
+    /** Constructs a LocalFrame anchored at the input reference point (in degrees) */
+    public LocalFrame(double referenceLatitude, double referenceLongitude) {
+        mReferenceLatitude = referenceLatitude;
+        mReferenceLongitude = referenceLongitude;
+        mMetersPerDegreeLatitude = METERS_PER_DEGREE;
+        mMetersPerDegreeLongitude = METERS_PER_DEGREE
+                * Math.cos(Math.toRadians(referenceLatitude));
+    }
+
+    /** Returns the east coordinate in meters of the input longitude (in degrees) */
+    public double getEast(double longitude) {
+        return (longitude - mReferenceLongitude) * mMetersPerDegreeLongitude;
+    }
+
+    /** Returns the north coordinate in meters of the input latitude (in degrees) */
+    public double getNorth(double latitude) {
+        return (latitude - mReferenceLatitude) * mMetersPerDegreeLatitude;
+    }
+
+    /** Returns the latitude in degrees of the input north coordinate (in meters) */
+    public double getLatitude(double north) {
+        return mReferenceLatitude + north / mMetersPerDegreeLatitude;
+    }
+
+    /** Returns the longitude in degrees of the input east coordinate (in meters) */
+    public double getLongitude(double east) {
+        return mReferenceLongitude + east / mMetersPerDegreeLongitude;
+    }
+
+    /** Returns the latitude of the reference point in degrees */
+    public double getReferenceLatitude() {
+        return mReferenceLatitude;
+    }
+
+    /** Returns the longitude of the reference point in degrees */
+    public double getReferenceLongitude() {
+        return mReferenceLongitude;
+    }
+}
@@ -0,0 +1,56 @@
+package com.rabidllamastudios.avigate.helpers;
+
+/**
+ * A hard-iron offset and soft-iron matrix that correct raw magnetometer readings
+ * corrected = matrix * (raw - offset), where the matrix is stored in row-major order
+ * Immutable. correct() does not allocate, so it can be used in the sensor hot path.
+ */
+public class MagnetometerCalibration {
+    private final float mOffsetX, mOffsetY, mOffsetZ;
+    private final float mM00, mM01, mM02, mM10, mM11, mM12, mM20, mM21, mM22;
+
+    /** Constructs a MagnetometerCalibration
+     * @param offset the hard-iron offset (x, y, z) in micro Tesla
+     * @param matrix the 3x3 soft-iron correction matrix in row-major order (9 values)
+     */
+    public MagnetometerCalibration(double[] offset, double[] matrix) {
+        if (offset.length != 3 || matrix.length != 9) {
+            throw new IllegalArgumentException("Expected 3 offsets and 9 matrix values");
+        }
+        mOffsetX = (float) offset[0];
+        mOffsetY = (float) offset[1];
+        mOffsetZ = (float) offset[2];
+        mM00 = (float) matrix[0];
+        mM01 = (float) matrix[1];
+        mM02 = (float) matrix[2];
+        mM10 = (float) matrix[3];
+        mM11 = (float) matrix[4];
+        mM12 = (float) matrix[5];
+        mM20 = (float) matrix[6];
+        mM21 = (float) matrix[7];
+        mM22 = (float) matrix[8];
+    }
+
+    /** Corrects a raw magnetometer reading
+     * @param raw the raw magnetic field (x, y, z) in micro Tesla
+     * @param corrected the array (of length 3) to write the corrected magnetic field to
+     */
+    public void correct(float[] raw, float[] corrected) {
+        float x = raw[0] - mOffsetX;
+        float y = raw[1] - mOffsetY;
+        float z = raw[2] - mOffsetZ;
+        corrected[0] = mM00 * x + mM01 * y + mM02 * z;
+        corrected[1] = mM10 * x + mM11 * y + mM12 * z;
+        corrected[2] = mM20 * x + mM21 * y + mM22 * z;
+    }
+
+    /** Returns the hard-iron offset (x, y, z) in micro Tesla */
+    public double[] getOffset() {
+        return new double[] {mOffsetX, mOffsetY, mOffsetZ};
+    }
+
+    /** Returns the soft-iron correction matrix in row-major order */
+    public double[] getMatrix() {
+        return new double[] {mM00, mM01, mM02, mM10, mM11, mM12, mM20, mM21, mM22};
+    }
+}
@@ -0,0 +1,142 @@
+package com.rabidllamastudios.avigate.helpers;
+
+/**
+ * Fits a hard-iron offset and soft-iron scale to raw magnetometer samples (sphere/ellipsoid fit)
+ * Fits the axis-aligned ellipsoid a*x^2 + b*y^2 + c*z^2 + d*x + e*y + f*z = 1 by least squares.
+ * The 6x6 normal equations are accumulated incrementally, so samples are not stored and adding a
+ * sample is O(1). The craft should be rotated through as many orientations as possible.
+ * Not thread safe: all methods should be called from the thread that receives the compass events.
+ */
+public class MagnetometerCalibrator {
+    private static final int TERMS = 6;
+    //Minimum number of samples and minimum range of each axis (in micro Tesla) for a valid fit
+    private static final int MIN_SAMPLES = 100;
+    private static final double MIN_AXIS_RANGE = 30.0;
+
+    //Normal equations: sum of phi * phi' and sum of phi, where phi = [x^2 y^2 z^2 x y z]
+    private final double[][] mNormalMatrix = new double[TERMS][TERMS];
+    private final double[] mNormalVector = new double[TERMS];
+    private final double[] mPhi = new double[TERMS];
+    private int mSampleCount = 0;
+    private float mMinX, mMinY, mMinZ, mMaxX, mMaxY, mMaxZ;
+
+    public MagnetometerCalibrator() {}
+
+    /** Adds a raw (uncorrected) magnetometer sample in micro Tesla */
+    public void addSample(float x, float y, float z) {
+        mPhi[0] = x * x;
+        mPhi[1] = y * y;
+        mPhi[2] = z * z;
+        mPhi[3] = x;
+        mPhi[4] = y;
+        mPhi[5] = z;
+        //Only the upper triangle is accumulated, the matrix is symmetric
+        for (int i = 0; i < TERMS; i++) {
+            for (int j = i; j < TERMS; j++) {
+                mNormalMatrix[i][j] += mPhi[i] * mPhi[j];
+            }
+            mNormalVector[i] += mPhi[i];
+        }
+        if (mSampleCount == 0) {
+            mMinX = mMaxX = x;
+            mMinY = mMaxY = y;
+            mMinZ = mMaxZ = z;
+        } else {
+            mMinX = Math.min(mMinX, x);
+            mMinY = Math.min(mMinY, y);
+            mMinZ = Math.min(mMinZ, z);
+            mMaxX = Math.max(mMaxX, x);
+            mMaxY = Math.max(mMaxY, y);
+            mMaxZ = Math.max(mMaxZ, z);
+        }
+        mSampleCount++;
+    }
+
+    /** Returns the number of samples added since the last reset */
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /** Returns true if enough samples covering enough orientations were added to attempt a fit */
+    public boolean hasSufficientCoverage() {
+        return mSampleCount >= MIN_SAMPLES && mMaxX - mMinX >= MIN_AXIS_RANGE
+                && mMaxY - mMinY >= MIN_AXIS_RANGE && mMaxZ - mMinZ >= MIN_AXIS_RANGE;
+    }
+
+    /** Clears all samples */
+    public void reset() {
+        for (int i = 0; i < TERMS; i++) {
+            for (int j = 0; j < TERMS; j++) {
+                mNormalMatrix[i][j] = 0;
+            }
+            mNormalVector[i] = 0;
+        }
+        mSampleCount = 0;
+    }
+
+    /** Fits the ellipsoid to the samples added so far
+     * The soft-iron matrix scales each axis to the mean radius, so the corrected field magnitude
+     * stays in micro Tesla
+     * @return the resulting MagnetometerCalibration, or null if the samples do not cover enough
+     * orientations or do not describe an ellipsoid
+     */
+    public MagnetometerCalibration fit() {
+        if (!hasSufficientCoverage()) return null;
+        double[] solution = solveNormalEquations();
+        if (solution == null) return null;
+        double a = solution[0], b = solution[1], c = solution[2];
+        if (a <= 0 || b <= 0 || c <= 0) return null;
+        //Complete the square: a*(x - x0)^2 + b*(y - y0)^2 + c*(z - z0)^2 = g
+        double offsetX = -solution[3] / (2 * a);
+        double offsetY = -solution[4] / (2 * b);
+        double offsetZ = -solution[5] / (2 * c);
+        double g = 1 + a * offsetX * offsetX + b * offsetY * offsetY + c * offsetZ * offsetZ;
+        if (g <= 0) return null;
+        double radiusX = Math.sqrt(g / a);
+        double radiusY = Math.sqrt(g / b);
+        double radiusZ = Math.sqrt(g / c);
+        double meanRadius = (radiusX + radiusY + radiusZ) / 3;
+        double[] offset = {offsetX, offsetY, offsetZ};
+        double[] matrix = {meanRadius / radiusX, 0, 0,
+                0, meanRadius / radiusY, 0,
+                0, 0, meanRadius / radiusZ};
+        return new MagnetometerCalibration(offset, matrix);
+    }
+
+    //Solves the normal equations by Gaussian elimination with partial pivoting
+    //Returns null if the system is singular (e.g. the samples lie in a plane)
+    private double[] solveNormalEquations() {
+        double[][] m = new double[TERMS][TERMS + 1];
+        for (int i = 0; i < TERMS; i++) {
+            for (int j = 0; j < TERMS; j++) {
+                m[i][j] = i <= j ? mNormalMatrix[i][j] : mNormalMatrix[j][i];
+            }
+            m[i][TERMS] = mNormalVector[i];
+        }
+        for (int column = 0; column < TERMS; column++) {
+            int pivot = column;
+            for (int row = column + 1; row < TERMS; row++) {
+                if (Math.abs(m[row][column]) > Math.abs(m[pivot][column])) pivot = row;
+            }
+            if (Math.abs(m[pivot][column]) < 1e-12) return null;
+            double[] swap = m[column];
+            m[column] = m[pivot];
+            m[pivot] = swap;
+            for (int row = column + 1; row < TERMS; row++) {
+                double factor = m[row][column] / m[column][column];
+                for (int j = column; j <= TERMS; j++) {
+                    m[row][j] -= factor * m[column][j];
+                }
+            }
+        }
+        double[] solution = new double[TERMS];
+        for (int row = TERMS - 1; row >= 0; row--) {
+            double sum = m[row][TERMS];
+            for (int j = row + 1; j < TERMS; j++) {
+                sum -= m[row][j] * solution[j];
+            }
+            solution[row] = sum / m[row][row];
+        }
+        return solution;
+    }
+}
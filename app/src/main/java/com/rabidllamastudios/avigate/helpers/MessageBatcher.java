@@ -0,0 +1,153 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import android.os.Handler;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batches messages (pairs of an Intent action and its payload) into multi-message frames, so a
+ * burst of messages is sent as one publish (one packet header, TCP segment and broker routing)
+ * A frame is sent when its oldest message has waited for the batch window, or as soon as it
+ * reaches the size threshold, so batching delays a message by at most the batch window.
+ * Frame: a marker byte and the version, then for each message in order: the length (varint) and
+ * UTF-8 bytes of its Intent action, and the length (varint) and bytes of its payload.
+ * Not thread safe: use from the thread of the input Handler (e.g. the main thread).
+ */
+public class MessageBatcher {
+    //Marks a frame. Neither a JSON string nor a TelemetryCodec payload starts with 0xA8.
+    private static final byte MARKER = (byte) 0xA8;
+    private static final byte VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Callback mCallback;
+    private final Handler mHandler;
+    private final long mBatchWindowMillis;
+    private final int mSizeThreshold;
+    private final ByteArrayOutputStream mFrame = new ByteArrayOutputStream();
+    private int mMessageCount = 0;
+
+    /** Constructs a MessageBatcher
+     * @param handler the Handler that the batch window is timed on (and the frames are sent from)
+     * @param batchWindowMillis the longest time in ms a message waits for others to be batched
+     * @param sizeThreshold the frame size in bytes at which a frame is sent without waiting
+     * @param callback receives each frame to send
+     */
+    public MessageBatcher(Handler handler, long batchWindowMillis, int sizeThreshold,
+                          Callback callback) {
+        mHandler = handler;
+        mBatchWindowMillis = batchWindowMillis;
+        mSizeThreshold = sizeThreshold;
+        mCallback = callback;
+    }
+
+    //Callback interface that receives the frames to send
+    public interface Callback {
+        void onFrameReady(byte[] frame, int messageCount);
+    }
+
+    //Listener interface that receives the messages of a frame, in the order they were added
+    public interface MessageListener {
+        void onMessage(String intentAction, byte[] payload);
+    }
+
+    /** Returns true if the input payload is a frame (and must be passed to unbatch) */
+    public static boolean isFrame(byte[] payload) {
+        return payload.length > 0 && payload[0] == MARKER;
+    }
+
+    /** Passes each message of the input frame to the listener, in order. Returns false (and
+     * passes none) if the frame is malformed or of an unknown version.
+     */
+    public static boolean unbatch(byte[] frame, MessageListener listener) {
+        if (!isFrame(frame) || frame.length < 2 || frame[1] != VERSION) return false;
+        List<String> intentActions = new ArrayList<>();
+        List<byte[]> payloads = new ArrayList<>();
+        int[] position = {2};
+        while (position[0] < frame.length) {
+            int actionLength = readVarint(frame, position);
+            if (actionLength < 0 || actionLength > frame.length - position[0]) return false;
+            intentActions.add(new String(frame, position[0], actionLength, UTF_8));
+            position[0] += actionLength;
+            int payloadLength = readVarint(frame, position);
+            if (payloadLength < 0 || payloadLength > frame.length - position[0]) return false;
+            byte[] payload = new byte[payloadLength];
+            System.arraycopy(frame, position[0], payload, 0, payloadLength);
+            payloads.add(payload);
+            position[0] += payloadLength;
+        }
+        for (int i = 0; i < payloads.size(); i++) {
+            listener.onMessage(intentActions.get(i), payloads.get(i));
+        }
+        return true;
+    }
+
+    /** Adds a message to the current frame. Sends the frame if it reaches the size threshold,
+     * otherwise starts the batch window if the message is the first of the frame.
+     */
+    public void add(String intentAction, byte[] payload) {
+        if (mMessageCount == 0) {
+            mFrame.write(MARKER);
+            mFrame.write(VERSION);
+        }
+        byte[] action = intentAction.getBytes(UTF_8);
+        writeVarint(action.length);
+        mFrame.write(action, 0, action.length);
+        writeVarint(payload.length);
+        mFrame.write(payload, 0, payload.length);
+        mMessageCount++;
+        if (mFrame.size() >= mSizeThreshold) {
+            flush();
+        } else if (mMessageCount == 1) {
+            mHandler.postDelayed(mFlusher, mBatchWindowMillis);
+        }
+    }
+
+    /** Discards the current frame without sending it */
+    public void clear() {
+        mHandler.removeCallbacks(mFlusher);
+        mFrame.reset();
+        mMessageCount = 0;
+    }
+
+    /** Sends the current frame now (if it contains any message) */
+    public void flush() {
+        mHandler.removeCallbacks(mFlusher);
+        if (mMessageCount == 0) return;
+        byte[] frame = mFrame.toByteArray();
+        int messageCount = mMessageCount;
+        mFrame.reset();
+        mMessageCount = 0;
+        mCallback.onFrameReady(frame, messageCount);
+    }
+
+    //Sends the current frame at the end of the batch window
+    private final Runnable mFlusher = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    //Reads an unsigned varint at the position and advances it. Returns -1 if malformed.
+    private static int readVarint(byte[] frame, int[] position) {
+        int value = 0;
+        for (int shift = 0; shift < 32 && position[0] < frame.length; shift += 7) {
+            byte b = frame[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        return -1;
+    }
+
+    //Writes an unsigned varint (7 bits per byte, least significant group first) to the frame
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            mFrame.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mFrame.write(value);
+    }
+}
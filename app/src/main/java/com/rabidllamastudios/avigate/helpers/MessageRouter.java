@@ -0,0 +1,40 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Routing table of inbound messages: maps each key (e.g. a topic) to the MessageHandler that
+ * decodes and delivers the messages received on it
+ * The table is built once from the subscriptions, with a handler specialised for the message
+ * type of each key, so routing a message is a single hash lookup of its key.
+ * Not thread safe: build and route from a single thread (e.g. the main thread).
+ */
+public class MessageRouter {
+    private final Map<String, MessageHandler> mRoutes = new HashMap<>();
+
+    public MessageRouter() {}
+
+    //Handler interface that receives the messages routed to it
+    public interface MessageHandler {
+        void onMessage(byte[] payload);
+    }
+
+    /** Removes all routes */
+    public void clear() {
+        mRoutes.clear();
+    }
+
+    /** Routes the messages of the input key to the handler (replacing its previous handler) */
+    public void put(String key, MessageHandler handler) {
+        mRoutes.put(key, handler);
+    }
+
+    /** Passes a message to the handler of its key. Returns false if the key has no route. */
+    public boolean route(String key, byte[] payload) {
+        MessageHandler handler = mRoutes.get(key);
+        if (handler == null) return false;
+        handler.onMessage(payload);
+        return true;
+    }
+}
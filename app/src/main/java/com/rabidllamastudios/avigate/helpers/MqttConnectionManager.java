@@ -1,6 +1,8 @@
 package com.rabidllamastudios.avigate.helpers;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
@@ -12,20 +14,72 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages the MQTT connection to the server. Responsible for sending and receiving messages.
+ * Messages are published with one of three delivery policies: plain (QoS 0), last value only
+ * (QoS 0, stale payloads replaced while the link is slow) or reliable (QoS 1, retried until
+ * acknowledged or MAX_PUBLISH_ATTEMPTS is reached). Publish from the main thread.
+ * When the connection is lost, reconnect attempts are scheduled one at a time with exponential
+ * backoff and jitter. Meanwhile, the latest last value only payload per topic and the reliable
+ * publishes (up to MAX_STORED_RELIABLE) are stored and sent once reconnected, reliable first;
+ * plain publishes are dropped.
+ * A publish ends when Paho reports it delivered (deliveryComplete) or failed (the action listener
+ * of the publish), so a failed publish never holds up its topic or the reliable window.
  * Created by Ryan Staatz on 11/11/15.
  */
 public class MqttConnectionManager {
 
-    //Reconnect interval in milliseconds (ms)
-    private static final int RECONNECT_INTERVAL = 500;
+    //Delay in milliseconds (ms) before the first reconnect attempt, doubled after each failed
+    //attempt up to the maximum delay
+    private static final int RECONNECT_DELAY_MIN = 500;
+    private static final int RECONNECT_DELAY_MAX = 30000;
+    //QoS of plain and last value only publishes (at most once) and of reliable publishes (at
+    //least once: the broker acknowledges them)
+    private static final int QOS_AT_MOST_ONCE = 0;
+    private static final int QOS_AT_LEAST_ONCE = 1;
+    //Time in ms a reliable publish waits for its acknowledgement before it is published again,
+    //and the number of attempts after which it is abandoned
+    private static final int ACK_TIMEOUT = 2000;
+    private static final int MAX_PUBLISH_ATTEMPTS = 3;
+    //Number of reliable publishes awaiting their acknowledgement at once (Paho allows 10)
+    private static final int MAX_RELIABLE_IN_FLIGHT = 8;
+    //Number of reliable publishes and of last value only topics stored while disconnected
+    private static final int MAX_STORED_RELIABLE = 256;
+    private static final int MAX_STORED_LATEST = 64;
     private MqttAndroidClient mMqttAndroidClient;
     private Callback mMqttConnectionManagerCallback;
-    private int mMqttQoS=0;
-    private Thread mReconnectThread;
+    private boolean mIsConnecting = false;
+    private int mReconnectAttemptCount = 0;
+    private final Random mRandom = new Random();
+    //Publishes that have not been written to the network yet (see deliveryComplete)
+    private final AtomicInteger mPendingDeliveryCount = new AtomicInteger(0);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    //Per topic: the last value only publish in flight, and the payload waiting for it to complete
+    //(or for the connection, while disconnected)
+    private final Map<String, IMqttDeliveryToken> mLatestInFlight = new LinkedHashMap<>();
+    private final Map<String, byte[]> mLatestWaiting = new LinkedHashMap<>();
+    //Reliable publishes awaiting their acknowledgement (in the order sent) and their tokens (null
+    //if the attempt failed), and the reliable publishes waiting to be sent
+    private final Map<ReliablePublish, IMqttDeliveryToken> mReliableInFlight =
+            new LinkedHashMap<>();
+    private final Deque<ReliablePublish> mReliableWaiting = new ArrayDeque<>();
+    //Tokens of reliable attempts that timed out (and were published again or abandoned) but are
+    //still held by Paho until it completes or fails them. They count against
+    //MAX_RELIABLE_IN_FLIGHT, so Paho's own in-flight limit is never exceeded.
+    private final Set<IMqttDeliveryToken> mReliableExpired = new HashSet<>();
 
     /** Constructor that takes a context, inner callback class, server Address, and port number
      * @param context the application context from the activity invoking this method
@@ -48,7 +102,7 @@ public class MqttConnectionManager {
     public interface Callback {
         void onConnect();
         void connectionLost();
-        void messageArrived(String topic, String message);
+        void messageArrived(String topic, byte[] payload);
     }
 
     /** Publishes a message under a given topic (channel)
@@ -56,15 +110,58 @@ public class MqttConnectionManager {
      * @param message the message to publish
      */
     public void publish(String topic, String message) {
-        if (mMqttAndroidClient.isConnected()) {
-            MqttMessage mqttMessage = new MqttMessage(message.getBytes());
-            mqttMessage.setQos(mMqttQoS);
-            try {
-                mMqttAndroidClient.publish(topic, mqttMessage);
-            } catch (MqttException e) {
-                e.printStackTrace();
+        publish(topic, message.getBytes());
+    }
+
+    /** Publishes a binary payload under a given topic (channel)
+     * @param topic the topic (channel) to publish the payload on
+     * @param payload the payload to publish (e.g. encoded by TelemetryCodec)
+     */
+    public void publish(String topic, byte[] payload) {
+        send(topic, payload, QOS_AT_MOST_ONCE);
+    }
+
+    /** Publishes a payload of which only the latest value matters (e.g. telemetry) at QoS 0
+     * While an earlier payload on the topic is still being written to the network, the payload
+     * waits for it, replacing any payload already waiting, so a slow link sends the latest value
+     * instead of queueing stale ones.
+     * @param topic the topic (channel) to publish the payload on
+     * @param payload the payload to publish
+     */
+    public void publishLatest(String topic, byte[] payload) {
+        if (!isConnected() || mLatestInFlight.containsKey(topic)) {
+            if (!mLatestWaiting.containsKey(topic) && mLatestWaiting.size() >= MAX_STORED_LATEST) {
+                Log.w("Avigate", "Store full, dropped publish: " + topic);
+                return;
             }
+            mLatestWaiting.put(topic, payload);
+            return;
         }
+        IMqttDeliveryToken token = send(topic, payload, QOS_AT_MOST_ONCE);
+        if (token != null) mLatestInFlight.put(topic, token);
+    }
+
+    /** Publishes a payload that must arrive (e.g. a command or configuration) at QoS 1
+     * If the broker does not acknowledge it within ACK_TIMEOUT, it is published again, up to
+     * MAX_PUBLISH_ATTEMPTS times. A subscriber may receive a payload that was retried twice.
+     * Publishes are sent in order, at most MAX_RELIABLE_IN_FLIGHT at once, and stored while
+     * disconnected. When MAX_STORED_RELIABLE are waiting, the oldest is dropped.
+     * @param topic the topic (channel) to publish the payload on
+     * @param payload the payload to publish
+     */
+    public void publishReliable(String topic, byte[] payload) {
+        if (mReliableWaiting.size() >= MAX_STORED_RELIABLE) {
+            Log.w("Avigate", "Store full, dropped publish: " + mReliableWaiting.poll().mTopic);
+        }
+        mReliableWaiting.add(new ReliablePublish(topic, payload));
+        sendWaitingReliable();
+    }
+
+    /** Returns the number of publishes that have not been delivered yet. At QoS 0, a publish is
+     * delivered once it has been written to the network, so this grows while the link stalls.
+     */
+    public int getPendingDeliveryCount() {
+        return mPendingDeliveryCount.get();
     }
 
     /** Opens a MQTT connection. Will automatically reconnect if the connection is lost hereafter */
@@ -72,8 +169,14 @@ public class MqttConnectionManager {
         connect();
     }
 
-    /** Stops the MQTT connection cleanly */
+    /** Stops the MQTT connection cleanly. Stored publishes are discarded. */
     public void stop() {
+        mHandler.removeCallbacksAndMessages(null);
+        mLatestInFlight.clear();
+        mLatestWaiting.clear();
+        mReliableInFlight.clear();
+        mReliableWaiting.clear();
+        mReliableExpired.clear();
         if (mMqttAndroidClient != null) {
             if (mMqttAndroidClient.isConnected()) {
                 unsubscribeAll();
@@ -86,8 +189,17 @@ public class MqttConnectionManager {
 
     /** Subscribes to a topic. Will notify the callback if a message is received on this topic. */
     public void subscribe(String topic) {
+        subscribe(topic, false);
+    }
+
+    /** Subscribes to a topic. Will notify the callback if a message is received on this topic.
+     * @param isReliable true to receive the reliable publishes on the topic at QoS 1 (the broker
+     *                   downgrades them to QoS 0 for a subscription that is not reliable)
+     */
+    public void subscribe(String topic, boolean isReliable) {
         try {
-            mMqttAndroidClient.subscribe(topic, mMqttQoS);
+            mMqttAndroidClient.subscribe(topic,
+                    isReliable ? QOS_AT_LEAST_ONCE : QOS_AT_MOST_ONCE);
         } catch (MqttException e) {
             e.printStackTrace();
         }
@@ -107,41 +219,56 @@ public class MqttConnectionManager {
         this.unsubscribe("#");
     }
 
+    //Starts a connection attempt, unless one is in progress (or the connection is open)
     private void connect() {
+        if (mMqttAndroidClient == null || mIsConnecting || isConnected()) return;
+        mIsConnecting = true;
         try {
             mMqttAndroidClient.connect(null, new IMqttActionListener() {
 
                 @Override
                 public void onSuccess(IMqttToken iMqttToken) {
+                    mIsConnecting = false;
+                    if (mMqttAndroidClient == null) return;
+                    mReconnectAttemptCount = 0;
                     mMqttAndroidClient.setCallback(mMqttCallback);
                     mMqttConnectionManagerCallback.onConnect();
-                    if (mReconnectThread != null) {
-                        mReconnectThread.interrupt();
-                        mReconnectThread = null;
-                    }
+                    sendStored();
                 }
 
                 @Override
                 public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
-                    throwable.printStackTrace();
-                    if (mReconnectThread == null) {
-                        mReconnectThread = new Thread(new ReconnectRunnable());
-                        mReconnectThread.start();
-                    }
+                    mIsConnecting = false;
+                    if (throwable != null) throwable.printStackTrace();
+                    scheduleReconnect();
                 }
             });
 
         } catch (MqttException e) {
+            mIsConnecting = false;
             e.printStackTrace();
+            scheduleReconnect();
         }
     }
 
     private final MqttCallback mMqttCallback = new MqttCallback() {
         @Override
         public void connectionLost(Throwable throwable) {
+            //Publishes in flight are discarded with the connection. Reliable ones are stored
+            //again (with all their attempts), ahead of those waiting.
+            mPendingDeliveryCount.set(0);
+            mLatestInFlight.clear();
+            mReliableExpired.clear();
+            List<ReliablePublish> reliableInFlight = new ArrayList<>(mReliableInFlight.keySet());
+            mReliableInFlight.clear();
+            for (int i = reliableInFlight.size() - 1; i >= 0; i--) {
+                ReliablePublish reliablePublish = reliableInFlight.get(i);
+                mHandler.removeCallbacks(reliablePublish);
+                reliablePublish.mAttemptCount = 0;
+                mReliableWaiting.addFirst(reliablePublish);
+            }
             mMqttConnectionManagerCallback.connectionLost();
-            // Call connect so it will fail if there is no connection
-            connect();
+            scheduleReconnect();
             if (throwable != null) {
                 throwable.printStackTrace();
             }
@@ -149,27 +276,172 @@ public class MqttConnectionManager {
 
         @Override
         public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
-            mMqttConnectionManagerCallback.messageArrived(s, new String(mqttMessage.getPayload()));
+            mMqttConnectionManagerCallback.messageArrived(s, mqttMessage.getPayload());
         }
 
         @Override
         public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+            if (mPendingDeliveryCount.decrementAndGet() < 0) mPendingDeliveryCount.set(0);
+            if (mReliableExpired.remove(iMqttDeliveryToken)) {
+                sendWaitingReliable();
+                return;
+            }
+            Iterator<Map.Entry<ReliablePublish, IMqttDeliveryToken>> reliableIterator =
+                    mReliableInFlight.entrySet().iterator();
+            while (reliableIterator.hasNext()) {
+                Map.Entry<ReliablePublish, IMqttDeliveryToken> entry = reliableIterator.next();
+                if (entry.getValue() != iMqttDeliveryToken) continue;
+                reliableIterator.remove();
+                mHandler.removeCallbacks(entry.getKey());
+                sendWaitingReliable();
+                return;
+            }
+            completeLatest(iMqttDeliveryToken);
+        }
+    };
 
+    //Listens for the failure of each publish, which Paho reports on the token instead of through
+    //deliveryComplete. Success is handled by deliveryComplete.
+    private final IMqttActionListener mPublishListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken iMqttToken) {}
+
+        @Override
+        public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+            if (mPendingDeliveryCount.decrementAndGet() < 0) mPendingDeliveryCount.set(0);
+            if (throwable != null) Log.w("Avigate", "Publish failed: " + throwable);
+            if (mReliableExpired.remove(iMqttToken)) {
+                sendWaitingReliable();
+                return;
+            }
+            //A failed reliable attempt is no longer held by Paho. It is still retried after
+            //ACK_TIMEOUT, like an attempt that could not be published at all.
+            for (Map.Entry<ReliablePublish, IMqttDeliveryToken> entry
+                    : mReliableInFlight.entrySet()) {
+                if (entry.getValue() != iMqttToken) continue;
+                entry.setValue(null);
+                return;
+            }
+            completeLatest(iMqttToken);
         }
     };
 
-    private class ReconnectRunnable implements Runnable {
+    //Ends the last value only publish of the input token (delivered or failed), then sends the
+    //payload waiting for it, if any
+    private void completeLatest(IMqttToken iMqttToken) {
+        Iterator<Map.Entry<String, IMqttDeliveryToken>> iterator =
+                mLatestInFlight.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, IMqttDeliveryToken> entry = iterator.next();
+            if (entry.getValue() != iMqttToken) continue;
+            iterator.remove();
+            byte[] waitingPayload = mLatestWaiting.remove(entry.getKey());
+            if (waitingPayload != null) publishLatest(entry.getKey(), waitingPayload);
+            return;
+        }
+    }
+
+    //A reliable publish and its attempts so far. Runs when an attempt is not acknowledged within
+    //ACK_TIMEOUT: publishes it again first, unless MAX_PUBLISH_ATTEMPTS is reached.
+    private class ReliablePublish implements Runnable {
+        private final String mTopic;
+        private final byte[] mPayload;
+        private int mAttemptCount = 0;
+
+        private ReliablePublish(String topic, byte[] payload) {
+            mTopic = topic;
+            mPayload = payload;
+        }
+
         @Override
         public void run() {
-            while(mMqttAndroidClient !=null && !mMqttAndroidClient.isConnected()) {
-                connect();
-                try {
-                    Log.i("Avigate", "Reconnecting...");
-                    Thread.sleep(RECONNECT_INTERVAL);
-                } catch (InterruptedException e) {
-                    return;
-                }
+            //Paho still holds the attempt, so it counts as in flight until Paho completes it
+            IMqttDeliveryToken token = mReliableInFlight.remove(this);
+            if (token != null) mReliableExpired.add(token);
+            if (mAttemptCount < MAX_PUBLISH_ATTEMPTS) {
+                mReliableWaiting.addFirst(this);
+            } else {
+                Log.e("Avigate", "Publish not acknowledged, abandoned: " + mTopic);
             }
+            sendWaitingReliable();
+        }
+    }
+
+    /** Returns the backoff delay in ms before the next reconnect attempt: RECONNECT_DELAY_MIN
+     * doubled for each failed attempt (up to RECONNECT_DELAY_MAX), of which a random part is
+     * waited (half to all), so that devices that lost the same server do not reconnect in lockstep
+     * @param failedAttemptCount the number of reconnect attempts that failed since connected
+     * @param random the source of the jitter
+     */
+    static int getReconnectDelay(int failedAttemptCount, Random random) {
+        int delay = RECONNECT_DELAY_MAX;
+        if (failedAttemptCount < 16) {
+            delay = Math.min(RECONNECT_DELAY_MAX, RECONNECT_DELAY_MIN << failedAttemptCount);
+        }
+        return delay / 2 + random.nextInt(delay / 2 + 1);
+    }
+
+    //Attempts to connect again after the backoff delay (see getReconnectDelay)
+    private void scheduleReconnect() {
+        if (mMqttAndroidClient == null) return;
+        int delay = getReconnectDelay(mReconnectAttemptCount, mRandom);
+        mReconnectAttemptCount++;
+        Log.i("Avigate", "Reconnecting in " + delay + " ms");
+        mHandler.removeCallbacks(mReconnector);
+        mHandler.postDelayed(mReconnector, delay);
+    }
+
+    private final Runnable mReconnector = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+
+    //Returns true if the MQTT connection is open
+    private boolean isConnected() {
+        return mMqttAndroidClient != null && mMqttAndroidClient.isConnected();
+    }
+
+    //Sends the publishes stored while disconnected: the reliable publishes, then the latest
+    //payload of each last value only topic
+    private void sendStored() {
+        sendWaitingReliable();
+        List<Map.Entry<String, byte[]>> latestWaiting =
+                new ArrayList<>(mLatestWaiting.entrySet());
+        mLatestWaiting.clear();
+        for (Map.Entry<String, byte[]> each : latestWaiting) {
+            publishLatest(each.getKey(), each.getValue());
+        }
+    }
+
+    //Sends the waiting reliable publishes in order, while fewer than MAX_RELIABLE_IN_FLIGHT await
+    //their acknowledgement (including timed out attempts Paho still holds). An attempt that fails
+    //is retried after ACK_TIMEOUT.
+    private void sendWaitingReliable() {
+        while (isConnected() && !mReliableWaiting.isEmpty()
+                && mReliableInFlight.size() + mReliableExpired.size() < MAX_RELIABLE_IN_FLIGHT) {
+            ReliablePublish reliablePublish = mReliableWaiting.poll();
+            reliablePublish.mAttemptCount++;
+            mReliableInFlight.put(reliablePublish, send(reliablePublish.mTopic,
+                    reliablePublish.mPayload, QOS_AT_LEAST_ONCE));
+            mHandler.postDelayed(reliablePublish, ACK_TIMEOUT);
+        }
+    }
+
+    //Publishes a payload at the input QoS. Returns its delivery token (null if not published).
+    //Failures after the publish call are reported to mPublishListener.
+    private IMqttDeliveryToken send(String topic, byte[] payload, int qos) {
+        if (mMqttAndroidClient == null || !mMqttAndroidClient.isConnected()) return null;
+        MqttMessage mqttMessage = new MqttMessage(payload);
+        mqttMessage.setQos(qos);
+        mPendingDeliveryCount.incrementAndGet();
+        try {
+            return mMqttAndroidClient.publish(topic, mqttMessage, null, mPublishListener);
+        } catch (MqttException e) {
+            mPendingDeliveryCount.decrementAndGet();
+            e.printStackTrace();
         }
+        return null;
     }
-}
\ No newline at end of file
+}
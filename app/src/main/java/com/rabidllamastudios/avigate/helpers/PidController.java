@@ -0,0 +1,147 @@
+package com.rabidllamastudios.avigate.helpers;
+
+/**
+ * A discrete PID controller with derivative filtering, integrator clamping, anti-windup and an
+ * output slew rate limit. Plain Java with no Android dependencies, and update() does not allocate.
+ * The derivative acts on the measurement (not the error), so setpoint steps do not cause spikes.
+ * A measured rate (e.g. from the gyroscope) can be supplied instead of differentiating.
+ * Not thread safe: update() should be called from a single (control loop) thread.
+ */
+public class PidController {
+    private double mProportionalGain;
+    private double mIntegralGain;
+    private double mDerivativeGain;
+
+    private double mOutputMin = Double.NEGATIVE_INFINITY;
+    private double mOutputMax = Double.POSITIVE_INFINITY;
+    private double mIntegratorLimit = Double.POSITIVE_INFINITY;
+    private double mDerivativeTimeConstant = 0;
+    private double mSlewRate = Double.POSITIVE_INFINITY;
+
+    private boolean mIsInitialized = false;
+    private double mIntegrator = 0;
+    private double mFilteredDerivative = 0;
+    private double mPreviousMeasurement = 0;
+    private double mPreviousOutput = 0;
+
+    /** Constructs a PidController with the input gains and no limits or filtering
+     * @param proportionalGain output per unit of error
+     * @param integralGain output per unit of error integrated over a second
+     * @param derivativeGain output per unit of error rate (per second)
+     */
+    public PidController(double proportionalGain, double integralGain, double derivativeGain) {
+        setGains(proportionalGain, integralGain, derivativeGain);
+    }
+
+    /** Computes the controller output by differentiating the measurement
+     * @param setpoint the desired value
+     * @param measurement the measured value
+     * @param dt the time since the previous update in seconds
+     * @return the (limited) controller output
+     */
+    public double update(double setpoint, double measurement, double dt) {
+        double measurementRate = 0;
+        if (mIsInitialized && dt > 0) {
+            measurementRate = (measurement - mPreviousMeasurement) / dt;
+        }
+        mPreviousMeasurement = measurement;
+        return update(setpoint, measurement, measurementRate, dt);
+    }
+
+    /** Computes the controller output using a directly measured rate for the derivative term
+     * @param setpoint the desired value
+     * @param measurement the measured value
+     * @param measurementRate the measured rate of change of the measurement (per second)
+     * @param dt the time since the previous update in seconds
+     * @return the (limited) controller output
+     */
+    public double update(double setpoint, double measurement, double measurementRate,
+                         double dt) {
+        double error = setpoint - measurement;
+        if (dt <= 0) return mPreviousOutput;
+        //First order low pass filter on the derivative (no filtering if the time constant is 0)
+        double alpha = dt / (mDerivativeTimeConstant + dt);
+        if (!mIsInitialized) {
+            mFilteredDerivative = measurementRate;
+        } else {
+            mFilteredDerivative += alpha * (measurementRate - mFilteredDerivative);
+        }
+        double unclampedOutput = mProportionalGain * error + mIntegrator
+                - mDerivativeGain * mFilteredDerivative;
+        //Anti-windup: only integrate if the output is not saturated in the direction of the error
+        double integratorStep = mIntegralGain * error * dt;
+        boolean saturatedHigh = unclampedOutput >= mOutputMax && integratorStep > 0;
+        boolean saturatedLow = unclampedOutput <= mOutputMin && integratorStep < 0;
+        if (!saturatedHigh && !saturatedLow) {
+            mIntegrator = clamp(mIntegrator + integratorStep, -mIntegratorLimit,
+                    mIntegratorLimit);
+        }
+        double output = clamp(mProportionalGain * error + mIntegrator
+                - mDerivativeGain * mFilteredDerivative, mOutputMin, mOutputMax);
+        //Slew rate limit (not applied to the first output)
+        if (mIsInitialized) {
+            double maxStep = mSlewRate * dt;
+            output = clamp(output, mPreviousOutput - maxStep, mPreviousOutput + maxStep);
+        }
+        mPreviousOutput = output;
+        mIsInitialized = true;
+        return output;
+    }
+
+    /** Clears the integrator, derivative filter and slew state (e.g. when re-engaging) */
+    public void reset() {
+        mIsInitialized = false;
+        mIntegrator = 0;
+        mFilteredDerivative = 0;
+        mPreviousOutput = 0;
+    }
+
+    /** Returns the current value of the integral term (in output units) */
+    public double getIntegrator() {
+        return mIntegrator;
+    }
+
+    /** Returns the most recent output */
+    public double getOutput() {
+        return mPreviousOutput;
+    }
+
+    /** Sets the time constant of the derivative low pass filter in seconds (0 disables it) */
+    public void setDerivativeFilter(double timeConstant) {
+        mDerivativeTimeConstant = Math.max(0, timeConstant);
+    }
+
+    /** Sets the proportional, integral and derivative gains */
+    public void setGains(double proportionalGain, double integralGain, double derivativeGain) {
+        mProportionalGain = proportionalGain;
+        mIntegralGain = integralGain;
+        mDerivativeGain = derivativeGain;
+    }
+
+    /** Sets the maximum magnitude of the integral term (in output units) */
+    public void setIntegratorLimit(double integratorLimit) {
+        mIntegratorLimit = Math.abs(integratorLimit);
+        mIntegrator = clamp(mIntegrator, -mIntegratorLimit, mIntegratorLimit);
+    }
+
+    /** Sets the minimum and maximum output */
+    public void setOutputLimits(double outputMin, double outputMax) {
+        if (outputMin > outputMax) {
+            throw new IllegalArgumentException("Output min is greater than output max");
+        }
+        mOutputMin = outputMin;
+        mOutputMax = outputMax;
+    }
+
+    /** Sets the maximum rate of change of the output (output units per second) */
+    public void setSlewRate(double slewRate) {
+        mSlewRate = Math.abs(slewRate);
+    }
+
+    //Returns the input value constrained to the input range
+    private static double clamp(double value, double min, double max) {
+        if (value < min) return min;
+        if (value > max) return max;
+        return value;
+    }
+}
@@ -0,0 +1,124 @@
+package com.rabidllamastudios.avigate.helpers;
+
+/**
+ * Dead-reckons the horizontal position of the craft between GPS fixes in a local ENU frame
+ * Each fix resets the position and velocity (from groundspeed and bearing). Between fixes the
+ * position is extrapolated incrementally with the velocity, which is in turn corrected by the
+ * world frame horizontal linear acceleration from the IMU. The uncertainty grows with fix age.
+ * Not thread safe: all methods should be called from the same thread. Does not allocate.
+ */
+public class PositionPropagator {
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+    //Standard deviation of the groundspeed (m/s) and acceleration (m/s^2) used for uncertainty
+    private static final double VELOCITY_NOISE = 1.0;
+    private static final double ACCELERATION_NOISE = 1.0;
+    //Fixes older than this (in seconds) are no longer extrapolated (the position is held)
+    private static final double MAX_EXTRAPOLATION_TIME = 3.0;
+
+    private LocalFrame mLocalFrame = null;
+    private boolean mHasFix = false;
+
+    private long mFixNanos;
+    private long mLastPropagationNanos;
+    private double mFixAccuracy;
+    private double mEast, mNorth;
+    private double mVelocityEast, mVelocityNorth;
+    private double mUncertainty;
+
+    public PositionPropagator() {}
+
+    /** Resets the position and velocity from a new GPS fix
+     * The local frame is anchored at the first fix received
+     * @param latitude the latitude of the fix in degrees
+     * @param longitude the longitude of the fix in degrees
+     * @param groundspeed the groundspeed of the fix in meters per second
+     * @param bearing the bearing (course over ground) of the fix in degrees
+     * @param accuracy the horizontal accuracy of the fix in meters
+     * @param fixNanos the time at which the fix was received, from System.nanoTime()
+     */
+    public void onFix(double latitude, double longitude, double groundspeed, double bearing,
+                      double accuracy, long fixNanos) {
+        if (mLocalFrame == null) mLocalFrame = new LocalFrame(latitude, longitude);
+        mEast = mLocalFrame.getEast(longitude);
+        mNorth = mLocalFrame.getNorth(latitude);
+        //Bearing is measured clockwise from north
+        double bearingRadians = Math.toRadians(bearing);
+        mVelocityEast = groundspeed * Math.sin(bearingRadians);
+        mVelocityNorth = groundspeed * Math.cos(bearingRadians);
+        mFixAccuracy = accuracy;
+        mUncertainty = accuracy;
+        mFixNanos = fixNanos;
+        mLastPropagationNanos = fixNanos;
+        mHasFix = true;
+    }
+
+    /** Extrapolates the position from the previous propagation (or fix) to the input time
+     * @param nowNanos the current time, from System.nanoTime()
+     * @param accelerationEast world frame linear acceleration towards east in m/s^2
+     * @param accelerationNorth world frame linear acceleration towards north in m/s^2
+     */
+    public void propagate(long nowNanos, double accelerationEast, double accelerationNorth) {
+        if (!mHasFix || nowNanos <= mLastPropagationNanos) return;
+        double fixAge = (nowNanos - mFixNanos) / NANOS_PER_SECOND;
+        if (fixAge <= MAX_EXTRAPOLATION_TIME) {
+            double dt = (nowNanos - mLastPropagationNanos) / NANOS_PER_SECOND;
+            mEast += (mVelocityEast + 0.5 * accelerationEast * dt) * dt;
+            mNorth += (mVelocityNorth + 0.5 * accelerationNorth * dt) * dt;
+            mVelocityEast += accelerationEast * dt;
+            mVelocityNorth += accelerationNorth * dt;
+        }
+        mUncertainty = mFixAccuracy + VELOCITY_NOISE * fixAge
+                + 0.5 * ACCELERATION_NOISE * fixAge * fixAge;
+        mLastPropagationNanos = nowNanos;
+    }
+
+    /** Returns true if at least one GPS fix has been received */
+    public boolean hasFix() {
+        return mHasFix;
+    }
+
+    /** Returns the propagated east coordinate in meters relative to the first fix */
+    public double getEast() {
+        return mEast;
+    }
+
+    /** Returns the propagated north coordinate in meters relative to the first fix */
+    public double getNorth() {
+        return mNorth;
+    }
+
+    /** Returns the age of the last fix in seconds, relative to the last propagation */
+    public double getFixAge() {
+        return (mLastPropagationNanos - mFixNanos) / NANOS_PER_SECOND;
+    }
+
+    /** Returns the propagated latitude in degrees */
+    public double getLatitude() {
+        return mLocalFrame.getLatitude(mNorth);
+    }
+
+    /** Returns the propagated longitude in degrees */
+    public double getLongitude() {
+        return mLocalFrame.getLongitude(mEast);
+    }
+
+    /** Returns the local frame the propagated position is expressed in. Null before a fix. */
+    public LocalFrame getLocalFrame() {
+        return mLocalFrame;
+    }
+
+    /** Returns the estimated (one standard deviation) horizontal position error in meters */
+    public double getUncertainty() {
+        return mUncertainty;
+    }
+
+    /** Returns the propagated velocity towards east in meters per second */
+    public double getVelocityEast() {
+        return mVelocityEast;
+    }
+
+    /** Returns the propagated velocity towards north in meters per second */
+    public double getVelocityNorth() {
+        return mVelocityNorth;
+    }
+}
@@ -0,0 +1,197 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.PidGains;
+
+/**
+ * Estimates the ultimate gain and period of a single control axis with a relay feedback
+ * experiment (Astrom-Hagglund). The relay drives the output to bias +/- amplitude around the
+ * setpoint, which makes the axis oscillate at its ultimate period. Each full oscillation cycle is
+ * measured online, and the experiment completes once the last few cycles agree.
+ * Memory is bounded (the last CYCLE_WINDOW cycles) and update() does not allocate.
+ * Not thread safe: all methods should be called from the control loop thread.
+ */
+public class RelayAutotuner {
+    //Number of consecutive cycles that must agree before the experiment completes
+    private static final int CYCLE_WINDOW = 4;
+    //Number of initial cycles ignored while the oscillation settles
+    private static final int SETTLING_CYCLES = 1;
+    //Maximum relative spread of the period and amplitude over the cycle window
+    private static final double CONVERGENCE_TOLERANCE = 0.1;
+
+    /** The tuning rule used to convert the ultimate gain and period into PID gains */
+    public enum TuningRule {
+        //Aggressive, roughly quarter amplitude decay
+        ZIEGLER_NICHOLS,
+        //Conservative, less overshoot and more robust to model error
+        TYREUS_LUYBEN
+    }
+
+    private final double mSetpoint;
+    private final double mOutputBias;
+    private final double mRelayAmplitude;
+    private final double mHysteresis;
+    private final double mMaxDeviation;
+    private final double mTimeout;
+
+    private boolean mOutputHigh = true;
+    private boolean mIsComplete = false;
+    private boolean mHasFailed = false;
+    private double mElapsedTime = 0;
+    private double mLastRiseTime = -1;
+    private double mCycleMax = Double.NEGATIVE_INFINITY;
+    private double mCycleMin = Double.POSITIVE_INFINITY;
+    private int mCycleCount = 0;
+    private final double[] mPeriods = new double[CYCLE_WINDOW];
+    private final double[] mAmplitudes = new double[CYCLE_WINDOW];
+    private double mUltimateGain = 0;
+    private double mUltimatePeriod = 0;
+
+    /** Constructs a RelayAutotuner. The experiment starts on the first call to update.
+     * @param setpoint the value the measurement oscillates around
+     * @param outputBias the output around which the relay switches (e.g. the trim output)
+     * @param relayAmplitude the magnitude of the relay output step around the bias
+     * @param hysteresis the error band the measurement must cross before the relay switches
+     * @param maxDeviation the experiment fails if the measurement deviates further than this
+     * @param timeout the experiment fails if it has not completed after this many seconds
+     */
+    public RelayAutotuner(double setpoint, double outputBias, double relayAmplitude,
+                          double hysteresis, double maxDeviation, double timeout) {
+        mSetpoint = setpoint;
+        mOutputBias = outputBias;
+        mRelayAmplitude = Math.abs(relayAmplitude);
+        mHysteresis = Math.abs(hysteresis);
+        mMaxDeviation = Math.abs(maxDeviation);
+        mTimeout = timeout;
+    }
+
+    /** Computes the relay output from the latest measurement and measures the oscillation
+     * @param measurement the measured value of the tuned axis
+     * @param dt the time since the previous update in seconds
+     * @return the relay output. Returns the bias once the experiment is complete or has failed.
+     */
+    public double update(double measurement, double dt) {
+        if (mIsComplete || mHasFailed) return mOutputBias;
+        mElapsedTime += dt;
+        double error = mSetpoint - measurement;
+        if (Math.abs(error) > mMaxDeviation || mElapsedTime > mTimeout) {
+            mHasFailed = true;
+            return mOutputBias;
+        }
+        mCycleMax = Math.max(mCycleMax, measurement);
+        mCycleMin = Math.min(mCycleMin, measurement);
+        //Switch the relay once the measurement crosses the hysteresis band
+        if (mOutputHigh && error < -mHysteresis) {
+            mOutputHigh = false;
+        } else if (!mOutputHigh && error > mHysteresis) {
+            mOutputHigh = true;
+            onCycleComplete();
+        }
+        return mOutputHigh ? mOutputBias + mRelayAmplitude : mOutputBias - mRelayAmplitude;
+    }
+
+    /** Returns true once the ultimate gain and period have been estimated */
+    public boolean isComplete() {
+        return mIsComplete;
+    }
+
+    /** Returns true if the experiment timed out or the measurement deviated too far */
+    public boolean hasFailed() {
+        return mHasFailed;
+    }
+
+    /** Returns the number of oscillation cycles measured so far */
+    public int getCycleCount() {
+        return mCycleCount;
+    }
+
+    /** Returns the estimated ultimate gain (0 until the experiment is complete) */
+    public double getUltimateGain() {
+        return mUltimateGain;
+    }
+
+    /** Returns the estimated ultimate period in seconds (0 until the experiment is complete) */
+    public double getUltimatePeriod() {
+        return mUltimatePeriod;
+    }
+
+    /** Converts an ultimate gain and period into PID gains using the input TuningRule
+     * @param ultimateGain the ultimate gain (Ku)
+     * @param ultimatePeriod the ultimate period (Pu) in seconds
+     * @param tuningRule the rule used to compute the gains
+     * @param integratorLimit the integrator limit of the returned gains
+     * @return the proposed PidGains
+     */
+    public static PidGains computeGains(double ultimateGain, double ultimatePeriod,
+                                        TuningRule tuningRule, double integratorLimit) {
+        double proportionalGain;
+        double integralTime;
+        double derivativeTime;
+        switch (tuningRule) {
+            case TYREUS_LUYBEN:
+                proportionalGain = ultimateGain / 2.2;
+                integralTime = 2.2 * ultimatePeriod;
+                derivativeTime = ultimatePeriod / 6.3;
+                break;
+            case ZIEGLER_NICHOLS:
+            default:
+                proportionalGain = 0.6 * ultimateGain;
+                integralTime = ultimatePeriod / 2;
+                derivativeTime = ultimatePeriod / 8;
+                break;
+        }
+        return new PidGains(proportionalGain, proportionalGain / integralTime,
+                proportionalGain * derivativeTime, integratorLimit);
+    }
+
+    //Records the period and amplitude of the cycle that ended with the latest rising switch
+    private void onCycleComplete() {
+        if (mLastRiseTime >= 0) {
+            int index = mCycleCount % CYCLE_WINDOW;
+            mPeriods[index] = mElapsedTime - mLastRiseTime;
+            mAmplitudes[index] = (mCycleMax - mCycleMin) / 2;
+            mCycleCount++;
+            if (mCycleCount >= CYCLE_WINDOW + SETTLING_CYCLES) checkConvergence();
+        }
+        mLastRiseTime = mElapsedTime;
+        mCycleMax = Double.NEGATIVE_INFINITY;
+        mCycleMin = Double.POSITIVE_INFINITY;
+    }
+
+    //Completes the experiment if the periods and amplitudes of the cycle window agree
+    private void checkConvergence() {
+        double meanPeriod = mean(mPeriods);
+        double meanAmplitude = mean(mAmplitudes);
+        if (spread(mPeriods) > CONVERGENCE_TOLERANCE * meanPeriod
+                || spread(mAmplitudes) > CONVERGENCE_TOLERANCE * meanAmplitude) {
+            return;
+        }
+        //The oscillation must be larger than the hysteresis band for the estimate to hold
+        if (meanAmplitude <= mHysteresis) {
+            mHasFailed = true;
+            return;
+        }
+        //Describing function of a relay with hysteresis: Ku = 4d / (pi * sqrt(a^2 - e^2))
+        mUltimateGain = 4 * mRelayAmplitude
+                / (Math.PI * Math.sqrt(meanAmplitude * meanAmplitude - mHysteresis * mHysteresis));
+        mUltimatePeriod = meanPeriod;
+        mIsComplete = true;
+    }
+
+    //Returns the mean of the input values
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) sum += value;
+        return sum / values.length;
+    }
+
+    //Returns the difference between the largest and smallest of the input values
+    private static double spread(double[] values) {
+        double max = Double.NEGATIVE_INFINITY;
+        double min = Double.POSITIVE_INFINITY;
+        for (double value : values) {
+            max = Math.max(max, value);
+            min = Math.min(min, value);
+        }
+        return max - min;
+    }
+}
@@ -0,0 +1,98 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sequencing of the reliable channel of UdpTransport (one direction per side of a session)
+ * Sending: each message takes the next sequence and stays unacknowledged until its sequence is
+ * acknowledged. At most WINDOW messages are unacknowledged at once: a message sent while the
+ * window is full is refused (and returned undelivered by UdpTransport) without taking a
+ * sequence, so the receiver never waits for a sequence that will not be retransmitted.
+ * Receiving: messages are delivered in sequence order. A message is acknowledged if it was
+ * already delivered (the previous acknowledgement may have been lost) or if it fits in the
+ * receive window; a message beyond the window is neither stored nor acknowledged, so the sender
+ * keeps retransmitting it.
+ * Not thread safe: use from a single thread (the worker thread of UdpTransport).
+ * @param <T> the messages (e.g. their topic, payload and datagram)
+ */
+class ReliableChannel<T> {
+    /** Maximum number of unacknowledged messages, and of messages received out of order */
+    static final int WINDOW = 64;
+
+    private int mNextSequence = 0;
+    private final LinkedHashMap<Integer, T> mUnacknowledged = new LinkedHashMap<>();
+    private int mNextExpectedSequence = 0;
+    private final Map<Integer, T> mOutOfOrder = new HashMap<>();
+
+    ReliableChannel() {}
+
+    /** Acknowledges a sent message (ignored if it is not unacknowledged) */
+    void acknowledge(int sequence) {
+        mUnacknowledged.remove(sequence);
+    }
+
+    /** Returns the sequence the next sent message takes */
+    int getNextSequence() {
+        return mNextSequence;
+    }
+
+    /** Returns the unacknowledged messages in the order they were sent */
+    Collection<T> getUnacknowledged() {
+        return mUnacknowledged.values();
+    }
+
+    /** Returns true if no message can be sent until one is acknowledged */
+    boolean isWindowFull() {
+        return mUnacknowledged.size() >= WINDOW;
+    }
+
+    /** Processes a received message
+     * @param sequence the sequence of the message
+     * @param message the message
+     * @param deliverable receives the messages that are now deliverable, in order
+     * @return true if the message must be acknowledged
+     */
+    boolean receive(int sequence, T message, List<T> deliverable) {
+        int offset = sequence - mNextExpectedSequence;
+        if (offset < 0) return true;
+        if (offset >= WINDOW) return false;
+        mOutOfOrder.put(sequence, message);
+        T next;
+        while ((next = mOutOfOrder.remove(mNextExpectedSequence)) != null) {
+            deliverable.add(next);
+            mNextExpectedSequence++;
+        }
+        return true;
+    }
+
+    /** Forgets the received sequences, e.g. when the peer starts a new session */
+    void resetReceiving() {
+        mNextExpectedSequence = 0;
+        mOutOfOrder.clear();
+    }
+
+    /** Forgets the sent sequences, e.g. when the peer is lost
+     * @return the messages that were unacknowledged, in the order they were sent
+     */
+    List<T> resetSending() {
+        List<T> unacknowledged = new ArrayList<>(mUnacknowledged.values());
+        mUnacknowledged.clear();
+        mNextSequence = 0;
+        return unacknowledged;
+    }
+
+    /** Sends a message: it takes the next sequence (see getNextSequence) and stays
+     * unacknowledged
+     * @return false (and the message takes no sequence) if the window is full
+     */
+    boolean send(T message) {
+        if (isWindowFull()) return false;
+        mUnacknowledged.put(mNextSequence++, message);
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring of preallocated, reusable slots between exactly one producer thread and one
+ * consumer thread (in the style of the LMAX Disruptor)
+ * The producer claims the next free slot, fills it in place and publishes its sequence. The
+ * consumer processes every published slot in one batch and then releases them all at once.
+ * Progress is tracked by two single-writer sequences (the published cursor and the consumed
+ * sequence), so neither side takes a lock or allocates. If the consumer falls behind by the
+ * capacity of the ring, claims fail and the slot is dropped (the producer never blocks).
+ * A waiting consumer parks its thread and is unparked by the producer on publish.
+ * Slots are only valid inside the Handler call: the producer reuses them once released.
+ */
+public class RingBuffer<E> {
+    private final Object[] mSlots;
+    private final int mMask;
+    //Sequence of the latest published slot. Only written by the producer.
+    private final AtomicLong mCursor = new AtomicLong(-1);
+    //Sequence of the latest released slot. Only written by the consumer.
+    private final AtomicLong mConsumed = new AtomicLong(-1);
+    //Slots dropped because the ring was full. Only written by the producer.
+    private final AtomicLong mDropCount = new AtomicLong(0);
+    //The consumer thread while it is parked in await, otherwise null
+    private volatile Thread mWaitingThread = null;
+
+    //Only accessed by the producer
+    private long mNextSequence = 0;
+    private long mCachedConsumed = -1;
+
+    /** Constructs a RingBuffer with every slot created up front
+     * @param capacity the number of slots, a power of two
+     * @param factory creates the slots
+     */
+    public RingBuffer(int capacity, Factory<E> factory) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mSlots = new Object[capacity];
+        mMask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = factory.create();
+        }
+    }
+
+    /** Waits up to the input timeout for published slots, then processes them (consumer only)
+     * @return the number of slots processed (0 if the timeout elapsed first)
+     */
+    public int await(Handler<? super E> handler, long timeout, TimeUnit timeUnit) {
+        int count = poll(handler);
+        if (count > 0) return count;
+        //Announce the wait before checking again, so a publish in between unparks this thread
+        mWaitingThread = Thread.currentThread();
+        if (mCursor.get() == mConsumed.get()) {
+            LockSupport.parkNanos(this, timeUnit.toNanos(timeout));
+        }
+        mWaitingThread = null;
+        return poll(handler);
+    }
+
+    /** Returns the sequence of the next free slot, or -1 if the ring is full (producer only)
+     * A claimed slot must be filled (see get) and then published.
+     */
+    public long claim() {
+        //The ring is full when every slot after the latest released one is unreleased
+        long sequence = mNextSequence;
+        if (sequence - mCachedConsumed > mSlots.length) {
+            mCachedConsumed = mConsumed.get();
+            if (sequence - mCachedConsumed > mSlots.length) {
+                mDropCount.lazySet(mDropCount.get() + 1);
+                return -1;
+            }
+        }
+        mNextSequence = sequence + 1;
+        return sequence;
+    }
+
+    /** Returns the slot of the input sequence */
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) mSlots[(int) sequence & mMask];
+    }
+
+    /** Returns the number of slots */
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    /** Returns the number of slots dropped because the ring was full */
+    public long getDropCount() {
+        return mDropCount.get();
+    }
+
+    /** Returns the number of published slots not yet processed by the consumer */
+    public int getPendingCount() {
+        return (int) (mCursor.get() - mConsumed.get());
+    }
+
+    /** Processes every published slot in order, then releases them (consumer only)
+     * @return the number of slots processed
+     */
+    public int poll(Handler<? super E> handler) {
+        long consumed = mConsumed.get();
+        long available = mCursor.get();
+        if (available == consumed) return 0;
+        for (long sequence = consumed + 1; sequence <= available; sequence++) {
+            handler.onEvent(get(sequence), sequence, sequence == available);
+        }
+        mConsumed.lazySet(available);
+        return (int) (available - consumed);
+    }
+
+    /** Makes the claimed slot of the input sequence visible to the consumer (producer only) */
+    public void publish(long sequence) {
+        //A full (volatile) write, so it cannot be reordered after the read of the waiting thread
+        mCursor.set(sequence);
+        Thread waitingThread = mWaitingThread;
+        if (waitingThread != null) LockSupport.unpark(waitingThread);
+    }
+
+    /** Releases every published slot without processing it, e.g. stale slots (consumer only)
+     * @return the number of slots skipped
+     */
+    public int skip() {
+        long consumed = mConsumed.get();
+        long available = mCursor.get();
+        mConsumed.lazySet(available);
+        return (int) (available - consumed);
+    }
+
+    /** Creates the slots of a RingBuffer */
+    public interface Factory<E> {
+        E create();
+    }
+
+    /** Processes the published slots of a RingBuffer on the consumer thread */
+    public interface Handler<E> {
+        /** Processes one slot
+         * @param slot the slot. Only valid during this call.
+         * @param sequence the sequence of the slot
+         * @param endOfBatch true for the last slot of the current batch
+         */
+        void onEvent(E slot, long sequence, boolean endOfBatch);
+    }
+}
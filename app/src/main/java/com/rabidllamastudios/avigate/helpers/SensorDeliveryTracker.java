@@ -0,0 +1,112 @@
+package com.rabidllamastudios.avigate.helpers;
+
+/**
+ * Measures how regularly samples from a single sensor are delivered to the app
+ * Delivery jitter is the difference between the time between two callbacks and the time between
+ * the two corresponding sensor event timestamps (i.e. the delay added by the delivering thread)
+ * A sensor is considered stale if no sample was delivered within the configured stale threshold
+ * Not thread safe: all methods should be called from the thread that receives the sensor events,
+ * except for getLastSampleAge, isStale and setStaleThreshold, which can be called from any thread
+ */
+public class SensorDeliveryTracker {
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private final String mSensorName;
+    private final TimingStatistics mIntervalStatistics = new TimingStatistics();
+    private final TimingStatistics mJitterStatistics = new TimingStatistics();
+
+    private boolean mHasPreviousSample = false;
+    private long mPreviousDeliveryNanos;
+    private long mPreviousEventNanos;
+    private long mWindowStartNanos = System.nanoTime();
+    //Time of the last delivered sample (System.nanoTime), read by other threads, hence volatile
+    private volatile long mLastDeliveryNanos = 0;
+    private volatile long mStaleThresholdNanos = Long.MAX_VALUE;
+
+    /** Constructor that takes the name of the tracked sensor (used when logging) */
+    public SensorDeliveryTracker(String sensorName) {
+        mSensorName = sensorName;
+    }
+
+    /** Records the delivery of a sensor sample
+     * @param eventTimestampNanos the timestamp of the sensor event in nanoseconds
+     * @param deliveryNanos the time at which the event was delivered, from System.nanoTime()
+     */
+    public void onSampleDelivered(long eventTimestampNanos, long deliveryNanos) {
+        if (mHasPreviousSample) {
+            long deliveryInterval = deliveryNanos - mPreviousDeliveryNanos;
+            long eventInterval = eventTimestampNanos - mPreviousEventNanos;
+            mIntervalStatistics.record(deliveryInterval);
+            mJitterStatistics.record(Math.abs(deliveryInterval - eventInterval));
+        }
+        mPreviousDeliveryNanos = deliveryNanos;
+        mPreviousEventNanos = eventTimestampNanos;
+        mHasPreviousSample = true;
+        mLastDeliveryNanos = deliveryNanos;
+    }
+
+    /** Returns the delivered sample rate in Hz since the statistics were last reset
+     * @param nowNanos the current time, from System.nanoTime()
+     */
+    public double getDeliveredRate(long nowNanos) {
+        double windowSeconds = (nowNanos - mWindowStartNanos) / NANOS_PER_SECOND;
+        if (windowSeconds <= 0) return 0;
+        return mIntervalStatistics.getCount() / windowSeconds;
+    }
+
+    /** Returns the statistics for the time between consecutive sample deliveries */
+    public TimingStatistics getIntervalStatistics() {
+        return mIntervalStatistics;
+    }
+
+    /** Returns the statistics for the delivery jitter of the sensor */
+    public TimingStatistics getJitterStatistics() {
+        return mJitterStatistics;
+    }
+
+    /** Returns the time since the last sample was delivered in nanoseconds
+     * Returns Long.MAX_VALUE if no sample was ever delivered
+     * @param nowNanos the current time, from System.nanoTime()
+     */
+    public long getLastSampleAge(long nowNanos) {
+        long lastDeliveryNanos = mLastDeliveryNanos;
+        if (lastDeliveryNanos == 0) return Long.MAX_VALUE;
+        return nowNanos - lastDeliveryNanos;
+    }
+
+    /** Returns the name of the tracked sensor */
+    public String getSensorName() {
+        return mSensorName;
+    }
+
+    /** Returns true if no sample was delivered within the stale threshold
+     * @param nowNanos the current time, from System.nanoTime()
+     */
+    public boolean isStale(long nowNanos) {
+        return getLastSampleAge(nowNanos) > mStaleThresholdNanos;
+    }
+
+    /** Sets the time without samples after which the sensor is stale. Never stale by default.
+     * @param staleThresholdNanos the stale threshold in nanoseconds
+     */
+    public void setStaleThreshold(long staleThresholdNanos) {
+        mStaleThresholdNanos = staleThresholdNanos;
+    }
+
+    /** Clears all recorded statistics and starts a new rate measurement window
+     * The time of the last sample is kept, so staleness detection is unaffected
+     */
+    public void reset() {
+        mIntervalStatistics.reset();
+        mJitterStatistics.reset();
+        //Keep the previous sample so the first interval of the new window is measured
+        mWindowStartNanos = System.nanoTime();
+    }
+
+    /** Returns a short human readable summary of the delivery statistics, intended for logging */
+    @Override
+    public String toString() {
+        return mSensorName + " interval: [" + mIntervalStatistics.toString() + "] jitter: ["
+                + mJitterStatistics.toString() + "]";
+    }
+}
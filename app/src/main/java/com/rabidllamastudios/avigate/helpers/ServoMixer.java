@@ -0,0 +1,209 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.MixerChannel;
+
+/**
+ * Mixer stage between the controllers and the servo outputs, so airframes without a separate
+ * aileron, elevator and rudder (flying wings, V-tails, flaperons) can use the autopilot
+ * Each servo output (channel) is a row of a matrix of weights over the virtual axes (MixerInput):
+ * servo value = base + trim + expo(sum of weight * input), constrained to the channel limits.
+ * The base is the servo center, or the servo min for a throttle. Inputs are in servo degrees,
+ * as the FlightController outputs are: roll, pitch, yaw and flaps from the center, and throttle
+ * from the min. Expo curves are precomputed as lookup tables when the mixer is configured.
+ * A channel without a mix in the craft profile is driven directly by its own axis (aileron by
+ * roll, elevator by pitch, rudder by yaw, throttle by throttle), as before mixing existed.
+ * Plain Java with no Android dependencies. mix() does not allocate.
+ * Not thread safe: all methods should be called from the control loop thread.
+ */
+public class ServoMixer {
+    //Number of points of each expo lookup table, evenly spaced over the normalized input [-1, 1]
+    private static final int CURVE_POINTS = 33;
+
+    private static final ArduinoPacket.ServoType[] SERVO_TYPES = ArduinoPacket.ServoType.values();
+    private static final int CHANNEL_COUNT = SERVO_TYPES.length;
+    private static final int INPUT_COUNT = ArduinoPacket.MixerInput.values().length;
+
+    //Per channel configuration. Weights are a row-major matrix of channels by inputs.
+    private final boolean[] mIsConfigured = new boolean[CHANNEL_COUNT];
+    private final double[] mWeights = new double[CHANNEL_COUNT * INPUT_COUNT];
+    private final double[] mBases = new double[CHANNEL_COUNT];
+    //The input (in servo degrees) that maps to the end of the expo curve
+    private final double[] mCurveScales = new double[CHANNEL_COUNT];
+    //Expo lookup tables (null if linear)
+    private final double[][] mCurves = new double[CHANNEL_COUNT][];
+    private final int[] mMins = new int[CHANNEL_COUNT];
+    private final int[] mMaxs = new int[CHANNEL_COUNT];
+
+    //Per input state. An input is active once it has been set since the last clearInputs.
+    private final double[] mInputs = new double[INPUT_COUNT];
+    private final boolean[] mIsInputActive = new boolean[INPUT_COUNT];
+
+    //Per channel result of the latest mix
+    private final boolean[] mIsActive = new boolean[CHANNEL_COUNT];
+    private final int[] mServoValues = new int[CHANNEL_COUNT];
+
+    public ServoMixer() {}
+
+    /** Creates a ServoMixer with the mix of each phone controlled servo in the craft profile
+     * Servos without a mix are driven directly by their own axis (see createDefaultChannel)
+     * @param configArduinoPacket the craft profile. If null, no servo is mixed.
+     */
+    public static ServoMixer fromProfile(ArduinoPacket configArduinoPacket) {
+        ServoMixer servoMixer = new ServoMixer();
+        if (configArduinoPacket == null) return servoMixer;
+        for (ArduinoPacket.ServoType servoType : SERVO_TYPES) {
+            if (!configArduinoPacket.isPhoneControlled(servoType)) continue;
+            MixerChannel mixerChannel = configArduinoPacket.getMixerChannel(servoType);
+            if (mixerChannel == null) mixerChannel = createDefaultChannel(servoType);
+            if (mixerChannel == null) continue;
+            servoMixer.setChannel(servoType, mixerChannel,
+                    configArduinoPacket.getOutputMin(servoType),
+                    configArduinoPacket.getOutputMax(servoType));
+        }
+        return servoMixer;
+    }
+
+    /** Returns the unmixed channel of the input ServoType (driven by its own axis only)
+     * Returns null for the cutover, which is not an output
+     */
+    public static MixerChannel createDefaultChannel(ArduinoPacket.ServoType servoType) {
+        MixerChannel mixerChannel;
+        switch (servoType) {
+            case AILERON:
+                mixerChannel = new MixerChannel(true, 0);
+                mixerChannel.setWeight(ArduinoPacket.MixerInput.ROLL, 1);
+                return mixerChannel;
+            case ELEVATOR:
+                mixerChannel = new MixerChannel(true, 0);
+                mixerChannel.setWeight(ArduinoPacket.MixerInput.PITCH, 1);
+                return mixerChannel;
+            case RUDDER:
+                mixerChannel = new MixerChannel(true, 0);
+                mixerChannel.setWeight(ArduinoPacket.MixerInput.YAW, 1);
+                return mixerChannel;
+            case THROTTLE:
+                mixerChannel = new MixerChannel(false, 0);
+                mixerChannel.setWeight(ArduinoPacket.MixerInput.THROTTLE, 1);
+                return mixerChannel;
+        }
+        return null;
+    }
+
+    /** Configures the input servo (channel) and precomputes its expo lookup table
+     * @param servoType the servo (channel) to configure
+     * @param mixerChannel the mix of the channel
+     * @param outputMin the minimum of the servo output range in degrees
+     * @param outputMax the maximum of the servo output range in degrees
+     */
+    public void setChannel(ArduinoPacket.ServoType servoType, MixerChannel mixerChannel,
+                           int outputMin, int outputMax) {
+        int channel = servoType.ordinal();
+        for (ArduinoPacket.MixerInput mixerInput : ArduinoPacket.MixerInput.values()) {
+            mWeights[channel * INPUT_COUNT + mixerInput.ordinal()] =
+                    mixerChannel.getWeight(mixerInput);
+        }
+        //The channel limits can only narrow the output range of the servo
+        mMins[channel] = mixerChannel.getMin() == MixerChannel.NO_LIMIT ? outputMin
+                : Math.max(outputMin, mixerChannel.getMin());
+        mMaxs[channel] = mixerChannel.getMax() == MixerChannel.NO_LIMIT ? outputMax
+                : Math.min(outputMax, mixerChannel.getMax());
+        if (mixerChannel.isCentered()) {
+            mBases[channel] = (outputMax - outputMin) / 2 + outputMin + mixerChannel.getTrim();
+            mCurveScales[channel] = Math.max(1, (outputMax - outputMin) / 2.0);
+        } else {
+            mBases[channel] = outputMin + mixerChannel.getTrim();
+            mCurveScales[channel] = Math.max(1, outputMax - outputMin);
+        }
+        mCurves[channel] = mixerChannel.getExpo() > 0
+                ? createExpoCurve(mixerChannel.getExpo()) : null;
+        mIsConfigured[channel] = true;
+    }
+
+    /** Clears all inputs. Call before setting the inputs of the next mix. */
+    public void clearInputs() {
+        for (int i = 0; i < INPUT_COUNT; i++) {
+            mInputs[i] = 0;
+            mIsInputActive[i] = false;
+        }
+    }
+
+    /** Sets the input MixerInput (in servo degrees) for the next mix, and marks it active */
+    public void setInput(ArduinoPacket.MixerInput mixerInput, double value) {
+        mInputs[mixerInput.ordinal()] = value;
+        mIsInputActive[mixerInput.ordinal()] = true;
+    }
+
+    /** Mixes the inputs onto all configured channels
+     * A channel is only active (driven) if at least one of its weighted inputs is active, so
+     * servos of uncontrolled axes are left alone
+     */
+    public void mix() {
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            mIsActive[channel] = false;
+            if (!mIsConfigured[channel]) continue;
+            double sum = 0;
+            boolean isActive = false;
+            int row = channel * INPUT_COUNT;
+            for (int input = 0; input < INPUT_COUNT; input++) {
+                double weight = mWeights[row + input];
+                if (weight == 0 || !mIsInputActive[input]) continue;
+                sum += weight * mInputs[input];
+                isActive = true;
+            }
+            if (!isActive) continue;
+            if (mCurves[channel] != null) {
+                sum = mCurveScales[channel] * lookUp(mCurves[channel],
+                        sum / mCurveScales[channel]);
+            }
+            int servoValue = (int) Math.round(mBases[channel] + sum);
+            mServoValues[channel] = Math.max(mMins[channel], Math.min(mMaxs[channel],
+                    servoValue));
+            mIsActive[channel] = true;
+        }
+    }
+
+    /** Commands the servo value of each active channel (see mix) on the input ServoOutputFilter */
+    public void commandServoValues(ServoOutputFilter servoOutputFilter) {
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if (mIsActive[channel]) {
+                servoOutputFilter.command(SERVO_TYPES[channel], mServoValues[channel]);
+            }
+        }
+    }
+
+    /** Returns the servo value in degrees of the input ServoType from the latest mix */
+    public int getServoValue(ArduinoPacket.ServoType servoType) {
+        return mServoValues[servoType.ordinal()];
+    }
+
+    /** Returns true if the input ServoType was driven by the latest mix */
+    public boolean isActive(ArduinoPacket.ServoType servoType) {
+        return mIsActive[servoType.ordinal()];
+    }
+
+    /** Returns true if the input ServoType was driven to one of its limits by the latest mix */
+    public boolean isSaturated(ArduinoPacket.ServoType servoType) {
+        int channel = servoType.ordinal();
+        return mIsActive[channel] && (mServoValues[channel] <= mMins[channel]
+                || mServoValues[channel] >= mMaxs[channel]);
+    }
+
+    //Returns the lookup table of the expo curve (1 - expo) * x + expo * x^3 over [-1, 1]
+    private static double[] createExpoCurve(double expo) {
+        double[] curve = new double[CURVE_POINTS];
+        for (int i = 0; i < CURVE_POINTS; i++) {
+            double x = 2.0 * i / (CURVE_POINTS - 1) - 1;
+            curve[i] = (1 - expo) * x + expo * x * x * x;
+        }
+        return curve;
+    }
+
+    //Linearly interpolates the input lookup table at x (constrained to [-1, 1])
+    private static double lookUp(double[] curve, double x) {
+        double position = (Math.max(-1, Math.min(1, x)) + 1) * (CURVE_POINTS - 1) / 2;
+        int index = Math.min(CURVE_POINTS - 2, (int) position);
+        double fraction = position - index;
+        return curve[index] + fraction * (curve[index + 1] - curve[index]);
+    }
+}
@@ -0,0 +1,208 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.ServoFrame;
+
+import java.util.Locale;
+
+/**
+ * Output stage between the controllers and the serial link that suppresses redundant servo commands
+ * Each servo (channel) is slew rate limited towards its commanded value, and only sent when it
+ * moved by more than its deadband since it was last sent, or when it settles on a new value.
+ * All commanded channels are refreshed at the keep-alive interval, so a lost frame is corrected
+ * and the Arduino sees a live link.
+ * Counts the commands received, sent and suppressed, to show how much serial traffic is saved.
+ * Plain Java with no Android dependencies. update() does not allocate.
+ * Not thread safe: all methods should be called from the control loop thread.
+ */
+public class ServoOutputFilter {
+    private static final int CHANNEL_COUNT = ArduinoPacket.ServoType.values().length;
+    private static final ArduinoPacket.ServoType[] SERVO_TYPES = ArduinoPacket.ServoType.values();
+
+    private final double mKeepAliveInterval;
+    //Per channel configuration: deadband in servo degrees, slew rate in servo degrees per second
+    private final int[] mDeadbands = new int[CHANNEL_COUNT];
+    private final double[] mSlewRates = new double[CHANNEL_COUNT];
+
+    //Per channel state. A channel is active once it has been commanded since the last reset.
+    private final boolean[] mIsCommanded = new boolean[CHANNEL_COUNT];
+    private final boolean[] mIsActive = new boolean[CHANNEL_COUNT];
+    private final int[] mTargets = new int[CHANNEL_COUNT];
+    private final int[] mPreviousTargets = new int[CHANNEL_COUNT];
+    private final double[] mPositions = new double[CHANNEL_COUNT];
+    private final int[] mSentValues = new int[CHANNEL_COUNT];
+    private final boolean[] mIsPending = new boolean[CHANNEL_COUNT];
+    //Channels written by the latest writeServoValues
+    private final boolean[] mIsTaken = new boolean[CHANNEL_COUNT];
+    private double mTimeSinceSend = 0;
+
+    //Traffic counters (since construction or resetCounters)
+    private long mUpdateCount = 0;
+    private long mPacketsSent = 0;
+    private long mKeepAlivesSent = 0;
+    private long mValuesCommanded = 0;
+    private long mValuesSent = 0;
+
+    /** Constructs a ServoOutputFilter without deadband or slew limit on any channel
+     * @param keepAliveInterval the interval at which all channels are resent in seconds
+     */
+    public ServoOutputFilter(double keepAliveInterval) {
+        mKeepAliveInterval = keepAliveInterval;
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            mSlewRates[i] = Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /** Sets the deadband and slew rate of the input servo
+     * @param servoType the servo (channel) to configure
+     * @param deadband changes of at most this many servo degrees (since the last sent value) are
+     *                 not sent
+     * @param slewRate the maximum rate of change in servo degrees per second
+     */
+    public void setChannel(ArduinoPacket.ServoType servoType, int deadband, double slewRate) {
+        mDeadbands[servoType.ordinal()] = Math.max(0, deadband);
+        mSlewRates[servoType.ordinal()] = slewRate;
+    }
+
+    /** Commands the input servo value for the next update. Channels not commanded hold still. */
+    public void command(ArduinoPacket.ServoType servoType, int servoValue) {
+        mIsCommanded[servoType.ordinal()] = true;
+        mTargets[servoType.ordinal()] = servoValue;
+    }
+
+    /** Advances all commanded channels by the input time, and decides which must be sent
+     * @param dt the time since the previous update in seconds
+     * @return true if any channel must be sent (see writeServoValues)
+     */
+    public boolean update(double dt) {
+        mUpdateCount++;
+        mTimeSinceSend += dt;
+        boolean keepAlive = mTimeSinceSend >= mKeepAliveInterval;
+        boolean isDue = false;
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if (!mIsCommanded[i]) continue;
+            mIsCommanded[i] = false;
+            mValuesCommanded++;
+            int target = mTargets[i];
+            int previousTarget = mPreviousTargets[i];
+            mPreviousTargets[i] = target;
+            //The first command of a channel is sent as is, later ones are slew rate limited
+            if (!mIsActive[i]) {
+                mIsActive[i] = true;
+                mPositions[i] = target;
+                mIsPending[i] = true;
+                isDue = true;
+                continue;
+            }
+            double maxChange = mSlewRates[i] * dt;
+            mPositions[i] += Math.max(-maxChange, Math.min(maxChange, target - mPositions[i]));
+            //Changes within the deadband are only sent once the channel has settled on a steady
+            //target, so a slew does not stop short of it while dither is still suppressed
+            int value = (int) Math.round(mPositions[i]);
+            int change = Math.abs(value - mSentValues[i]);
+            boolean settled = value == target && target == previousTarget;
+            mIsPending[i] = keepAlive || change > mDeadbands[i] || (change > 0 && settled);
+            isDue |= mIsPending[i];
+        }
+        return isDue;
+    }
+
+    /** Sets the values of all channels that are due (see update) on the input ArduinoPacket
+     * @return the number of servo values written
+     */
+    public int writeServoValues(ArduinoPacket arduinoPacket) {
+        int valueCount = takePendingValues();
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if (mIsTaken[i]) arduinoPacket.setServoValue(SERVO_TYPES[i], mSentValues[i]);
+        }
+        return valueCount;
+    }
+
+    /** Sets the values of all channels that are due (see update) on the input ServoFrame
+     * Does not allocate.
+     * @return the number of servo values written
+     */
+    public int writeServoValues(ServoFrame servoFrame) {
+        int valueCount = takePendingValues();
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if (mIsTaken[i]) servoFrame.setServoValue(SERVO_TYPES[i], mSentValues[i]);
+        }
+        return valueCount;
+    }
+
+    /** Forgets the sent values, so every channel is sent on its next command
+     * Use when the servos may have been moved by something else (e.g. the receiver)
+     */
+    public void reset() {
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            mIsActive[i] = false;
+            mIsCommanded[i] = false;
+            mIsPending[i] = false;
+        }
+        mTimeSinceSend = 0;
+    }
+
+    /** Resets the traffic counters */
+    public void resetCounters() {
+        mUpdateCount = 0;
+        mPacketsSent = 0;
+        mKeepAlivesSent = 0;
+        mValuesCommanded = 0;
+        mValuesSent = 0;
+    }
+
+    /** Returns the number of keep-alive packets sent (packets sent when the interval elapsed) */
+    public long getKeepAlivesSent() {
+        return mKeepAlivesSent;
+    }
+
+    /** Returns the number of packets sent */
+    public long getPacketsSent() {
+        return mPacketsSent;
+    }
+
+    /** Returns the number of packets suppressed (updates after which nothing was sent) */
+    public long getPacketsSuppressed() {
+        return mUpdateCount - mPacketsSent;
+    }
+
+    /** Returns the number of servo values commanded */
+    public long getValuesCommanded() {
+        return mValuesCommanded;
+    }
+
+    /** Returns the number of servo values sent */
+    public long getValuesSent() {
+        return mValuesSent;
+    }
+
+    @Override
+    public String toString() {
+        double savedPercent = mUpdateCount == 0 ? 0
+                : 100.0 * getPacketsSuppressed() / mUpdateCount;
+        return String.format(Locale.US, "packets sent: %d of %d (%.1f%% suppressed), "
+                        + "keep-alives: %d, values sent: %d of %d", mPacketsSent, mUpdateCount,
+                savedPercent, mKeepAlivesSent, mValuesSent, mValuesCommanded);
+    }
+
+    //Marks the channels that are due as sent (in mIsTaken), with their values in mSentValues
+    //Returns the number of channels taken
+    private int takePendingValues() {
+        int valueCount = 0;
+        boolean keepAlive = mTimeSinceSend >= mKeepAliveInterval;
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            mIsTaken[i] = mIsPending[i];
+            if (!mIsPending[i]) continue;
+            mIsPending[i] = false;
+            mSentValues[i] = (int) Math.round(mPositions[i]);
+            valueCount++;
+        }
+        if (valueCount > 0) {
+            mPacketsSent++;
+            mValuesSent += valueCount;
+            if (keepAlive) mKeepAlivesSent++;
+            mTimeSinceSend = 0;
+        }
+        return valueCount;
+    }
+}
@@ -14,7 +14,10 @@ public class SharedPreferencesManager {
     public static final String KEY_CRAFT_NAME = "CraftName";
 
     private static final String CRAFT_PROFILES ="CraftProfiles";
+    private static final String MISSION = "Mission";
+    private static final String PEER_ADDRESS = "PeerAddress";
     private static final String PREFS_FILE = "AvigatePreferences";
+    private static final String SIMULATE_CRAFT = "SimulateCraft";
 
     private SharedPreferences mSharedPreferences;
 
@@ -46,6 +49,27 @@ public class SharedPreferencesManager {
         return null;
     }
 
+    /** Returns the last mission sent to the craft
+     * @return the mission as a JSON String (see MissionPacket). Returns null if none was sent.
+     */
+    public String getMission() {
+        return mSharedPreferences.getString(MISSION, null);
+    }
+
+    /** Returns the address of the peer device (craft or controller) for direct UDP transport
+     * @return the address (e.g. "192.168.43.1"). Returns null if the peer is to be discovered.
+     */
+    public String getPeerAddress() {
+        return mSharedPreferences.getString(PEER_ADDRESS, null);
+    }
+
+    /** Returns true if the craft is simulated (SimulationService) rather than flown with the
+     * sensors and the Arduino (SensorService and UsbSerialService). Defaults to false.
+     */
+    public boolean isSimulatingCraft() {
+        return mSharedPreferences.getBoolean(SIMULATE_CRAFT, false);
+    }
+
     /** Returns the list of stored craft profile names */
     public Set<String> getCraftList() {
         //TODO use consistent fallback logic
@@ -92,6 +116,35 @@ public class SharedPreferencesManager {
         editor.apply();
     }
 
+    /** Updates the last mission sent to the craft
+     * @param missionJson the mission as a JSON String (see MissionPacket), or null to remove it
+     */
+    public void updateMission(String missionJson) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        if (missionJson == null) editor.remove(MISSION);
+        else editor.putString(MISSION, missionJson);
+        editor.apply();
+    }
+
+    /** Updates the address of the peer device (craft or controller) for direct UDP transport
+     * @param peerAddress the address of the peer, or null to discover the peer instead
+     */
+    public void updatePeerAddress(String peerAddress) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        if (peerAddress == null) editor.remove(PEER_ADDRESS);
+        else editor.putString(PEER_ADDRESS, peerAddress);
+        editor.apply();
+    }
+
+    /** Updates whether the craft is simulated. Takes effect when MasterFlightService is started.
+     * @param simulateCraft true to simulate the craft, false to fly it with the real hardware
+     */
+    public void updateSimulateCraft(boolean simulateCraft) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(SIMULATE_CRAFT, simulateCraft);
+        editor.apply();
+    }
+
     /** Updates the craft configuration based on the input name and new configuration
      * @param craftName the name of the craft to update the configuration for
      * @param craftConfiguration the JSON String containing the new craft configuration
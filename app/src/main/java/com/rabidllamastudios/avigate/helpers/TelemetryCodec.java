@@ -0,0 +1,456 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import android.content.Intent;
+import android.location.Location;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.ConnectionPacket;
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.LinkQualityPacket;
+import com.rabidllamastudios.avigate.services.UsbSerialService;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of the telemetry Intents sent over the network (replaces their JSON)
+ * Each message type has a fixed, versioned schema of fixed width and varint fields, written
+ * straight from (and read straight into) its data model:
+ * craft state: CraftStatePacket (including its Location, which the JSON encoding dropped)
+ * Arduino input and output: the servo values of an ArduinoPacket, or its JSON if it contains
+ * anything else (e.g. configuration)
+ * connection: ConnectionPacket (including its link metrics)
+ * link quality: LinkQualityPacket
+ * USB status: the UsbSerialService status actions (no extras)
+ * A payload starts with a marker byte (never the first byte of a JSON string), the message type
+ * and the schema version. Intents of other actions have no schema and remain JSON.
+ * LatencyTraces are not encoded: their timestamps are only meaningful on the sending device.
+ * An instance reuses its encode buffer, so encode is not thread safe. Decode is.
+ */
+public class TelemetryCodec {
+    private static final String CLASS_NAME = TelemetryCodec.class.getSimpleName();
+
+    /** The maximum length of an encoded payload in bytes (other than Arduino JSON messages) */
+    public static final int MAX_PAYLOAD_LENGTH = 256;
+
+    //Marks a binary payload. 0xA7 is a UTF-8 continuation byte, so no JSON string starts with it.
+    private static final byte MARKER = (byte) 0xA7;
+
+    //Message types (never reuse a retired value)
+    private static final byte TYPE_CRAFT_STATE = 1;
+    private static final byte TYPE_ARDUINO_INPUT = 2;
+    private static final byte TYPE_ARDUINO_OUTPUT = 3;
+    private static final byte TYPE_CONNECTION = 4;
+    private static final byte TYPE_USB_STATUS = 5;
+    private static final byte TYPE_LINK_QUALITY = 6;
+
+    //Current schema version of each message type. Increment when its fields change.
+    private static final byte VERSION_CRAFT_STATE = 1;
+    private static final byte VERSION_ARDUINO = 1;
+    private static final byte VERSION_CONNECTION = 2;
+    private static final byte VERSION_USB_STATUS = 1;
+    private static final byte VERSION_LINK_QUALITY = 1;
+
+    //Forms of an Arduino message
+    private static final byte ARDUINO_SERVO_VALUES = 0;
+    private static final byte ARDUINO_JSON = 1;
+
+    //Presence flags of the optional craft state fields
+    private static final int CRAFT_PROPAGATED_POSITION = 1;
+    private static final int CRAFT_VERTICAL_STATE = 1 << 1;
+
+    //Presence flags of the optional Location fields
+    private static final int LOCATION_ACCURACY = 1;
+    private static final int LOCATION_ALTITUDE = 1 << 1;
+    private static final int LOCATION_BEARING = 1 << 2;
+    private static final int LOCATION_SPEED = 1 << 3;
+
+    //USB status actions, encoded by their index (append only)
+    private static final String[] USB_STATUS_ACTIONS = {
+            UsbSerialService.INTENT_ACTION_CDC_DRIVER_NOT_WORKING,
+            UsbSerialService.INTENT_ACTION_NO_USB,
+            UsbSerialService.INTENT_ACTION_USB_DEVICE_NOT_WORKING,
+            UsbSerialService.INTENT_ACTION_USB_DISCONNECTED,
+            UsbSerialService.INTENT_ACTION_USB_NOT_SUPPORTED,
+            UsbSerialService.INTENT_ACTION_USB_PERMISSION_GRANTED,
+            UsbSerialService.INTENT_ACTION_USB_PERMISSION_NOT_GRANTED,
+            UsbSerialService.INTENT_ACTION_USB_READY};
+
+    private static final ArduinoPacket.ServoType[] SERVO_TYPES = ArduinoPacket.ServoType.values();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(MAX_PAYLOAD_LENGTH);
+
+    public TelemetryCodec() {}
+
+    /** Returns true if Intents of the input action have a schema (and are encoded by encode) */
+    public static boolean hasSchema(String intentAction) {
+        return intentAction.equals(CraftStatePacket.INTENT_ACTION)
+                || intentAction.equals(ArduinoPacket.INTENT_ACTION_INPUT)
+                || intentAction.equals(ArduinoPacket.INTENT_ACTION_OUTPUT)
+                || intentAction.equals(ConnectionPacket.INTENT_ACTION)
+                || getUsbStatus(intentAction) >= 0
+                || intentAction.equals(LinkQualityPacket.INTENT_ACTION);
+    }
+
+    /** Returns true if the input payload was encoded by this codec (false if it is JSON) */
+    public static boolean isEncoded(byte[] payload) {
+        return payload.length > 0 && payload[0] == MARKER;
+    }
+
+    /** Decodes a payload into an Intent (with the action of its message type)
+     * @param payload a payload for which isEncoded returns true
+     * @return the decoded Intent, or null if the payload is malformed or of an unknown type or
+     * schema version (e.g. sent by a newer version of the app)
+     */
+    public Intent decode(byte[] payload) {
+        if (!isEncoded(payload) || payload.length < 3) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.position(1);
+        byte type = buffer.get();
+        byte version = buffer.get();
+        try {
+            switch (type) {
+                case TYPE_CRAFT_STATE:
+                    if (version != VERSION_CRAFT_STATE) return null;
+                    return readCraftState(buffer).toIntent();
+                case TYPE_ARDUINO_INPUT:
+                    if (version != VERSION_ARDUINO) return null;
+                    return readArduino(buffer).toIntent(ArduinoPacket.INTENT_ACTION_INPUT);
+                case TYPE_ARDUINO_OUTPUT:
+                    if (version != VERSION_ARDUINO) return null;
+                    return readArduino(buffer).toIntent(ArduinoPacket.INTENT_ACTION_OUTPUT);
+                case TYPE_CONNECTION:
+                    //Version 1 contained the connection status only
+                    if (version == 1) return new ConnectionPacket(buffer.get() != 0).toIntent();
+                    if (version != VERSION_CONNECTION) return null;
+                    return readConnection(buffer).toIntent();
+                case TYPE_USB_STATUS:
+                    if (version != VERSION_USB_STATUS) return null;
+                    int usbStatus = buffer.get();
+                    if (usbStatus < 0 || usbStatus >= USB_STATUS_ACTIONS.length) return null;
+                    return new Intent(USB_STATUS_ACTIONS[usbStatus]);
+                case TYPE_LINK_QUALITY:
+                    if (version != VERSION_LINK_QUALITY) return null;
+                    return readLinkQuality(buffer).toIntent();
+            }
+        } catch (BufferUnderflowException e) {
+            Log.w(CLASS_NAME, "Truncated payload", e);
+        }
+        return null;
+    }
+
+    /** Encodes an Intent into a payload
+     * @return the payload, or null if Intents with the action of the input Intent have no schema
+     */
+    public byte[] encode(Intent intent) {
+        String intentAction = intent.getAction();
+        Bundle bundle = intent.getExtras();
+        if (bundle == null) bundle = new Bundle();
+        if (intentAction.equals(CraftStatePacket.INTENT_ACTION)) {
+            writeHeader(TYPE_CRAFT_STATE, VERSION_CRAFT_STATE);
+            writeCraftState(new CraftStatePacket(bundle));
+        } else if (intentAction.equals(ArduinoPacket.INTENT_ACTION_INPUT)) {
+            writeHeader(TYPE_ARDUINO_INPUT, VERSION_ARDUINO);
+            return writeArduino(new ArduinoPacket(bundle));
+        } else if (intentAction.equals(ArduinoPacket.INTENT_ACTION_OUTPUT)) {
+            writeHeader(TYPE_ARDUINO_OUTPUT, VERSION_ARDUINO);
+            return writeArduino(new ArduinoPacket(bundle));
+        } else if (intentAction.equals(ConnectionPacket.INTENT_ACTION)) {
+            writeHeader(TYPE_CONNECTION, VERSION_CONNECTION);
+            writeConnection(new ConnectionPacket(bundle));
+        } else if (getUsbStatus(intentAction) >= 0) {
+            writeHeader(TYPE_USB_STATUS, VERSION_USB_STATUS);
+            mBuffer.put((byte) getUsbStatus(intentAction));
+        } else if (intentAction.equals(LinkQualityPacket.INTENT_ACTION)) {
+            writeHeader(TYPE_LINK_QUALITY, VERSION_LINK_QUALITY);
+            writeLinkQuality(new LinkQualityPacket(bundle));
+        } else {
+            return null;
+        }
+        return Arrays.copyOf(mBuffer.array(), mBuffer.position());
+    }
+
+    //Returns the index of the input action in USB_STATUS_ACTIONS, or -1 if it is not included
+    private static int getUsbStatus(String intentAction) {
+        for (int i = 0; i < USB_STATUS_ACTIONS.length; i++) {
+            if (USB_STATUS_ACTIONS[i].equals(intentAction)) return i;
+        }
+        return -1;
+    }
+
+    //Arduino schema: form (byte), then for servo values: presence mask (byte, one bit per
+    //ServoType ordinal) and a zigzag varint per present value; for JSON: the UTF-8 JSON string
+    private static ArduinoPacket readArduino(ByteBuffer buffer) {
+        byte form = buffer.get();
+        if (form == ARDUINO_JSON) {
+            return new ArduinoPacket(new String(buffer.array(), buffer.position(),
+                    buffer.remaining(), UTF_8));
+        }
+        ArduinoPacket arduinoPacket = new ArduinoPacket();
+        int servoMask = buffer.get();
+        for (ArduinoPacket.ServoType servoType : SERVO_TYPES) {
+            if ((servoMask & (1 << servoType.ordinal())) != 0) {
+                arduinoPacket.setServoValue(servoType, readZigzag(buffer));
+            }
+        }
+        return arduinoPacket;
+    }
+
+    //Connection schema: connection status (byte), then the median and 95th percentile RTT, loss
+    //ratio, jitter and last heard age of the link (floats)
+    private static ConnectionPacket readConnection(ByteBuffer buffer) {
+        boolean isConnected = buffer.get() != 0;
+        return new ConnectionPacket(isConnected, buffer.getFloat(), buffer.getFloat(),
+                buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+    }
+
+    //Craft state schema: validity (varint), presence flags (byte), angular velocity, pressure,
+    //linear acceleration, magnetic field and raw orientation (floats), the Location, then the
+    //optional PropagatedPosition (latitude and longitude as doubles, the rest as floats) and
+    //VerticalState (floats). The orientation quaternion is narrowed to float (~1e-7 precision).
+    private static CraftStatePacket readCraftState(ByteBuffer buffer) {
+        int validity = readVarint(buffer);
+        int flags = buffer.get();
+        CraftStatePacket.AngularVelocity angularVelocity = new CraftStatePacket.AngularVelocity(
+                buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+        CraftStatePacket.BarometricPressure barometricPressure =
+                new CraftStatePacket.BarometricPressure(buffer.getFloat());
+        CraftStatePacket.LinearAcceleration linearAcceleration =
+                new CraftStatePacket.LinearAcceleration(buffer.getFloat(), buffer.getFloat(),
+                        buffer.getFloat());
+        CraftStatePacket.MagneticField magneticField = new CraftStatePacket.MagneticField(
+                buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+        CraftStatePacket.Orientation orientation = new CraftStatePacket.Orientation(
+                buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+        CraftStatePacket craftStatePacket = new CraftStatePacket(angularVelocity,
+                barometricPressure, linearAcceleration, magneticField, orientation,
+                readLocation(buffer));
+        if ((flags & CRAFT_PROPAGATED_POSITION) != 0) {
+            craftStatePacket.setPropagatedPosition(new CraftStatePacket.PropagatedPosition(
+                    buffer.getDouble(), buffer.getDouble(), buffer.getFloat(), buffer.getFloat(),
+                    buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat()));
+        }
+        if ((flags & CRAFT_VERTICAL_STATE) != 0) {
+            craftStatePacket.setVerticalState(new CraftStatePacket.VerticalState(
+                    buffer.getFloat(), buffer.getFloat(), buffer.getFloat()));
+        }
+        craftStatePacket.setValidity(validity);
+        return craftStatePacket;
+    }
+
+    //Link quality schema: device type (string), RTT, RTT variation and loss ratio (floats),
+    //pending deliveries (varint), topic count (varint), then the action (string) and rate (float)
+    //of each topic
+    private static LinkQualityPacket readLinkQuality(ByteBuffer buffer) {
+        String deviceType = readString(buffer);
+        float roundTripTime = buffer.getFloat();
+        float roundTripVariation = buffer.getFloat();
+        float lossRatio = buffer.getFloat();
+        int pendingDeliveryCount = readVarint(buffer);
+        int topicCount = readVarint(buffer);
+        if (topicCount > buffer.remaining()) throw new BufferUnderflowException();
+        String[] topics = new String[topicCount];
+        float[] topicRates = new float[topicCount];
+        for (int i = 0; i < topicCount; i++) {
+            topics[i] = readString(buffer);
+            topicRates[i] = buffer.getFloat();
+        }
+        return new LinkQualityPacket(deviceType, roundTripTime, roundTripVariation, lossRatio,
+                pendingDeliveryCount, topics, topicRates);
+    }
+
+    //Location schema: provider (varint length and UTF-8), latitude and longitude (doubles), time
+    //in ms (varint), presence flags (byte), then accuracy, altitude, bearing and speed (floats)
+    //if present
+    private static Location readLocation(ByteBuffer buffer) {
+        Location location = new Location(readString(buffer));
+        location.setLatitude(buffer.getDouble());
+        location.setLongitude(buffer.getDouble());
+        location.setTime(readVarLong(buffer));
+        int flags = buffer.get();
+        if ((flags & LOCATION_ACCURACY) != 0) location.setAccuracy(buffer.getFloat());
+        if ((flags & LOCATION_ALTITUDE) != 0) location.setAltitude(buffer.getFloat());
+        if ((flags & LOCATION_BEARING) != 0) location.setBearing(buffer.getFloat());
+        if ((flags & LOCATION_SPEED) != 0) location.setSpeed(buffer.getFloat());
+        return location;
+    }
+
+    //Reads a string (varint length, then UTF-8)
+    private static String readString(ByteBuffer buffer) {
+        int length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+        String string = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    //Reads an unsigned varint of up to 32 bits (7 bits per byte, least significant first)
+    private static int readVarint(ByteBuffer buffer) {
+        return (int) readVarLong(buffer);
+    }
+
+    //Reads an unsigned varint of up to 64 bits (7 bits per byte, least significant first)
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new BufferUnderflowException();
+    }
+
+    //Reads a signed (zigzag encoded) varint of up to 32 bits
+    private static int readZigzag(ByteBuffer buffer) {
+        int value = readVarint(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    //Writes an Arduino message and returns the payload (the JSON form may exceed the buffer)
+    private byte[] writeArduino(ArduinoPacket arduinoPacket) {
+        if (!arduinoPacket.isServoValuesOnly()) {
+            mBuffer.put(ARDUINO_JSON);
+            byte[] json = arduinoPacket.toJsonString().getBytes(UTF_8);
+            byte[] payload = Arrays.copyOf(mBuffer.array(), mBuffer.position() + json.length);
+            System.arraycopy(json, 0, payload, mBuffer.position(), json.length);
+            return payload;
+        }
+        mBuffer.put(ARDUINO_SERVO_VALUES);
+        int servoMask = 0;
+        for (ArduinoPacket.ServoType servoType : SERVO_TYPES) {
+            if (arduinoPacket.hasServoValue(servoType)) servoMask |= 1 << servoType.ordinal();
+        }
+        mBuffer.put((byte) servoMask);
+        for (ArduinoPacket.ServoType servoType : SERVO_TYPES) {
+            if ((servoMask & (1 << servoType.ordinal())) != 0) {
+                writeZigzag(arduinoPacket.getServoValue(servoType));
+            }
+        }
+        return Arrays.copyOf(mBuffer.array(), mBuffer.position());
+    }
+
+    //Writes a connection message (see readConnection for the schema)
+    private void writeConnection(ConnectionPacket connectionPacket) {
+        mBuffer.put((byte) (connectionPacket.isConnected() ? 1 : 0));
+        mBuffer.putFloat(connectionPacket.getRoundTripTimeMedian());
+        mBuffer.putFloat(connectionPacket.getRoundTripTimeP95());
+        mBuffer.putFloat(connectionPacket.getLossRatio());
+        mBuffer.putFloat(connectionPacket.getJitter());
+        mBuffer.putFloat(connectionPacket.getLastHeardAge());
+    }
+
+    //Writes a craft state message (see readCraftState for the schema)
+    private void writeCraftState(CraftStatePacket craftStatePacket) {
+        CraftStatePacket.PropagatedPosition propagatedPosition =
+                craftStatePacket.getPropagatedPosition();
+        CraftStatePacket.VerticalState verticalState = craftStatePacket.getVerticalState();
+        writeVarLong(craftStatePacket.getValidity());
+        int flags = 0;
+        if (propagatedPosition != null) flags |= CRAFT_PROPAGATED_POSITION;
+        if (verticalState != null) flags |= CRAFT_VERTICAL_STATE;
+        mBuffer.put((byte) flags);
+        CraftStatePacket.AngularVelocity angularVelocity = craftStatePacket.getAngularVelocity();
+        mBuffer.putFloat(angularVelocity.getX());
+        mBuffer.putFloat(angularVelocity.getY());
+        mBuffer.putFloat(angularVelocity.getZ());
+        mBuffer.putFloat(craftStatePacket.getBarometricPressure().getPressure());
+        CraftStatePacket.LinearAcceleration linearAcceleration =
+                craftStatePacket.getLinearAcceleration();
+        mBuffer.putFloat(linearAcceleration.getX());
+        mBuffer.putFloat(linearAcceleration.getY());
+        mBuffer.putFloat(linearAcceleration.getZ());
+        CraftStatePacket.MagneticField magneticField = craftStatePacket.getMagneticField();
+        mBuffer.putFloat(magneticField.getX());
+        mBuffer.putFloat(magneticField.getY());
+        mBuffer.putFloat(magneticField.getZ());
+        CraftStatePacket.Orientation orientation = craftStatePacket.getOrientation();
+        mBuffer.putFloat((float) orientation.getRawOrientation().w);
+        mBuffer.putFloat((float) orientation.getRawOrientation().x);
+        mBuffer.putFloat((float) orientation.getRawOrientation().y);
+        mBuffer.putFloat((float) orientation.getRawOrientation().z);
+        writeLocation(craftStatePacket.getLocation());
+        if (propagatedPosition != null) {
+            mBuffer.putDouble(propagatedPosition.getLatitude());
+            mBuffer.putDouble(propagatedPosition.getLongitude());
+            mBuffer.putFloat(propagatedPosition.getEast());
+            mBuffer.putFloat(propagatedPosition.getNorth());
+            mBuffer.putFloat(propagatedPosition.getVelocityEast());
+            mBuffer.putFloat(propagatedPosition.getVelocityNorth());
+            mBuffer.putFloat(propagatedPosition.getUncertainty());
+            mBuffer.putFloat(propagatedPosition.getFixAge());
+        }
+        if (verticalState != null) {
+            mBuffer.putFloat(verticalState.getAltitude());
+            mBuffer.putFloat(verticalState.getClimbRate());
+            mBuffer.putFloat(verticalState.getBarometerBias());
+        }
+    }
+
+    //Writes the marker, message type and schema version at the start of the buffer
+    private void writeHeader(byte type, byte version) {
+        mBuffer.clear();
+        mBuffer.put(MARKER);
+        mBuffer.put(type);
+        mBuffer.put(version);
+    }
+
+    //Writes a link quality message (see readLinkQuality for the schema)
+    private void writeLinkQuality(LinkQualityPacket linkQualityPacket) {
+        writeString(linkQualityPacket.getDeviceType());
+        mBuffer.putFloat(linkQualityPacket.getRoundTripTime());
+        mBuffer.putFloat(linkQualityPacket.getRoundTripVariation());
+        mBuffer.putFloat(linkQualityPacket.getLossRatio());
+        writeVarLong(linkQualityPacket.getPendingDeliveryCount());
+        String[] topics = linkQualityPacket.getTopics();
+        float[] topicRates = linkQualityPacket.getTopicRates();
+        writeVarLong(topics.length);
+        for (int i = 0; i < topics.length; i++) {
+            writeString(topics[i]);
+            mBuffer.putFloat(topicRates[i]);
+        }
+    }
+
+    //Writes a Location (see readLocation for the schema)
+    private void writeLocation(Location location) {
+        writeString(location.getProvider());
+        mBuffer.putDouble(location.getLatitude());
+        mBuffer.putDouble(location.getLongitude());
+        writeVarLong(location.getTime());
+        int flags = 0;
+        if (location.hasAccuracy()) flags |= LOCATION_ACCURACY;
+        if (location.hasAltitude()) flags |= LOCATION_ALTITUDE;
+        if (location.hasBearing()) flags |= LOCATION_BEARING;
+        if (location.hasSpeed()) flags |= LOCATION_SPEED;
+        mBuffer.put((byte) flags);
+        if (location.hasAccuracy()) mBuffer.putFloat(location.getAccuracy());
+        if (location.hasAltitude()) mBuffer.putFloat((float) location.getAltitude());
+        if (location.hasBearing()) mBuffer.putFloat(location.getBearing());
+        if (location.hasSpeed()) mBuffer.putFloat(location.getSpeed());
+    }
+
+    //Writes a string (varint length, then UTF-8). A null string is written as empty.
+    private void writeString(String string) {
+        byte[] bytes = (string != null ? string : "").getBytes(UTF_8);
+        writeVarLong(bytes.length);
+        mBuffer.put(bytes);
+    }
+
+    //Writes an unsigned varint (7 bits per byte, least significant first)
+    private void writeVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            mBuffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        mBuffer.put((byte) value);
+    }
+
+    //Writes a signed value as a zigzag encoded varint (small magnitudes take one byte)
+    private void writeZigzag(int value) {
+        writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,135 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Keeps running statistics (count, mean, standard deviation, min & max) for a series of durations
+ * Values are recorded in nanoseconds and can be read back in milliseconds. Does not allocate.
+ * Percentiles are estimated from a log-linear histogram of microseconds (8 buckets per power of
+ * two, i.e. within ~6% of the true value), so recording a value is O(1) at any sample count.
+ */
+public class TimingStatistics {
+    private static final double NANOS_PER_MILLI = 1000000.0;
+    //Histogram layout: values below LINEAR_BUCKETS microseconds get their own bucket, larger
+    //values are split into SUB_BUCKETS buckets per power of two
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKET_BITS = 4;
+    //Values of 2^(MAX_EXPONENT + 1) microseconds (~25 days) or more share the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT =
+            LINEAR_BUCKETS + (MAX_EXPONENT - LINEAR_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private long mCount = 0;
+    private long mMax = Long.MIN_VALUE;
+    private long mMin = Long.MAX_VALUE;
+    //Running mean and sum of squared differences from the mean (Welford's algorithm)
+    private double mMean = 0;
+    private double mSumSquaredDiff = 0;
+    private final int[] mHistogram = new int[BUCKET_COUNT];
+
+    public TimingStatistics() {}
+
+    /** Records a single duration in nanoseconds */
+    public void record(long durationNanos) {
+        mCount++;
+        double delta = durationNanos - mMean;
+        mMean += delta / mCount;
+        mSumSquaredDiff += delta * (durationNanos - mMean);
+        if (durationNanos > mMax) mMax = durationNanos;
+        if (durationNanos < mMin) mMin = durationNanos;
+        mHistogram[getBucketIndex(durationNanos)]++;
+    }
+
+    /** Clears all recorded values */
+    public void reset() {
+        mCount = 0;
+        mMax = Long.MIN_VALUE;
+        mMin = Long.MAX_VALUE;
+        mMean = 0;
+        mSumSquaredDiff = 0;
+        Arrays.fill(mHistogram, 0);
+    }
+
+    /** Returns the number of recorded values */
+    public long getCount() {
+        return mCount;
+    }
+
+    /** Returns the largest recorded value in milliseconds. Returns 0 if nothing was recorded. */
+    public double getMaxMillis() {
+        if (mCount == 0) return 0;
+        return mMax / NANOS_PER_MILLI;
+    }
+
+    /** Returns the mean of all recorded values in milliseconds */
+    public double getMeanMillis() {
+        return mMean / NANOS_PER_MILLI;
+    }
+
+    /** Returns the smallest recorded value in milliseconds. Returns 0 if nothing was recorded. */
+    public double getMinMillis() {
+        if (mCount == 0) return 0;
+        return mMin / NANOS_PER_MILLI;
+    }
+
+    /** Returns an estimate of the input percentile of all recorded values in milliseconds
+     * @param percentile the percentile to estimate, between 0 and 100
+     * Returns 0 if nothing was recorded
+     */
+    public double getPercentileMillis(double percentile) {
+        if (mCount == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * mCount);
+        if (rank < 1) rank = 1;
+        long cumulativeCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulativeCount += mHistogram[i];
+            if (cumulativeCount >= rank) {
+                //Report the middle of the bucket, bounded by the recorded extremes
+                long value = getBucketMidpointNanos(i);
+                if (value > mMax) value = mMax;
+                if (value < mMin) value = mMin;
+                return value / NANOS_PER_MILLI;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /** Returns the (population) standard deviation of all recorded values in milliseconds */
+    public double getStandardDeviationMillis() {
+        if (mCount < 2) return 0;
+        return Math.sqrt(mSumSquaredDiff / mCount) / NANOS_PER_MILLI;
+    }
+
+    /** Returns a short human readable summary, intended for logging */
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "n=%d mean=%.2fms sd=%.2fms min=%.2fms p50=%.2fms p99=%.2fms max=%.2fms",
+                mCount, getMeanMillis(), getStandardDeviationMillis(), getMinMillis(),
+                getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+    }
+
+    //Returns the histogram bucket of the input duration (bucketed in microseconds)
+    private static int getBucketIndex(long durationNanos) {
+        long micros = durationNanos / 1000;
+        if (micros < LINEAR_BUCKETS) return micros < 0 ? 0 : (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+        int subBucket = (int) ((micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return LINEAR_BUCKETS + (exponent - LINEAR_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    //Returns the middle of the input histogram bucket in nanoseconds
+    private static long getBucketMidpointNanos(int index) {
+        if (index < LINEAR_BUCKETS) return index * 1000L + 500L;
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + LINEAR_BUCKET_BITS;
+        int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        //Each bucket spans 2^(exponent - SUB_BUCKET_BITS) microseconds
+        long lowerMicros = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        long widthMicros = 1L << (exponent - SUB_BUCKET_BITS);
+        return (lowerMicros * 2 + widthMicros) * 500L;
+    }
+}
@@ -0,0 +1,450 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Sends messages (topic and payload, as published over MQTT) directly to the peer device (craft
+ * or controller) in UDP datagrams, so no broker is involved when both are on the same network
+ * The peer is discovered by the beacons each device broadcasts on its local networks, or is
+ * configured by address (beacons are then sent to that address only). The peer is active while
+ * its beacons arrive; after PEER_TIMEOUT without one it is lost, and the owner should fall back
+ * to another transport (e.g. MQTT). Messages are sent on one of two channels:
+ * telemetry: sequence numbered and never retransmitted. A datagram older than the last one
+ * received on its topic is dropped, so only the latest value is delivered.
+ * reliable: retransmitted until acknowledged and delivered in order (e.g. configuration), see
+ * ReliableChannel. The messages that are unacknowledged when the peer is lost, or that are sent
+ * while there is no active peer or while ReliableChannel.WINDOW messages are unacknowledged, are
+ * returned to the owner (see Callback.onUndelivered).
+ * Datagram: marker, version, kind, session id and sequence (ints), then the length (short) and
+ * UTF-8 bytes of the topic (of a beacon: the device type of the sender), then the payload.
+ * Sockets are used on worker threads. The callback is invoked on the main thread.
+ */
+public class UdpTransport {
+    /** The default port that devices send from and receive on */
+    public static final int DEFAULT_PORT = 47370;
+
+    private static final String CLASS_NAME = UdpTransport.class.getSimpleName();
+
+    //Marks a datagram of this transport
+    private static final byte MARKER = (byte) 0xA9;
+    private static final byte VERSION = 1;
+
+    //Datagram kinds
+    private static final byte KIND_BEACON = 1;
+    private static final byte KIND_TELEMETRY = 2;
+    private static final byte KIND_RELIABLE = 3;
+    private static final byte KIND_ACK = 4;
+
+    //Length of the datagram header up to the topic, and maximum datagram length (Ethernet MTU
+    //minus the IPv4 and UDP headers, so datagrams are never fragmented)
+    private static final int HEADER_LENGTH = 13;
+    private static final int MAX_DATAGRAM_LENGTH = 1472;
+
+    //Interval of the beacons, and time without a beacon after which the peer is lost, in ms
+    private static final int BEACON_INTERVAL = 1000;
+    private static final int PEER_TIMEOUT = 3500;
+    //Interval at which unacknowledged reliable messages are retransmitted in ms
+    private static final int RETRANSMIT_INTERVAL = 100;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Callback mCallback;
+    private final String mLocalDeviceType;
+    private final String mRemoteDeviceType;
+    private final String mConfiguredPeerHost;
+    private final int mPort;
+    private final Handler mCallbackHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+
+    private volatile boolean mIsPeerActive = false;
+    private volatile Handler mWorkerHandler;
+    private DatagramSocket mSocket;
+    private Thread mReceiveThread;
+
+    //State confined to the worker thread
+    private InetAddress mConfiguredPeerAddress;
+    private InetAddress mPeerAddress;
+    private long mLastBeaconMillis = 0;
+    private int mSessionId;
+    private int mNextTelemetrySequence = 0;
+    private final ReliableChannel<ReliableMessage> mReliableChannel = new ReliableChannel<>();
+    private boolean mHasPeerSession = false;
+    private int mPeerSessionId;
+    private final Map<String, Integer> mLastTelemetrySequences = new HashMap<>();
+
+    /** Constructs a UdpTransport. Call start to open it.
+     * @param callback the configured callback of the Callback interface defined in this class
+     * @param localDeviceType the name of the device type of this device (e.g. "CRAFT")
+     * @param remoteDeviceType the name of the device type of the peer (e.g. "CONTROLLER")
+     * @param peerHost the address of the peer, or null to discover it on the local networks
+     * @param port the port to send from and receive on (the same on both devices)
+     */
+    public UdpTransport(Callback callback, String localDeviceType, String remoteDeviceType,
+                        String peerHost, int port) {
+        mCallback = callback;
+        mLocalDeviceType = localDeviceType;
+        mRemoteDeviceType = remoteDeviceType;
+        mConfiguredPeerHost = peerHost;
+        mPort = port;
+        mSessionId = mRandom.nextInt();
+    }
+
+    //Callback interface that is notified (on the main thread) of the peer and its messages
+    public interface Callback {
+        void onPeerFound();
+        void onPeerLost();
+        void messageArrived(String topic, byte[] payload);
+        void onUndelivered(String topic, byte[] payload);
+    }
+
+    /** Returns true while the peer is active, i.e. messages sent now should reach it */
+    public boolean isPeerActive() {
+        return mIsPeerActive;
+    }
+
+    /** Sends a message to the peer. If there is no active peer, or the message does not fit in
+     * a datagram, it is returned undelivered instead.
+     * @param topic the topic of the message (as published over MQTT)
+     * @param payload the payload of the message
+     * @param isReliable true to retransmit the message until it is acknowledged, false if only
+     *                   the latest message on its topic matters (telemetry)
+     */
+    public void send(final String topic, final byte[] payload, final boolean isReliable) {
+        if (mWorkerHandler == null) return;
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mIsPeerActive) {
+                    postUndelivered(topic, payload);
+                    return;
+                }
+                //A sent reliable message is never evicted, since the peer would wait for its
+                //sequence forever: the new message is returned instead
+                if (isReliable && mReliableChannel.isWindowFull()) {
+                    postUndelivered(topic, payload);
+                    return;
+                }
+                byte kind = isReliable ? KIND_RELIABLE : KIND_TELEMETRY;
+                int sequence = isReliable
+                        ? mReliableChannel.getNextSequence() : mNextTelemetrySequence;
+                byte[] datagram = createDatagram(kind, mSessionId, sequence, topic, payload);
+                if (datagram == null) {
+                    postUndelivered(topic, payload);
+                    return;
+                }
+                if (isReliable) {
+                    mReliableChannel.send(new ReliableMessage(topic, payload, datagram));
+                } else {
+                    mNextTelemetrySequence++;
+                }
+                sendDatagram(datagram, mPeerAddress);
+            }
+        });
+    }
+
+    /** Opens the socket and starts sending beacons and receiving datagrams */
+    public void start() {
+        if (mWorkerHandler != null) return;
+        HandlerThread workerThread = new HandlerThread(CLASS_NAME);
+        workerThread.start();
+        mWorkerHandler = new Handler(workerThread.getLooper());
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mConfiguredPeerHost != null) {
+                        mConfiguredPeerAddress = InetAddress.getByName(mConfiguredPeerHost);
+                    }
+                    mSocket = new DatagramSocket(null);
+                    mSocket.setReuseAddress(true);
+                    mSocket.setBroadcast(true);
+                    mSocket.bind(new InetSocketAddress(mPort));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    Log.e(CLASS_NAME, "Unable to open UDP socket on port " + mPort);
+                    return;
+                }
+                mReceiveThread = new Thread(new ReceiveRunnable(mSocket));
+                mReceiveThread.start();
+                mWorkerHandler.post(mBeaconRunnable);
+                mWorkerHandler.post(mRetransmitRunnable);
+            }
+        });
+    }
+
+    /** Closes the socket and stops all threads. Pending messages are discarded.
+     * A stopped UdpTransport cannot be started again.
+     */
+    public void stop() {
+        if (mWorkerHandler == null) return;
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWorkerHandler.removeCallbacksAndMessages(null);
+                //Closing the socket also ends the receive thread
+                if (mSocket != null) mSocket.close();
+                mIsPeerActive = false;
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    //Sends a beacon (to the configured peer, else to every local network) and loses the peer if
+    //its beacons stopped (repeats every BEACON_INTERVAL until stopped)
+    private final Runnable mBeaconRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsPeerActive && SystemClock.uptimeMillis() - mLastBeaconMillis > PEER_TIMEOUT) {
+                losePeer();
+            }
+            byte[] beacon = createDatagram(KIND_BEACON, mSessionId, 0, mLocalDeviceType,
+                    new byte[0]);
+            if (mConfiguredPeerAddress != null) {
+                sendDatagram(beacon, mConfiguredPeerAddress);
+            } else {
+                for (InetAddress broadcastAddress : getBroadcastAddresses()) {
+                    sendDatagram(beacon, broadcastAddress);
+                }
+            }
+            mWorkerHandler.postDelayed(this, BEACON_INTERVAL);
+        }
+    };
+
+    //Retransmits the unacknowledged reliable messages (repeats every RETRANSMIT_INTERVAL)
+    private final Runnable mRetransmitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsPeerActive) {
+                for (ReliableMessage reliableMessage : mReliableChannel.getUnacknowledged()) {
+                    sendDatagram(reliableMessage.mDatagram, mPeerAddress);
+                }
+            }
+            mWorkerHandler.postDelayed(this, RETRANSMIT_INTERVAL);
+        }
+    };
+
+    //Receives datagrams and processes them on the worker thread until the socket is closed
+    private class ReceiveRunnable implements Runnable {
+        private final DatagramSocket mReceiveSocket;
+
+        private ReceiveRunnable(DatagramSocket socket) {
+            mReceiveSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[MAX_DATAGRAM_LENGTH];
+            DatagramPacket datagramPacket = new DatagramPacket(buffer, buffer.length);
+            while (!mReceiveSocket.isClosed()) {
+                try {
+                    datagramPacket.setLength(buffer.length);
+                    mReceiveSocket.receive(datagramPacket);
+                } catch (IOException e) {
+                    return;
+                }
+                final byte[] datagram = new byte[datagramPacket.getLength()];
+                System.arraycopy(buffer, 0, datagram, 0, datagram.length);
+                final InetAddress address = datagramPacket.getAddress();
+                mWorkerHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        processDatagram(datagram, address);
+                    }
+                });
+            }
+        }
+    }
+
+    //A sent reliable message awaiting its acknowledgement, or a received one awaiting delivery
+    private static class ReliableMessage {
+        private final String mTopic;
+        private final byte[] mPayload;
+        private final byte[] mDatagram;
+
+        private ReliableMessage(String topic, byte[] payload, byte[] datagram) {
+            mTopic = topic;
+            mPayload = payload;
+            mDatagram = datagram;
+        }
+    }
+
+    //Returns a datagram with the input header fields, topic and payload (null if too long)
+    private static byte[] createDatagram(byte kind, int sessionId, int sequence, String topic,
+                                         byte[] payload) {
+        byte[] topicBytes = topic.getBytes(UTF_8);
+        int length = HEADER_LENGTH + topicBytes.length + payload.length;
+        if (length > MAX_DATAGRAM_LENGTH) return null;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(MARKER).put(VERSION).put(kind).putInt(sessionId).putInt(sequence);
+        buffer.putShort((short) topicBytes.length).put(topicBytes).put(payload);
+        return buffer.array();
+    }
+
+    //Delivers a message to the callback on the main thread
+    private void deliver(final String topic, final byte[] payload) {
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.messageArrived(topic, payload);
+            }
+        });
+    }
+
+    //Returns the broadcast addresses of the IPv4 networks this device is on
+    private static List<InetAddress> getBroadcastAddresses() {
+        List<InetAddress> broadcastAddresses = new ArrayList<>();
+        try {
+            for (NetworkInterface networkInterface
+                    : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) continue;
+                for (InterfaceAddress interfaceAddress
+                        : networkInterface.getInterfaceAddresses()) {
+                    if (interfaceAddress.getAddress() instanceof Inet4Address
+                            && interfaceAddress.getBroadcast() != null) {
+                        broadcastAddresses.add(interfaceAddress.getBroadcast());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return broadcastAddresses;
+    }
+
+    //Marks the peer as lost, returns its unacknowledged messages and starts a new session, so
+    //the peer resets its sequences when it is found again
+    private void losePeer() {
+        mIsPeerActive = false;
+        for (ReliableMessage reliableMessage : mReliableChannel.resetSending()) {
+            postUndelivered(reliableMessage.mTopic, reliableMessage.mPayload);
+        }
+        mSessionId = mRandom.nextInt();
+        mNextTelemetrySequence = 0;
+        mHasPeerSession = false;
+        Log.i(CLASS_NAME, "Peer lost");
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onPeerLost();
+            }
+        });
+    }
+
+    //Notifies the callback on the main thread of a message that did not reach the peer
+    private void postUndelivered(final String topic, final byte[] payload) {
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onUndelivered(topic, payload);
+            }
+        });
+    }
+
+    //Processes a received datagram (on the worker thread)
+    private void processDatagram(byte[] datagram, InetAddress address) {
+        if (datagram.length < HEADER_LENGTH || datagram[0] != MARKER || datagram[1] != VERSION) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(datagram, 2, datagram.length - 2);
+        byte kind;
+        int sessionId;
+        int sequence;
+        String topic;
+        byte[] payload;
+        try {
+            kind = buffer.get();
+            sessionId = buffer.getInt();
+            sequence = buffer.getInt();
+            byte[] topicBytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(topicBytes);
+            topic = new String(topicBytes, UTF_8);
+            payload = new byte[buffer.remaining()];
+            buffer.get(payload);
+        } catch (BufferUnderflowException e) {
+            return;
+        }
+        if (kind == KIND_BEACON) {
+            //Beacons of this device (looped back) and of devices of the same type are ignored
+            if (!topic.equals(mRemoteDeviceType)) return;
+            if (mConfiguredPeerAddress != null && !mConfiguredPeerAddress.equals(address)) return;
+            mPeerAddress = address;
+            mLastBeaconMillis = SystemClock.uptimeMillis();
+            updatePeerSession(sessionId);
+            if (!mIsPeerActive) {
+                mIsPeerActive = true;
+                Log.i(CLASS_NAME, "Peer found: " + address.getHostAddress());
+                mCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onPeerFound();
+                    }
+                });
+            }
+            return;
+        }
+        if (!mIsPeerActive || !address.equals(mPeerAddress)) return;
+        if (kind == KIND_ACK) {
+            if (sessionId == mSessionId) mReliableChannel.acknowledge(sequence);
+        } else if (kind == KIND_TELEMETRY) {
+            updatePeerSession(sessionId);
+            Integer lastSequence = mLastTelemetrySequences.get(topic);
+            if (lastSequence != null && sequence - lastSequence <= 0) return;
+            mLastTelemetrySequences.put(topic, sequence);
+            deliver(topic, payload);
+        } else if (kind == KIND_RELIABLE) {
+            updatePeerSession(sessionId);
+            //Acknowledge only what is delivered or stored for delivery (every copy, since a
+            //previous acknowledgement may have been lost)
+            List<ReliableMessage> deliverable = new ArrayList<>();
+            if (mReliableChannel.receive(sequence, new ReliableMessage(topic, payload, null),
+                    deliverable)) {
+                sendDatagram(createDatagram(KIND_ACK, sessionId, sequence, "", new byte[0]),
+                        address);
+            }
+            for (ReliableMessage reliableMessage : deliverable) {
+                deliver(reliableMessage.mTopic, reliableMessage.mPayload);
+            }
+        }
+    }
+
+    //Sends a datagram to the input address on the worker thread
+    private void sendDatagram(byte[] datagram, InetAddress address) {
+        if (mSocket == null || mSocket.isClosed()) return;
+        try {
+            mSocket.send(new DatagramPacket(datagram, datagram.length, address, mPort));
+        } catch (IOException e) {
+            Log.w(CLASS_NAME, "Unable to send datagram to " + address.getHostAddress());
+        }
+    }
+
+    //Resets the received sequences when the peer starts a new session (e.g. after a restart)
+    private void updatePeerSession(int sessionId) {
+        if (mHasPeerSession && sessionId == mPeerSessionId) return;
+        mHasPeerSession = true;
+        mPeerSessionId = sessionId;
+        mReliableChannel.resetReceiving();
+        mLastTelemetrySequences.clear();
+    }
+}
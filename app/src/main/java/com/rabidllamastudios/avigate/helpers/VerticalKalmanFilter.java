@@ -0,0 +1,184 @@
+package com.rabidllamastudios.avigate.helpers;
+
+/**
+ * Incremental Kalman filter for the vertical channel of the craft
+ * Fuses vertical acceleration (prediction), barometric altitude and GPS altitude (measurements)
+ * State: altitude (m), climb rate (m/s) and barometer bias (m). The barometer measures altitude
+ * plus bias, GPS measures altitude. The bias absorbs the standard atmosphere reference error.
+ * The 3x3 covariance is stored as six scalar fields (it is symmetric).
+ * Update methods must be called from a single thread. Each update publishes a new Estimate, which
+ * can be read from any thread and always holds the altitude, climb rate and bias of one update.
+ */
+public class VerticalKalmanFilter {
+    //Default noise parameters (standard deviations)
+    private static final double DEFAULT_ACCELERATION_NOISE = 0.5;  //m/s^2
+    private static final double DEFAULT_BAROMETER_NOISE = 1.0;  //m
+    private static final double DEFAULT_BIAS_DRIFT = 0.05;  //m per sqrt(s)
+    //Minimum GPS altitude standard deviation in meters & ratio of vertical to horizontal accuracy
+    private static final double MIN_GPS_ALTITUDE_NOISE = 2.0;
+    private static final double GPS_VERTICAL_ACCURACY_RATIO = 1.5;
+    //Initial standard deviations of the climb rate (m/s) and barometer bias (m)
+    private static final double INITIAL_CLIMB_RATE_NOISE = 1.0;
+    private static final double INITIAL_BIAS_NOISE = 100.0;
+    //Prediction steps longer than this (in seconds) are treated as a gap in the data and skipped
+    private static final double MAX_PREDICTION_INTERVAL = 0.5;
+
+    private final double mAccelerationVariance;
+    private final double mBarometerVariance;
+    private final double mBiasDriftVariance;
+
+    private boolean mInitialized = false;
+    //State vector
+    private double mAltitudeState;
+    private double mClimbRateState;
+    private double mBiasState;
+    //Upper triangle of the symmetric covariance matrix
+    private double mP00, mP01, mP02, mP11, mP12, mP22;
+
+    //Latest estimate, published for readers on other threads. Null until the first measurement.
+    private volatile Estimate mEstimate = null;
+
+    /** Constructs a VerticalKalmanFilter with default noise parameters */
+    public VerticalKalmanFilter() {
+        this(DEFAULT_ACCELERATION_NOISE, DEFAULT_BAROMETER_NOISE, DEFAULT_BIAS_DRIFT);
+    }
+
+    /** Constructs a VerticalKalmanFilter from noise standard deviations
+     * @param accelerationNoise vertical acceleration noise in meters per second squared
+     * @param barometerNoise barometric altitude noise in meters
+     * @param biasDrift barometer bias random walk in meters per square root second
+     */
+    public VerticalKalmanFilter(double accelerationNoise, double barometerNoise,
+                                double biasDrift) {
+        mAccelerationVariance = accelerationNoise * accelerationNoise;
+        mBarometerVariance = barometerNoise * barometerNoise;
+        mBiasDriftVariance = biasDrift * biasDrift;
+    }
+
+    /** Propagates the state using the vertical (world frame, up positive) linear acceleration
+     * @param verticalAcceleration acceleration excluding gravity in meters per second squared
+     * @param dt time since the previous prediction in seconds
+     */
+    public void predict(double verticalAcceleration, double dt) {
+        if (!mInitialized || dt <= 0 || dt > MAX_PREDICTION_INTERVAL) return;
+        double dt2 = dt * dt;
+        mAltitudeState += mClimbRateState * dt + 0.5 * verticalAcceleration * dt2;
+        mClimbRateState += verticalAcceleration * dt;
+        //P = F*P*F' + Q, where F = [1 dt 0; 0 1 0; 0 0 1]
+        mP00 += dt * (2 * mP01 + dt * mP11) + 0.25 * dt2 * dt2 * mAccelerationVariance;
+        mP01 += dt * mP11 + 0.5 * dt2 * dt * mAccelerationVariance;
+        mP02 += dt * mP12;
+        mP11 += dt2 * mAccelerationVariance;
+        mP22 += dt * mBiasDriftVariance;
+        publish();
+    }
+
+    /** Corrects the state with a barometric altitude measurement (in meters) */
+    public void updateBarometricAltitude(double barometricAltitude) {
+        if (!mInitialized) {
+            initialize(barometricAltitude, mBarometerVariance);
+            return;
+        }
+        //Measurement model: barometric altitude = altitude + bias, H = [1 0 1]
+        double innovation = barometricAltitude - (mAltitudeState + mBiasState);
+        correct(innovation, mP00 + mP02, mP01 + mP12, mP02 + mP22,
+                mP00 + 2 * mP02 + mP22 + mBarometerVariance);
+    }
+
+    /** Corrects the state with a GPS altitude measurement
+     * @param gpsAltitude GPS altitude in meters
+     * @param horizontalAccuracy reported (horizontal) GPS accuracy in meters
+     */
+    public void updateGpsAltitude(double gpsAltitude, double horizontalAccuracy) {
+        double noise = Math.max(MIN_GPS_ALTITUDE_NOISE,
+                horizontalAccuracy * GPS_VERTICAL_ACCURACY_RATIO);
+        double variance = noise * noise;
+        if (!mInitialized) {
+            initialize(gpsAltitude, variance);
+            return;
+        }
+        //Measurement model: GPS altitude = altitude, H = [1 0 0]
+        double innovation = gpsAltitude - mAltitudeState;
+        correct(innovation, mP00, mP01, mP02, mP00 + variance);
+    }
+
+    /** Clears the filter state. The next measurement re-initializes the filter. */
+    public void reset() {
+        mInitialized = false;
+        mEstimate = null;
+    }
+
+    /** Returns the latest estimate, or null if the filter has not received an altitude
+     * measurement since it was constructed or reset
+     */
+    public Estimate getEstimate() {
+        return mEstimate;
+    }
+
+    //Initializes the state from the first altitude measurement
+    private void initialize(double altitude, double altitudeVariance) {
+        mAltitudeState = altitude;
+        mClimbRateState = 0;
+        mBiasState = 0;
+        mP00 = altitudeVariance;
+        mP01 = 0;
+        mP02 = 0;
+        mP11 = INITIAL_CLIMB_RATE_NOISE * INITIAL_CLIMB_RATE_NOISE;
+        mP12 = 0;
+        mP22 = INITIAL_BIAS_NOISE * INITIAL_BIAS_NOISE;
+        mInitialized = true;
+        publish();
+    }
+
+    //Applies a scalar measurement update given the innovation, P*H' (ph0, ph1, ph2) and H*P*H'+R
+    private void correct(double innovation, double ph0, double ph1, double ph2,
+                         double innovationVariance) {
+        double k0 = ph0 / innovationVariance;
+        double k1 = ph1 / innovationVariance;
+        double k2 = ph2 / innovationVariance;
+        mAltitudeState += k0 * innovation;
+        mClimbRateState += k1 * innovation;
+        mBiasState += k2 * innovation;
+        //P = P - K*H*P, where H*P = (P*H')'
+        mP00 -= k0 * ph0;
+        mP01 -= k0 * ph1;
+        mP02 -= k0 * ph2;
+        mP11 -= k1 * ph1;
+        mP12 -= k1 * ph2;
+        mP22 -= k2 * ph2;
+        publish();
+    }
+
+    //Publishes the current state for readers on other threads
+    private void publish() {
+        mEstimate = new Estimate(mAltitudeState, mClimbRateState, mBiasState);
+    }
+
+    /** Immutable snapshot of the vertical state estimated by one update */
+    public static class Estimate {
+        private final double mAltitude;
+        private final double mClimbRate;
+        private final double mBarometerBias;
+
+        private Estimate(double altitude, double climbRate, double barometerBias) {
+            mAltitude = altitude;
+            mClimbRate = climbRate;
+            mBarometerBias = barometerBias;
+        }
+
+        /** Returns the estimated altitude in meters */
+        public double getAltitude() {
+            return mAltitude;
+        }
+
+        /** Returns the estimated barometer bias (barometric altitude minus altitude) in meters */
+        public double getBarometerBias() {
+            return mBarometerBias;
+        }
+
+        /** Returns the estimated climb rate in meters per second (positive is up) */
+        public double getClimbRate() {
+            return mClimbRate;
+        }
+    }
+}
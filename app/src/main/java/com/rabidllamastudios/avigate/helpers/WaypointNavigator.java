@@ -0,0 +1,252 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.MissionPacket;
+
+/**
+ * Guides the craft along a mission of waypoints using L1 lateral guidance
+ * The mission is projected once into a local ENU frame anchored at home, and each leg (home to the
+ * first waypoint, between waypoints, and the last waypoint back to home) is precomputed: start
+ * point, unit direction, length, bearing and turn anticipation. Each update then only needs a few
+ * multiplies, a square root and one arctangent: no geodesic math and no allocation.
+ * Positive bank (and lateral acceleration) is a turn to the right.
+ * Not thread safe: update and the getters should be called from the control loop thread.
+ */
+public class WaypointNavigator {
+    private static final double GRAVITY = 9.80665;
+    //L1 guidance period (seconds) and damping ratio. The L1 distance scales with groundspeed.
+    private static final double L1_PERIOD = 17;
+    private static final double L1_DAMPING = 0.75;
+    //Maximum commanded bank angle in degrees
+    private static final double MAX_BANK_ANGLE = 30;
+    //Default waypoint acceptance radius in meters
+    private static final double DEFAULT_ACCEPTANCE_RADIUS = 20;
+    //Below this groundspeed (m/s) the velocity direction is unreliable, so no turn is commanded
+    private static final double MIN_GROUNDSPEED = 1;
+    //Limit of the L1 intercept angle (sine of 45 degrees)
+    private static final double MAX_SINE_INTERCEPT = Math.sqrt(0.5);
+
+    private final LocalFrame mHomeFrame;
+    private final boolean mRepeat;
+    private final double mAcceptanceRadiusSquared;
+    private final double mTanMaxBank;
+
+    //Precomputed legs, indexed by leg number
+    private final int mLegCount;
+    private final double[] mStartEast, mStartNorth;
+    private final double[] mEndEast, mEndNorth;
+    private final double[] mUnitEast, mUnitNorth;
+    private final double[] mLength;
+    private final double[] mBearing;
+    private final double[] mAltitude;
+    //tan(half the turn angle) onto the next leg. Times the turn radius gives the turn anticipation.
+    private final double[] mTurnFactor;
+
+    private int mLegIndex = 0;
+    private boolean mIsComplete = false;
+    private double mEast, mNorth;
+    private double mCrossTrackError = 0;
+    private double mDesiredHeading = 0;
+    private double mLateralAcceleration = 0;
+    private double mBankAngle = 0;
+
+    /** Constructs a WaypointNavigator and precomputes all legs of the input mission
+     * If the mission has no home point, the first waypoint is used as home.
+     * @param missionPacket the mission to fly. Must contain at least one waypoint.
+     */
+    public WaypointNavigator(MissionPacket missionPacket) {
+        int waypointCount = missionPacket.getWaypointCount();
+        if (waypointCount == 0) throw new IllegalArgumentException("Mission has no waypoints");
+        double homeLatitude = missionPacket.hasHome() ? missionPacket.getHomeLatitude()
+                : missionPacket.getWaypointLatitude(0);
+        double homeLongitude = missionPacket.hasHome() ? missionPacket.getHomeLongitude()
+                : missionPacket.getWaypointLongitude(0);
+        mHomeFrame = new LocalFrame(homeLatitude, homeLongitude);
+        mRepeat = missionPacket.isRepeat();
+        double acceptanceRadius = missionPacket.getAcceptanceRadius() > 0
+                ? missionPacket.getAcceptanceRadius() : DEFAULT_ACCEPTANCE_RADIUS;
+        mAcceptanceRadiusSquared = acceptanceRadius * acceptanceRadius;
+        mTanMaxBank = Math.tan(Math.toRadians(MAX_BANK_ANGLE));
+
+        //Route: home, each waypoint, then home again (points 0 and waypointCount + 1 are home)
+        int pointCount = waypointCount + 2;
+        double[] pointEast = new double[pointCount];
+        double[] pointNorth = new double[pointCount];
+        double[] pointAltitude = new double[pointCount];
+        pointAltitude[0] = Double.NaN;
+        pointAltitude[pointCount - 1] = Double.NaN;
+        for (int i = 0; i < waypointCount; i++) {
+            pointEast[i + 1] = mHomeFrame.getEast(missionPacket.getWaypointLongitude(i));
+            pointNorth[i + 1] = mHomeFrame.getNorth(missionPacket.getWaypointLatitude(i));
+            pointAltitude[i + 1] = missionPacket.getWaypointAltitude(i);
+        }
+
+        mLegCount = pointCount - 1;
+        mStartEast = new double[mLegCount];
+        mStartNorth = new double[mLegCount];
+        mEndEast = new double[mLegCount];
+        mEndNorth = new double[mLegCount];
+        mUnitEast = new double[mLegCount];
+        mUnitNorth = new double[mLegCount];
+        mLength = new double[mLegCount];
+        mBearing = new double[mLegCount];
+        mAltitude = new double[mLegCount];
+        mTurnFactor = new double[mLegCount];
+        for (int i = 0; i < mLegCount; i++) {
+            mStartEast[i] = pointEast[i];
+            mStartNorth[i] = pointNorth[i];
+            mEndEast[i] = pointEast[i + 1];
+            mEndNorth[i] = pointNorth[i + 1];
+            double deltaEast = mEndEast[i] - mStartEast[i];
+            double deltaNorth = mEndNorth[i] - mStartNorth[i];
+            mLength[i] = Math.sqrt(deltaEast * deltaEast + deltaNorth * deltaNorth);
+            //A zero length leg (e.g. a waypoint at home) keeps the previous leg's direction
+            if (mLength[i] > 0) {
+                mUnitEast[i] = deltaEast / mLength[i];
+                mUnitNorth[i] = deltaNorth / mLength[i];
+            } else if (i > 0) {
+                mUnitEast[i] = mUnitEast[i - 1];
+                mUnitNorth[i] = mUnitNorth[i - 1];
+            } else {
+                mUnitNorth[i] = 1;
+            }
+            //Bearing is measured clockwise from north
+            mBearing[i] = (Math.toDegrees(Math.atan2(mUnitEast[i], mUnitNorth[i])) + 360) % 360;
+            mAltitude[i] = pointAltitude[i + 1];
+        }
+        for (int i = 0; i < mLegCount; i++) {
+            int nextLeg = i + 1 < mLegCount ? i + 1 : (mRepeat ? 0 : -1);
+            if (nextLeg < 0) continue;
+            //The turn angle follows from the dot product of the leg directions
+            double cosine = mUnitEast[i] * mUnitEast[nextLeg]
+                    + mUnitNorth[i] * mUnitNorth[nextLeg];
+            double turnAngle = Math.acos(Math.max(-1, Math.min(1, cosine)));
+            //Turns sharper than 120 degrees are not anticipated (the craft overflies the waypoint)
+            mTurnFactor[i] = turnAngle < Math.toRadians(120) ? Math.tan(turnAngle / 2) : 0;
+        }
+    }
+
+    /** Updates the guidance commands from the latest position and velocity
+     * @param latitude the latitude of the craft in degrees
+     * @param longitude the longitude of the craft in degrees
+     * @param velocityEast the velocity of the craft towards east in meters per second
+     * @param velocityNorth the velocity of the craft towards north in meters per second
+     */
+    public void update(double latitude, double longitude, double velocityEast,
+                       double velocityNorth) {
+        mEast = mHomeFrame.getEast(longitude);
+        mNorth = mHomeFrame.getNorth(latitude);
+        if (mIsComplete) {
+            mLateralAcceleration = 0;
+            mBankAngle = 0;
+            return;
+        }
+        double groundspeedSquared = velocityEast * velocityEast + velocityNorth * velocityNorth;
+        advanceLeg(groundspeedSquared);
+        if (mIsComplete) {
+            mLateralAcceleration = 0;
+            mBankAngle = 0;
+            return;
+        }
+        double unitEast = mUnitEast[mLegIndex];
+        double unitNorth = mUnitNorth[mLegIndex];
+        double deltaEast = mEast - mStartEast[mLegIndex];
+        double deltaNorth = mNorth - mStartNorth[mLegIndex];
+        //Cross track error, positive right of the leg
+        mCrossTrackError = deltaEast * unitNorth - deltaNorth * unitEast;
+        double groundspeed = Math.sqrt(groundspeedSquared);
+        if (groundspeed < MIN_GROUNDSPEED) {
+            mLateralAcceleration = 0;
+            mBankAngle = 0;
+            mDesiredHeading = mBearing[mLegIndex];
+            return;
+        }
+        double l1Distance = L1_DAMPING * L1_PERIOD * groundspeed / Math.PI;
+        //Intercept angle towards the leg (nu1) and angle of the velocity off the leg (nu2),
+        //both positive to the right. Combined without trigonometry using the angle sum identity.
+        double sineIntercept = Math.max(-MAX_SINE_INTERCEPT,
+                Math.min(MAX_SINE_INTERCEPT, mCrossTrackError / l1Distance));
+        double cosineIntercept = Math.sqrt(1 - sineIntercept * sineIntercept);
+        double sineVelocity = (velocityEast * unitNorth - velocityNorth * unitEast) / groundspeed;
+        double cosineVelocity = (velocityEast * unitEast + velocityNorth * unitNorth) / groundspeed;
+        double sineNu = sineIntercept * cosineVelocity + cosineIntercept * sineVelocity;
+        double cosineNu = cosineIntercept * cosineVelocity - sineIntercept * sineVelocity;
+        //Limit nu to +/- 90 degrees (e.g. when flying away from the leg)
+        if (cosineNu < 0) sineNu = sineNu < 0 ? -1 : 1;
+        //L1 lateral acceleration, turning back towards the L1 point on the leg
+        double l1Gain = 4 * L1_DAMPING * L1_DAMPING;
+        mLateralAcceleration = -l1Gain * groundspeedSquared / l1Distance * sineNu;
+        mLateralAcceleration = Math.max(-GRAVITY * mTanMaxBank,
+                Math.min(GRAVITY * mTanMaxBank, mLateralAcceleration));
+        //Coordinated turn: tan(bank) = lateral acceleration / gravity
+        mBankAngle = Math.toDegrees(Math.atan(mLateralAcceleration / GRAVITY));
+        //The desired heading intercepts the leg at the L1 distance
+        mDesiredHeading = (mBearing[mLegIndex] - Math.toDegrees(Math.asin(sineIntercept)) + 360)
+                % 360;
+    }
+
+    /** Returns the commanded bank angle in degrees (positive is a right turn) */
+    public double getBankAngle() {
+        return mBankAngle;
+    }
+
+    /** Returns the cross track error in meters (positive is right of the current leg) */
+    public double getCrossTrackError() {
+        return mCrossTrackError;
+    }
+
+    /** Returns the desired heading (course over ground) in degrees clockwise from north */
+    public double getDesiredHeading() {
+        return mDesiredHeading;
+    }
+
+    /** Returns the index of the current leg. Leg 0 is from home to the first waypoint. */
+    public int getLegIndex() {
+        return mLegIndex;
+    }
+
+    /** Returns the number of legs, including the legs from and back to home */
+    public int getLegCount() {
+        return mLegCount;
+    }
+
+    /** Returns the altitude of the end of the current leg in meters (NaN if not set or home) */
+    public double getTargetAltitude() {
+        return mAltitude[mLegIndex];
+    }
+
+    /** Returns the commanded lateral acceleration in m/s^2 (positive is a right turn) */
+    public double getLateralAcceleration() {
+        return mLateralAcceleration;
+    }
+
+    /** Returns true once the craft has flown the last leg back home (and repeat is off) */
+    public boolean isComplete() {
+        return mIsComplete;
+    }
+
+    //Advances to the next leg once the end of the current leg is reached or the turn should begin
+    private void advanceLeg(double groundspeedSquared) {
+        //Turn radius at the maximum bank angle for the current groundspeed
+        double turnRadius = groundspeedSquared / (GRAVITY * mTanMaxBank);
+        //Never advance more than every leg in a single update (e.g. for zero length legs)
+        for (int i = 0; i < mLegCount; i++) {
+            double deltaEast = mEast - mStartEast[mLegIndex];
+            double deltaNorth = mNorth - mStartNorth[mLegIndex];
+            double alongTrack = deltaEast * mUnitEast[mLegIndex]
+                    + deltaNorth * mUnitNorth[mLegIndex];
+            double endEast = mEast - mEndEast[mLegIndex];
+            double endNorth = mNorth - mEndNorth[mLegIndex];
+            boolean reached = endEast * endEast + endNorth * endNorth <= mAcceptanceRadiusSquared
+                    || alongTrack >= mLength[mLegIndex] - turnRadius * mTurnFactor[mLegIndex];
+            if (!reached) return;
+            if (mLegIndex + 1 < mLegCount) {
+                mLegIndex++;
+            } else if (mRepeat) {
+                mLegIndex = 0;
+            } else {
+                mIsComplete = true;
+                return;
+            }
+        }
+    }
+}
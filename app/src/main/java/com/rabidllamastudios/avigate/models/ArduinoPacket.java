@@ -5,6 +5,7 @@ import android.os.Bundle;
 
 import com.rabidllamastudios.avigate.AvigateApplication;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -33,16 +34,30 @@ public class ArduinoPacket {
 
     //JSON keys for key value pairs
     private static final String KEY_CALIBRATION_MODE = "calibrationMode";
+    private static final String KEY_CENTERED = "centered";
+    private static final String KEY_CLIMB_THROTTLE = "climbThrottle";
+    private static final String KEY_CRUISE_SPEED = "cruiseSpeed";
+    private static final String KEY_DERIVATIVE_GAIN = "kd";
     private static final String KEY_ERROR = "error";
+    private static final String KEY_EXPO = "expo";
     private static final String KEY_INPUT_CONFIG = "inputConfig";
+    private static final String KEY_INTEGRAL_GAIN = "ki";
+    private static final String KEY_INTEGRATOR_LIMIT = "iLimit";
+    private static final String KEY_MAGNETOMETER_CALIBRATION = "magnetometerCalibration";
+    private static final String KEY_MATRIX = "matrix";
     private static final String KEY_MAX = "max";
     private static final String KEY_MIN = "min";
+    private static final String KEY_MIXER = "mixer";
+    private static final String KEY_OFFSET = "offset";
     private static final String KEY_OUTPUT_CONFIG = "outputConfig";
+    private static final String KEY_PID_GAINS = "pidGains";
     private static final String KEY_PIN = "pin";
+    private static final String KEY_PROPORTIONAL_GAIN = "kp";
     private static final String KEY_RECEIVER_CONTROL = "receiverControl";
     private static final String KEY_RECEIVER_ONLY = "receiverOnly";
     private static final String KEY_REQUEST = "request";
     private static final String KEY_STATUS = "status";
+    private static final String KEY_TRIM = "trim";
     private static final String KEY_VALUE ="value";
 
     //preset JSON value(s) for key value pairs
@@ -70,7 +85,56 @@ public class ArduinoPacket {
         }
     }
 
+    /** Denotes a controlled axis of the craft, used for PID gains
+     * Altitude and climb rate are the outer and inner loops of altitude hold
+     */
+    public enum ControlAxis {
+        ROLL, PITCH, YAW, SPEED, ALTITUDE, CLIMB_RATE;
+
+        /** Returns the corresponding String for the defined ControlAxis */
+        public String getStringValue() {
+            switch (this) {
+                case ROLL:
+                    return "roll";
+                case PITCH:
+                    return "pitch";
+                case YAW:
+                    return "yaw";
+                case SPEED:
+                    return "speed";
+                case ALTITUDE:
+                    return "altitude";
+                case CLIMB_RATE:
+                    return "climbRate";
+            }
+            return null;
+        }
+    }
+
+    /** Denotes a virtual control axis, mixed onto the servo outputs (see MixerChannel) */
+    public enum MixerInput {
+        ROLL, PITCH, YAW, THROTTLE, FLAPS;
+
+        /** Returns the corresponding String for the defined MixerInput */
+        public String getStringValue() {
+            switch (this) {
+                case ROLL:
+                    return "roll";
+                case PITCH:
+                    return "pitch";
+                case YAW:
+                    return "yaw";
+                case THROTTLE:
+                    return "throttle";
+                case FLAPS:
+                    return "flaps";
+            }
+            return null;
+        }
+    }
+
     private JSONObject rootJson;  //The JSON root object where all JSON data is stored
+    private LatencyTrace mLatencyTrace = null;
 
     public ArduinoPacket() {
         rootJson = new JSONObject();
@@ -94,12 +158,14 @@ public class ArduinoPacket {
         } catch (ParseException e) {
             e.printStackTrace();
         }
+        if (LatencyTrace.isContainedIn(bundle)) mLatencyTrace = new LatencyTrace(bundle);
     }
 
     /** Returns an Intent with the ArduinoPacket contents packaged as an Intent Extra */
     public Intent toIntent(String intentAction) {
         Intent intent = new Intent(intentAction);
         intent.putExtra(KEY_ROOT, rootJson.toJSONString());
+        if (mLatencyTrace != null) intent = mLatencyTrace.addIntentExtras(intent);
         return intent;
     }
 
@@ -139,6 +205,14 @@ public class ArduinoPacket {
                 && servoEquals(otherRootJson, ServoType.CUTOVER);
     }
 
+    /** Returns the throttle feedforward in servo degrees per m/s of commanded climb rate
+     * Returns 0 if no value exists
+     */
+    public double getClimbThrottle() {
+        if (!rootJson.containsKey(KEY_CLIMB_THROTTLE)) return 0;
+        return ((Number) rootJson.get(KEY_CLIMB_THROTTLE)).doubleValue();
+    }
+
     /** Returns a JSON String containing the configuration values for the input ServoType
      * @param servoType the ServoType to retrieve the config JSON for
      * @param includeInputRanges determines whether the input min and max are included in the output
@@ -192,6 +266,12 @@ public class ArduinoPacket {
         return null;
     }
 
+    /** Returns the cruise speed in meters per second. Returns -1 if no value exists */
+    public double getCruiseSpeed() {
+        if (!rootJson.containsKey(KEY_CRUISE_SPEED)) return -1;
+        return ((Number) rootJson.get(KEY_CRUISE_SPEED)).doubleValue();
+    }
+
     /** Retrieves any error message if present. Error messages only originate from the Arduino. */
     public String getErrorMessage() {
         if (rootJson.containsKey(KEY_ERROR)) return (String) rootJson.get(KEY_ERROR);
@@ -244,6 +324,40 @@ public class ArduinoPacket {
         return inputPin.intValue();
     }
 
+    /** Returns the LatencyTrace of this packet. May be null (e.g. if received over the network) */
+    public LatencyTrace getLatencyTrace() {
+        return mLatencyTrace;
+    }
+
+    /** Returns the magnetometer soft-iron matrix (9 values, row-major). Returns null if absent */
+    public double[] getMagnetometerMatrix() {
+        return getMagnetometerCalibrationValues(KEY_MATRIX, 9);
+    }
+
+    /** Returns the magnetometer hard-iron offset (x, y, z). Returns null if absent */
+    public double[] getMagnetometerOffset() {
+        return getMagnetometerCalibrationValues(KEY_OFFSET, 3);
+    }
+
+    /** Returns the mix of the input ServoType. Returns null if no mix exists */
+    public MixerChannel getMixerChannel(ServoType servoType) {
+        if (!hasMixerChannel(servoType)) return null;
+        JSONObject mixerJson = (JSONObject) rootJson.get(KEY_MIXER);
+        JSONObject channelJson = (JSONObject) mixerJson.get(servoType.getStringValue());
+        Number min = (Number) channelJson.get(KEY_MIN);
+        Number max = (Number) channelJson.get(KEY_MAX);
+        MixerChannel mixerChannel = new MixerChannel(
+                !channelJson.containsKey(KEY_CENTERED) || (boolean) channelJson.get(KEY_CENTERED),
+                getDouble(channelJson, KEY_TRIM), getDouble(channelJson, KEY_EXPO),
+                min != null ? min.intValue() : MixerChannel.NO_LIMIT,
+                max != null ? max.intValue() : MixerChannel.NO_LIMIT);
+        for (MixerInput mixerInput : MixerInput.values()) {
+            mixerChannel.setWeight(mixerInput, getDouble(channelJson,
+                    mixerInput.getStringValue()));
+        }
+        return mixerChannel;
+    }
+
     /** Gets the max servo output value for the input ServoType. Returns -1 if no value exists */
     public int getOutputMax(ArduinoPacket.ServoType servoType) {
         Number outputMax = getOutputConfigValue(servoType, KEY_MAX);
@@ -265,6 +379,16 @@ public class ArduinoPacket {
         return outputPin.intValue();
     }
 
+    /** Returns the PID gains for the input ControlAxis. Returns null if no gains exist */
+    public PidGains getPidGains(ControlAxis controlAxis) {
+        if (!hasPidGains(controlAxis)) return null;
+        JSONObject pidGainsJson = (JSONObject) rootJson.get(KEY_PID_GAINS);
+        JSONObject axisJson = (JSONObject) pidGainsJson.get(controlAxis.getStringValue());
+        return new PidGains(getDouble(axisJson, KEY_PROPORTIONAL_GAIN),
+                getDouble(axisJson, KEY_INTEGRAL_GAIN), getDouble(axisJson, KEY_DERIVATIVE_GAIN),
+                getDouble(axisJson, KEY_INTEGRATOR_LIMIT));
+    }
+
     /** Gets the position value in degrees) of a given ServoType. Returns -1 if no value exists */
     public int getServoValue(ServoType servoType) {
         //Returns -1 if said value does not exist
@@ -283,6 +407,11 @@ public class ArduinoPacket {
         return rootJson.containsKey(KEY_CALIBRATION_MODE);
     }
 
+    /** Returns true if the JSON store contains a climb throttle feedforward */
+    public boolean hasClimbThrottle() {
+        return rootJson.containsKey(KEY_CLIMB_THROTTLE);
+    }
+
     /** Returns true if the JSON store contains duplicate pin numbers (input and output) */
     public boolean hasDuplicatePins() {
         List<Integer> pinList = new ArrayList<>();
@@ -331,6 +460,17 @@ public class ArduinoPacket {
                 && hasInputRange(ServoType.THROTTLE));
     }
 
+    /** Returns true if the JSON store contains a magnetometer offset and matrix */
+    public boolean hasMagnetometerCalibration() {
+        return getMagnetometerOffset() != null && getMagnetometerMatrix() != null;
+    }
+
+    /** Returns true if the JSON store contains a mix for the input ServoType */
+    public boolean hasMixerChannel(ServoType servoType) {
+        return rootJson.containsKey(KEY_MIXER) && ((JSONObject) rootJson.get(KEY_MIXER))
+                .containsKey(servoType.getStringValue());
+    }
+
     /** Returns true if the JSON store contains an output max value for the input ServoType */
     public boolean hasOutputMax(ServoType servoType) {
         return hasOutputConfigValue(servoType, KEY_MAX);
@@ -346,6 +486,12 @@ public class ArduinoPacket {
         return hasOutputConfigValue(servoType, KEY_PIN);
     }
 
+    /** Returns true if the JSON store contains PID gains for the input ControlAxis */
+    public boolean hasPidGains(ControlAxis controlAxis) {
+        return rootJson.containsKey(KEY_PID_GAINS) && ((JSONObject) rootJson.get(KEY_PID_GAINS))
+                .containsKey(controlAxis.getStringValue());
+    }
+
     /** Returns true if the JSON store indicates that the Arduino will only accept receiver input */
     public boolean hasReceiverControl() {
         return rootJson.containsKey(KEY_RECEIVER_CONTROL);
@@ -379,6 +525,12 @@ public class ArduinoPacket {
         return (boolean) rootJson.get(KEY_CALIBRATION_MODE);
     }
 
+    /** Returns true if the input ServoType is configured and accepts input from the phone */
+    public boolean isPhoneControlled(ServoType servoType) {
+        if (!hasOutputMin(servoType) || !hasOutputMax(servoType)) return false;
+        return !hasReceiverOnly(servoType) || !isReceiverOnly(servoType);
+    }
+
     /** Returns true if the Arduino is currently only accepting receiver input
      * Use hasReceiverControl method to determine whether to use this method
      * @return true if only accepting receiver input, false if accepting phone and receiver input
@@ -392,6 +544,19 @@ public class ArduinoPacket {
         return (boolean) getInputConfigValue(servoType, KEY_RECEIVER_ONLY);
     }
 
+    /** Returns true if the JSON store contains servo values and nothing else (e.g. no config) */
+    public boolean isServoValuesOnly() {
+        if (rootJson.isEmpty()) return false;
+        int servoValueCount = 0;
+        for (ServoType servoType : ServoType.values()) {
+            if (!rootJson.containsKey(servoType.getStringValue())) continue;
+            JSONObject servoJson = (JSONObject) rootJson.get(servoType.getStringValue());
+            if (servoJson.size() != 1 || !servoJson.containsKey(KEY_VALUE)) return false;
+            servoValueCount++;
+        }
+        return servoValueCount == rootJson.size();
+    }
+
     /** Returns true if the Arduino is ready to receive input from the phone */
     public boolean isStatusReady() {
         return rootJson.containsKey(KEY_STATUS)
@@ -407,6 +572,18 @@ public class ArduinoPacket {
         rootJson.put(KEY_CALIBRATION_MODE, calibrationMode);
     }
 
+    /** Sets the throttle feedforward in servo degrees per m/s of commanded climb rate */
+    @SuppressWarnings("unchecked")
+    public void setClimbThrottle(double climbThrottle) {
+        rootJson.put(KEY_CLIMB_THROTTLE, climbThrottle);
+    }
+
+    /** Sets the cruise speed in meters per second (used as the speed setpoint) */
+    @SuppressWarnings("unchecked")
+    public void setCruiseSpeed(double cruiseSpeed) {
+        rootJson.put(KEY_CRUISE_SPEED, cruiseSpeed);
+    }
+
     /** Sets the input control type for the input ServoType based on the input receiverOnly boolean
      * @param servoType the ServoType to set the input control property for
      * @param receiverOnly if true, the Arduino only accepts receiver input for this ServoType
@@ -463,6 +640,57 @@ public class ArduinoPacket {
         rootJson.put(servoType.getStringValue(), servoJson);
     }
 
+    /** Sets the LatencyTrace that is carried along with this packet */
+    public void setLatencyTrace(LatencyTrace latencyTrace) {
+        mLatencyTrace = latencyTrace;
+    }
+
+    /** Sets the magnetometer calibration, corrected = matrix * (raw - offset)
+     * Stored in the craft profile only, it is not sent to the Arduino
+     * @param offset the hard-iron offset (x, y, z) in micro Tesla
+     * @param matrix the soft-iron correction matrix (9 values, row-major)
+     */
+    @SuppressWarnings("unchecked")
+    public void setMagnetometerCalibration(double[] offset, double[] matrix) {
+        JSONArray offsetJson = new JSONArray();
+        for (double each : offset) {
+            offsetJson.add(each);
+        }
+        JSONArray matrixJson = new JSONArray();
+        for (double each : matrix) {
+            matrixJson.add(each);
+        }
+        JSONObject calibrationJson = new JSONObject();
+        calibrationJson.put(KEY_OFFSET, offsetJson);
+        calibrationJson.put(KEY_MATRIX, matrixJson);
+        rootJson.put(KEY_MAGNETOMETER_CALIBRATION, calibrationJson);
+    }
+
+    /** Sets the mix of the input ServoType. Stored in the craft profile only. */
+    @SuppressWarnings("unchecked")
+    public void setMixerChannel(ServoType servoType, MixerChannel mixerChannel) {
+        JSONObject mixerJson = new JSONObject();
+        if (rootJson.containsKey(KEY_MIXER)) {
+            mixerJson = (JSONObject) rootJson.get(KEY_MIXER);
+        }
+        JSONObject channelJson = new JSONObject();
+        for (MixerInput mixerInput : MixerInput.values()) {
+            double weight = mixerChannel.getWeight(mixerInput);
+            if (weight != 0) channelJson.put(mixerInput.getStringValue(), weight);
+        }
+        channelJson.put(KEY_CENTERED, mixerChannel.isCentered());
+        channelJson.put(KEY_TRIM, mixerChannel.getTrim());
+        channelJson.put(KEY_EXPO, mixerChannel.getExpo());
+        if (mixerChannel.getMin() != MixerChannel.NO_LIMIT) {
+            channelJson.put(KEY_MIN, (long) mixerChannel.getMin());
+        }
+        if (mixerChannel.getMax() != MixerChannel.NO_LIMIT) {
+            channelJson.put(KEY_MAX, (long) mixerChannel.getMax());
+        }
+        mixerJson.put(servoType.getStringValue(), channelJson);
+        rootJson.put(KEY_MIXER, mixerJson);
+    }
+
     /** Sets the min and max output values for the input ServoType (in degrees)
      * @param servoType the ServoType to set the output range for
      * @param outputMin the servo output minimum for the input ServoType (in degrees)
@@ -500,6 +728,22 @@ public class ArduinoPacket {
         rootJson.put(servoType.getStringValue(), servoJson);
     }
 
+    /** Sets the PID gains for the input ControlAxis. Stored in the craft profile only. */
+    @SuppressWarnings("unchecked")
+    public void setPidGains(ControlAxis controlAxis, PidGains pidGains) {
+        JSONObject pidGainsJson = new JSONObject();
+        if (rootJson.containsKey(KEY_PID_GAINS)) {
+            pidGainsJson = (JSONObject) rootJson.get(KEY_PID_GAINS);
+        }
+        JSONObject axisJson = new JSONObject();
+        axisJson.put(KEY_PROPORTIONAL_GAIN, pidGains.getProportionalGain());
+        axisJson.put(KEY_INTEGRAL_GAIN, pidGains.getIntegralGain());
+        axisJson.put(KEY_DERIVATIVE_GAIN, pidGains.getDerivativeGain());
+        axisJson.put(KEY_INTEGRATOR_LIMIT, pidGains.getIntegratorLimit());
+        pidGainsJson.put(controlAxis.getStringValue(), axisJson);
+        rootJson.put(KEY_PID_GAINS, pidGainsJson);
+    }
+
     /** Sets the positional output value of the input ServoType (in degrees) */
     @SuppressWarnings("unchecked")
     public void setServoValue(ServoType servoType, int value) {
@@ -511,6 +755,13 @@ public class ArduinoPacket {
         rootJson.put(servoType.getStringValue(), servoJson);
     }
 
+    //Returns the number stored under jsonKey in the input JSONObject as a double (0 if absent)
+    private static double getDouble(JSONObject jsonObject, String jsonKey) {
+        Number value = (Number) jsonObject.get(jsonKey);
+        if (value == null) return 0;
+        return value.doubleValue();
+    }
+
     //Returns the input min, max, or pin (as specified by jsonMinMaxKey)
     private Object getInputConfigValue(ServoType servoType, String jsonKey) {
         if (rootJson.containsKey(servoType.getStringValue())) {
@@ -525,6 +776,20 @@ public class ArduinoPacket {
         return null;
     }
 
+    //Returns the magnetometer calibration array stored under jsonKey if it has the input length
+    private double[] getMagnetometerCalibrationValues(String jsonKey, int length) {
+        if (!rootJson.containsKey(KEY_MAGNETOMETER_CALIBRATION)) return null;
+        JSONObject calibrationJson = (JSONObject) rootJson.get(KEY_MAGNETOMETER_CALIBRATION);
+        if (!calibrationJson.containsKey(jsonKey)) return null;
+        JSONArray valuesJson = (JSONArray) calibrationJson.get(jsonKey);
+        if (valuesJson.size() != length) return null;
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = ((Number) valuesJson.get(i)).doubleValue();
+        }
+        return values;
+    }
+
     //Returns the output min, max, or pin (as specified by jsonMinMaxKey)
     private Number getOutputConfigValue(ServoType servoType, String jsonKey) {
         if (rootJson.containsKey(servoType.getStringValue())) {
@@ -6,7 +6,8 @@ import android.os.Bundle;
 import com.rabidllamastudios.avigate.AvigateApplication;
 
 /**
- * A data model class to communicate connection data
+ * A data model class to communicate connection data: the network connection status and the
+ * metrics of the link to the peer device, measured with heartbeats (see HeartbeatMonitor)
  * Can be constructed from a Bundle and converted into an Intent
  * Created by Ryan Staatz on 11/19/15.
  */
@@ -15,24 +16,84 @@ public class ConnectionPacket {
     public static final String INTENT_ACTION = PACKAGE_NAME + ".action.CONNECTION_DATA";
 
     private boolean mIsConnected = false;
+    private float mRoundTripTimeMedian = -1;
+    private float mRoundTripTimeP95 = -1;
+    private float mLossRatio = 0;
+    private float mJitter = 0;
+    private float mLastHeardAge = -1;
 
-    /** Constructor that takes a boolean denoting the network connection status */
+    /** Constructor that takes a boolean denoting the network connection status (no link metrics)
+     */
     public ConnectionPacket(boolean isConnected) {
         mIsConnected = isConnected;
     }
 
+    /** Constructor that takes the network connection status and the link metrics
+     * @param isConnected the network connection status
+     * @param roundTripTimeMedian the median RTT to the peer in ms (-1 if not measured yet)
+     * @param roundTripTimeP95 the 95th percentile RTT to the peer in ms (-1 if not measured yet)
+     * @param lossRatio the ratio of heartbeats of the peer lost among the most recent ones
+     * @param jitter the interarrival jitter of the heartbeats of the peer in ms
+     * @param lastHeardAge the time since the peer was last heard in ms (-1 if never)
+     */
+    public ConnectionPacket(boolean isConnected, float roundTripTimeMedian,
+                            float roundTripTimeP95, float lossRatio, float jitter,
+                            float lastHeardAge) {
+        mIsConnected = isConnected;
+        mRoundTripTimeMedian = roundTripTimeMedian;
+        mRoundTripTimeP95 = roundTripTimeP95;
+        mLossRatio = lossRatio;
+        mJitter = jitter;
+        mLastHeardAge = lastHeardAge;
+    }
+
     /** Constructor that takes a bundle. Use toIntent to export class data to an Intent */
     public ConnectionPacket(Bundle bundle) {
         mIsConnected = bundle.getBoolean("con");
+        mRoundTripTimeMedian = bundle.getFloat("r50", -1);
+        mRoundTripTimeP95 = bundle.getFloat("r95", -1);
+        mLossRatio = bundle.getFloat("los");
+        mJitter = bundle.getFloat("jit");
+        mLastHeardAge = bundle.getFloat("age", -1);
     }
 
     /** Returns an Intent containing the ConnectionPacket data as IntentExtras */
     public Intent toIntent() {
         Intent intent = new Intent(INTENT_ACTION);
         intent.putExtra("con", mIsConnected);
+        intent.putExtra("r50", mRoundTripTimeMedian);
+        intent.putExtra("r95", mRoundTripTimeP95);
+        intent.putExtra("los", mLossRatio);
+        intent.putExtra("jit", mJitter);
+        intent.putExtra("age", mLastHeardAge);
         return intent;
     }
 
+    /** Returns the interarrival jitter of the heartbeats of the peer in ms */
+    public float getJitter() {
+        return mJitter;
+    }
+
+    /** Returns the time since the peer was last heard in ms (-1 if never) */
+    public float getLastHeardAge() {
+        return mLastHeardAge;
+    }
+
+    /** Returns the ratio of heartbeats of the peer lost among the most recent ones */
+    public float getLossRatio() {
+        return mLossRatio;
+    }
+
+    /** Returns the median RTT to the peer in ms (-1 if not measured yet) */
+    public float getRoundTripTimeMedian() {
+        return mRoundTripTimeMedian;
+    }
+
+    /** Returns the 95th percentile RTT to the peer in ms (-1 if not measured yet) */
+    public float getRoundTripTimeP95() {
+        return mRoundTripTimeP95;
+    }
+
     /** Returns a boolean denoting the network connection status */
     public boolean isConnected() {
         return mIsConnected;
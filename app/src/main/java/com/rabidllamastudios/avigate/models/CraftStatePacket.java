@@ -19,6 +19,16 @@ public class CraftStatePacket {
     private static final String PACKAGE_NAME = AvigateApplication.class.getPackage().getName();
     public static final String INTENT_ACTION = PACKAGE_NAME + ".action.CRAFT_STATE_DATA";
     private static final String KEY_LOCATION = "loc";
+    private static final String KEY_VALIDITY = "vld";
+
+    //Validity flags, one bit per sensor-backed field. A field is invalid if its data is stale.
+    public static final int VALID_ANGULAR_VELOCITY = 1;
+    public static final int VALID_BAROMETRIC_PRESSURE = 1 << 1;
+    public static final int VALID_LINEAR_ACCELERATION = 1 << 2;
+    public static final int VALID_MAGNETIC_FIELD = 1 << 3;
+    public static final int VALID_ORIENTATION = 1 << 4;
+    public static final int VALID_LOCATION = 1 << 5;
+    public static final int VALID_ALL = (1 << 6) - 1;
 
     private AngularVelocity mAngularVelocity;
     private BarometricPressure mBarometricPressure;
@@ -26,6 +36,10 @@ public class CraftStatePacket {
     private MagneticField mMagneticField;
     private Orientation mOrientation;
     private Location mLocation;
+    private LatencyTrace mLatencyTrace = null;
+    private PropagatedPosition mPropagatedPosition = null;
+    private VerticalState mVerticalState = null;
+    private int mValidity = VALID_ALL;
 
     /** Constructs a CraftStatePacket from its component static inner classes */
     public CraftStatePacket(AngularVelocity angularVelocity, BarometricPressure barometricPressure,
@@ -47,6 +61,13 @@ public class CraftStatePacket {
         mMagneticField = new MagneticField(bundle);
         mOrientation = new Orientation(bundle);
         mLocation = bundle.getParcelable(KEY_LOCATION);
+        if (PropagatedPosition.isContainedIn(bundle)) {
+            mPropagatedPosition = new PropagatedPosition(bundle);
+        }
+        if (VerticalState.isContainedIn(bundle)) mVerticalState = new VerticalState(bundle);
+        if (LatencyTrace.isContainedIn(bundle)) mLatencyTrace = new LatencyTrace(bundle);
+        //Packets without validity flags (e.g. from older senders) are treated as fully valid
+        mValidity = bundle.getInt(KEY_VALIDITY, VALID_ALL);
     }
 
     /** Returns an Intent with all CraftStatePacket data as IntentExtras */
@@ -58,6 +79,10 @@ public class CraftStatePacket {
         intent = mMagneticField.addIntentExtras(intent);
         intent = mOrientation.addIntentExtras(intent);
         intent.putExtra(KEY_LOCATION, mLocation);
+        if (mPropagatedPosition != null) intent = mPropagatedPosition.addIntentExtras(intent);
+        if (mVerticalState != null) intent = mVerticalState.addIntentExtras(intent);
+        if (mLatencyTrace != null) intent = mLatencyTrace.addIntentExtras(intent);
+        intent.putExtra(KEY_VALIDITY, mValidity);
         return intent;
     }
 
@@ -76,6 +101,11 @@ public class CraftStatePacket {
         return mLinearAcceleration;
     }
 
+    /** Returns the LatencyTrace of this packet. May be null (e.g. if received over the network) */
+    public LatencyTrace getLatencyTrace() {
+        return mLatencyTrace;
+    }
+
     /** Returns the instance variable of type Location (an inner class) */
     public Location getLocation() {
         return mLocation;
@@ -91,6 +121,26 @@ public class CraftStatePacket {
         return mOrientation;
     }
 
+    /** Returns the instance variable of type PropagatedPosition (an inner class). May be null. */
+    public PropagatedPosition getPropagatedPosition() {
+        return mPropagatedPosition;
+    }
+
+    /** Returns the validity flags (a combination of the VALID_ constants) */
+    public int getValidity() {
+        return mValidity;
+    }
+
+    /** Returns the instance variable of type VerticalState (an inner class). May be null. */
+    public VerticalState getVerticalState() {
+        return mVerticalState;
+    }
+
+    /** Returns true if all of the input validity flags (VALID_ constants) are set */
+    public boolean isValid(int validityFlags) {
+        return (mValidity & validityFlags) == validityFlags;
+    }
+
     /** Sets the instance variable of type AngularVelocity (an inner class) */
     public void setAngularVelocity(AngularVelocity angularVelocity) {
         mAngularVelocity = angularVelocity;
@@ -106,6 +156,11 @@ public class CraftStatePacket {
         mLinearAcceleration = linearAcceleration;
     }
 
+    /** Sets the LatencyTrace that is carried along with this packet */
+    public void setLatencyTrace(LatencyTrace latencyTrace) {
+        mLatencyTrace = latencyTrace;
+    }
+
     /** Updates the instance variable of type Location */
     public void setLocation(Location location) {
         mLocation = new Location(location);
@@ -121,6 +176,21 @@ public class CraftStatePacket {
         mOrientation = orientation;
     }
 
+    /** Sets the instance variable of type PropagatedPosition (an inner class) */
+    public void setPropagatedPosition(PropagatedPosition propagatedPosition) {
+        mPropagatedPosition = propagatedPosition;
+    }
+
+    /** Sets the validity flags (a combination of the VALID_ constants) */
+    public void setValidity(int validity) {
+        mValidity = validity;
+    }
+
+    /** Sets the instance variable of type VerticalState (an inner class) */
+    public void setVerticalState(VerticalState verticalState) {
+        mVerticalState = verticalState;
+    }
+
 /**
  ********************************* STATIC INNER CLASSES BEGIN HERE *********************************
  */
@@ -204,6 +274,13 @@ public class CraftStatePacket {
             int sign = -1;
             if (phoneFacingNose) sign = 1;
             return sign*Math.toDegrees(mZ);        }
+
+        /** Replaces the component values, so the AngularVelocity can be reused */
+        public void set(float x, float y, float z) {
+            mX = x;
+            mY = y;
+            mZ = z;
+        }
     }
 
     /** A static inner data model class that contains barometric pressure sensor data
@@ -406,9 +483,11 @@ public class CraftStatePacket {
          * Sign: https://en.wikipedia.org/wiki/Aircraft_principal_axes#Lateral_axis_.28pitch.29
          */
         public double getCraftPitch(boolean phoneFacingNose) {
-            Quaternion craftOrientation = getCraftOrientation(phoneFacingNose);
-            return Math.toDegrees(Math.asin(2 * (craftOrientation.w * craftOrientation.y
-                    - craftOrientation.z * craftOrientation.x)));
+            double w = mRawOrientation.w;
+            double x = getCraftX(phoneFacingNose);
+            double y = getCraftY(phoneFacingNose);
+            double z = getCraftZ();
+            return Math.toDegrees(Math.asin(2 * (w * y - z * x)));
         }
 
         /** Returns the roll angle of the craft in degrees
@@ -419,11 +498,12 @@ public class CraftStatePacket {
          * Sign: https://en.wikipedia.org/wiki/Aircraft_principal_axes#Longitudinal_.28roll.29
          */
         public double getCraftRoll(boolean phoneFacingNose) {
-            Quaternion craftOrientation = getCraftOrientation(phoneFacingNose);
+            double w = mRawOrientation.w;
+            double x = getCraftX(phoneFacingNose);
+            double y = getCraftY(phoneFacingNose);
+            double z = getCraftZ();
             //noinspection SuspiciousNameCombination
-            return Math.toDegrees(Math.atan2(2 * (craftOrientation.w * craftOrientation.x
-                            + craftOrientation.y * craftOrientation.z),
-                    1 - (2 * (Math.pow(craftOrientation.x, 2) + Math.pow(craftOrientation.y, 2)))));
+            return Math.toDegrees(Math.atan2(2 * (w * x + y * z), 1 - 2 * (x * x + y * y)));
         }
 
         /** Returns the yaw angle of the craft in degrees
@@ -434,11 +514,12 @@ public class CraftStatePacket {
          * Sign: https://en.wikipedia.org/wiki/Aircraft_principal_axes#Vertical_axis_.28yaw.29
          */
         public double getCraftYaw(boolean phoneFacingNose) {
-            Quaternion craftOrientation = getCraftOrientation(phoneFacingNose);
+            double w = mRawOrientation.w;
+            double x = getCraftX(phoneFacingNose);
+            double y = getCraftY(phoneFacingNose);
+            double z = getCraftZ();
             //noinspection SuspiciousNameCombination
-            double yaw = Math.toDegrees(Math.atan2(2 * (craftOrientation.w * craftOrientation.z
-                            + craftOrientation.x * craftOrientation.y),
-                    1 - 2 * (Math.pow(craftOrientation.y, 2) + Math.pow(craftOrientation.z, 2))));
+            double yaw = Math.toDegrees(Math.atan2(2 * (w * z + x * y), 1 - 2 * (y * y + z * z)));
             if (phoneFacingNose) {
                 //Yaw values from Android are -180 to 180 degrees. Should be converted to 0 to 360.
                 if (yaw < 0) return yaw + 360;
@@ -448,5 +529,198 @@ public class CraftStatePacket {
                 return yaw + 180;
             }
         }
+
+        /** Replaces the raw orientation quaternion, so the Orientation can be reused */
+        public void set(double w, double x, double y, double z) {
+            mRawOrientation.w = w;
+            mRawOrientation.x = x;
+            mRawOrientation.y = y;
+            mRawOrientation.z = z;
+        }
+
+        //The coordinate transform of getCraftOrientation (a rotation of 180 degrees about Y and
+        //90 degrees about Z) keeps w and rotates the vector part of the raw orientation, so the
+        //craft components are computed directly from the raw ones without allocating
+        private double getCraftX(boolean phoneFacingNose) {
+            return phoneFacingNose ? mRawOrientation.y : -mRawOrientation.y;
+        }
+
+        private double getCraftY(boolean phoneFacingNose) {
+            return phoneFacingNose ? mRawOrientation.x : -mRawOrientation.x;
+        }
+
+        private double getCraftZ() {
+            return -mRawOrientation.z;
+        }
+    }
+
+    /** A static inner data model class that contains the dead-reckoned position of the craft
+     * Intended to contain the output of PositionPropagator (GPS fix extrapolated between fixes)
+     * East and north are in meters in a local frame anchored at the first GPS fix
+     * Can be constructed from a Bundle and added to an existing Intent
+     */
+    public static class PropagatedPosition {
+        private double mLatitude;
+        private double mLongitude;
+        private float mEast;
+        private float mNorth;
+        private float mVelocityEast;
+        private float mVelocityNorth;
+        private float mUncertainty;
+        private float mFixAge;
+
+        /** Constructs a PropagatedPosition from its component values
+         * @param latitude the propagated latitude in degrees
+         * @param longitude the propagated longitude in degrees
+         * @param east the propagated east coordinate in meters (local frame)
+         * @param north the propagated north coordinate in meters (local frame)
+         * @param velocityEast the velocity towards east in meters per second
+         * @param velocityNorth the velocity towards north in meters per second
+         * @param uncertainty the estimated horizontal position error in meters
+         * @param fixAge the time since the last GPS fix in seconds
+         */
+        public PropagatedPosition(double latitude, double longitude, float east, float north,
+                                  float velocityEast, float velocityNorth, float uncertainty,
+                                  float fixAge) {
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mEast = east;
+            mNorth = north;
+            mVelocityEast = velocityEast;
+            mVelocityNorth = velocityNorth;
+            mUncertainty = uncertainty;
+            mFixAge = fixAge;
+        }
+
+        /** Constructor that takes a Bundle. Use addIntentExtras method to convert to an Intent */
+        public PropagatedPosition(Bundle bundle) {
+            mLatitude = bundle.getDouble("pos-lat");
+            mLongitude = bundle.getDouble("pos-lon");
+            mEast = bundle.getFloat("pos-e");
+            mNorth = bundle.getFloat("pos-n");
+            mVelocityEast = bundle.getFloat("pos-ve");
+            mVelocityNorth = bundle.getFloat("pos-vn");
+            mUncertainty = bundle.getFloat("pos-unc");
+            mFixAge = bundle.getFloat("pos-age");
+        }
+
+        /** Returns true if the input Bundle contains PropagatedPosition component values */
+        public static boolean isContainedIn(Bundle bundle) {
+            return bundle.containsKey("pos-lat");
+        }
+
+        /** Returns the input Intent with the PropagatedPosition component values added to it */
+        public Intent addIntentExtras(Intent intent) {
+            intent.putExtra("pos-lat", mLatitude);
+            intent.putExtra("pos-lon", mLongitude);
+            intent.putExtra("pos-e", mEast);
+            intent.putExtra("pos-n", mNorth);
+            intent.putExtra("pos-ve", mVelocityEast);
+            intent.putExtra("pos-vn", mVelocityNorth);
+            intent.putExtra("pos-unc", mUncertainty);
+            intent.putExtra("pos-age", mFixAge);
+            return intent;
+        }
+
+        /** Returns the propagated east coordinate in meters (local frame) */
+        public float getEast() {
+            return mEast;
+        }
+
+        /** Returns the time since the last GPS fix in seconds */
+        public float getFixAge() {
+            return mFixAge;
+        }
+
+        /** Returns the groundspeed in meters per second */
+        public double getGroundspeed() {
+            return Math.sqrt(mVelocityEast * mVelocityEast + mVelocityNorth * mVelocityNorth);
+        }
+
+        /** Returns the propagated latitude in degrees */
+        public double getLatitude() {
+            return mLatitude;
+        }
+
+        /** Returns the propagated longitude in degrees */
+        public double getLongitude() {
+            return mLongitude;
+        }
+
+        /** Returns the propagated north coordinate in meters (local frame) */
+        public float getNorth() {
+            return mNorth;
+        }
+
+        /** Returns the estimated horizontal position error (one standard deviation) in meters */
+        public float getUncertainty() {
+            return mUncertainty;
+        }
+
+        /** Returns the velocity towards east in meters per second */
+        public float getVelocityEast() {
+            return mVelocityEast;
+        }
+
+        /** Returns the velocity towards north in meters per second */
+        public float getVelocityNorth() {
+            return mVelocityNorth;
+        }
+    }
+
+    /** A static inner data model class that contains the filtered vertical state of the craft
+     * Intended to contain the estimates of VerticalKalmanFilter (fused baro, GPS & acceleration)
+     * Can be constructed from a Bundle and added to an existing Intent
+     */
+    public static class VerticalState {
+        private float mAltitude;
+        private float mClimbRate;
+        private float mBarometerBias;
+
+        /** Constructs a VerticalState from its component values
+         * @param altitude the estimated altitude in meters
+         * @param climbRate the estimated climb rate in meters per second (positive is up)
+         * @param barometerBias the estimated barometric altitude bias in meters
+         */
+        public VerticalState(float altitude, float climbRate, float barometerBias) {
+            mAltitude = altitude;
+            mClimbRate = climbRate;
+            mBarometerBias = barometerBias;
+        }
+
+        /** Constructor that takes a Bundle. Use addIntentExtras method to convert to an Intent */
+        public VerticalState(Bundle bundle) {
+            mAltitude = bundle.getFloat("vrt-alt");
+            mClimbRate = bundle.getFloat("vrt-climb");
+            mBarometerBias = bundle.getFloat("vrt-bias");
+        }
+
+        /** Returns true if the input Bundle contains VerticalState component values */
+        public static boolean isContainedIn(Bundle bundle) {
+            return bundle.containsKey("vrt-alt");
+        }
+
+        /** Returns the input Intent with the VerticalState component values added to it */
+        public Intent addIntentExtras(Intent intent) {
+            intent.putExtra("vrt-alt", mAltitude);
+            intent.putExtra("vrt-climb", mClimbRate);
+            intent.putExtra("vrt-bias", mBarometerBias);
+            return intent;
+        }
+
+        /** Returns the estimated altitude in meters */
+        public float getAltitude() {
+            return mAltitude;
+        }
+
+        /** Returns the estimated barometric altitude bias in meters */
+        public float getBarometerBias() {
+            return mBarometerBias;
+        }
+
+        /** Returns the estimated climb rate in meters per second (positive is up) */
+        public float getClimbRate() {
+            return mClimbRate;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,188 @@
+package com.rabidllamastudios.avigate.models;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+import com.rabidllamastudios.avigate.AvigateApplication;
+
+import java.util.Locale;
+
+/**
+ * A data model class that contains sensor to servo latency statistics over a reporting window
+ * One StageLatency per stage of LatencyTrace, plus the end to end total (index TOTAL)
+ * Can be constructed from a Bundle, converted into an Intent and exported as a CSV row
+ */
+public class LatencyPacket {
+    private static final String PACKAGE_NAME = AvigateApplication.class.getPackage().getName();
+    public static final String INTENT_ACTION = PACKAGE_NAME + ".action.LATENCY_DATA";
+
+    //Index of the end to end latency, following the stages of LatencyTrace
+    public static final int TOTAL = LatencyTrace.STAGE_COUNT;
+    public static final int ENTRY_COUNT = TOTAL + 1;
+    private static final String[] ENTRY_KEYS = {"sns", "sdl", "cwt", "ctl", "vdl", "srq", "srw",
+            "tot"};
+
+    private final StageLatency[] mStageLatencies = new StageLatency[ENTRY_COUNT];
+
+    public LatencyPacket() {}
+
+    /** Constructor that takes a Bundle. Use toIntent method to export data to an Intent */
+    public LatencyPacket(Bundle bundle) {
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            if (StageLatency.isContainedIn(bundle, ENTRY_KEYS[i])) {
+                mStageLatencies[i] = new StageLatency(bundle, ENTRY_KEYS[i]);
+            }
+        }
+    }
+
+    /** Returns an Intent with all LatencyPacket data as IntentExtras */
+    public Intent toIntent() {
+        Intent intent = new Intent(INTENT_ACTION);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            if (mStageLatencies[i] != null) {
+                intent = mStageLatencies[i].addIntentExtras(intent, ENTRY_KEYS[i]);
+            }
+        }
+        return intent;
+    }
+
+    /** Returns the CSV header matching toCsvRow: a time column, then 5 columns per entry */
+    public static String getCsvHeader() {
+        StringBuilder header = new StringBuilder("time");
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            String name = getEntryName(i);
+            header.append(',').append(name).append(" count");
+            header.append(',').append(name).append(" p50");
+            header.append(',').append(name).append(" p95");
+            header.append(',').append(name).append(" p99");
+            header.append(',').append(name).append(" max");
+        }
+        return header.toString();
+    }
+
+    /** Returns the display name of the input entry (a stage index of LatencyTrace, or TOTAL) */
+    public static String getEntryName(int entry) {
+        if (entry == TOTAL) return "Total";
+        return LatencyTrace.getStageName(entry);
+    }
+
+    /** Returns the StageLatency of the input entry (a stage index of LatencyTrace, or TOTAL)
+     * May be null if the entry was not traced during the reporting window
+     */
+    public StageLatency getStageLatency(int entry) {
+        return mStageLatencies[entry];
+    }
+
+    /** Sets the StageLatency of the input entry (a stage index of LatencyTrace, or TOTAL) */
+    public void setStageLatency(int entry, StageLatency stageLatency) {
+        mStageLatencies[entry] = stageLatency;
+    }
+
+    /** Returns the packet as a CSV row (see getCsvHeader). Missing entries are left empty.
+     * @param timeMillis the time of the row (e.g. System.currentTimeMillis) in ms
+     */
+    public String toCsvRow(long timeMillis) {
+        StringBuilder row = new StringBuilder(String.valueOf(timeMillis));
+        for (StageLatency stageLatency : mStageLatencies) {
+            if (stageLatency == null) {
+                row.append(",,,,,");
+            } else {
+                row.append(',').append(stageLatency.getCount());
+                row.append(',').append(formatMillis(stageLatency.getP50()));
+                row.append(',').append(formatMillis(stageLatency.getP95()));
+                row.append(',').append(formatMillis(stageLatency.getP99()));
+                row.append(',').append(formatMillis(stageLatency.getMax()));
+            }
+        }
+        return row.toString();
+    }
+
+    //Formats a duration in ms with microsecond resolution, independent of the default locale
+    private static String formatMillis(float millis) {
+        return String.format(Locale.US, "%.3f", millis);
+    }
+
+    //Reads a numeric value from a bundle. Remote bundles (parsed from JSON) may hold Doubles.
+    private static float getNumber(Bundle bundle, String key) {
+        Object value = bundle.get(key);
+        if (value instanceof Number) return ((Number) value).floatValue();
+        return 0;
+    }
+
+    /** A static inner data model class that contains the latency statistics of a single stage
+     * All durations are in milliseconds (ms)
+     */
+    public static class StageLatency {
+        private int mCount;
+        private float mP50;
+        private float mP95;
+        private float mP99;
+        private float mMax;
+
+        /** Constructs a StageLatency from its component values
+         * @param count the number of traced samples in the reporting window
+         * @param p50 the median latency in ms
+         * @param p95 the 95th percentile latency in ms
+         * @param p99 the 99th percentile latency in ms
+         * @param max the maximum latency in ms
+         */
+        public StageLatency(int count, float p50, float p95, float p99, float max) {
+            mCount = count;
+            mP50 = p50;
+            mP95 = p95;
+            mP99 = p99;
+            mMax = max;
+        }
+
+        //Constructor that takes a Bundle and the short name of the entry
+        private StageLatency(Bundle bundle, String entryKey) {
+            String prefix = "lat-" + entryKey + "-";
+            mCount = (int) getNumber(bundle, prefix + "n");
+            mP50 = getNumber(bundle, prefix + "p50");
+            mP95 = getNumber(bundle, prefix + "p95");
+            mP99 = getNumber(bundle, prefix + "p99");
+            mMax = getNumber(bundle, prefix + "max");
+        }
+
+        //Returns true if the input Bundle contains StageLatency values for the input entry
+        private static boolean isContainedIn(Bundle bundle, String entryKey) {
+            return bundle.containsKey("lat-" + entryKey + "-n");
+        }
+
+        //Returns the input Intent with the StageLatency values (for the input entry) added to it
+        private Intent addIntentExtras(Intent intent, String entryKey) {
+            String prefix = "lat-" + entryKey + "-";
+            intent.putExtra(prefix + "n", mCount);
+            intent.putExtra(prefix + "p50", mP50);
+            intent.putExtra(prefix + "p95", mP95);
+            intent.putExtra(prefix + "p99", mP99);
+            intent.putExtra(prefix + "max", mMax);
+            return intent;
+        }
+
+        /** Returns the number of traced samples in the reporting window */
+        public int getCount() {
+            return mCount;
+        }
+
+        /** Returns the maximum latency in ms */
+        public float getMax() {
+            return mMax;
+        }
+
+        /** Returns the median latency in ms */
+        public float getP50() {
+            return mP50;
+        }
+
+        /** Returns the 95th percentile latency in ms */
+        public float getP95() {
+            return mP95;
+        }
+
+        /** Returns the 99th percentile latency in ms */
+        public float getP99() {
+            return mP99;
+        }
+    }
+}
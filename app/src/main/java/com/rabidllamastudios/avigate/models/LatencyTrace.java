@@ -0,0 +1,119 @@
+package com.rabidllamastudios.avigate.models;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * Trace stamps (System.nanoTime) taken as a sensor sample travels from its SensorEvent to the USB
+ * write of the servo values computed from it. Every stage runs in the craft process, so stamps
+ * taken on different threads are comparable. Stage i spans trace point i to trace point i + 1.
+ * Travels between stages in a ServoFrame of the FlightPipeline, or as a long array Intent extra.
+ * NetworkService removes the extra before it publishes an Intent, so remote packets carry no trace.
+ */
+public class LatencyTrace {
+    private static final String KEY_TRACE = "trc";
+
+    //Trace points, in the order they are stamped along the sensor to servo path
+    //SensorEvent delivered to SensorService
+    public static final int POINT_SENSOR_EVENT = 0;
+    //Sensor sample published to the FlightPipeline by SensorService
+    public static final int POINT_STATE_BROADCAST = 1;
+    //Sensor sample consumed by the control loop of FlightControlService
+    public static final int POINT_STATE_RECEIVED = 2;
+    //First control step that uses the sensor sample
+    public static final int POINT_CONTROL_START = 3;
+    //Servo values (ServoFrame) published to the FlightPipeline by FlightControlService
+    public static final int POINT_SERVO_BROADCAST = 4;
+    //Batch of servo values (including these) dequeued by the serial writer of UsbSerialService
+    public static final int POINT_SERVO_RECEIVED = 5;
+    //Serial write of these servo values started, after the writes queued before them in the batch
+    public static final int POINT_WRITE_START = 6;
+    //Serial write returned
+    public static final int POINT_WRITE_END = 7;
+    public static final int POINT_COUNT = 8;
+    public static final int STAGE_COUNT = POINT_COUNT - 1;
+
+    private static final String[] STAGE_NAMES = {"Sensor wait", "State delivery", "Control wait",
+            "Control step", "Servo delivery", "Serial queue", "Serial write"};
+
+    private final long[] mStamps;
+
+    public LatencyTrace() {
+        mStamps = new long[POINT_COUNT];
+    }
+
+    /** Constructor that copies the stamps of the input LatencyTrace */
+    public LatencyTrace(LatencyTrace latencyTrace) {
+        mStamps = latencyTrace.mStamps.clone();
+    }
+
+    /** Constructor that takes a Bundle. Use isContainedIn to check that the Bundle has a trace */
+    public LatencyTrace(Bundle bundle) {
+        long[] stamps = bundle.getLongArray(KEY_TRACE);
+        mStamps = new long[POINT_COUNT];
+        if (stamps != null) {
+            System.arraycopy(stamps, 0, mStamps, 0, Math.min(stamps.length, POINT_COUNT));
+        }
+    }
+
+    /** Returns true if the input Bundle (may be null) contains a LatencyTrace */
+    public static boolean isContainedIn(Bundle bundle) {
+        return bundle != null && bundle.getLongArray(KEY_TRACE) != null;
+    }
+
+    /** Returns the input Intent with a copy of the trace stamps added to it, so stamps taken
+     * later do not change an Intent that is being broadcast
+     */
+    public Intent addIntentExtras(Intent intent) {
+        intent.putExtra(KEY_TRACE, mStamps.clone());
+        return intent;
+    }
+
+    /** Removes the LatencyTrace (if any) from the input Bundle */
+    public static void removeFrom(Bundle bundle) {
+        bundle.remove(KEY_TRACE);
+    }
+
+    /** Clears all trace stamps, so the trace can be reused (e.g. by a ServoFrame) */
+    public void clear() {
+        for (int i = 0; i < POINT_COUNT; i++) {
+            mStamps[i] = 0;
+        }
+    }
+
+    /** Returns the display name of the input stage (0 to STAGE_COUNT - 1) */
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /** Returns the duration of the input stage in nanoseconds, or -1 if it was not traced */
+    public long getStageNanos(int stage) {
+        return getElapsedNanos(stage, stage + 1);
+    }
+
+    /** Returns the stamp of the input trace point (System.nanoTime), or 0 if it is not stamped */
+    public long getStamp(int point) {
+        return mStamps[point];
+    }
+
+    /** Returns the time from the SensorEvent to the end of the serial write, or -1 if unknown */
+    public long getTotalNanos() {
+        return getElapsedNanos(POINT_SENSOR_EVENT, POINT_WRITE_END);
+    }
+
+    /** Stamps the input trace point with the current time */
+    public void stamp(int point) {
+        mStamps[point] = System.nanoTime();
+    }
+
+    /** Stamps the input trace point with the input time (System.nanoTime) */
+    public void stamp(int point, long nanos) {
+        mStamps[point] = nanos;
+    }
+
+    //Returns the time between two trace points in nanoseconds, or -1 if either is not stamped
+    private long getElapsedNanos(int startPoint, int endPoint) {
+        if (mStamps[startPoint] == 0 || mStamps[endPoint] == 0) return -1;
+        return mStamps[endPoint] - mStamps[startPoint];
+    }
+}
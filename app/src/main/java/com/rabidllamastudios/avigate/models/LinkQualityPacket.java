@@ -0,0 +1,120 @@
+package com.rabidllamastudios.avigate.models;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+import com.rabidllamastudios.avigate.AvigateApplication;
+
+/**
+ * A data model class that contains the quality of the network link of a device, as measured by
+ * its NetworkService: the smoothed round trip time (RTT) to the MQTT broker and back, probe loss,
+ * publishes not yet written to the network, and the current rate of each throttled telemetry
+ * topic (Intent action)
+ * Can be constructed from a Bundle and converted into an Intent
+ */
+public class LinkQualityPacket {
+    private static final String PACKAGE_NAME = AvigateApplication.class.getPackage().getName();
+    public static final String INTENT_ACTION = PACKAGE_NAME + ".action.LINK_QUALITY_DATA";
+
+    private final String mDeviceType;
+    private final float mRoundTripTime;
+    private final float mRoundTripVariation;
+    private final float mLossRatio;
+    private final int mPendingDeliveryCount;
+    private final String[] mTopics;
+    private final float[] mTopicRates;
+
+    /** Constructs a LinkQualityPacket from its component values
+     * @param deviceType the name of the NetworkService.DeviceType of the measuring device
+     * @param roundTripTime the smoothed RTT in ms (-1 if no probe has returned yet)
+     * @param roundTripVariation the RTT variation (mean deviation) in ms
+     * @param lossRatio the ratio of lost probes among the most recent probes
+     * @param pendingDeliveryCount the number of publishes not yet written to the network
+     * @param topics the throttled telemetry topics (Intent actions)
+     * @param topicRates the current rate of each topic in messages per second
+     */
+    public LinkQualityPacket(String deviceType, float roundTripTime, float roundTripVariation,
+                             float lossRatio, int pendingDeliveryCount, String[] topics,
+                             float[] topicRates) {
+        mDeviceType = deviceType;
+        mRoundTripTime = roundTripTime;
+        mRoundTripVariation = roundTripVariation;
+        mLossRatio = lossRatio;
+        mPendingDeliveryCount = pendingDeliveryCount;
+        mTopics = topics;
+        mTopicRates = topicRates;
+    }
+
+    /** Constructor that takes a Bundle. Use toIntent method to export data to an Intent */
+    public LinkQualityPacket(Bundle bundle) {
+        mDeviceType = bundle.getString("dev");
+        mRoundTripTime = bundle.getFloat("rtt", -1);
+        mRoundTripVariation = bundle.getFloat("rtv");
+        mLossRatio = bundle.getFloat("los");
+        mPendingDeliveryCount = bundle.getInt("pnd");
+        String[] topics = bundle.getStringArray("tpc");
+        float[] topicRates = bundle.getFloatArray("rat");
+        if (topics == null || topicRates == null || topics.length != topicRates.length) {
+            topics = new String[0];
+            topicRates = new float[0];
+        }
+        mTopics = topics;
+        mTopicRates = topicRates;
+    }
+
+    /** Returns an Intent with all LinkQualityPacket data as IntentExtras */
+    public Intent toIntent() {
+        Intent intent = new Intent(INTENT_ACTION);
+        intent.putExtra("dev", mDeviceType);
+        intent.putExtra("rtt", mRoundTripTime);
+        intent.putExtra("rtv", mRoundTripVariation);
+        intent.putExtra("los", mLossRatio);
+        intent.putExtra("pnd", mPendingDeliveryCount);
+        intent.putExtra("tpc", mTopics);
+        intent.putExtra("rat", mTopicRates);
+        return intent;
+    }
+
+    /** Returns the name of the NetworkService.DeviceType of the measuring device */
+    public String getDeviceType() {
+        return mDeviceType;
+    }
+
+    /** Returns the ratio of lost probes among the most recent probes */
+    public float getLossRatio() {
+        return mLossRatio;
+    }
+
+    /** Returns the number of publishes not yet written to the network */
+    public int getPendingDeliveryCount() {
+        return mPendingDeliveryCount;
+    }
+
+    /** Returns the smoothed RTT in ms (-1 if no probe has returned yet) */
+    public float getRoundTripTime() {
+        return mRoundTripTime;
+    }
+
+    /** Returns the RTT variation (mean deviation) in ms */
+    public float getRoundTripVariation() {
+        return mRoundTripVariation;
+    }
+
+    /** Returns the current rate of the input topic in messages per second (-1 if not throttled) */
+    public float getTopicRate(String topic) {
+        for (int i = 0; i < mTopics.length; i++) {
+            if (mTopics[i].equals(topic)) return mTopicRates[i];
+        }
+        return -1;
+    }
+
+    /** Returns the current rate of each topic (in the order of getTopics) */
+    public float[] getTopicRates() {
+        return mTopicRates;
+    }
+
+    /** Returns the throttled telemetry topics (Intent actions) */
+    public String[] getTopics() {
+        return mTopics;
+    }
+}
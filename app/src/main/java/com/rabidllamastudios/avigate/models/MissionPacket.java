@@ -0,0 +1,173 @@
+package com.rabidllamastudios.avigate.models;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+import com.rabidllamastudios.avigate.AvigateApplication;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * A data model class that contains a navigation mission: a home point and a list of waypoints
+ * Can be constructed from a Bundle and converted into an Intent
+ * Stores the mission as a JSON object, so it can be sent over the network & returned as a String
+ * A mission without waypoints clears the current mission (the craft stops navigating)
+ */
+public class MissionPacket {
+    private static final String PACKAGE_NAME = AvigateApplication.class.getPackage().getName();
+
+    /** Intent action denoting that the MissionPacket should be flown by the craft */
+    public static final String INTENT_ACTION = PACKAGE_NAME + ".action.MISSION";
+
+    //Key for the root JSON String of the MissionPacket when stored as a String Intent extra
+    private static final String KEY_ROOT = "mission";
+
+    //JSON keys for key value pairs
+    private static final String KEY_ACCEPTANCE_RADIUS = "radius";
+    private static final String KEY_ALTITUDE = "alt";
+    private static final String KEY_HOME = "home";
+    private static final String KEY_LATITUDE = "lat";
+    private static final String KEY_LONGITUDE = "lon";
+    private static final String KEY_REPEAT = "repeat";
+    private static final String KEY_WAYPOINTS = "waypoints";
+
+    private JSONObject rootJson;  //The JSON root object where all JSON data is stored
+
+    public MissionPacket() {
+        rootJson = new JSONObject();
+    }
+
+    /** Constructor that takes a JSON String. Use toIntent or toJsonString methods to export data */
+    public MissionPacket(String jsonString) {
+        rootJson = new JSONObject();
+        try {
+            rootJson = (JSONObject) new JSONParser().parse(jsonString);
+        } catch (ParseException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Constructor that takes a bundle */
+    public MissionPacket(Bundle bundle) {
+        this(bundle.getString(KEY_ROOT));
+    }
+
+    /** Returns an Intent with the MissionPacket contents packaged as an Intent Extra */
+    public Intent toIntent() {
+        Intent intent = new Intent(INTENT_ACTION);
+        intent.putExtra(KEY_ROOT, rootJson.toJSONString());
+        return intent;
+    }
+
+    /** Returns the stored JSON data as a string */
+    public String toJsonString() {
+        return rootJson.toJSONString();
+    }
+
+    /** Appends a waypoint to the mission
+     * @param latitude the latitude of the waypoint in degrees
+     * @param longitude the longitude of the waypoint in degrees
+     * @param altitude the altitude of the waypoint in meters (NaN to keep the current altitude)
+     */
+    @SuppressWarnings("unchecked")
+    public void addWaypoint(double latitude, double longitude, double altitude) {
+        JSONArray waypointsJson = new JSONArray();
+        if (rootJson.containsKey(KEY_WAYPOINTS)) {
+            waypointsJson = (JSONArray) rootJson.get(KEY_WAYPOINTS);
+        }
+        JSONObject waypointJson = new JSONObject();
+        waypointJson.put(KEY_LATITUDE, latitude);
+        waypointJson.put(KEY_LONGITUDE, longitude);
+        //JSON has no NaN, so a waypoint without an altitude simply omits it
+        if (!Double.isNaN(altitude)) waypointJson.put(KEY_ALTITUDE, altitude);
+        waypointsJson.add(waypointJson);
+        rootJson.put(KEY_WAYPOINTS, waypointsJson);
+    }
+
+    /** Returns the radius in meters within which a waypoint counts as reached. -1 if not set. */
+    public double getAcceptanceRadius() {
+        if (!rootJson.containsKey(KEY_ACCEPTANCE_RADIUS)) return -1;
+        return getDouble(rootJson, KEY_ACCEPTANCE_RADIUS);
+    }
+
+    /** Returns the latitude of the home point in degrees. Returns NaN if there is no home. */
+    public double getHomeLatitude() {
+        if (!hasHome()) return Double.NaN;
+        return getDouble((JSONObject) rootJson.get(KEY_HOME), KEY_LATITUDE);
+    }
+
+    /** Returns the longitude of the home point in degrees. Returns NaN if there is no home. */
+    public double getHomeLongitude() {
+        if (!hasHome()) return Double.NaN;
+        return getDouble((JSONObject) rootJson.get(KEY_HOME), KEY_LONGITUDE);
+    }
+
+    /** Returns the altitude of the waypoint at the input index in meters (NaN if not set) */
+    public double getWaypointAltitude(int index) {
+        JSONObject waypointJson = getWaypointJson(index);
+        if (!waypointJson.containsKey(KEY_ALTITUDE)) return Double.NaN;
+        return getDouble(waypointJson, KEY_ALTITUDE);
+    }
+
+    /** Returns the number of waypoints in the mission */
+    public int getWaypointCount() {
+        if (!rootJson.containsKey(KEY_WAYPOINTS)) return 0;
+        return ((JSONArray) rootJson.get(KEY_WAYPOINTS)).size();
+    }
+
+    /** Returns the latitude of the waypoint at the input index in degrees */
+    public double getWaypointLatitude(int index) {
+        return getDouble(getWaypointJson(index), KEY_LATITUDE);
+    }
+
+    /** Returns the longitude of the waypoint at the input index in degrees */
+    public double getWaypointLongitude(int index) {
+        return getDouble(getWaypointJson(index), KEY_LONGITUDE);
+    }
+
+    /** Returns true if the mission contains a home point */
+    public boolean hasHome() {
+        return rootJson.containsKey(KEY_HOME);
+    }
+
+    /** Returns true if the mission restarts from the first waypoint once it is complete */
+    public boolean isRepeat() {
+        return rootJson.containsKey(KEY_REPEAT) && (boolean) rootJson.get(KEY_REPEAT);
+    }
+
+    /** Sets the radius in meters within which a waypoint counts as reached */
+    @SuppressWarnings("unchecked")
+    public void setAcceptanceRadius(double acceptanceRadius) {
+        rootJson.put(KEY_ACCEPTANCE_RADIUS, acceptanceRadius);
+    }
+
+    /** Sets the home point (in degrees). The mission starts and ends at home. */
+    @SuppressWarnings("unchecked")
+    public void setHome(double latitude, double longitude) {
+        JSONObject homeJson = new JSONObject();
+        homeJson.put(KEY_LATITUDE, latitude);
+        homeJson.put(KEY_LONGITUDE, longitude);
+        rootJson.put(KEY_HOME, homeJson);
+    }
+
+    /** Sets whether the mission restarts from the first waypoint once it is complete */
+    @SuppressWarnings("unchecked")
+    public void setRepeat(boolean repeat) {
+        rootJson.put(KEY_REPEAT, repeat);
+    }
+
+    //Returns the JSONObject of the waypoint at the input index
+    private JSONObject getWaypointJson(int index) {
+        return (JSONObject) ((JSONArray) rootJson.get(KEY_WAYPOINTS)).get(index);
+    }
+
+    //Returns the numeric value of the input key. JSON numbers may be parsed as Long or Double.
+    private static double getDouble(JSONObject jsonObject, String jsonKey) {
+        Number value = (Number) jsonObject.get(jsonKey);
+        if (value == null) return 0;
+        return value.doubleValue();
+    }
+}
@@ -0,0 +1,77 @@
+package com.rabidllamastudios.avigate.models;
+
+/**
+ * A data model class that contains the mix of a single servo output (channel)
+ * The servo value is the base (the servo center, or the servo min for a throttle) plus the trim
+ * plus the sum of each weighted MixerInput, shaped by an expo curve and constrained to the limits.
+ * Stored in the craft profile (see ArduinoPacket.getMixerChannel and ArduinoPacket.setMixerChannel)
+ */
+public class MixerChannel {
+    /** Denotes a limit that is not set, so the output range of the servo applies */
+    public static final int NO_LIMIT = -1;
+
+    private final double[] mWeights = new double[ArduinoPacket.MixerInput.values().length];
+    private final boolean mCentered;
+    private final double mTrim;
+    private final double mExpo;
+    private final int mMin;
+    private final int mMax;
+
+    /** Constructs a MixerChannel without expo or limits beyond the output range of the servo
+     * @param centered true if the base is the servo center, false if it is the servo min
+     * @param trim the offset from the base in servo degrees
+     */
+    public MixerChannel(boolean centered, double trim) {
+        this(centered, trim, 0, NO_LIMIT, NO_LIMIT);
+    }
+
+    /** Constructs a MixerChannel from its component values. All weights are 0 (see setWeight).
+     * @param centered true if the base is the servo center, false if it is the servo min
+     * @param trim the offset from the base in servo degrees
+     * @param expo the expo of the curve, from 0 (linear) to 1 (cubic)
+     * @param min the minimum servo value in degrees (or NO_LIMIT)
+     * @param max the maximum servo value in degrees (or NO_LIMIT)
+     */
+    public MixerChannel(boolean centered, double trim, double expo, int min, int max) {
+        mCentered = centered;
+        mTrim = trim;
+        mExpo = Math.max(0, Math.min(1, expo));
+        mMin = min;
+        mMax = max;
+    }
+
+    /** Returns the expo of the curve, from 0 (linear) to 1 (cubic) */
+    public double getExpo() {
+        return mExpo;
+    }
+
+    /** Returns the maximum servo value in degrees (NO_LIMIT if not set) */
+    public int getMax() {
+        return mMax;
+    }
+
+    /** Returns the minimum servo value in degrees (NO_LIMIT if not set) */
+    public int getMin() {
+        return mMin;
+    }
+
+    /** Returns the offset from the base in servo degrees */
+    public double getTrim() {
+        return mTrim;
+    }
+
+    /** Returns the weight of the input MixerInput (servo degrees per unit of input) */
+    public double getWeight(ArduinoPacket.MixerInput mixerInput) {
+        return mWeights[mixerInput.ordinal()];
+    }
+
+    /** Returns true if the base is the servo center, false if it is the servo min */
+    public boolean isCentered() {
+        return mCentered;
+    }
+
+    /** Sets the weight of the input MixerInput. A negative weight reverses the input. */
+    public void setWeight(ArduinoPacket.MixerInput mixerInput, double weight) {
+        mWeights[mixerInput.ordinal()] = weight;
+    }
+}
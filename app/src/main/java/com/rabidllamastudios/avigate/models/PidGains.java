@@ -0,0 +1,46 @@
+package com.rabidllamastudios.avigate.models;
+
+/**
+ * A data model class that contains the gains and integrator limit of a single PID controller
+ * Stored in the craft profile (see ArduinoPacket.getPidGains and ArduinoPacket.setPidGains)
+ */
+public class PidGains {
+    private final double mProportionalGain;
+    private final double mIntegralGain;
+    private final double mDerivativeGain;
+    private final double mIntegratorLimit;
+
+    /** Constructs PidGains from its component values
+     * @param proportionalGain output per unit of error
+     * @param integralGain output per unit of error integrated over a second
+     * @param derivativeGain output per unit of error rate (per second)
+     * @param integratorLimit the maximum magnitude of the integral term (in output units)
+     */
+    public PidGains(double proportionalGain, double integralGain, double derivativeGain,
+                    double integratorLimit) {
+        mProportionalGain = proportionalGain;
+        mIntegralGain = integralGain;
+        mDerivativeGain = derivativeGain;
+        mIntegratorLimit = integratorLimit;
+    }
+
+    /** Returns the derivative gain */
+    public double getDerivativeGain() {
+        return mDerivativeGain;
+    }
+
+    /** Returns the integral gain */
+    public double getIntegralGain() {
+        return mIntegralGain;
+    }
+
+    /** Returns the maximum magnitude of the integral term (in output units) */
+    public double getIntegratorLimit() {
+        return mIntegratorLimit;
+    }
+
+    /** Returns the proportional gain */
+    public double getProportionalGain() {
+        return mProportionalGain;
+    }
+}
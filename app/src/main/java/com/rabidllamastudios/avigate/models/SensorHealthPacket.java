@@ -0,0 +1,179 @@
+package com.rabidllamastudios.avigate.models;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+import com.rabidllamastudios.avigate.AvigateApplication;
+
+/**
+ * A data model class that contains delivery statistics for each sensor of the craft
+ * Per sensor: delivered rate, jitter percentiles, max gap between samples, age of the last sample
+ * and whether the sensor is stale. Sensors are identified by the SENSOR_ constants.
+ * Can be constructed from a Bundle and converted into an Intent
+ */
+public class SensorHealthPacket {
+    private static final String PACKAGE_NAME = AvigateApplication.class.getPackage().getName();
+    public static final String INTENT_ACTION = PACKAGE_NAME + ".action.SENSOR_HEALTH_DATA";
+
+    //Sensor identifiers, used as indices and to build the bundle keys of each sensor
+    public static final int SENSOR_ACCELEROMETER = 0;
+    public static final int SENSOR_BAROMETER = 1;
+    public static final int SENSOR_COMPASS = 2;
+    public static final int SENSOR_GYROSCOPE = 3;
+    public static final int SENSOR_ROTATION_VECTOR = 4;
+    public static final int SENSOR_GPS = 5;
+    public static final int SENSOR_COUNT = 6;
+    private static final String[] SENSOR_KEYS = {"acc", "bar", "cmp", "gyr", "rot", "gps"};
+
+    private final SensorHealth[] mSensorHealth = new SensorHealth[SENSOR_COUNT];
+
+    public SensorHealthPacket() {}
+
+    /** Constructor that takes a Bundle. Use toIntent method to export data to an Intent */
+    public SensorHealthPacket(Bundle bundle) {
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            if (SensorHealth.isContainedIn(bundle, SENSOR_KEYS[i])) {
+                mSensorHealth[i] = new SensorHealth(bundle, SENSOR_KEYS[i]);
+            }
+        }
+    }
+
+    /** Returns an Intent with all SensorHealthPacket data as IntentExtras */
+    public Intent toIntent() {
+        Intent intent = new Intent(INTENT_ACTION);
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            if (mSensorHealth[i] != null) {
+                intent = mSensorHealth[i].addIntentExtras(intent, SENSOR_KEYS[i]);
+            }
+        }
+        return intent;
+    }
+
+    /** Returns the SensorHealth of the input sensor (a SENSOR_ constant). May be null. */
+    public SensorHealth getSensorHealth(int sensor) {
+        return mSensorHealth[sensor];
+    }
+
+    /** Sets the SensorHealth of the input sensor (a SENSOR_ constant) */
+    public void setSensorHealth(int sensor, SensorHealth sensorHealth) {
+        mSensorHealth[sensor] = sensorHealth;
+    }
+
+    /** Returns the short name of the input sensor (a SENSOR_ constant) */
+    public static String getSensorKey(int sensor) {
+        return SENSOR_KEYS[sensor];
+    }
+
+    /** Returns true if any sensor in this packet is stale */
+    public boolean hasStaleSensor() {
+        for (SensorHealth sensorHealth : mSensorHealth) {
+            if (sensorHealth != null && sensorHealth.isStale()) return true;
+        }
+        return false;
+    }
+
+    //Reads a numeric value from a bundle. Remote bundles (parsed from JSON) may hold Doubles.
+    private static float getNumber(Bundle bundle, String key) {
+        Object value = bundle.get(key);
+        if (value instanceof Number) return ((Number) value).floatValue();
+        return 0;
+    }
+
+    /** A static inner data model class that contains the delivery statistics of a single sensor
+     * All durations are in milliseconds (ms) and the rate is in Hertz (Hz)
+     */
+    public static class SensorHealth {
+        private float mRate;
+        private float mJitterP50;
+        private float mJitterP95;
+        private float mJitterP99;
+        private float mMaxGap;
+        private float mLastSampleAge;
+        private boolean mIsStale;
+
+        /** Constructs a SensorHealth from its component values
+         * @param rate the delivered sample rate in Hz
+         * @param jitterP50 the median delivery jitter in ms
+         * @param jitterP95 the 95th percentile delivery jitter in ms
+         * @param jitterP99 the 99th percentile delivery jitter in ms
+         * @param maxGap the longest time between two consecutive samples in ms
+         * @param lastSampleAge the time since the last sample in ms
+         * @param isStale true if the last sample is older than the stale threshold
+         */
+        public SensorHealth(float rate, float jitterP50, float jitterP95, float jitterP99,
+                            float maxGap, float lastSampleAge, boolean isStale) {
+            mRate = rate;
+            mJitterP50 = jitterP50;
+            mJitterP95 = jitterP95;
+            mJitterP99 = jitterP99;
+            mMaxGap = maxGap;
+            mLastSampleAge = lastSampleAge;
+            mIsStale = isStale;
+        }
+
+        //Constructor that takes a Bundle and the short name of the sensor
+        private SensorHealth(Bundle bundle, String sensorKey) {
+            String prefix = "hlt-" + sensorKey + "-";
+            mRate = getNumber(bundle, prefix + "rate");
+            mJitterP50 = getNumber(bundle, prefix + "p50");
+            mJitterP95 = getNumber(bundle, prefix + "p95");
+            mJitterP99 = getNumber(bundle, prefix + "p99");
+            mMaxGap = getNumber(bundle, prefix + "gap");
+            mLastSampleAge = getNumber(bundle, prefix + "age");
+            mIsStale = bundle.getBoolean(prefix + "stale");
+        }
+
+        //Returns true if the input Bundle contains SensorHealth values for the input sensor
+        private static boolean isContainedIn(Bundle bundle, String sensorKey) {
+            return bundle.containsKey("hlt-" + sensorKey + "-rate");
+        }
+
+        //Returns the input Intent with the SensorHealth values (for the input sensor) added to it
+        private Intent addIntentExtras(Intent intent, String sensorKey) {
+            String prefix = "hlt-" + sensorKey + "-";
+            intent.putExtra(prefix + "rate", mRate);
+            intent.putExtra(prefix + "p50", mJitterP50);
+            intent.putExtra(prefix + "p95", mJitterP95);
+            intent.putExtra(prefix + "p99", mJitterP99);
+            intent.putExtra(prefix + "gap", mMaxGap);
+            intent.putExtra(prefix + "age", mLastSampleAge);
+            intent.putExtra(prefix + "stale", mIsStale);
+            return intent;
+        }
+
+        /** Returns the median delivery jitter in ms */
+        public float getJitterP50() {
+            return mJitterP50;
+        }
+
+        /** Returns the 95th percentile delivery jitter in ms */
+        public float getJitterP95() {
+            return mJitterP95;
+        }
+
+        /** Returns the 99th percentile delivery jitter in ms */
+        public float getJitterP99() {
+            return mJitterP99;
+        }
+
+        /** Returns the time since the last sample in ms */
+        public float getLastSampleAge() {
+            return mLastSampleAge;
+        }
+
+        /** Returns the longest time between two consecutive samples in ms */
+        public float getMaxGap() {
+            return mMaxGap;
+        }
+
+        /** Returns the delivered sample rate in Hz */
+        public float getRate() {
+            return mRate;
+        }
+
+        /** Returns true if the last sample is older than the stale threshold */
+        public boolean isStale() {
+            return mIsStale;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.rabidllamastudios.avigate.models;
+
+/**
+ * A reusable slot of the sensor sample ring of the FlightPipeline: one sample of an attitude
+ * sensor (gyroscope or rotation vector), as delivered to the producer. Filled in place by set.
+ * Sensors are identified by the SENSOR_ constants of SensorHealthPacket. A gyroscope sample holds
+ * the bias corrected angular velocity (x, y, z) in rad/s, a rotation vector sample holds the raw
+ * orientation quaternion (w, x, y, z) in phone axes.
+ */
+public class SensorSample {
+    private int mSensor = -1;
+    private long mDeliveryNanos = 0;
+    private long mPublishNanos = 0;
+    private float mW;
+    private float mX;
+    private float mY;
+    private float mZ;
+
+    public SensorSample() {}
+
+    /** Returns the time at which the sample was delivered to the producer (System.nanoTime) */
+    public long getDeliveryNanos() {
+        return mDeliveryNanos;
+    }
+
+    /** Returns the time at which the sample was published to the ring (System.nanoTime) */
+    public long getPublishNanos() {
+        return mPublishNanos;
+    }
+
+    /** Returns the sensor of the sample (a SENSOR_ constant of SensorHealthPacket) */
+    public int getSensor() {
+        return mSensor;
+    }
+
+    /** Returns the w (scalar) component. Only used by rotation vector samples. */
+    public float getW() {
+        return mW;
+    }
+
+    /** Returns the x component */
+    public float getX() {
+        return mX;
+    }
+
+    /** Returns the y component */
+    public float getY() {
+        return mY;
+    }
+
+    /** Returns the z component */
+    public float getZ() {
+        return mZ;
+    }
+
+    /** Fills the slot with a gyroscope sample
+     * @param deliveryNanos the time at which the sample was delivered (System.nanoTime)
+     * @param x angular velocity about the phone's X-axis in rad/s (bias corrected)
+     * @param y angular velocity about the phone's Y-axis in rad/s (bias corrected)
+     * @param z angular velocity about the phone's Z-axis in rad/s (bias corrected)
+     */
+    public void setAngularVelocity(long deliveryNanos, float x, float y, float z) {
+        set(SensorHealthPacket.SENSOR_GYROSCOPE, deliveryNanos, 0, x, y, z);
+    }
+
+    /** Fills the slot with a rotation vector sample (the raw orientation quaternion)
+     * @param deliveryNanos the time at which the sample was delivered (System.nanoTime)
+     */
+    public void setOrientation(long deliveryNanos, float w, float x, float y, float z) {
+        set(SensorHealthPacket.SENSOR_ROTATION_VECTOR, deliveryNanos, w, x, y, z);
+    }
+
+    /** Stamps the time at which the sample is published (System.nanoTime) */
+    public void setPublishNanos(long publishNanos) {
+        mPublishNanos = publishNanos;
+    }
+
+    //Fills the slot. Clears the publish time, which is stamped on publish.
+    private void set(int sensor, long deliveryNanos, float w, float x, float y, float z) {
+        mSensor = sensor;
+        mDeliveryNanos = deliveryNanos;
+        mPublishNanos = 0;
+        mW = w;
+        mX = x;
+        mY = y;
+        mZ = z;
+    }
+}
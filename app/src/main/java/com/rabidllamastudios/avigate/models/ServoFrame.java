@@ -0,0 +1,142 @@
+package com.rabidllamastudios.avigate.models;
+
+/**
+ * A reusable slot of the servo frame ring of the FlightPipeline: the servo values of one control
+ * step, with the LatencyTrace of the sensor sample they were computed from (if traced).
+ * Encodes itself as the serial frame of an ArduinoPacket with the same servo values (e.g.
+ * "@{"aileron":{"value":90}}#") without allocating, so the Arduino sees no difference.
+ */
+public class ServoFrame {
+    /** Maximum length of an encoded frame in bytes (all servos, with any int value) */
+    public static final int MAX_FRAME_LENGTH = 192;
+
+    private static final ArduinoPacket.ServoType[] SERVO_TYPES = ArduinoPacket.ServoType.values();
+    private static final byte[][] SERVO_KEYS = new byte[SERVO_TYPES.length][];
+    private static final byte[] VALUE_KEY = toAscii("\":{\"value\":");
+
+    static {
+        for (int i = 0; i < SERVO_TYPES.length; i++) {
+            SERVO_KEYS[i] = toAscii(SERVO_TYPES[i].getStringValue());
+        }
+    }
+
+    private final int[] mServoValues = new int[SERVO_TYPES.length];
+    private final boolean[] mHasServoValue = new boolean[SERVO_TYPES.length];
+    private final LatencyTrace mLatencyTrace = new LatencyTrace();
+    private boolean mIsTraced = false;
+
+    public ServoFrame() {}
+
+    /** Removes all servo values and clears the LatencyTrace, so the slot can be refilled */
+    public void clear() {
+        for (int i = 0; i < SERVO_TYPES.length; i++) {
+            mHasServoValue[i] = false;
+        }
+        mLatencyTrace.clear();
+        mIsTraced = false;
+    }
+
+    /** Encodes the servo values as a serial frame (start marker, JSON, end marker)
+     * @param buffer the buffer to write to, at least MAX_FRAME_LENGTH bytes long
+     * @return the length of the frame in bytes
+     */
+    public int encode(byte[] buffer) {
+        int length = 0;
+        buffer[length++] = '@';
+        buffer[length++] = '{';
+        boolean isFirst = true;
+        for (int i = 0; i < SERVO_TYPES.length; i++) {
+            if (!mHasServoValue[i]) continue;
+            if (!isFirst) buffer[length++] = ',';
+            isFirst = false;
+            buffer[length++] = '"';
+            length = put(buffer, length, SERVO_KEYS[i]);
+            length = put(buffer, length, VALUE_KEY);
+            length = putInt(buffer, length, mServoValues[i]);
+            buffer[length++] = '}';
+        }
+        buffer[length++] = '}';
+        buffer[length++] = '#';
+        return length;
+    }
+
+    /** Returns the LatencyTrace of the frame. Only meaningful if the frame is traced. */
+    public LatencyTrace getLatencyTrace() {
+        return mLatencyTrace;
+    }
+
+    /** Returns the value of the input ServoType in degrees (see hasServoValue) */
+    public int getServoValue(ArduinoPacket.ServoType servoType) {
+        return mServoValues[servoType.ordinal()];
+    }
+
+    /** Returns true if the frame contains at least one servo value */
+    public boolean hasServoValue() {
+        for (int i = 0; i < SERVO_TYPES.length; i++) {
+            if (mHasServoValue[i]) return true;
+        }
+        return false;
+    }
+
+    /** Returns true if the frame contains a value for the input ServoType */
+    public boolean hasServoValue(ArduinoPacket.ServoType servoType) {
+        return mHasServoValue[servoType.ordinal()];
+    }
+
+    /** Returns true if the LatencyTrace of the frame is in use */
+    public boolean isTraced() {
+        return mIsTraced;
+    }
+
+    /** Sets the value of the input ServoType in degrees */
+    public void setServoValue(ArduinoPacket.ServoType servoType, int value) {
+        mServoValues[servoType.ordinal()] = value;
+        mHasServoValue[servoType.ordinal()] = true;
+    }
+
+    /** Sets whether the LatencyTrace of the frame is in use */
+    public void setTraced(boolean isTraced) {
+        mIsTraced = isTraced;
+    }
+
+    /** Returns an ArduinoPacket with the servo values of the frame (allocates) */
+    public ArduinoPacket toArduinoPacket() {
+        ArduinoPacket arduinoPacket = new ArduinoPacket();
+        for (int i = 0; i < SERVO_TYPES.length; i++) {
+            if (mHasServoValue[i]) arduinoPacket.setServoValue(SERVO_TYPES[i], mServoValues[i]);
+        }
+        return arduinoPacket;
+    }
+
+    //Copies the input bytes into the buffer at the input position, returns the next position
+    private static int put(byte[] buffer, int position, byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    //Writes the decimal digits of the input value into the buffer, returns the next position
+    private static int putInt(byte[] buffer, int position, int value) {
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digitCount = 1;
+        for (int remainder = value / 10; remainder > 0; remainder /= 10) {
+            digitCount++;
+        }
+        for (int i = position + digitCount - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + digitCount;
+    }
+
+    //Returns the ASCII bytes of the input String
+    private static byte[] toAscii(String string) {
+        byte[] bytes = new byte[string.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) string.charAt(i);
+        }
+        return bytes;
+    }
+}
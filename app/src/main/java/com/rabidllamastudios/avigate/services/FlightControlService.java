@@ -6,15 +6,50 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.IBinder;
+import android.os.Process;
 import android.util.Log;
 
 import com.rabidllamastudios.avigate.AvigateApplication;
+import com.rabidllamastudios.avigate.helpers.ControlLoop;
+import com.rabidllamastudios.avigate.helpers.EventBus;
+import com.rabidllamastudios.avigate.helpers.FlightController;
+import com.rabidllamastudios.avigate.helpers.FlightPipeline;
+import com.rabidllamastudios.avigate.helpers.FlightTopics;
+import com.rabidllamastudios.avigate.helpers.RelayAutotuner;
+import com.rabidllamastudios.avigate.helpers.RingBuffer;
+import com.rabidllamastudios.avigate.helpers.ServoMixer;
+import com.rabidllamastudios.avigate.helpers.ServoOutputFilter;
+import com.rabidllamastudios.avigate.helpers.WaypointNavigator;
 import com.rabidllamastudios.avigate.models.ArduinoPacket;
 import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.LatencyTrace;
+import com.rabidllamastudios.avigate.models.MissionPacket;
+import com.rabidllamastudios.avigate.models.PidGains;
+import com.rabidllamastudios.avigate.models.SensorHealthPacket;
+import com.rabidllamastudios.avigate.models.SensorSample;
+import com.rabidllamastudios.avigate.models.ServoFrame;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Service responsible for maintaining craft control and stability
- * Reads in sensor data via CraftStatePackets and broadcasts craft commands via ArduinoPackets
+ * Reads in sensor data via CraftStatePackets and publishes craft commands via ArduinoPackets
+ * (on the EventBus, so neither leaves the process as an Intent)
+ * Control runs on a dedicated high priority thread at a fixed rate, using the latest sensor data
+ * The steady state path runs through the FlightPipeline: every control step drains the attitude
+ * samples delivered since the last one and publishes its servo values as a ServoFrame, without
+ * allocating. CraftStatePackets provide the slower data (position, altitude, sensor validity).
+ * PID gains for roll, pitch, yaw and speed are read from the craft profile (ArduinoPacket), and
+ * the gains of one axis can be changed in flight without a reconfiguration (see getSetGainsIntent)
+ * An autotune mode runs a relay feedback experiment on one axis and reports its ultimate gain
+ * and period, from which the controller proposes gains for the craft profile
+ * If a mission (MissionPacket) has been received, the roll setpoint follows the waypoint guidance
+ * Altitude hold (engaged remotely) drives the elevator through the pitch loop, and the throttle
+ * with a climb rate feedforward
+ * Controller outputs are mixed onto the servos by a ServoMixer configured from the craft profile
+ * (e.g. elevons or a V-tail), then pass through a ServoOutputFilter, so unchanged commands are not
+ * sent to the Arduino
  * Created by Ryan Staatz on 1/1/2016
  */
 public class FlightControlService extends Service {
@@ -24,22 +59,112 @@ public class FlightControlService extends Service {
 
     public static final String INTENT_ACTION_CONFIGURE_FLIGHT_CONTROL_SERVICE =
             PACKAGE_NAME + ".action.CONFIGURE_FLIGHT_CONTROL_SERVICE";
+    public static final String INTENT_ACTION_SET_GAINS =
+            PACKAGE_NAME + ".action.SET_GAINS";
+    public static final String INTENT_ACTION_START_AUTOTUNE =
+            PACKAGE_NAME + ".action.START_AUTOTUNE";
+    public static final String INTENT_ACTION_STOP_AUTOTUNE =
+            PACKAGE_NAME + ".action.STOP_AUTOTUNE";
+    public static final String INTENT_ACTION_AUTOTUNE_RESULT =
+            PACKAGE_NAME + ".action.AUTOTUNE_RESULT";
+    public static final String INTENT_ACTION_HOLD_ALTITUDE =
+            PACKAGE_NAME + ".action.HOLD_ALTITUDE";
+    public static final String INTENT_ACTION_RELEASE_ALTITUDE =
+            PACKAGE_NAME + ".action.RELEASE_ALTITUDE";
+    public static final String INTENT_ACTION_ALTITUDE_HOLD_STATUS =
+            PACKAGE_NAME + ".action.ALTITUDE_HOLD_STATUS";
+    public static final String INTENT_ACTION_REQUEST_ALTITUDE_HOLD_STATUS =
+            PACKAGE_NAME + ".action.REQUEST_ALTITUDE_HOLD_STATUS";
+    public static final String EXTRA_ALTITUDE = PACKAGE_NAME + ".extra.ALTITUDE";
+    public static final String EXTRA_ALTITUDE_CHANGE = PACKAGE_NAME + ".extra.ALTITUDE_CHANGE";
+    public static final String EXTRA_AUTOTUNE_AXIS = PACKAGE_NAME + ".extra.AUTOTUNE_AXIS";
     public static final String EXTRA_CONFIG = PACKAGE_NAME + ".extra.CONFIG";
+    public static final String EXTRA_CONTROL_AXIS = PACKAGE_NAME + ".extra.CONTROL_AXIS";
+    public static final String EXTRA_CONTROL_RATE = PACKAGE_NAME + ".extra.CONTROL_RATE";
+    public static final String EXTRA_DERIVATIVE_GAIN = PACKAGE_NAME + ".extra.DERIVATIVE_GAIN";
+    public static final String EXTRA_INTEGRAL_GAIN = PACKAGE_NAME + ".extra.INTEGRAL_GAIN";
+    public static final String EXTRA_INTEGRATOR_LIMIT = PACKAGE_NAME + ".extra.INTEGRATOR_LIMIT";
+    public static final String EXTRA_PROPORTIONAL_GAIN =
+            PACKAGE_NAME + ".extra.PROPORTIONAL_GAIN";
+    public static final String EXTRA_RELAY_AMPLITUDE = PACKAGE_NAME + ".extra.RELAY_AMPLITUDE";
+    public static final String EXTRA_ULTIMATE_GAIN = PACKAGE_NAME + ".extra.ULTIMATE_GAIN";
+    public static final String EXTRA_ULTIMATE_PERIOD = PACKAGE_NAME + ".extra.ULTIMATE_PERIOD";
+
+    //Default control loop rate in Hertz (Hz)
+    private static final int DEFAULT_CONTROL_RATE = 50;
+    //Default autotune relay amplitude in servo degrees
+    private static final double DEFAULT_RELAY_AMPLITUDE = 10;
+    //The autotune experiment fails if it has not completed after this many seconds
+    private static final double AUTOTUNE_TIMEOUT = 60;
+    //Altitude hold limits: commanded climb rate in m/s and commanded pitch in degrees
+    private static final double MAX_CLIMB_RATE = 3;
+    private static final double MAX_PITCH = 15;
+    //Servo output filter: deadband in servo degrees, slew rates in servo degrees per second,
+    //and the interval at which unchanged servo values are resent in seconds
+    private static final int SERVO_DEADBAND = 1;
+    private static final double SURFACE_SLEW_RATE = 360;
+    private static final double THROTTLE_SLEW_RATE = 180;
+    private static final double SERVO_KEEP_ALIVE_INTERVAL = 1;
+    //Interval at which the servo output filter traffic counters are logged (then reset) in seconds
+    private static final double SERVO_FILTER_LOG_INTERVAL = 10;
 
     //TODO implement instance boolean variable logic
     private boolean mPhoneFacingNose = false;
-    private boolean mReceiverControl = false;
+    //Written on the main thread and read on the control loop thread, hence volatile
+    private volatile boolean mReceiverControl = false;
     private boolean mUsbSerialIsReady = false;
 
-    //TODO empirically test differential gain constants
-    //Gain constant in degrees correction per error degrees/second
-    private static final double DIFFERENTIAL_GAIN = -0.5;
-    //Gain constant in degrees correction per error degrees
-    private static final int PROPORTIONAL_GAIN = -3;
-
-    private BroadcastReceiver mArduinoOutputReceiver = null;
-    private BroadcastReceiver mCraftStateReceiver = null;
-    private ArduinoPacket mConfigArduinoPacket = null;
+    private BroadcastReceiver mAltitudeReceiver = null;
+    private BroadcastReceiver mAutotuneReceiver = null;
+    private BroadcastReceiver mMissionReceiver = null;
+    private EventBus.Subscription<ArduinoPacket> mArduinoOutputSubscription = null;
+    private EventBus.Subscription<CraftStatePacket> mCraftStateSubscription = null;
+    private ControlLoop mControlLoop = null;
+    //Only accessed on the control loop thread once the loop is started
+    private FlightController mFlightController = null;
+    private final FlightController.State mFlightState = new FlightController.State();
+    private ServoMixer mServoMixer = null;
+    private ServoOutputFilter mServoOutputFilter = null;
+    private double mServoFilterLogTime = 0;
+    private volatile ArduinoPacket mConfigArduinoPacket = null;
+    //Latest sensor snapshot, written by mCraftStateReceiver and read by the control loop
+    private volatile CraftStatePacket mLatestCraftStatePacket = null;
+    //Latest attitude samples from the FlightPipeline. Only accessed on the control loop thread.
+    private final FlightPipeline mFlightPipeline = FlightPipeline.getDefault();
+    private final CraftStatePacket.AngularVelocity mSampledAngularVelocity =
+            new CraftStatePacket.AngularVelocity(0, 0, 0);
+    private final CraftStatePacket.Orientation mSampledOrientation =
+            new CraftStatePacket.Orientation(1, 0, 0, 0);
+    private boolean mHasSampledAngularVelocity = false;
+    private boolean mHasSampledOrientation = false;
+    //Trace stamps of the latest orientation sample, which is traced by the first step using it
+    private long mOrientationDeliveryNanos = 0;
+    private long mOrientationPublishNanos = 0;
+    private long mOrientationReceivedNanos = 0;
+    private boolean mIsOrientationTraced = true;
+    //Receives the servo values of a step if the servo frame ring is full (the frame is dropped)
+    private final ServoFrame mDroppedServoFrame = new ServoFrame();
+    //Latest autotune request, written by mAutotuneReceiver (null stops the experiment)
+    private volatile AutotuneRequest mAutotuneRequest = null;
+    //Autotune state. Only accessed on the control loop thread once the loop is started.
+    private AutotuneRequest mActiveAutotuneRequest = null;
+    private RelayAutotuner mRelayAutotuner = null;
+    private double mAutotuneOutput = 0;
+    //Axes whose gains changed in the profile, queued by mAutotuneReceiver for the control loop
+    private final Queue<ArduinoPacket.ControlAxis> mGainsUpdates = new ConcurrentLinkedQueue<>();
+    //Navigator of the latest mission, created (with its legs precomputed) by mMissionReceiver
+    private volatile WaypointNavigator mLatestWaypointNavigator = null;
+    //Navigator in use. Only accessed on the control loop thread once the loop is started.
+    private WaypointNavigator mWaypointNavigator = null;
+    //Latest altitude hold command, written by mAltitudeReceiver (null releases altitude hold)
+    private volatile AltitudeCommand mAltitudeCommand = null;
+    //Altitude hold state. Only accessed on the control loop thread once the loop is started.
+    //The held altitude survives a reconfiguration, so altitude hold is re-engaged afterwards.
+    private AltitudeCommand mAppliedAltitudeCommand = null;
+    private double mHeldAltitude = Double.NaN;
+    //Held altitude as last reported in an altitude hold status (NaN if released), written on the
+    //control loop thread and read by mAltitudeReceiver to answer status requests
+    private volatile double mReportedHeldAltitude = Double.NaN;
 
     public FlightControlService() {}
 
@@ -50,21 +175,58 @@ public class FlightControlService extends Service {
             if (intent.hasExtra(EXTRA_CONFIG))
                 mConfigArduinoPacket = new ArduinoPacket(intent.getStringExtra(EXTRA_CONFIG));
             //If mArduinoOutputReceiver is already initialized, unregister it and set it to null
-            if (mArduinoOutputReceiver != null) {
-                unregisterReceiver(mArduinoOutputReceiver);
-                mArduinoOutputReceiver = null;
+            EventBus eventBus = EventBus.getDefault();
+            eventBus.unsubscribe(mArduinoOutputSubscription);
+            //Subscribe to ArduinoPacket output on the main thread
+            mArduinoOutputSubscription = eventBus.subscribe(FlightTopics.ARDUINO_OUTPUT,
+                    EventBus.createMainThreadExecutor(), createArduinoOutputSubscriber());
+            //Subscribe to CraftStatePackets on the publishing thread, since the subscriber only
+            //stores the latest snapshot for the control loop
+            eventBus.unsubscribe(mCraftStateSubscription);
+            mCraftStateSubscription = eventBus.subscribe(FlightTopics.CRAFT_STATE,
+                    EventBus.IMMEDIATE, mCraftStateSubscriber);
+            //Register listener for autotune start and stop Intents
+            if (mAutotuneReceiver == null) {
+                mAutotuneReceiver = createAutotuneReceiver();
+                IntentFilter autotuneIntentFilter = new IntentFilter();
+                autotuneIntentFilter.addAction(INTENT_ACTION_START_AUTOTUNE);
+                autotuneIntentFilter.addAction(INTENT_ACTION_STOP_AUTOTUNE);
+                autotuneIntentFilter.addAction(INTENT_ACTION_SET_GAINS);
+                registerReceiver(mAutotuneReceiver, autotuneIntentFilter);
+            }
+            //Register listener for altitude hold Intents
+            if (mAltitudeReceiver == null) {
+                mAltitudeReceiver = createAltitudeReceiver();
+                IntentFilter altitudeIntentFilter = new IntentFilter();
+                altitudeIntentFilter.addAction(INTENT_ACTION_HOLD_ALTITUDE);
+                altitudeIntentFilter.addAction(INTENT_ACTION_RELEASE_ALTITUDE);
+                altitudeIntentFilter.addAction(INTENT_ACTION_REQUEST_ALTITUDE_HOLD_STATUS);
+                registerReceiver(mAltitudeReceiver, altitudeIntentFilter);
             }
-            //Register BroadcastReceiver for ArduinoPacket output Intents
-            mArduinoOutputReceiver = createArduinoOutputReceiver();
-            IntentFilter arduinoIntentFilter = new IntentFilter(ArduinoPacket.INTENT_ACTION_OUTPUT);
-            registerReceiver(mArduinoOutputReceiver, arduinoIntentFilter);
-            //Register listener for CraftStatePacket Intents
-            if (mCraftStateReceiver != null) {
-                unregisterReceiver(mCraftStateReceiver);
-                mCraftStateReceiver = null;
+            //Register listener for MissionPacket Intents
+            if (mMissionReceiver == null) {
+                mMissionReceiver = createMissionReceiver();
+                registerReceiver(mMissionReceiver, new IntentFilter(MissionPacket.INTENT_ACTION));
             }
-            mCraftStateReceiver = createCraftStateReceiver();
-            registerReceiver(mCraftStateReceiver, new IntentFilter(CraftStatePacket.INTENT_ACTION));
+            //(Re)start the control loop at the configured rate
+            if (mControlLoop != null) mControlLoop.stop();
+            mFlightController = FlightController.fromProfile(mConfigArduinoPacket);
+            mServoMixer = ServoMixer.fromProfile(mConfigArduinoPacket);
+            mServoOutputFilter = createServoOutputFilter();
+            //A new configuration cancels any autotune experiment
+            mAutotuneRequest = null;
+            mActiveAutotuneRequest = null;
+            mRelayAutotuner = null;
+            //The new profile already contains any gains updates
+            mGainsUpdates.clear();
+            int controlRate = intent.getIntExtra(EXTRA_CONTROL_RATE, DEFAULT_CONTROL_RATE);
+            mControlLoop = new ControlLoop(CLASS_NAME, controlRate,
+                    Process.THREAD_PRIORITY_URGENT_DISPLAY, mControlStep);
+            //The sensor ring keeps the oldest samples when full, so samples published while the
+            //loop was stopped are stale. The loop starts from the next sample instead.
+            int skipped = mFlightPipeline.getSensorSamples().skip();
+            if (skipped > 0) Log.i(CLASS_NAME, "Skipped " + skipped + " stale sensor samples");
+            mControlLoop.start();
         }
         Log.i(CLASS_NAME, "Service started");
         return START_STICKY;
@@ -72,14 +234,28 @@ public class FlightControlService extends Service {
 
     @Override
     public void onDestroy() {
+        //Stop the control loop
+        if (mControlLoop != null) {
+            mControlLoop.stop();
+            mControlLoop = null;
+        }
         //Unregister all receivers
-        if (mArduinoOutputReceiver != null) {
-            unregisterReceiver(mArduinoOutputReceiver);
-            mArduinoOutputReceiver = null;
+        if (mAltitudeReceiver != null) {
+            unregisterReceiver(mAltitudeReceiver);
+            mAltitudeReceiver = null;
+        }
+        //Cancel all subscriptions
+        EventBus.getDefault().unsubscribe(mArduinoOutputSubscription);
+        mArduinoOutputSubscription = null;
+        EventBus.getDefault().unsubscribe(mCraftStateSubscription);
+        mCraftStateSubscription = null;
+        if (mAutotuneReceiver != null) {
+            unregisterReceiver(mAutotuneReceiver);
+            mAutotuneReceiver = null;
         }
-        if (mCraftStateReceiver != null) {
-            unregisterReceiver(mCraftStateReceiver);
-            mCraftStateReceiver = null;
+        if (mMissionReceiver != null) {
+            unregisterReceiver(mMissionReceiver);
+            mMissionReceiver = null;
         }
         Log.i(CLASS_NAME, "Service stopped");
         //Call super method
@@ -105,95 +281,616 @@ public class FlightControlService extends Service {
         return null;
     }
 
+    /** Returns a configured intent that can be used to start this service (FlightControlService)
+     * @param configArduinoPacket contains all the necessary Arduino configuration data
+     * @param controlRate the rate of the control loop in Hertz (Hz)
+     * @return a configured Intent (minus the class/component) that can start FlightControlService
+     */
+    public static Intent getConfiguredIntent(ArduinoPacket configArduinoPacket, int controlRate) {
+        Intent intent = getConfiguredIntent(configArduinoPacket);
+        if (intent != null) intent.putExtra(EXTRA_CONTROL_RATE, controlRate);
+        return intent;
+    }
+
+    /** Returns an intent that starts an autotune experiment on the input ControlAxis
+     * The axis is driven by a relay of +/- the input amplitude around its current output, until
+     * its ultimate gain and period are known. The result is sent as INTENT_ACTION_AUTOTUNE_RESULT.
+     * @param controlAxis the axis to tune. Its servo must be controlled by the phone.
+     * @param relayAmplitude the relay amplitude in servo degrees
+     * @return an Intent (minus the class/component) that starts the autotune experiment
+     */
+    public static Intent getStartAutotuneIntent(ArduinoPacket.ControlAxis controlAxis,
+                                                double relayAmplitude) {
+        Intent intent = new Intent(INTENT_ACTION_START_AUTOTUNE);
+        intent.putExtra(EXTRA_AUTOTUNE_AXIS, controlAxis.getStringValue());
+        intent.putExtra(EXTRA_RELAY_AMPLITUDE, relayAmplitude);
+        return intent;
+    }
+
+    /** Returns an intent that changes the gains of one ControlAxis in flight (e.g. autotuned
+     * gains), without reconfiguring FlightControlService: the other axes, the filters and the
+     * sensors keep their state. The gains are also kept if the service is restarted.
+     * @param controlAxis the axis to set the gains of (roll, pitch, yaw or speed)
+     * @param pidGains the new gains of the axis
+     * @return an Intent (minus the class/component) that sets the gains
+     */
+    public static Intent getSetGainsIntent(ArduinoPacket.ControlAxis controlAxis,
+                                           PidGains pidGains) {
+        Intent intent = new Intent(INTENT_ACTION_SET_GAINS);
+        intent.putExtra(EXTRA_CONTROL_AXIS, controlAxis.getStringValue());
+        intent.putExtra(EXTRA_PROPORTIONAL_GAIN, pidGains.getProportionalGain());
+        intent.putExtra(EXTRA_INTEGRAL_GAIN, pidGains.getIntegralGain());
+        intent.putExtra(EXTRA_DERIVATIVE_GAIN, pidGains.getDerivativeGain());
+        intent.putExtra(EXTRA_INTEGRATOR_LIMIT, pidGains.getIntegratorLimit());
+        return intent;
+    }
+
+    /** Returns an intent that engages altitude hold, or changes the held altitude
+     * If altitude hold is not engaged, the craft holds its current altitude plus the change
+     * @param altitudeChange the change of the held altitude in meters (positive is up)
+     * @return an Intent (minus the class/component) that engages or adjusts altitude hold
+     */
+    public static Intent getHoldAltitudeIntent(double altitudeChange) {
+        Intent intent = new Intent(INTENT_ACTION_HOLD_ALTITUDE);
+        intent.putExtra(EXTRA_ALTITUDE_CHANGE, altitudeChange);
+        return intent;
+    }
+
+    /**
+     * Returns an altitude hold status Intent, as broadcast by this service when altitude hold is
+     * engaged, adjusted or released, and in reply to INTENT_ACTION_REQUEST_ALTITUDE_HOLD_STATUS
+     * @param heldAltitude the held altitude in meters, or NaN if altitude hold is released
+     * @return an Intent with EXTRA_ALTITUDE if altitude is held, and without it otherwise
+     */
+    public static Intent getAltitudeHoldStatusIntent(double heldAltitude) {
+        Intent intent = new Intent(INTENT_ACTION_ALTITUDE_HOLD_STATUS);
+        if (!Double.isNaN(heldAltitude)) intent.putExtra(EXTRA_ALTITUDE, heldAltitude);
+        return intent;
+    }
+
+    /** Returns the ControlAxis with the input String value. Returns null if there is none. */
+    public static ArduinoPacket.ControlAxis getControlAxis(String stringValue) {
+        for (ArduinoPacket.ControlAxis controlAxis : ArduinoPacket.ControlAxis.values()) {
+            if (controlAxis.getStringValue().equals(stringValue)) return controlAxis;
+        }
+        return null;
+    }
+
     //Listens for responses from the connected Arduino and responds accordingly
-    private BroadcastReceiver createArduinoOutputReceiver() {
+    private EventBus.Subscriber<ArduinoPacket> createArduinoOutputSubscriber() {
+        return new EventBus.Subscriber<ArduinoPacket>() {
+            @Override
+            public void onEvent(ArduinoPacket arduinoPacket) {
+                //If the device sent out a ready status
+                if (arduinoPacket.isStatusReady()) {
+                    if (!mUsbSerialIsReady) mUsbSerialIsReady = true;
+                    //Send the config for each servo to the Arduino
+                    sendServoConfig(ArduinoPacket.ServoType.AILERON);
+                    sendServoConfig(ArduinoPacket.ServoType.ELEVATOR);
+                    sendServoConfig(ArduinoPacket.ServoType.RUDDER);
+                    sendServoConfig(ArduinoPacket.ServoType.THROTTLE);
+                    sendServoConfig(ArduinoPacket.ServoType.CUTOVER);
+                }
+                //If the ArduinoPacket contains the receiverControl json key, set mReceiverOnly
+                if (arduinoPacket.hasReceiverControl()) {
+                    mReceiverControl = arduinoPacket.isReceiverControl();
+                }
+                //If the ArduinoPacket contains the calibrationMode, log it accordingly
+                if (arduinoPacket.hasCalibrationMode()) {
+                    //If the arduino is in calibration mode, inform the user
+                    String output = "Calibration Mode: "
+                            + String.valueOf(arduinoPacket.isCalibrationMode());
+                    Log.i(CLASS_NAME, output);
+                }
+                //If the ArduinoPacket contains receiver calibration ranges, log it accordingly
+                if (arduinoPacket.hasInputRanges()) {
+                    Log.i(CLASS_NAME, "Calibration ranges received");
+                }
+                //If the ArduinoPacket contains an error message, log it accordingly
+                if (arduinoPacket.hasErrorMessage()) {
+                    String error = "Error: " + arduinoPacket.getErrorMessage();
+                    Log.i(CLASS_NAME, error);
+                }
+            }
+        };
+    }
+
+    //Receives CraftStatePackets on the publishing thread (the packet itself, not a copy)
+    private final EventBus.Subscriber<CraftStatePacket> mCraftStateSubscriber =
+            new EventBus.Subscriber<CraftStatePacket>() {
+        @Override
+        public void onEvent(CraftStatePacket craftStatePacket) {
+            //Store the latest snapshot; the control loop consumes it at its own rate
+            mLatestCraftStatePacket = craftStatePacket;
+        }
+    };
+
+    //Listens for autotune start and stop requests and for gains updates. The control loop picks
+    //up the latest request, and applies each updated axis from the updated profile.
+    private BroadcastReceiver createAutotuneReceiver() {
         return new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                if (intent.getAction().equals(ArduinoPacket.INTENT_ACTION_OUTPUT)) {
-                    ArduinoPacket arduinoPacket = new ArduinoPacket(intent.getExtras());
-                    //If the device sent out a ready status
-                    if (arduinoPacket.isStatusReady()) {
-                        if (!mUsbSerialIsReady) mUsbSerialIsReady = true;
-                        //Send the config for each servo to the Arduino
-                        sendServoConfig(ArduinoPacket.ServoType.AILERON);
-                        sendServoConfig(ArduinoPacket.ServoType.ELEVATOR);
-                        sendServoConfig(ArduinoPacket.ServoType.RUDDER);
-                        sendServoConfig(ArduinoPacket.ServoType.THROTTLE);
-                        sendServoConfig(ArduinoPacket.ServoType.CUTOVER);
-                    }
-                    //If the ArduinoPacket contains the receiverControl json key, set mReceiverOnly
-                    if (arduinoPacket.hasReceiverControl()) {
-                        mReceiverControl = arduinoPacket.isReceiverControl();
-                    }
-                    //If the ArduinoPacket contains the calibrationMode, log it accordingly
-                    if (arduinoPacket.hasCalibrationMode()) {
-                        //If the arduino is in calibration mode, inform the user
-                        String output = "Calibration Mode: "
-                                + String.valueOf(arduinoPacket.isCalibrationMode());
-                        Log.i(CLASS_NAME, output);
-                    }
-                    //If the ArduinoPacket contains receiver calibration ranges, log it accordingly
-                    if (arduinoPacket.hasInputRanges()) {
-                        Log.i(CLASS_NAME, "Calibration ranges received");
+                if (intent.getAction().equals(INTENT_ACTION_START_AUTOTUNE)) {
+                    ArduinoPacket.ControlAxis controlAxis =
+                            getControlAxis(intent.getStringExtra(EXTRA_AUTOTUNE_AXIS));
+                    if (controlAxis == null) {
+                        Log.e(CLASS_NAME, "Autotune requested without a valid axis");
+                        return;
                     }
-                    //If the ArduinoPacket contains an error message, log it accordingly
-                    if (arduinoPacket.hasErrorMessage()) {
-                        String error = "Error: " + arduinoPacket.getErrorMessage();
-                        Log.i(CLASS_NAME, error);
+                    mAutotuneRequest = new AutotuneRequest(controlAxis, intent.getDoubleExtra(
+                            EXTRA_RELAY_AMPLITUDE, DEFAULT_RELAY_AMPLITUDE));
+                } else if (intent.getAction().equals(INTENT_ACTION_STOP_AUTOTUNE)) {
+                    mAutotuneRequest = null;
+                } else if (intent.getAction().equals(INTENT_ACTION_SET_GAINS)) {
+                    ArduinoPacket.ControlAxis controlAxis =
+                            getControlAxis(intent.getStringExtra(EXTRA_CONTROL_AXIS));
+                    if (controlAxis == null || mConfigArduinoPacket == null) {
+                        Log.e(CLASS_NAME, "Gains received without a valid axis or profile");
+                        return;
                     }
+                    //The profile is replaced rather than modified, since the control loop
+                    //reads it concurrently
+                    ArduinoPacket configArduinoPacket =
+                            new ArduinoPacket(mConfigArduinoPacket.toJsonString());
+                    configArduinoPacket.setPidGains(controlAxis, new PidGains(
+                            intent.getDoubleExtra(EXTRA_PROPORTIONAL_GAIN, 0),
+                            intent.getDoubleExtra(EXTRA_INTEGRAL_GAIN, 0),
+                            intent.getDoubleExtra(EXTRA_DERIVATIVE_GAIN, 0),
+                            intent.getDoubleExtra(EXTRA_INTEGRATOR_LIMIT, 0)));
+                    mConfigArduinoPacket = configArduinoPacket;
+                    mGainsUpdates.add(controlAxis);
                 }
             }
         };
     }
 
-    //Listens for incoming CraftStatePackets (in the form of an Intent)
-    private BroadcastReceiver createCraftStateReceiver() {
+    //Listens for altitude hold commands and status requests. The control loop applies the latest
+    //command, and reports the resulting status once it is applied.
+    private BroadcastReceiver createAltitudeReceiver() {
         return new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                if (intent.getAction().equals(CraftStatePacket.INTENT_ACTION)) {
-                    CraftStatePacket craftStatePacket = new CraftStatePacket(intent.getExtras());
-                    stabilizeRoll(craftStatePacket);
+                if (intent.getAction().equals(INTENT_ACTION_HOLD_ALTITUDE)) {
+                    mAltitudeCommand = new AltitudeCommand(
+                            intent.getDoubleExtra(EXTRA_ALTITUDE, Double.NaN),
+                            intent.getDoubleExtra(EXTRA_ALTITUDE_CHANGE, 0));
+                } else if (intent.getAction().equals(INTENT_ACTION_RELEASE_ALTITUDE)) {
+                    mAltitudeCommand = null;
+                } else if (intent.getAction().equals(INTENT_ACTION_REQUEST_ALTITUDE_HOLD_STATUS)) {
+                    sendBroadcast(getAltitudeHoldStatusIntent(mReportedHeldAltitude));
                 }
             }
         };
     }
 
-    //Broadcasts a configured ArduinoPacket (in the form of an Intent) for a given ServoType
+    //Listens for incoming MissionPackets. The mission is projected and its legs precomputed here,
+    //so the control loop only picks up the finished navigator. An empty mission clears it.
+    private BroadcastReceiver createMissionReceiver() {
+        return new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getAction().equals(MissionPacket.INTENT_ACTION)) {
+                    MissionPacket missionPacket = new MissionPacket(intent.getExtras());
+                    if (missionPacket.getWaypointCount() > 0) {
+                        mLatestWaypointNavigator = new WaypointNavigator(missionPacket);
+                        Log.i(CLASS_NAME, "Mission received: "
+                                + missionPacket.getWaypointCount() + " waypoints");
+                    } else {
+                        mLatestWaypointNavigator = null;
+                        Log.i(CLASS_NAME, "Mission cleared");
+                    }
+                }
+            }
+        };
+    }
+
+    //Runs on the control loop thread at a fixed rate
+    private final ControlLoop.Callback mControlStep = new ControlLoop.Callback() {
+        @Override
+        public void onControlStep(double dt) {
+            //Always drain the attitude samples, so the ring never fills up
+            mFlightPipeline.getSensorSamples().poll(mSensorSampleHandler);
+            CraftStatePacket craftStatePacket = mLatestCraftStatePacket;
+            if (craftStatePacket != null && mConfigArduinoPacket != null) {
+                stabilize(craftStatePacket, dt);
+            }
+        }
+    };
+
+    //Stores the attitude samples drained from the FlightPipeline. Runs on the control loop thread.
+    private final RingBuffer.Handler<SensorSample> mSensorSampleHandler =
+            new RingBuffer.Handler<SensorSample>() {
+        @Override
+        public void onEvent(SensorSample sensorSample, long sequence, boolean endOfBatch) {
+            if (sensorSample.getSensor() == SensorHealthPacket.SENSOR_GYROSCOPE) {
+                mSampledAngularVelocity.set(sensorSample.getX(), sensorSample.getY(),
+                        sensorSample.getZ());
+                mHasSampledAngularVelocity = true;
+            } else if (sensorSample.getSensor() == SensorHealthPacket.SENSOR_ROTATION_VECTOR) {
+                mSampledOrientation.set(sensorSample.getW(), sensorSample.getX(),
+                        sensorSample.getY(), sensorSample.getZ());
+                mHasSampledOrientation = true;
+                mOrientationDeliveryNanos = sensorSample.getDeliveryNanos();
+                mOrientationPublishNanos = sensorSample.getPublishNanos();
+                mOrientationReceivedNanos = System.nanoTime();
+                mIsOrientationTraced = false;
+            }
+        }
+    };
+
+    //Publishes a configured ArduinoPacket for a given ServoType
     private void sendServoConfig(ArduinoPacket.ServoType servoType) {
         String fullServoConfigJson = mConfigArduinoPacket.getConfigJson(servoType, true);
         if (fullServoConfigJson != null) {
-            ArduinoPacket arduinoPacket = new ArduinoPacket(fullServoConfigJson);
-            sendBroadcast(arduinoPacket.toIntent(ArduinoPacket.INTENT_ACTION_INPUT));
-        }
-    }
-
-    //Maintains the craft at a flat (~0 degree) roll angle
-    private void stabilizeRoll(CraftStatePacket craftStatePacket) {
-        if (!mReceiverControl &&
-                !mConfigArduinoPacket.isReceiverOnly(ArduinoPacket.ServoType.AILERON)) {
-            //Calculate neutral aileron value
-            int aileronMin = mConfigArduinoPacket.getOutputMin(ArduinoPacket.ServoType.AILERON);
-            int aileronMax = mConfigArduinoPacket.getOutputMax(ArduinoPacket.ServoType.AILERON);
-            int aileronNeutral = (aileronMax - aileronMin)/2 + aileronMin;
-            //Get latest orientation and angular velocity data
-            CraftStatePacket.Orientation orientation = craftStatePacket.getOrientation();
-            CraftStatePacket.AngularVelocity angularVelocity =
-                    craftStatePacket.getAngularVelocity();
-            //Get roll and roll rate
-            double roll = orientation.getCraftRoll(mPhoneFacingNose);
-            double rollRate = angularVelocity.getCraftRollRate(mPhoneFacingNose);
-            //Calculate new (proposed) aileron value
-            int newAileronValue = Math.round(Math.round(PROPORTIONAL_GAIN * roll
-                    + DIFFERENTIAL_GAIN * rollRate)) + aileronNeutral;
-            //Constrain the new aileron value if it is outside configured output range
-            if (newAileronValue < aileronMin) newAileronValue = aileronMin;
-            if (newAileronValue > aileronMax) newAileronValue = aileronMax;
-            //Set aileron servo to the new value
-            ArduinoPacket arduinoPacket = new ArduinoPacket();
-            arduinoPacket.setServoValue(ArduinoPacket.ServoType.AILERON, newAileronValue);
-            sendBroadcast(arduinoPacket.toIntent(ArduinoPacket.INTENT_ACTION_INPUT));
-        }
-    }
-}
\ No newline at end of file
+            EventBus.getDefault().publish(FlightTopics.ARDUINO_INPUT,
+                    new ArduinoPacket(fullServoConfigJson));
+        }
+    }
+
+    //Stabilizes the craft: roll, pitch and yaw rate to their setpoints, speed to the cruise speed
+    private void stabilize(CraftStatePacket craftStatePacket, double dt) {
+        //Trace the first step that uses a new orientation sample. Later steps using the same
+        //sample (if the loop runs faster than the sensor) are not traced again.
+        long controlStartNanos = 0;
+        if (!mIsOrientationTraced) {
+            mIsOrientationTraced = true;
+            controlStartNanos = System.nanoTime();
+        }
+        //Start or stop the autotune experiment if a new request has been received
+        AutotuneRequest autotuneRequest = mAutotuneRequest;
+        if (autotuneRequest != mActiveAutotuneRequest) startAutotune(autotuneRequest);
+        //Apply updated gains to their axis only. Altitude hold picks up its gains from the
+        //profile when it is next engaged.
+        ArduinoPacket.ControlAxis updatedAxis;
+        while ((updatedAxis = mGainsUpdates.poll()) != null) {
+            mFlightController.setProfileGains(updatedAxis, mConfigArduinoPacket);
+            Log.i(CLASS_NAME, "Gains updated: " + updatedAxis.getStringValue());
+        }
+        //Reset the controllers while the receiver has control, so they re-engage smoothly
+        //The servos are moved by the receiver, so all servo values are resent afterwards
+        if (mReceiverControl) {
+            if (mRelayAutotuner != null) finishAutotune();
+            mFlightController.reset();
+            mServoOutputFilter.reset();
+            return;
+        }
+        //Only stabilize if the orientation and angular velocity data is not stale. Otherwise,
+        //reset the controllers so all attitude servos are centered
+        if (craftStatePacket.isValid(CraftStatePacket.VALID_ORIENTATION
+                | CraftStatePacket.VALID_ANGULAR_VELOCITY)) {
+            //Use the latest attitude samples, or the snapshot until samples have been received
+            CraftStatePacket.Orientation orientation = mHasSampledOrientation
+                    ? mSampledOrientation : craftStatePacket.getOrientation();
+            CraftStatePacket.AngularVelocity angularVelocity = mHasSampledAngularVelocity
+                    ? mSampledAngularVelocity : craftStatePacket.getAngularVelocity();
+            mFlightState.setAttitude(orientation.getCraftRoll(mPhoneFacingNose),
+                    orientation.getCraftPitch(mPhoneFacingNose),
+                    angularVelocity.getCraftRollRate(mPhoneFacingNose),
+                    angularVelocity.getCraftPitchRate(mPhoneFacingNose),
+                    angularVelocity.getCraftYawRate(mPhoneFacingNose));
+            CraftStatePacket.PropagatedPosition position =
+                    craftStatePacket.getPropagatedPosition();
+            if (position != null && craftStatePacket.isValid(CraftStatePacket.VALID_LOCATION)) {
+                mFlightState.setSpeed(position.getGroundspeed());
+            } else {
+                mFlightState.clearSpeed();
+            }
+            CraftStatePacket.VerticalState verticalState = craftStatePacket.getVerticalState();
+            if (verticalState != null
+                    && craftStatePacket.isValid(CraftStatePacket.VALID_BAROMETRIC_PRESSURE)) {
+                mFlightState.setAltitude(verticalState.getAltitude(),
+                        verticalState.getClimbRate());
+            } else {
+                mFlightState.clearAltitude();
+            }
+            updateAltitudeHold();
+            navigate(craftStatePacket);
+            mFlightController.update(mFlightState, dt);
+            if (mRelayAutotuner != null) runAutotune(dt);
+        } else {
+            if (mRelayAutotuner != null) finishAutotune();
+            mFlightController.reset();
+        }
+        //Mix the outputs of the controlled axes onto the servos, and command their new values
+        mServoMixer.clearInputs();
+        setMixerInput(ArduinoPacket.MixerInput.ROLL, ArduinoPacket.ControlAxis.ROLL);
+        setMixerInput(ArduinoPacket.MixerInput.PITCH, ArduinoPacket.ControlAxis.PITCH);
+        setMixerInput(ArduinoPacket.MixerInput.YAW, ArduinoPacket.ControlAxis.YAW);
+        if (isControlled(ArduinoPacket.ControlAxis.SPEED)) {
+            mServoMixer.setInput(ArduinoPacket.MixerInput.THROTTLE, getThrottleOutput());
+        }
+        mServoMixer.mix();
+        mServoMixer.commandServoValues(mServoOutputFilter);
+        logServoOutputFilter(dt);
+        //Only send the servo values that changed (or are due for a keep-alive). The trace of a
+        //sample whose servo values were suppressed ends here.
+        if (mServoOutputFilter.update(dt)) publishServoFrame(controlStartNanos);
+    }
+
+    //Publishes the pending servo values of the output filter to the FlightPipeline as a
+    //ServoFrame, traced if controlStartNanos is set. Does not allocate.
+    private void publishServoFrame(long controlStartNanos) {
+        RingBuffer<ServoFrame> servoFrames = mFlightPipeline.getServoFrames();
+        long sequence = servoFrames.claim();
+        //If the serial writer is not draining the ring, the values are dropped (as they would
+        //be without a serial connection); the filter resends them with the next keep-alive
+        ServoFrame servoFrame = sequence < 0 ? mDroppedServoFrame : servoFrames.get(sequence);
+        servoFrame.clear();
+        mServoOutputFilter.writeServoValues(servoFrame);
+        if (sequence < 0) return;
+        if (controlStartNanos != 0) {
+            LatencyTrace latencyTrace = servoFrame.getLatencyTrace();
+            latencyTrace.stamp(LatencyTrace.POINT_SENSOR_EVENT, mOrientationDeliveryNanos);
+            latencyTrace.stamp(LatencyTrace.POINT_STATE_BROADCAST, mOrientationPublishNanos);
+            latencyTrace.stamp(LatencyTrace.POINT_STATE_RECEIVED, mOrientationReceivedNanos);
+            latencyTrace.stamp(LatencyTrace.POINT_CONTROL_START, controlStartNanos);
+            latencyTrace.stamp(LatencyTrace.POINT_SERVO_BROADCAST);
+            servoFrame.setTraced(true);
+        }
+        servoFrames.publish(sequence);
+    }
+
+    //Sets the output of the input ControlAxis as the input MixerInput, if the axis is controlled
+    private void setMixerInput(ArduinoPacket.MixerInput mixerInput,
+                               ArduinoPacket.ControlAxis controlAxis) {
+        if (isControlled(controlAxis)) mServoMixer.setInput(mixerInput, getOutput(controlAxis));
+    }
+
+    //Creates the output filter between the controllers and the serial link
+    private static ServoOutputFilter createServoOutputFilter() {
+        ServoOutputFilter servoOutputFilter = new ServoOutputFilter(SERVO_KEEP_ALIVE_INTERVAL);
+        servoOutputFilter.setChannel(ArduinoPacket.ServoType.AILERON, SERVO_DEADBAND,
+                SURFACE_SLEW_RATE);
+        servoOutputFilter.setChannel(ArduinoPacket.ServoType.ELEVATOR, SERVO_DEADBAND,
+                SURFACE_SLEW_RATE);
+        servoOutputFilter.setChannel(ArduinoPacket.ServoType.RUDDER, SERVO_DEADBAND,
+                SURFACE_SLEW_RATE);
+        servoOutputFilter.setChannel(ArduinoPacket.ServoType.THROTTLE, SERVO_DEADBAND,
+                THROTTLE_SLEW_RATE);
+        return servoOutputFilter;
+    }
+
+    //Periodically logs (then resets) the traffic counters of the servo output filter
+    private void logServoOutputFilter(double dt) {
+        mServoFilterLogTime += dt;
+        if (mServoFilterLogTime < SERVO_FILTER_LOG_INTERVAL) return;
+        mServoFilterLogTime = 0;
+        Log.i(CLASS_NAME, "Servo output " + mServoOutputFilter.toString());
+        mServoOutputFilter.resetCounters();
+    }
+
+    //Sets the roll setpoint to the bank angle commanded by the waypoint navigator
+    //Without a mission or a valid location, the roll setpoint is level (0 degrees)
+    private void navigate(CraftStatePacket craftStatePacket) {
+        WaypointNavigator waypointNavigator = mLatestWaypointNavigator;
+        if (waypointNavigator != mWaypointNavigator) mWaypointNavigator = waypointNavigator;
+        double rollSetpoint = 0;
+        CraftStatePacket.PropagatedPosition position = craftStatePacket.getPropagatedPosition();
+        if (mWaypointNavigator != null && position != null
+                && craftStatePacket.isValid(CraftStatePacket.VALID_LOCATION)) {
+            boolean wasComplete = mWaypointNavigator.isComplete();
+            mWaypointNavigator.update(position.getLatitude(), position.getLongitude(),
+                    position.getVelocityEast(), position.getVelocityNorth());
+            if (mWaypointNavigator.isComplete() && !wasComplete) {
+                Log.i(CLASS_NAME, "Mission complete");
+            }
+            rollSetpoint = mWaypointNavigator.getBankAngle();
+        }
+        mFlightController.setSetpoint(ArduinoPacket.ControlAxis.ROLL, rollSetpoint);
+        //While navigating, a leg with a target altitude overrides the held altitude
+        if (mWaypointNavigator != null && mFlightController.isAltitudeHoldEnabled()
+                && !Double.isNaN(mWaypointNavigator.getTargetAltitude())) {
+            mFlightController.setSetpoint(ArduinoPacket.ControlAxis.ALTITUDE,
+                    mWaypointNavigator.getTargetAltitude());
+        }
+    }
+
+    //Applies the latest altitude hold command, and (re-)engages or releases altitude hold
+    private void updateAltitudeHold() {
+        AltitudeCommand altitudeCommand = mAltitudeCommand;
+        if (altitudeCommand != mAppliedAltitudeCommand) {
+            if (altitudeCommand != null) {
+                //Relative commands adjust the held altitude, or the current altitude if released
+                double altitude = altitudeCommand.mAltitude;
+                if (Double.isNaN(altitude)) altitude = mHeldAltitude;
+                if (Double.isNaN(altitude)) {
+                    //Wait for an altitude estimate before engaging
+                    if (!mFlightState.hasAltitude()) return;
+                    altitude = mFlightState.getAltitude();
+                }
+                mHeldAltitude = altitude + altitudeCommand.mAltitudeChange;
+                Log.i(CLASS_NAME, "Holding altitude: " + mHeldAltitude + " m");
+            } else if (!Double.isNaN(mHeldAltitude)) {
+                mHeldAltitude = Double.NaN;
+                Log.i(CLASS_NAME, "Altitude hold released");
+            }
+            mAppliedAltitudeCommand = altitudeCommand;
+            //Report the state, so controllers show the altitude hold state of the craft
+            if (Double.compare(mHeldAltitude, mReportedHeldAltitude) != 0) {
+                mReportedHeldAltitude = mHeldAltitude;
+                sendBroadcast(getAltitudeHoldStatusIntent(mHeldAltitude));
+            }
+        }
+        if (Double.isNaN(mHeldAltitude)) {
+            if (mFlightController.isAltitudeHoldEnabled()) releaseAltitudeHold();
+            return;
+        }
+        if (!mFlightController.isAltitudeHoldEnabled()) engageAltitudeHold();
+        mFlightController.setSetpoint(ArduinoPacket.ControlAxis.ALTITUDE, mHeldAltitude);
+    }
+
+    //Enables the altitude hold loops (and the pitch loop they drive) with the profile gains
+    private void engageAltitudeHold() {
+        PidGains altitudeGains =
+                mConfigArduinoPacket.getPidGains(ArduinoPacket.ControlAxis.ALTITUDE);
+        PidGains climbRateGains =
+                mConfigArduinoPacket.getPidGains(ArduinoPacket.ControlAxis.CLIMB_RATE);
+        mFlightController.setGains(ArduinoPacket.ControlAxis.ALTITUDE,
+                altitudeGains != null ? altitudeGains : FlightController.DEFAULT_ALTITUDE_GAINS);
+        mFlightController.setGains(ArduinoPacket.ControlAxis.CLIMB_RATE,
+                climbRateGains != null
+                        ? climbRateGains : FlightController.DEFAULT_CLIMB_RATE_GAINS);
+        mFlightController.setOutputLimits(ArduinoPacket.ControlAxis.ALTITUDE,
+                -MAX_CLIMB_RATE, MAX_CLIMB_RATE);
+        mFlightController.setOutputLimits(ArduinoPacket.ControlAxis.CLIMB_RATE,
+                -MAX_PITCH, MAX_PITCH);
+        if (!mFlightController.isEnabled(ArduinoPacket.ControlAxis.PITCH)) {
+            mFlightController.setGains(ArduinoPacket.ControlAxis.PITCH,
+                    FlightController.DEFAULT_PITCH_GAINS);
+            mFlightController.setServoOutputLimits(ArduinoPacket.ControlAxis.PITCH,
+                    mConfigArduinoPacket, ArduinoPacket.ServoType.ELEVATOR);
+        }
+    }
+
+    //Disables the altitude hold loops. Pitch returns to level (or off, if not in the profile).
+    private void releaseAltitudeHold() {
+        mFlightController.setGains(ArduinoPacket.ControlAxis.ALTITUDE, null);
+        mFlightController.setGains(ArduinoPacket.ControlAxis.CLIMB_RATE, null);
+        mFlightController.setSetpoint(ArduinoPacket.ControlAxis.CLIMB_RATE, 0);
+        mFlightController.setSetpoint(ArduinoPacket.ControlAxis.PITCH, 0);
+        if (!mConfigArduinoPacket.hasPidGains(ArduinoPacket.ControlAxis.PITCH)) {
+            mFlightController.setGains(ArduinoPacket.ControlAxis.PITCH, null);
+        }
+    }
+
+    //Returns the throttle output in servo degrees above the throttle minimum
+    //While holding altitude, the commanded climb rate adds a throttle feedforward
+    private double getThrottleOutput() {
+        double throttleOutput = getOutput(ArduinoPacket.ControlAxis.SPEED);
+        if (mFlightController.isAltitudeHoldEnabled()) {
+            double climbThrottle = mConfigArduinoPacket.hasClimbThrottle()
+                    ? mConfigArduinoPacket.getClimbThrottle()
+                    : FlightController.DEFAULT_CLIMB_THROTTLE;
+            throttleOutput += climbThrottle
+                    * mFlightController.getSetpoint(ArduinoPacket.ControlAxis.CLIMB_RATE);
+        }
+        return throttleOutput;
+    }
+
+    //Returns true if the input ControlAxis is controlled by a PID controller or the autotuner
+    private boolean isControlled(ArduinoPacket.ControlAxis controlAxis) {
+        return mFlightController.isEnabled(controlAxis) || isAutotuning(controlAxis);
+    }
+
+    //Returns true if the autotune experiment is running on the input ControlAxis
+    private boolean isAutotuning(ArduinoPacket.ControlAxis controlAxis) {
+        return mRelayAutotuner != null && mActiveAutotuneRequest.mControlAxis == controlAxis;
+    }
+
+    //Returns the output of the input ControlAxis in servo degrees (from the autotuner if tuning)
+    private double getOutput(ArduinoPacket.ControlAxis controlAxis) {
+        if (isAutotuning(controlAxis)) return mAutotuneOutput;
+        return mFlightController.getOutput(controlAxis);
+    }
+
+    //Starts the input autotune request, ending any running experiment. Null only stops it.
+    private void startAutotune(AutotuneRequest autotuneRequest) {
+        if (mRelayAutotuner != null) finishAutotune();
+        mActiveAutotuneRequest = autotuneRequest;
+        if (autotuneRequest == null) return;
+        ArduinoPacket.ControlAxis controlAxis = autotuneRequest.mControlAxis;
+        //Speed can only be tuned around a configured cruise speed
+        if (controlAxis == ArduinoPacket.ControlAxis.SPEED
+                && !mFlightController.isEnabled(controlAxis)) {
+            Log.e(CLASS_NAME, "Speed autotune requires a cruise speed");
+            return;
+        }
+        //The relay switches around the current output (the trim) and the current setpoint
+        double outputBias = mFlightController.getOutput(controlAxis);
+        double hysteresis;
+        double maxDeviation;
+        switch (controlAxis) {
+            case YAW:
+                //Yaw rate in degrees per second
+                hysteresis = 3;
+                maxDeviation = 90;
+                break;
+            case SPEED:
+                //Groundspeed in meters per second
+                hysteresis = 0.5;
+                maxDeviation = 5;
+                break;
+            default:
+                //Roll and pitch angles in degrees
+                hysteresis = 1;
+                maxDeviation = 30;
+                break;
+        }
+        mRelayAutotuner = new RelayAutotuner(mFlightController.getSetpoint(controlAxis),
+                outputBias, autotuneRequest.mRelayAmplitude, hysteresis, maxDeviation,
+                AUTOTUNE_TIMEOUT);
+        mAutotuneOutput = outputBias;
+        Log.i(CLASS_NAME, "Autotune started: " + controlAxis.getStringValue());
+    }
+
+    //Runs one step of the autotune experiment, then finishes it if it has completed or failed
+    private void runAutotune(double dt) {
+        double measurement;
+        switch (mActiveAutotuneRequest.mControlAxis) {
+            case ROLL:
+                measurement = mFlightState.getRoll();
+                break;
+            case PITCH:
+                measurement = mFlightState.getPitch();
+                break;
+            case YAW:
+                measurement = mFlightState.getYawRate();
+                break;
+            default:
+                if (!mFlightState.hasSpeed()) {
+                    finishAutotune();
+                    return;
+                }
+                measurement = mFlightState.getSpeed();
+                break;
+        }
+        mAutotuneOutput = mRelayAutotuner.update(measurement, dt);
+        if (mRelayAutotuner.isComplete() || mRelayAutotuner.hasFailed()) finishAutotune();
+    }
+
+    //Ends the autotune experiment and broadcasts its result (without gains if it did not complete)
+    private void finishAutotune() {
+        RelayAutotuner relayAutotuner = mRelayAutotuner;
+        ArduinoPacket.ControlAxis controlAxis = mActiveAutotuneRequest.mControlAxis;
+        mRelayAutotuner = null;
+        //Hand the axis back to its PID controller from a clean state
+        mFlightController.reset(controlAxis);
+        Intent resultIntent = new Intent(INTENT_ACTION_AUTOTUNE_RESULT);
+        resultIntent.putExtra(EXTRA_AUTOTUNE_AXIS, controlAxis.getStringValue());
+        if (relayAutotuner.isComplete()) {
+            resultIntent.putExtra(EXTRA_ULTIMATE_GAIN, relayAutotuner.getUltimateGain());
+            resultIntent.putExtra(EXTRA_ULTIMATE_PERIOD, relayAutotuner.getUltimatePeriod());
+            Log.i(CLASS_NAME, "Autotune complete: " + controlAxis.getStringValue() + " Ku: "
+                    + relayAutotuner.getUltimateGain() + " Pu: "
+                    + relayAutotuner.getUltimatePeriod());
+        } else {
+            Log.w(CLASS_NAME, "Autotune did not complete: " + controlAxis.getStringValue()
+                    + " after " + relayAutotuner.getCycleCount() + " cycles");
+        }
+        sendBroadcast(resultIntent);
+    }
+
+    //An immutable altitude hold command, handed from the main thread to the control loop thread
+    private static class AltitudeCommand {
+        //Absolute altitude in meters, or NaN to adjust the held (or current) altitude
+        private final double mAltitude;
+        private final double mAltitudeChange;
+
+        private AltitudeCommand(double altitude, double altitudeChange) {
+            mAltitude = altitude;
+            mAltitudeChange = altitudeChange;
+        }
+    }
+
+    //An immutable autotune request, handed from the main thread to the control loop thread
+    private static class AutotuneRequest {
+        private final ArduinoPacket.ControlAxis mControlAxis;
+        private final double mRelayAmplitude;
+
+        private AutotuneRequest(ArduinoPacket.ControlAxis controlAxis, double relayAmplitude) {
+            mControlAxis = controlAxis;
+            mRelayAmplitude = relayAmplitude;
+        }
+    }
+}
@@ -16,9 +16,12 @@ import com.rabidllamastudios.avigate.R;
 import com.rabidllamastudios.avigate.activities.CraftActivity;
 import com.rabidllamastudios.avigate.models.ArduinoPacket;
 import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.LinkQualityPacket;
+import com.rabidllamastudios.avigate.models.MissionPacket;
+import com.rabidllamastudios.avigate.models.SensorHealthPacket;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Service responsible for managing all other services needed to manage the craft during flight
@@ -36,16 +39,25 @@ public class MasterFlightService extends Service {
             PACKAGE_NAME + ".action.FOREGROUND_CRAFT_SERVICE";
     private static final String INTENT_ACTION_STOP_CRAFT_SERVICE =
             PACKAGE_NAME + ".action.STOP_FOREGROUND_CRAFT_SERVICE";
+    //Intent extra that replaces the sensors and the Arduino with a simulated craft
+    private static final String EXTRA_SIMULATE = PACKAGE_NAME + ".extra.SIMULATE";
 
     //Unique foreground notification id
     private static final int NOTIFICATION_ID = 843;
     //Sensor broadcast rate in milliseconds (ms)
     private static final int SENSOR_BROADCAST_RATE = 100;
+    //Longest time in ms telemetry waits to be batched, and the size in bytes that sends a batch
+    private static final int NETWORK_BATCH_WINDOW = 50;
+    private static final int NETWORK_BATCH_SIZE = 1024;
+    //Simulated time per real time and noise seed of the simulated craft
+    private static final double SIMULATION_TIME_SCALE = 1;
+    private static final long SIMULATION_SEED = 0;
 
     //Intents corresponding to various services
     private Intent mFlightControlService = null;
     private Intent mNetworkService = null;
     private Intent mSensorService = null;
+    private Intent mSimulationService = null;
     private Intent mUsbSerialService = null;
 
     public MasterFlightService() {}
@@ -61,7 +73,7 @@ public class MasterFlightService extends Service {
             Log.i(CLASS_NAME, "Service started");
             showForegroundNotification();  //Start the MasterFlightService in the foreground
             registerBroadcastReceivers();  //Register all relevant BroadcastReceivers
-            startOtherServices();  //Start other services
+            startOtherServices(intent.getBooleanExtra(EXTRA_SIMULATE, false));
         } else if (intent.getAction().equals(INTENT_ACTION_STOP_CRAFT_SERVICE)) {
             stopForeground(true);
             stopSelf();
@@ -77,6 +89,7 @@ public class MasterFlightService extends Service {
         if (mNetworkService != null) stopService(mNetworkService);
         if (mFlightControlService != null) stopService(mFlightControlService);
         if (mSensorService != null) stopService(mSensorService);
+        if (mSimulationService != null) stopService(mSimulationService);
         if (mUsbSerialService != null) stopService(mUsbSerialService);
         //Call super method
         Log.i(CLASS_NAME, "Service stopped");
@@ -85,8 +98,18 @@ public class MasterFlightService extends Service {
 
     /** Returns a configured Intent that can be used to start this service (MasterFlightService) */
     public static Intent getConfiguredIntent(Context context){
+        return getConfiguredIntent(context, false);
+    }
+
+    /** Returns a configured Intent that can be used to start this service (MasterFlightService)
+     * @param context the application context from the activity invoking this method
+     * @param simulate if true, a simulated craft (SimulationService) replaces the sensors and
+     *                 the Arduino (SensorService and UsbSerialService)
+     */
+    public static Intent getConfiguredIntent(Context context, boolean simulate) {
         Intent intent = new Intent(context, MasterFlightService.class);
         intent.setAction(INTENT_ACTION_CONFIGURE_CRAFT_SERVICE);
+        intent.putExtra(EXTRA_SIMULATE, simulate);
         return intent;
     }
 
@@ -126,24 +149,68 @@ public class MasterFlightService extends Service {
         registerReceiver(mStartServiceReceiver, startServiceIntentFilter);
     }
 
-    //Starts other relevant services
-    private void startOtherServices() {
-        //Configure and start NetworkService.
-        List<String> localSubs = new ArrayList<>();
-        List<String> remoteSubs = new ArrayList<>();
-        localSubs.add(CraftStatePacket.INTENT_ACTION);
-        localSubs.add(ArduinoPacket.INTENT_ACTION_OUTPUT);
-        localSubs.add(UsbSerialService.INTENT_ACTION_USB_READY);
-        localSubs.add(UsbSerialService.INTENT_ACTION_USB_PERMISSION_GRANTED);
-        localSubs.add(UsbSerialService.INTENT_ACTION_NO_USB);
-        localSubs.add(UsbSerialService.INTENT_ACTION_USB_DISCONNECTED);
-        localSubs.add(UsbSerialService.INTENT_ACTION_USB_NOT_SUPPORTED);
-        localSubs.add(UsbSerialService.INTENT_ACTION_USB_PERMISSION_NOT_GRANTED);
-        remoteSubs.add(FlightControlService.INTENT_ACTION_CONFIGURE_FLIGHT_CONTROL_SERVICE);
-        remoteSubs.add(ArduinoPacket.INTENT_ACTION_INPUT);
+    //Starts other relevant services. If simulate is true, SimulationService replaces the sensors
+    //and the Arduino (SensorService and UsbSerialService)
+    private void startOtherServices(boolean simulate) {
+        //Configure and start NetworkService. Telemetry is delivered last value only; commands,
+        //results and status changes reliably.
+        Map<String, NetworkService.DeliveryPolicy> localSubs = new LinkedHashMap<>();
+        Map<String, NetworkService.DeliveryPolicy> remoteSubs = new LinkedHashMap<>();
+        localSubs.put(CraftStatePacket.INTENT_ACTION, NetworkService.DeliveryPolicy.LATEST_VALUE);
+        localSubs.put(SensorHealthPacket.INTENT_ACTION, NetworkService.DeliveryPolicy.LATEST_VALUE);
+        localSubs.put(LinkQualityPacket.INTENT_ACTION, NetworkService.DeliveryPolicy.LATEST_VALUE);
+        localSubs.put(SensorService.INTENT_ACTION_MAGNETOMETER_CALIBRATION_RESULT,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(FlightControlService.INTENT_ACTION_AUTOTUNE_RESULT,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        //Servo output is sent as full snapshots, so the latest one is enough. Status replies
+        //(output without servo values) are still sent reliably (see NetworkService).
+        localSubs.put(ArduinoPacket.INTENT_ACTION_OUTPUT,
+                NetworkService.DeliveryPolicy.LATEST_VALUE);
+        localSubs.put(FlightControlService.INTENT_ACTION_ALTITUDE_HOLD_STATUS,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(UsbSerialService.INTENT_ACTION_USB_READY,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(UsbSerialService.INTENT_ACTION_USB_PERMISSION_GRANTED,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(UsbSerialService.INTENT_ACTION_NO_USB,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(UsbSerialService.INTENT_ACTION_USB_DISCONNECTED,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(UsbSerialService.INTENT_ACTION_USB_NOT_SUPPORTED,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        localSubs.put(UsbSerialService.INTENT_ACTION_USB_PERMISSION_NOT_GRANTED,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(FlightControlService.INTENT_ACTION_CONFIGURE_FLIGHT_CONTROL_SERVICE,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(ArduinoPacket.INTENT_ACTION_INPUT, NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(SensorService.INTENT_ACTION_START_MAGNETOMETER_CALIBRATION,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(SensorService.INTENT_ACTION_STOP_MAGNETOMETER_CALIBRATION,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(FlightControlService.INTENT_ACTION_START_AUTOTUNE,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(FlightControlService.INTENT_ACTION_STOP_AUTOTUNE,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(FlightControlService.INTENT_ACTION_SET_GAINS,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(MissionPacket.INTENT_ACTION, NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(FlightControlService.INTENT_ACTION_HOLD_ALTITUDE,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(FlightControlService.INTENT_ACTION_RELEASE_ALTITUDE,
+                NetworkService.DeliveryPolicy.RELIABLE);
+        remoteSubs.put(FlightControlService.INTENT_ACTION_REQUEST_ALTITUDE_HOLD_STATUS,
+                NetworkService.DeliveryPolicy.RELIABLE);
         mNetworkService = NetworkService.getConfiguredIntent(this, localSubs, remoteSubs,
-                NetworkService.DeviceType.CRAFT);
+                NetworkService.DeviceType.CRAFT, NETWORK_BATCH_WINDOW, NETWORK_BATCH_SIZE);
         startService(mNetworkService);
+        if (simulate) {
+            //Configure and start SimulationService
+            mSimulationService = SimulationService.getConfiguredIntent(getApplicationContext(),
+                    SENSOR_BROADCAST_RATE, SIMULATION_TIME_SCALE, SIMULATION_SEED);
+            startService(mSimulationService);
+            return;
+        }
         //Configure and start SensorService
         mSensorService = SensorService.getConfiguredIntent(
                 getApplicationContext(), SENSOR_BROADCAST_RATE);
@@ -6,21 +6,61 @@ import android.content.Intent;
 import android.content.Context;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import com.rabidllamastudios.avigate.AvigateApplication;
+import com.rabidllamastudios.avigate.helpers.AdaptiveRateLimiter;
+import com.rabidllamastudios.avigate.helpers.HeartbeatMonitor;
+import com.rabidllamastudios.avigate.helpers.LinkMonitor;
+import com.rabidllamastudios.avigate.helpers.MessageBatcher;
+import com.rabidllamastudios.avigate.helpers.MessageRouter;
 import com.rabidllamastudios.avigate.helpers.MqttConnectionManager;
 import com.rabidllamastudios.avigate.helpers.BundleableJsonObject;
+import com.rabidllamastudios.avigate.helpers.SharedPreferencesManager;
+import com.rabidllamastudios.avigate.helpers.TelemetryCodec;
+import com.rabidllamastudios.avigate.helpers.UdpTransport;
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
 import com.rabidllamastudios.avigate.models.ConnectionPacket;
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.LatencyTrace;
+import com.rabidllamastudios.avigate.models.LinkQualityPacket;
+import com.rabidllamastudios.avigate.models.SensorHealthPacket;
 
 import org.json.JSONException;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
 
 /** Service responsible for network interactions. Uses MqttConnectionManager to manage connections.
  * Before starting the service, it can be configured to listen for local and/or remote broadcasts
+ * Each subscription has a DeliveryPolicy: telemetry is sent last value only, commands and
+ * configuration reliably (acknowledged and retried).
+ * Telemetry (craft state, Arduino, connection and USB status Intents) is sent in the binary
+ * encoding of TelemetryCodec, other Intents as JSON. Both encodings are accepted when receiving.
+ * The round trip time to the broker is probed continuously (see LinkMonitor). Periodic telemetry
+ * is throttled to stay under a latency target (see AdaptiveRateLimiter), and the link quality
+ * and current telemetry rates are broadcast as a LinkQualityPacket.
+ * Optionally, outgoing last value only messages are batched into multi-message frames (see
+ * MessageBatcher) that are published last value only on a single batch topic (a frame that waits
+ * for the previous one to be written is replaced by the next). Frames are always accepted.
+ * Inbound messages are dispatched by routing tables built once from the remote subscriptions
+ * (see MessageRouter), to a handler for the message type of each topic.
+ * While the broker is unreachable, MqttConnectionManager stores the latest telemetry per topic and
+ * the pending reliable messages, and sends them once it has reconnected.
+ * While the peer device is reachable on the local network (see UdpTransport), messages are sent
+ * to it directly over UDP instead of through the broker: last value only messages as
+ * unacknowledged datagrams, reliable messages on its reliable channel. When the peer is lost,
+ * sending falls back to MQTT, including the reliable messages it had not acknowledged.
+ * Heartbeats are exchanged with the peer over the active transport (see HeartbeatMonitor). The
+ * resulting link metrics (RTT percentiles, loss, jitter and last heard age) are broadcast in a
+ * ConnectionPacket and logged every PROBE_INTERVAL.
  * Created by Ryan Staatz on 11/14/2015
  */
 public class NetworkService extends Service {
@@ -36,19 +76,53 @@ public class NetworkService extends Service {
     //Strings used to store and retrieve IntentExtras
     private static final String EXTRA_SUBSCRIPTIONS_LOCAL = PACKAGE_NAME + ".extra.LOCAL";
     private static final String EXTRA_SUBSCRIPTIONS_REMOTE = PACKAGE_NAME + ".extra.REMOTE";
+    private static final String EXTRA_POLICIES_LOCAL = PACKAGE_NAME + ".extra.LOCAL_POLICIES";
+    private static final String EXTRA_POLICIES_REMOTE = PACKAGE_NAME + ".extra.REMOTE_POLICIES";
     private static final String EXTRA_LOCAL_DEVICE_TYPE = PACKAGE_NAME + ".extra.TYPE";
+    private static final String EXTRA_BATCH_WINDOW = PACKAGE_NAME + ".extra.BATCH_WINDOW";
+    private static final String EXTRA_BATCH_SIZE = PACKAGE_NAME + ".extra.BATCH_SIZE";
 
     //MQTT default broker address and port
     private static final String DEFAULT_MQTT_BROKER = "test.mosquitto.org";
     private static final int DEFAULT_MQTT_PORT = 1883;
 
+    //Interval of the RTT probes (and link quality updates) and timeout of a probe in ms
+    private static final int PROBE_INTERVAL = 1000;
+    private static final int PROBE_TIMEOUT = 5000;
+    //Telemetry is throttled while the RTT to the broker exceeds this target in ms
+    private static final double LATENCY_TARGET = 500;
+    //Periodic telemetry Intent actions that are throttled, with their maximum (the rate of their
+    //source) and minimum rates in messages per second. Commands and results are never throttled.
+    private static final String[] TELEMETRY_ACTIONS = {CraftStatePacket.INTENT_ACTION,
+            SensorHealthPacket.INTENT_ACTION};
+    private static final double[] TELEMETRY_MAX_RATES = {10, 1};
+    private static final double[] TELEMETRY_MIN_RATES = {1, 0.2};
+    //Last topic segment of the frames of batched messages (Intent actions always contain a dot)
+    private static final String BATCH_TOPIC = "batch";
+    //Interval of the heartbeats to the peer in ms, and the last segment of their topic
+    private static final int HEARTBEAT_INTERVAL = 250;
+    private static final String HEARTBEAT_TOPIC = "heartbeat";
+
     private boolean mIsConnected = false;  //Denotes whether connected to the MQTT broker
+    private boolean mIsPeerActive = false;  //Denotes whether the peer is reachable over UDP
 
     private BroadcastReceiver mConnectionRequestReceiver;
     private BroadcastReceiver mLocalBroadcastReceiver;
     private DeviceType mLocalDeviceType;
-    private List<String> mRemoteSubs;
+    private Map<String, DeliveryPolicy> mLocalSubs;
+    private Map<String, DeliveryPolicy> mRemoteSubs;
+    private MessageBatcher mMessageBatcher;
     private MqttConnectionManager mMqttConnectionManager;
+    private UdpTransport mUdpTransport;
+    private String mProbeTopic;
+    private final TelemetryCodec mTelemetryCodec = new TelemetryCodec();
+    //Inbound routing tables: by topic, and by Intent action for the messages of a frame
+    private final MessageRouter mTopicRouter = new MessageRouter();
+    private final MessageRouter mBatchRouter = new MessageRouter();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkMonitor mLinkMonitor = new LinkMonitor(PROBE_TIMEOUT);
+    private final HeartbeatMonitor mHeartbeatMonitor = new HeartbeatMonitor();
+    private final AdaptiveRateLimiter mRateLimiter = new AdaptiveRateLimiter();
 
     //Denotes whether an Android device is attached to the craft or acting as a remote controller
     public enum DeviceType {
@@ -63,21 +137,52 @@ public class NetworkService extends Service {
         }
     }
 
+    //Denotes how the messages of a subscription (Intent action) are delivered to the remote device
+    public enum DeliveryPolicy {
+        //Only the latest value matters (telemetry): sent at most once, stale messages that have
+        //not been sent yet are replaced by newer ones
+        LATEST_VALUE,
+        //Every message matters (commands and configuration): acknowledged, retried until
+        //acknowledged or timed out, and delivered in order over UDP
+        RELIABLE
+    }
+
     public NetworkService() {}
 
     /** Returns a Configured Intent that can be used to start this service (NetworkService)
      * @param context the application context of the activity invoking this method
-     * @param localSubs a list of local subscriptions in the form of Intent actions (Strings)
-     * @param remoteSubs a list of remote subscriptions in the form of Intent actions (Strings)
+     * @param localSubs the local subscriptions: Intent actions and their DeliveryPolicy
+     * @param remoteSubs the remote subscriptions: Intent actions and their DeliveryPolicy
+     * @param localDeviceType the type of device starting the service (e.g. craft or controller)
+     */
+    public static Intent getConfiguredIntent(Context context,
+                                             Map<String, DeliveryPolicy> localSubs,
+                                             Map<String, DeliveryPolicy> remoteSubs,
+                                             DeviceType localDeviceType) {
+        return getConfiguredIntent(context, localSubs, remoteSubs, localDeviceType, 0, 0);
+    }
+
+    /** Returns a Configured Intent that can be used to start this service (NetworkService), which
+     * batches the messages it sends into frames
+     * @param context the application context of the activity invoking this method
+     * @param localSubs the local subscriptions: Intent actions and their DeliveryPolicy
+     * @param remoteSubs the remote subscriptions: Intent actions and their DeliveryPolicy
      * @param localDeviceType the type of device starting the service (e.g. craft or controller)
+     * @param batchWindow the longest time in ms a message waits to be batched (0 disables batching)
+     * @param batchSize the frame size in bytes at which a frame is sent without waiting
      */
-    public static Intent getConfiguredIntent(Context context, List<String> localSubs,
-                                             List<String> remoteSubs, DeviceType localDeviceType) {
+    public static Intent getConfiguredIntent(Context context,
+                                             Map<String, DeliveryPolicy> localSubs,
+                                             Map<String, DeliveryPolicy> remoteSubs,
+                                             DeviceType localDeviceType, int batchWindow,
+                                             int batchSize) {
         Intent intent = new Intent(context, NetworkService.class);
         intent.setAction(INTENT_ACTION_CONFIGURE_NETWORK_SERVICE);
-        intent.putStringArrayListExtra(EXTRA_SUBSCRIPTIONS_LOCAL, (ArrayList<String>) localSubs);
-        intent.putStringArrayListExtra(EXTRA_SUBSCRIPTIONS_REMOTE, (ArrayList<String>) remoteSubs);
+        putSubscriptions(intent, localSubs, EXTRA_SUBSCRIPTIONS_LOCAL, EXTRA_POLICIES_LOCAL);
+        putSubscriptions(intent, remoteSubs, EXTRA_SUBSCRIPTIONS_REMOTE, EXTRA_POLICIES_REMOTE);
         intent.putExtra(EXTRA_LOCAL_DEVICE_TYPE, localDeviceType.name());
+        intent.putExtra(EXTRA_BATCH_WINDOW, batchWindow);
+        intent.putExtra(EXTRA_BATCH_SIZE, batchSize);
         return intent;
     }
 
@@ -85,16 +190,36 @@ public class NetworkService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         //If the Intent isn't null & is for configuring the network service, configure the service
         if (intent != null && intent.getAction().equals(INTENT_ACTION_CONFIGURE_NETWORK_SERVICE)) {
-            //Initialize ArrayLists
-            List<String> localSubs = new ArrayList<>();
-            mRemoteSubs = new ArrayList<>();
-            //Get corresponding local and remote lists of Intent subscriptions from IntentExtras
-            if (intent.hasExtra(EXTRA_SUBSCRIPTIONS_LOCAL))
-                localSubs = intent.getStringArrayListExtra(EXTRA_SUBSCRIPTIONS_LOCAL);
-            if (intent.hasExtra(EXTRA_SUBSCRIPTIONS_REMOTE))
-                mRemoteSubs = intent.getStringArrayListExtra(EXTRA_SUBSCRIPTIONS_REMOTE);
+            //Get the local and remote Intent subscriptions and their policies from IntentExtras
+            mLocalSubs = getSubscriptions(intent, EXTRA_SUBSCRIPTIONS_LOCAL, EXTRA_POLICIES_LOCAL);
+            mRemoteSubs = getSubscriptions(intent, EXTRA_SUBSCRIPTIONS_REMOTE,
+                    EXTRA_POLICIES_REMOTE);
             //Get the local DeviceType from IntentExtras
             mLocalDeviceType = DeviceType.valueOf(intent.getStringExtra(EXTRA_LOCAL_DEVICE_TYPE));
+            //Throttle the subscribed telemetry Intents to the link quality. A restart command
+            //re-adds the topics, which keeps the rates already adapted to the link.
+            for (int i = 0; i < TELEMETRY_ACTIONS.length; i++) {
+                if (mLocalSubs.containsKey(TELEMETRY_ACTIONS[i])) {
+                    mRateLimiter.addTopic(TELEMETRY_ACTIONS[i], TELEMETRY_MAX_RATES[i],
+                            TELEMETRY_MIN_RATES[i]);
+                }
+            }
+            //(Re)create the MessageBatcher if batching is enabled, sending any pending frame first
+            if (mMessageBatcher != null) {
+                mMessageBatcher.flush();
+                mMessageBatcher = null;
+            }
+            int batchWindow = intent.getIntExtra(EXTRA_BATCH_WINDOW, 0);
+            if (batchWindow > 0) {
+                mMessageBatcher = new MessageBatcher(mHandler, batchWindow,
+                        intent.getIntExtra(EXTRA_BATCH_SIZE, 0),
+                        createMessageBatcherCallback(mLocalDeviceType.getOpposite()));
+            }
+            //Probes are sent to a topic only this client subscribes to, so they return to it
+            if (mProbeTopic == null) {
+                mProbeTopic = mLocalDeviceType.name() + "/probe/" + UUID.randomUUID().toString();
+            }
+            buildRoutes();
             //If the local broadcast receiver is not null, unregister it and set it to null
             if (mLocalBroadcastReceiver != null) {
                 unregisterReceiver(mLocalBroadcastReceiver);
@@ -104,7 +229,7 @@ public class NetworkService extends Service {
             mLocalBroadcastReceiver = createLocalBroadcastReceiver(mLocalDeviceType.getOpposite());
             //For each Intent action in the local subscription list, add it to the IntentFilter
             IntentFilter localSubsIntentFilter = new IntentFilter();
-            for (String each : localSubs) {
+            for (String each : mLocalSubs.keySet()) {
                 localSubsIntentFilter.addAction(each);
             }
             //Register the local broadcast receiver to listen for the list of Intent actions
@@ -124,6 +249,19 @@ public class NetworkService extends Service {
                         mMqttConnectionManagerCallback, DEFAULT_MQTT_BROKER, DEFAULT_MQTT_PORT);
                 mMqttConnectionManager.start();
             }
+            //If the UdpTransport is null, create a new one and start it
+            if (mUdpTransport == null) {
+                mUdpTransport = new UdpTransport(mUdpTransportCallback, mLocalDeviceType.name(),
+                        mLocalDeviceType.getOpposite().name(),
+                        new SharedPreferencesManager(this).getPeerAddress(),
+                        UdpTransport.DEFAULT_PORT);
+                mUdpTransport.start();
+            }
+            //(Re)start the link quality updates and the heartbeats
+            mHandler.removeCallbacks(mLinkReporter);
+            mHandler.postDelayed(mLinkReporter, PROBE_INTERVAL);
+            mHandler.removeCallbacks(mHeartbeatSender);
+            mHandler.postDelayed(mHeartbeatSender, HEARTBEAT_INTERVAL);
         }
         Log.i(CLASS_NAME, "Service started");
         return START_STICKY;
@@ -131,6 +269,8 @@ public class NetworkService extends Service {
 
     @Override
     public void onDestroy() {
+        mHandler.removeCallbacks(mLinkReporter);
+        mHandler.removeCallbacks(mHeartbeatSender);
         //Unregister all BroadcastReceivers and set them to null
         if (mLocalBroadcastReceiver != null) {
             unregisterReceiver(mLocalBroadcastReceiver);
@@ -140,6 +280,17 @@ public class NetworkService extends Service {
             unregisterReceiver(mConnectionRequestReceiver);
             mConnectionRequestReceiver = null;
         }
+        //Stop the UdpTransport and set it to null
+        if (mUdpTransport != null) {
+            mUdpTransport.stop();
+            mUdpTransport = null;
+            mIsPeerActive = false;
+        }
+        //Send any pending frame before the MqttConnectionManager stops
+        if (mMessageBatcher != null) {
+            mMessageBatcher.flush();
+            mMessageBatcher = null;
+        }
         //Stop the MqttConnectionManager and set it to null
         if (mMqttConnectionManager != null) {
             mMqttConnectionManager.stop();
@@ -161,7 +312,7 @@ public class NetworkService extends Service {
             @Override
             public void onReceive(Context context, Intent intent) {
                 if (intent.getAction().equals(INTENT_ACTION_REQUEST_CONNECTION_STATUS)) {
-                    sendBroadcast(new ConnectionPacket(mIsConnected).toIntent());
+                    sendBroadcast(createConnectionPacket().toIntent());
                 }
             }
         };
@@ -173,54 +324,352 @@ public class NetworkService extends Service {
             @Override
             public void onReceive(Context context, Intent intent) {
                 if (mMqttConnectionManager == null) return;
+                //Telemetry over the current rate of its action is dropped
+                if (!mRateLimiter.tryAcquire(intent.getAction(), System.nanoTime())) return;
                 String topic = remoteDeviceType.name() + "/" + intent.getAction();
-                Bundle bundle = intent.getExtras();
-                String message = "";
-                if (bundle != null) {
-                    message = new BundleableJsonObject(bundle).toString();
+                byte[] payload = mTelemetryCodec.encode(intent);
+                if (payload == null) {
+                    Bundle bundle = intent.getExtras();
+                    String message = "";
+                    if (bundle != null) {
+                        //Trace stamps are only meaningful on this device (getExtras is a copy)
+                        LatencyTrace.removeFrom(bundle);
+                        message = new BundleableJsonObject(bundle).toString();
+                    }
+                    Log.i(CLASS_NAME, "Publishing: " + topic + "/" + message);
+                    payload = message.getBytes();
+                }
+                if (mIsPeerActive) {
+                    mUdpTransport.send(topic, payload, isReliable(intent));
+                } else {
+                    publish(intent.getAction(), topic, payload, isReliable(intent));
+                }
+            }
+        };
+    }
+
+    //Publishes the frames of the MessageBatcher on the batch topic of the remote device
+    private MessageBatcher.Callback createMessageBatcherCallback(
+            final DeviceType remoteDeviceType) {
+        return new MessageBatcher.Callback() {
+            @Override
+            public void onFrameReady(byte[] frame, int messageCount) {
+                if (mMqttConnectionManager == null) return;
+                if (!mIsConnected) {
+                    //Store the messages of the frame per topic until reconnected
+                    MessageBatcher.unbatch(frame, mBatchStoreListener);
+                    return;
                 }
-                Log.i(CLASS_NAME, "Publishing: " + topic + "/" + message);
-                mMqttConnectionManager.publish(topic, message);
+                String topic = remoteDeviceType.name() + "/" + BATCH_TOPIC;
+                mMqttConnectionManager.publishLatest(topic, frame);
             }
         };
     }
 
+    //Publishes the messages of a frame that was ready while disconnected one by one, so the
+    //MqttConnectionManager stores the latest of each until reconnected
+    private final MessageBatcher.MessageListener mBatchStoreListener
+            = new MessageBatcher.MessageListener() {
+        @Override
+        public void onMessage(String intentAction, byte[] payload) {
+            String topic = mLocalDeviceType.getOpposite().name() + "/" + intentAction;
+            mMqttConnectionManager.publishLatest(topic, payload);
+        }
+    };
+
+    //Routes the messages of a frame in order (only those of subscribed Intent actions)
+    private final MessageBatcher.MessageListener mBatchMessageListener
+            = new MessageBatcher.MessageListener() {
+        @Override
+        public void onMessage(String intentAction, byte[] payload) {
+            mBatchRouter.route(intentAction, payload);
+        }
+    };
+
+    //Handles the probes returned by the broker
+    private final MessageRouter.MessageHandler mProbeHandler = new MessageRouter.MessageHandler() {
+        @Override
+        public void onMessage(byte[] payload) {
+            mLinkMonitor.onProbeReturned(payload, System.nanoTime());
+        }
+    };
+
+    //Handles the heartbeats of the peer
+    private final MessageRouter.MessageHandler mHeartbeatHandler =
+            new MessageRouter.MessageHandler() {
+        @Override
+        public void onMessage(byte[] payload) {
+            mHeartbeatMonitor.onHeartbeat(payload, System.nanoTime());
+        }
+    };
+
+    //Handles the frames of the peer
+    private final MessageRouter.MessageHandler mBatchHandler = new MessageRouter.MessageHandler() {
+        @Override
+        public void onMessage(byte[] payload) {
+            if (!MessageBatcher.unbatch(payload, mBatchMessageListener)) {
+                Log.w(CLASS_NAME, "Dropped malformed frame");
+            }
+        }
+    };
+
+    //Receives notifications from UdpTransport about the peer and its messages
+    private final UdpTransport.Callback mUdpTransportCallback = new UdpTransport.Callback() {
+        @Override
+        public void onPeerFound() {
+            //Messages batched for MQTT are sent first, so they are not overtaken
+            if (mMessageBatcher != null) mMessageBatcher.flush();
+            mIsPeerActive = true;
+            if (!mIsConnected) sendBroadcast(createConnectionPacket().toIntent());
+        }
+
+        @Override
+        public void onPeerLost() {
+            mIsPeerActive = false;
+            if (!mIsConnected) sendBroadcast(createConnectionPacket().toIntent());
+        }
+
+        @Override
+        public void messageArrived(String topic, byte[] payload) {
+            //Only the remote subscriptions are accepted, as over MQTT
+            mTopicRouter.route(topic, payload);
+        }
+
+        @Override
+        public void onUndelivered(String topic, byte[] payload) {
+            //Only messages of the reliable channel are returned: keep them reliable over MQTT
+            String[] topicSegments = topic.split("/");
+            publish(topicSegments[topicSegments.length - 1], topic, payload, true);
+        }
+    };
+
     //Receives notifications from MqttConnectionManager when certain events occur
     private MqttConnectionManager.Callback mMqttConnectionManagerCallback
             = new MqttConnectionManager.Callback() {
         @Override
         public void onConnect() {
             mMqttConnectionManager.unsubscribeAll();
-            for (String each : mRemoteSubs) {
-                String topic = mLocalDeviceType.name() + "/" + each;
+            for (Map.Entry<String, DeliveryPolicy> each : mRemoteSubs.entrySet()) {
+                String topic = mLocalDeviceType.name() + "/" + each.getKey();
                 Log.i(CLASS_NAME, "Subscribing to topic: " + topic);
-                mMqttConnectionManager.subscribe(mLocalDeviceType.name() + "/" + each);
+                mMqttConnectionManager.subscribe(topic,
+                        each.getValue() == DeliveryPolicy.RELIABLE);
             }
+            mMqttConnectionManager.subscribe(mLocalDeviceType.name() + "/" + BATCH_TOPIC);
+            mMqttConnectionManager.subscribe(mLocalDeviceType.name() + "/" + HEARTBEAT_TOPIC);
+            mMqttConnectionManager.subscribe(mProbeTopic);
+            mLinkMonitor.reset();
             mIsConnected = true;
-            sendBroadcast(new ConnectionPacket(true).toIntent());
+            if (!mIsPeerActive) sendBroadcast(createConnectionPacket().toIntent());
         }
 
         @Override
         public void connectionLost() {
             mIsConnected = false;
-            sendBroadcast(new ConnectionPacket(false).toIntent());
+            if (!mIsPeerActive) sendBroadcast(createConnectionPacket().toIntent());
         }
 
         @Override
-        public void messageArrived(String topic, String message) {
-            String[] topicSegments = topic.split("/");
-            Intent intent = new Intent(topicSegments[topicSegments.length - 1]);
-            if (!message.equals("")) {
+        public void messageArrived(String topic, byte[] payload) {
+            if (!mTopicRouter.route(topic, payload)) {
+                Log.w(CLASS_NAME, "Dropped message on unsubscribed topic: " + topic);
+            }
+        }
+    };
+
+    //Probes the link, adapts the telemetry rates and broadcasts a LinkQualityPacket (repeats
+    //every PROBE_INTERVAL until the service is destroyed)
+    private final Runnable mLinkReporter = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            if (mIsPeerActive) {
+                //Telemetry goes directly to the peer, so the latency to the broker does not matter
+                mRateLimiter.update(false);
+            } else if (mIsConnected) {
+                mRateLimiter.update(mLinkMonitor.isCongested(now, LATENCY_TARGET));
+            } else {
+                //Nothing is delivered while disconnected: recover from the minimum rates
+                mRateLimiter.update(true);
+            }
+            if (mIsConnected) {
+                mMqttConnectionManager.publish(mProbeTopic, mLinkMonitor.createProbe(now));
+            }
+            sendBroadcast(createLinkQualityPacket().toIntent());
+            ConnectionPacket connectionPacket = createConnectionPacket();
+            sendBroadcast(connectionPacket.toIntent());
+            Log.i(CLASS_NAME, String.format(Locale.US, "Peer link: connected %b, RTT p50 %.1f ms, "
+                            + "p95 %.1f ms, loss %.3f, jitter %.1f ms, last heard %.0f ms ago",
+                    connectionPacket.isConnected(), connectionPacket.getRoundTripTimeMedian(),
+                    connectionPacket.getRoundTripTimeP95(), connectionPacket.getLossRatio(),
+                    connectionPacket.getJitter(), connectionPacket.getLastHeardAge()));
+            mHandler.postDelayed(this, PROBE_INTERVAL);
+        }
+    };
+
+    //Sends a heartbeat to the peer over the active transport, bypassing the MessageBatcher so
+    //the RTT does not include the batch window (repeats every HEARTBEAT_INTERVAL)
+    private final Runnable mHeartbeatSender = new Runnable() {
+        @Override
+        public void run() {
+            String topic = mLocalDeviceType.getOpposite().name() + "/" + HEARTBEAT_TOPIC;
+            byte[] heartbeat = mHeartbeatMonitor.createHeartbeat(System.nanoTime());
+            if (mIsPeerActive) {
+                mUdpTransport.send(topic, heartbeat, false);
+            } else if (mIsConnected) {
+                mMqttConnectionManager.publish(topic, heartbeat);
+            }
+            mHandler.postDelayed(this, HEARTBEAT_INTERVAL);
+        }
+    };
+
+    //Builds the inbound routing tables from the remote subscriptions: the topic of each routes
+    //to a handler for its message type, as do the probe, heartbeat and batch topics
+    private void buildRoutes() {
+        mTopicRouter.clear();
+        mBatchRouter.clear();
+        for (String each : mRemoteSubs.keySet()) {
+            MessageRouter.MessageHandler handler = TelemetryCodec.hasSchema(each)
+                    ? createTelemetryHandler(each) : createJsonHandler(each);
+            mTopicRouter.put(mLocalDeviceType.name() + "/" + each, handler);
+            mBatchRouter.put(each, handler);
+        }
+        mTopicRouter.put(mProbeTopic, mProbeHandler);
+        mTopicRouter.put(mLocalDeviceType.name() + "/" + HEARTBEAT_TOPIC, mHeartbeatHandler);
+        mTopicRouter.put(mLocalDeviceType.name() + "/" + BATCH_TOPIC, mBatchHandler);
+    }
+
+    //Returns a ConnectionPacket with the connection status and the current peer link metrics
+    private ConnectionPacket createConnectionPacket() {
+        long now = System.nanoTime();
+        return new ConnectionPacket(mIsConnected || mIsPeerActive,
+                (float) mHeartbeatMonitor.getRoundTripTimePercentileMillis(50),
+                (float) mHeartbeatMonitor.getRoundTripTimePercentileMillis(95),
+                (float) mHeartbeatMonitor.getLossRatio(),
+                (float) mHeartbeatMonitor.getJitterMillis(),
+                (float) mHeartbeatMonitor.getLastHeardAgeMillis(now));
+    }
+
+    //Returns a handler that decodes the JSON messages of the input Intent action (and messageless
+    //ones, e.g. commands without extras) and broadcasts them
+    private MessageRouter.MessageHandler createJsonHandler(final String intentAction) {
+        //A messageless message is broadcast as the same Intent every time
+        final Intent messagelessIntent = new Intent(intentAction);
+        return new MessageRouter.MessageHandler() {
+            @Override
+            public void onMessage(byte[] payload) {
+                if (payload.length == 0) {
+                    sendBroadcast(messagelessIntent);
+                    return;
+                }
+                Intent intent = new Intent(intentAction);
                 try {
-                    Log.i(CLASS_NAME, "Message arrived: " + message);
-                    intent.putExtras(new BundleableJsonObject(message).toBundle());
+                    intent.putExtras(new BundleableJsonObject(new String(payload)).toBundle());
                 } catch (JSONException e) {
                     e.printStackTrace();
                 }
-            } else {
-                Log.i(CLASS_NAME, "Messageless topic arrived: " + topic);
+                sendBroadcast(intent);
+            }
+        };
+    }
+
+    //Returns a handler that decodes the telemetry of the input Intent action with the
+    //TelemetryCodec and broadcasts it (JSON telemetry of older versions is decoded as such)
+    private MessageRouter.MessageHandler createTelemetryHandler(final String intentAction) {
+        final MessageRouter.MessageHandler jsonHandler = createJsonHandler(intentAction);
+        return new MessageRouter.MessageHandler() {
+            @Override
+            public void onMessage(byte[] payload) {
+                if (!TelemetryCodec.isEncoded(payload)) {
+                    jsonHandler.onMessage(payload);
+                    return;
+                }
+                Intent intent = mTelemetryCodec.decode(payload);
+                if (intent == null) {
+                    Log.w(CLASS_NAME, "Dropped undecodable message: " + intentAction);
+                } else if (!intent.getAction().equals(intentAction)) {
+                    //The payload names its own type, which must be the one of its topic
+                    Log.w(CLASS_NAME, "Dropped " + intent.getAction() + " message on the topic of "
+                            + intentAction);
+                } else {
+                    sendBroadcast(intent);
+                }
             }
-            sendBroadcast(intent);
+        };
+    }
+
+    //Returns the DeliveryPolicy of a local subscription (reliable if it has none)
+    private DeliveryPolicy getLocalPolicy(String intentAction) {
+        DeliveryPolicy deliveryPolicy = mLocalSubs.get(intentAction);
+        return deliveryPolicy != null ? deliveryPolicy : DeliveryPolicy.RELIABLE;
+    }
+
+    //Returns true if a local Intent is delivered reliably: by the DeliveryPolicy of its action,
+    //except for servo input, which may carry only the servos that changed, and Arduino output
+    //without servo values (status replies), which is an event rather than telemetry
+    private boolean isReliable(Intent intent) {
+        String intentAction = intent.getAction();
+        if (getLocalPolicy(intentAction) == DeliveryPolicy.RELIABLE) return true;
+        if (intentAction.equals(ArduinoPacket.INTENT_ACTION_INPUT)) return true;
+        return intentAction.equals(ArduinoPacket.INTENT_ACTION_OUTPUT)
+                && !new ArduinoPacket(intent.getExtras()).hasServoValue();
+    }
+
+    //Returns the subscriptions (Intent actions and their policies) stored in an Intent
+    private static Map<String, DeliveryPolicy> getSubscriptions(Intent intent, String subsExtra,
+                                                                String policiesExtra) {
+        Map<String, DeliveryPolicy> subscriptions = new LinkedHashMap<>();
+        List<String> intentActions = intent.getStringArrayListExtra(subsExtra);
+        List<String> deliveryPolicies = intent.getStringArrayListExtra(policiesExtra);
+        if (intentActions == null || deliveryPolicies == null) return subscriptions;
+        for (int i = 0; i < intentActions.size() && i < deliveryPolicies.size(); i++) {
+            subscriptions.put(intentActions.get(i),
+                    DeliveryPolicy.valueOf(deliveryPolicies.get(i)));
         }
-    };
-}
\ No newline at end of file
+        return subscriptions;
+    }
+
+    //Publishes a message over MQTT, reliably or last value only (see isReliable). Reliable
+    //messages bypass the MessageBatcher, since frames are sent at most once, and so does every
+    //message while disconnected, so MqttConnectionManager stores the latest of each topic.
+    private void publish(String intentAction, String topic, byte[] payload, boolean isReliable) {
+        if (mMqttConnectionManager == null) return;
+        if (isReliable) {
+            mMqttConnectionManager.publishReliable(topic, payload);
+        } else if (mMessageBatcher != null && mIsConnected) {
+            mMessageBatcher.add(intentAction, payload);
+        } else {
+            mMqttConnectionManager.publishLatest(topic, payload);
+        }
+    }
+
+    //Stores subscriptions (Intent actions and their policies) in an Intent as two String lists
+    private static void putSubscriptions(Intent intent, Map<String, DeliveryPolicy> subscriptions,
+                                         String subsExtra, String policiesExtra) {
+        ArrayList<String> intentActions = new ArrayList<>();
+        ArrayList<String> deliveryPolicies = new ArrayList<>();
+        for (Map.Entry<String, DeliveryPolicy> each : subscriptions.entrySet()) {
+            intentActions.add(each.getKey());
+            deliveryPolicies.add(each.getValue().name());
+        }
+        intent.putStringArrayListExtra(subsExtra, intentActions);
+        intent.putStringArrayListExtra(policiesExtra, deliveryPolicies);
+    }
+
+    //Returns a LinkQualityPacket with the current measurements and telemetry rates
+    private LinkQualityPacket createLinkQualityPacket() {
+        List<String> topics = mRateLimiter.getTopics();
+        float[] topicRates = new float[topics.size()];
+        for (int i = 0; i < topicRates.length; i++) {
+            topicRates[i] = (float) mRateLimiter.getRate(topics.get(i));
+        }
+        float roundTripTime = mLinkMonitor.hasRoundTripTime()
+                ? (float) mLinkMonitor.getRoundTripTimeMillis() : -1;
+        int pendingDeliveryCount = mMqttConnectionManager != null
+                ? mMqttConnectionManager.getPendingDeliveryCount() : 0;
+        return new LinkQualityPacket(mLocalDeviceType.name(), roundTripTime,
+                (float) mLinkMonitor.getRoundTripVariationMillis(),
+                (float) mLinkMonitor.getLossRatio(), pendingDeliveryCount,
+                topics.toArray(new String[topics.size()]), topicRates);
+    }
+}
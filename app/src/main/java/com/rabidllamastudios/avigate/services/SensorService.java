@@ -1,8 +1,10 @@
 package com.rabidllamastudios.avigate.services;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -11,11 +13,27 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
 import android.util.Log;
 
 import com.rabidllamastudios.avigate.AvigateApplication;
+import com.rabidllamastudios.avigate.helpers.EventBus;
+import com.rabidllamastudios.avigate.helpers.FlightPipeline;
+import com.rabidllamastudios.avigate.helpers.FlightTopics;
+import com.rabidllamastudios.avigate.helpers.GyroBiasEstimator;
+import com.rabidllamastudios.avigate.helpers.MagnetometerCalibration;
+import com.rabidllamastudios.avigate.helpers.MagnetometerCalibrator;
+import com.rabidllamastudios.avigate.helpers.PositionPropagator;
+import com.rabidllamastudios.avigate.helpers.SensorDeliveryTracker;
+import com.rabidllamastudios.avigate.helpers.VerticalKalmanFilter;
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
 import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.SensorHealthPacket;
+
+import org.rajawali3d.math.Quaternion;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -25,6 +43,13 @@ import java.util.concurrent.TimeUnit;
  * Service responsible for listening to and broadcasting sensor events
  * Requires location permissions before starting
  * Broadcasts CraftStatePackets containing sensor data. Broadcast rate is configurable upon start.
+ * CraftStatePackets and SensorHealthPackets are published on the EventBus (see IntentBridge)
+ * Attitude samples (gyroscope, rotation vector) are also published to the FlightPipeline as they
+ * are delivered, for the control loop
+ * Sensor and GPS updates are delivered on a dedicated high priority thread, not the main thread
+ * Periodically broadcasts SensorHealthPackets. Stale sensor data is flagged as invalid.
+ * Gyro bias is estimated while stationary until the flight is configured (armed). Magnetometer
+ * calibration is guided remotely and loaded from the craft profile when the flight is configured.
  * Created by Ryan Staatz on 11/19/2015
  */
 public class SensorService extends Service implements SensorEventListener {
@@ -33,22 +58,81 @@ public class SensorService extends Service implements SensorEventListener {
     private static final String PACKAGE_NAME = AvigateApplication.class.getPackage().getName();
 
     public static final String BROADCAST_RATE = PACKAGE_NAME + ".extra.SENSOR_BROADCAST_RATE";
+    public static final String STALE_THRESHOLD = PACKAGE_NAME + ".extra.SENSOR_STALE_THRESHOLD";
+    public static final String GPS_STALE_THRESHOLD =
+            PACKAGE_NAME + ".extra.GPS_STALE_THRESHOLD";
+
+    //Intent actions for the guided magnetometer calibration. The result is an ArduinoPacket that
+    //contains the magnetometer calibration (absent if the fit failed), to be saved in the profile
+    public static final String INTENT_ACTION_START_MAGNETOMETER_CALIBRATION =
+            PACKAGE_NAME + ".action.START_MAGNETOMETER_CALIBRATION";
+    public static final String INTENT_ACTION_STOP_MAGNETOMETER_CALIBRATION =
+            PACKAGE_NAME + ".action.STOP_MAGNETOMETER_CALIBRATION";
+    public static final String INTENT_ACTION_MAGNETOMETER_CALIBRATION_RESULT =
+            PACKAGE_NAME + ".action.MAGNETOMETER_CALIBRATION_RESULT";
 
     //Default sensor data broadcast rate in milliseconds (ms)
     private static final int DEFAULT_BROADCAST_RATE = 100;
     private static final int SENSOR_RATE = SensorManager.SENSOR_DELAY_UI;
+    //Default time without samples after which sensor or GPS data is stale in milliseconds (ms)
+    private static final int DEFAULT_STALE_THRESHOLD = 500;
+    private static final int DEFAULT_GPS_STALE_THRESHOLD = 3000;
+    //Interval at which sensor health statistics are broadcast (then reset) in milliseconds (ms)
+    private static final int HEALTH_BROADCAST_INTERVAL = 1000;
+    //Sensor delivery jitter statistics are logged every JITTER_LOG_PERIOD health broadcasts
+    private static final int JITTER_LOG_PERIOD = 10;
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+    private static final long NANOS_PER_MILLI = 1000000L;
 
     //Sensor broadcast rate in milliseconds (ms)
     private int mBroadcastRate = DEFAULT_BROADCAST_RATE;
 
+    //Sensor data is written on the sensor thread and read on the broadcast thread, hence volatile
+    //See independent observations pattern #3: http://www.ibm.com/developerworks/library/j-jtp06197/
+    //Each sample is stored as a new value object that is never modified, so a reader always sees
+    //the components of one sample. The control loop receives attitude samples via FlightPipeline.
     private CraftStatePacket mCraftStatePacket = null;
-    private CraftStatePacket.AngularVelocity mAngularVelocity = null;
-    private CraftStatePacket.BarometricPressure mBarometricPressure = null;
-    private CraftStatePacket.LinearAcceleration mLinearAcceleration = null;
-    private CraftStatePacket.MagneticField mMagneticField = null;
-    private CraftStatePacket.Orientation mOrientation = null;
-    private Location mLocation = null;
+    private volatile CraftStatePacket.AngularVelocity mAngularVelocity = null;
+    private volatile CraftStatePacket.BarometricPressure mBarometricPressure = null;
+    private volatile CraftStatePacket.LinearAcceleration mLinearAcceleration = null;
+    private volatile CraftStatePacket.MagneticField mMagneticField = null;
+    private volatile CraftStatePacket.Orientation mOrientation = null;
+    private volatile Location mLocation = null;
+    //Time at which mLocation was received (System.nanoTime). Written before mLocation.
+    private volatile long mLocationNanos = 0;
+    //Latest world frame horizontal linear acceleration, written on the sensor thread
+    private volatile float mAccelerationEast = 0;
+    private volatile float mAccelerationNorth = 0;
+
+    //Delivery jitter trackers for each sensor. Only accessed on the sensor thread, except for
+    //staleness checks. Indexed by the SENSOR_ constants of SensorHealthPacket in mSensorTrackers.
+    private SensorDeliveryTracker mAccelerometerTracker;
+    private SensorDeliveryTracker mBarometerTracker;
+    private SensorDeliveryTracker mCompassTracker;
+    private SensorDeliveryTracker mGyroscopeTracker;
+    private SensorDeliveryTracker mRotationVectorTracker;
+    private SensorDeliveryTracker mGpsTracker;
+    private SensorDeliveryTracker[] mSensorTrackers;
+    private int mHealthBroadcastCount = 0;
+
+    //Sensor calibration. Only accessed on the sensor thread.
+    private GyroBiasEstimator mGyroBiasEstimator;
+    private MagnetometerCalibration mMagnetometerCalibration = null;
+    private MagnetometerCalibrator mMagnetometerCalibrator = null;
+    private final float[] mCorrectedMagneticField = new float[3];
+    private BroadcastReceiver mCalibrationReceiver;
 
+    //Vertical channel estimation. Only updated on the sensor thread.
+    private VerticalKalmanFilter mVerticalKalmanFilter;
+    private long mLastAccelerationTimestamp = 0;
+
+    //Position propagation between GPS fixes. Only accessed on the broadcast thread.
+    private PositionPropagator mPositionPropagator;
+    private Location mPropagatedLocation = null;
+
+    private final FlightPipeline mFlightPipeline = FlightPipeline.getDefault();
+    private Handler mSensorHandler;
+    private HandlerThread mSensorThread;
     private LocationListener mLocationListener;
     private LocationManager mLocationManager;
     private ScheduledExecutorService mScheduleBroadcastExecutor;
@@ -72,11 +156,53 @@ public class SensorService extends Service implements SensorEventListener {
         return intent;
     }
 
+    /** Returns a configured Intent that can be used to start the service (SensorService)
+     * @param context the application context from the activity invoking this method
+     * @param broadcastRate the broadcast rate of CraftStatePackets in milliseconds (ms)
+     * @param staleThreshold time without samples after which sensor data is invalid in ms
+     * @param gpsStaleThreshold time without fixes after which GPS data is invalid in ms
+     */
+    public static Intent getConfiguredIntent(Context context, int broadcastRate,
+                                             int staleThreshold, int gpsStaleThreshold) {
+        Intent intent = getConfiguredIntent(context, broadcastRate);
+        intent.putExtra(STALE_THRESHOLD, staleThreshold);
+        intent.putExtra(GPS_STALE_THRESHOLD, gpsStaleThreshold);
+        return intent;
+    }
+
     @Override
     public void onCreate() {
         //Initialize mScheduledBroadcastExecutor
         mScheduleBroadcastExecutor = Executors.newSingleThreadScheduledExecutor();
 
+        //Start the high priority thread that all sensor and location updates are delivered on
+        mSensorThread = new HandlerThread(CLASS_NAME, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mSensorThread.start();
+        mSensorHandler = new Handler(mSensorThread.getLooper());
+
+        //Initialize delivery jitter trackers for each sensor
+        mAccelerometerTracker = new SensorDeliveryTracker("Accelerometer");
+        mBarometerTracker = new SensorDeliveryTracker("Barometer");
+        mCompassTracker = new SensorDeliveryTracker("Compass");
+        mGyroscopeTracker = new SensorDeliveryTracker("Gyroscope");
+        mRotationVectorTracker = new SensorDeliveryTracker("RotationVector");
+        mGpsTracker = new SensorDeliveryTracker("GPS");
+        mSensorTrackers = new SensorDeliveryTracker[SensorHealthPacket.SENSOR_COUNT];
+        mSensorTrackers[SensorHealthPacket.SENSOR_ACCELEROMETER] = mAccelerometerTracker;
+        mSensorTrackers[SensorHealthPacket.SENSOR_BAROMETER] = mBarometerTracker;
+        mSensorTrackers[SensorHealthPacket.SENSOR_COMPASS] = mCompassTracker;
+        mSensorTrackers[SensorHealthPacket.SENSOR_GYROSCOPE] = mGyroscopeTracker;
+        mSensorTrackers[SensorHealthPacket.SENSOR_ROTATION_VECTOR] = mRotationVectorTracker;
+        mSensorTrackers[SensorHealthPacket.SENSOR_GPS] = mGpsTracker;
+
+        //Initialize the gyro bias estimator (runs until the flight is configured)
+        mGyroBiasEstimator = new GyroBiasEstimator();
+
+        //Initialize the vertical channel Kalman filter (fuses barometer, GPS and accelerometer)
+        mVerticalKalmanFilter = new VerticalKalmanFilter();
+        //Initialize the position propagator (dead-reckons position between GPS fixes)
+        mPositionPropagator = new PositionPropagator();
+
         //Initialize mSensorManager and associated sensors
         mSensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
         mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
@@ -90,6 +216,14 @@ public class SensorService extends Service implements SensorEventListener {
         mLocationListener = new LocationListener() {
             @Override
             public void onLocationChanged(Location location) {
+                //Location time is in ms (UTC), which is sufficient to measure GPS jitter
+                mGpsTracker.onSampleDelivered(location.getTime() * NANOS_PER_MILLI,
+                        System.nanoTime());
+                if (location.hasAltitude()) {
+                    mVerticalKalmanFilter.updateGpsAltitude(location.getAltitude(),
+                            location.getAccuracy());
+                }
+                mLocationNanos = System.nanoTime();
                 mLocation = new Location(location);
             }
 
@@ -107,16 +241,38 @@ public class SensorService extends Service implements SensorEventListener {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent != null) {
-            //Set sensor refresh rate and start sensors
-            mSensorManager.registerListener(this, mAccelerometer, SENSOR_RATE);
-            mSensorManager.registerListener(this, mGyroscope, SENSOR_RATE);
-            mSensorManager.registerListener(this, mRotationVector, SENSOR_RATE);
-            mSensorManager.registerListener(this, mCompass, SENSOR_RATE);
-            mSensorManager.registerListener(this, mBarometer, SENSOR_RATE);
-
-            //Start GPS using fastest rate (0)
+            //Set sensor refresh rate and start sensors (delivered on the sensor thread)
+            mSensorManager.registerListener(this, mAccelerometer, SENSOR_RATE, mSensorHandler);
+            mSensorManager.registerListener(this, mGyroscope, SENSOR_RATE, mSensorHandler);
+            mSensorManager.registerListener(this, mRotationVector, SENSOR_RATE, mSensorHandler);
+            mSensorManager.registerListener(this, mCompass, SENSOR_RATE, mSensorHandler);
+            mSensorManager.registerListener(this, mBarometer, SENSOR_RATE, mSensorHandler);
+
+            //Start GPS using fastest rate (0), delivered on the sensor thread's Looper
             mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0,
-                    mLocationListener);
+                    mLocationListener, mSensorThread.getLooper());
+            //Set the stale thresholds of all sensors and GPS
+            long staleThreshold = intent.getIntExtra(STALE_THRESHOLD, DEFAULT_STALE_THRESHOLD)
+                    * NANOS_PER_MILLI;
+            for (SensorDeliveryTracker each : mSensorTrackers) {
+                each.setStaleThreshold(staleThreshold);
+            }
+            mGpsTracker.setStaleThreshold(NANOS_PER_MILLI
+                    * intent.getIntExtra(GPS_STALE_THRESHOLD, DEFAULT_GPS_STALE_THRESHOLD));
+            //Periodically broadcast the health (and log the delivery jitter) of each sensor
+            mSensorHandler.removeCallbacks(mHealthReporter);
+            mSensorHandler.postDelayed(mHealthReporter, HEALTH_BROADCAST_INTERVAL);
+            //Listen for calibration commands and flight configuration on the sensor thread
+            if (mCalibrationReceiver == null) {
+                mCalibrationReceiver = createCalibrationReceiver();
+                IntentFilter calibrationIntentFilter = new IntentFilter();
+                calibrationIntentFilter.addAction(
+                        FlightControlService.INTENT_ACTION_CONFIGURE_FLIGHT_CONTROL_SERVICE);
+                calibrationIntentFilter.addAction(INTENT_ACTION_START_MAGNETOMETER_CALIBRATION);
+                calibrationIntentFilter.addAction(INTENT_ACTION_STOP_MAGNETOMETER_CALIBRATION);
+                registerReceiver(mCalibrationReceiver, calibrationIntentFilter, null,
+                        mSensorHandler);
+            }
             if (intent.hasExtra(BROADCAST_RATE)) {
                 mBroadcastRate = intent.getIntExtra(BROADCAST_RATE, DEFAULT_BROADCAST_RATE);
             }
@@ -127,22 +283,48 @@ public class SensorService extends Service implements SensorEventListener {
         return START_STICKY;
     }
 
+    //Called on the sensor thread (mSensorThread)
     @Override
     public void onSensorChanged(SensorEvent event) {
+        long deliveryNanos = System.nanoTime();
         Sensor sensor = event.sensor;
         //Store various sensor values to the appropriate inner class of CraftStatePacket
         if (sensor.getType() == Sensor.TYPE_GYROSCOPE) {
-            mAngularVelocity = new CraftStatePacket.AngularVelocity(event.values[0],
-                    event.values[1], event.values[2]);
+            mGyroscopeTracker.onSampleDelivered(event.timestamp, deliveryNanos);
+            mGyroBiasEstimator.addSample(event.values[0], event.values[1], event.values[2]);
+            float x = event.values[0] - mGyroBiasEstimator.getBiasX();
+            float y = event.values[1] - mGyroBiasEstimator.getBiasY();
+            float z = event.values[2] - mGyroBiasEstimator.getBiasZ();
+            //Attitude samples go straight to the control loop, snapshots are broadcast
+            mFlightPipeline.publishAngularVelocity(deliveryNanos, x, y, z);
+            mAngularVelocity = new CraftStatePacket.AngularVelocity(x, y, z);
         } else if (sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION) {
+            mAccelerometerTracker.onSampleDelivered(event.timestamp, deliveryNanos);
+            predictVerticalState(event);
             mLinearAcceleration = new CraftStatePacket.LinearAcceleration(event.values[0],
                     event.values[1], event.values[2]);
         } else if (sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
-            mMagneticField = new CraftStatePacket.MagneticField(event.values[0], event.values[1],
-                    event.values[2]);
+            mCompassTracker.onSampleDelivered(event.timestamp, deliveryNanos);
+            //Calibration samples must be raw (uncorrected) values
+            if (mMagnetometerCalibrator != null) {
+                mMagnetometerCalibrator.addSample(event.values[0], event.values[1],
+                        event.values[2]);
+            }
+            float[] magneticField = event.values;
+            if (mMagnetometerCalibration != null) {
+                mMagnetometerCalibration.correct(event.values, mCorrectedMagneticField);
+                magneticField = mCorrectedMagneticField;
+            }
+            mMagneticField = new CraftStatePacket.MagneticField(magneticField[0],
+                    magneticField[1], magneticField[2]);
         } else if (sensor.getType() == Sensor.TYPE_PRESSURE) {
+            mBarometerTracker.onSampleDelivered(event.timestamp, deliveryNanos);
             mBarometricPressure = new CraftStatePacket.BarometricPressure(event.values[0]);
+            mVerticalKalmanFilter.updateBarometricAltitude(mBarometricPressure.getAltitude());
         } else if (sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
+            mRotationVectorTracker.onSampleDelivered(event.timestamp, deliveryNanos);
+            mFlightPipeline.publishOrientation(deliveryNanos, event.values[3], event.values[0],
+                    event.values[1], event.values[2]);
             mOrientation = new CraftStatePacket.Orientation(event.values[3], event.values[0],
                     event.values[1], event.values[2]);
         }
@@ -151,6 +333,32 @@ public class SensorService extends Service implements SensorEventListener {
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {}
 
+    //Rotates a linear acceleration event into the world frame (east, north, up)
+    //Propagates the vertical state and stores the horizontal acceleration for position propagation
+    private void predictVerticalState(SensorEvent event) {
+        CraftStatePacket.Orientation orientation = mOrientation;
+        if (orientation != null) {
+            float x = event.values[0];
+            float y = event.values[1];
+            float z = event.values[2];
+            Quaternion rotation = orientation.getRawOrientation();
+            float rw = (float) rotation.w, rx = (float) rotation.x;
+            float ry = (float) rotation.y, rz = (float) rotation.z;
+            //Rows of the rotation matrix of the rotation vector (device to world frame)
+            mAccelerationEast = (1 - 2 * (ry * ry + rz * rz)) * x + 2 * (rx * ry - rw * rz) * y
+                    + 2 * (rx * rz + rw * ry) * z;
+            mAccelerationNorth = 2 * (rx * ry + rw * rz) * x + (1 - 2 * (rx * rx + rz * rz)) * y
+                    + 2 * (ry * rz - rw * rx) * z;
+            double verticalAcceleration = 2 * (rx * rz - rw * ry) * x
+                    + 2 * (ry * rz + rw * rx) * y + (1 - 2 * (rx * rx + ry * ry)) * z;
+            if (mLastAccelerationTimestamp != 0) {
+                double dt = (event.timestamp - mLastAccelerationTimestamp) / NANOS_PER_SECOND;
+                mVerticalKalmanFilter.predict(verticalAcceleration, dt);
+            }
+        }
+        mLastAccelerationTimestamp = event.timestamp;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -161,7 +369,15 @@ public class SensorService extends Service implements SensorEventListener {
         //Unregister listeners / remove updates
         mSensorManager.unregisterListener(this);
         mLocationManager.removeUpdates(mLocationListener);
-        //Set all related CraftStatePacket instance variables to null (to prevent saving old data)
+        if (mCalibrationReceiver != null) {
+            unregisterReceiver(mCalibrationReceiver);
+            mCalibrationReceiver = null;
+        }
+        //Stop broadcasting and stop the sensor thread
+        mScheduleBroadcastExecutor.shutdownNow();
+        mSensorHandler.removeCallbacksAndMessages(null);
+        mSensorThread.quit();
+        //Clear all related CraftStatePacket data (to prevent saving old data)
         mCraftStatePacket = null;
         mAngularVelocity = null;
         mBarometricPressure = null;
@@ -174,28 +390,165 @@ public class SensorService extends Service implements SensorEventListener {
         super.onDestroy();
     }
 
+    //Listens for calibration commands and flight configuration. Runs on the sensor thread.
+    private BroadcastReceiver createCalibrationReceiver() {
+        return new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                String action = intent.getAction();
+                if (action.equals(
+                        FlightControlService.INTENT_ACTION_CONFIGURE_FLIGHT_CONTROL_SERVICE)) {
+                    //The flight is starting: freeze the gyro bias and apply the stored calibration
+                    mGyroBiasEstimator.lock();
+                    Log.i(CLASS_NAME, "Gyro bias locked: " + mGyroBiasEstimator.getBiasX() + ", "
+                            + mGyroBiasEstimator.getBiasY() + ", "
+                            + mGyroBiasEstimator.getBiasZ());
+                    if (intent.hasExtra(FlightControlService.EXTRA_CONFIG)) {
+                        loadMagnetometerCalibration(new ArduinoPacket(
+                                intent.getStringExtra(FlightControlService.EXTRA_CONFIG)));
+                    }
+                } else if (action.equals(INTENT_ACTION_START_MAGNETOMETER_CALIBRATION)) {
+                    mMagnetometerCalibrator = new MagnetometerCalibrator();
+                    Log.i(CLASS_NAME, "Magnetometer calibration started");
+                } else if (action.equals(INTENT_ACTION_STOP_MAGNETOMETER_CALIBRATION)) {
+                    finishMagnetometerCalibration();
+                }
+            }
+        };
+    }
+
+    //Applies the magnetometer calibration stored in the input craft profile (if any)
+    private void loadMagnetometerCalibration(ArduinoPacket configArduinoPacket) {
+        if (configArduinoPacket.hasMagnetometerCalibration()) {
+            mMagnetometerCalibration = new MagnetometerCalibration(
+                    configArduinoPacket.getMagnetometerOffset(),
+                    configArduinoPacket.getMagnetometerMatrix());
+            Log.i(CLASS_NAME, "Magnetometer calibration loaded");
+        }
+    }
+
+    //Fits the collected magnetometer samples, applies the result and broadcasts it
+    private void finishMagnetometerCalibration() {
+        if (mMagnetometerCalibrator == null) return;
+        MagnetometerCalibration calibration = mMagnetometerCalibrator.fit();
+        ArduinoPacket resultArduinoPacket = new ArduinoPacket();
+        if (calibration != null) {
+            mMagnetometerCalibration = calibration;
+            resultArduinoPacket.setMagnetometerCalibration(calibration.getOffset(),
+                    calibration.getMatrix());
+            Log.i(CLASS_NAME, "Magnetometer calibration completed");
+        } else {
+            Log.i(CLASS_NAME, "Magnetometer calibration failed: "
+                    + mMagnetometerCalibrator.getSampleCount() + " samples, insufficient coverage");
+        }
+        mMagnetometerCalibrator = null;
+        sendBroadcast(resultArduinoPacket.toIntent(INTENT_ACTION_MAGNETOMETER_CALIBRATION_RESULT));
+    }
+
+    //Broadcasts a SensorHealthPacket for the last interval, then resets the statistics and
+    //reschedules itself. Periodically logs the delivery jitter. Runs on the sensor thread.
+    private final Runnable mHealthReporter = new Runnable() {
+        @Override
+        public void run() {
+            long nowNanos = System.nanoTime();
+            boolean logJitter = ++mHealthBroadcastCount % JITTER_LOG_PERIOD == 0;
+            SensorHealthPacket sensorHealthPacket = new SensorHealthPacket();
+            for (int i = 0; i < SensorHealthPacket.SENSOR_COUNT; i++) {
+                SensorDeliveryTracker tracker = mSensorTrackers[i];
+                if (logJitter) Log.i(CLASS_NAME, tracker.toString());
+                sensorHealthPacket.setSensorHealth(i, createSensorHealth(tracker, nowNanos));
+                tracker.reset();
+            }
+            EventBus.getDefault().publish(FlightTopics.SENSOR_HEALTH, sensorHealthPacket);
+            mSensorHandler.postDelayed(this, HEALTH_BROADCAST_INTERVAL);
+        }
+    };
+
+    //Summarizes the statistics of a SensorDeliveryTracker into a SensorHealth
+    private static SensorHealthPacket.SensorHealth createSensorHealth(
+            SensorDeliveryTracker tracker, long nowNanos) {
+        long lastSampleAge = tracker.getLastSampleAge(nowNanos);
+        //A sensor that never delivered a sample reports an age of -1
+        float lastSampleAgeMillis = lastSampleAge == Long.MAX_VALUE ? -1
+                : (float) lastSampleAge / NANOS_PER_MILLI;
+        return new SensorHealthPacket.SensorHealth(
+                (float) tracker.getDeliveredRate(nowNanos),
+                (float) tracker.getJitterStatistics().getPercentileMillis(50),
+                (float) tracker.getJitterStatistics().getPercentileMillis(95),
+                (float) tracker.getJitterStatistics().getPercentileMillis(99),
+                (float) tracker.getIntervalStatistics().getMaxMillis(),
+                lastSampleAgeMillis, tracker.isStale(nowNanos));
+    }
+
     //Packages and broadcasts CraftStatePacket contained in mThrottledServoValues (an ArduinoPacket)
     private class SensorDataBroadcaster implements Runnable {
         @Override
         public void run() {
             //Only broadcast sensor data if all sensor data is ready
             if (initialSensorDataReady()) {
-                //If mCraftStatePacket has not yet been created, create a new CraftStatePacket
-                if (mCraftStatePacket == null) {
-                    mCraftStatePacket = new CraftStatePacket(mAngularVelocity, mBarometricPressure,
-                            mLinearAcceleration, mMagneticField, mOrientation, mLocation);
-                //If mCraftStatePacket is already created, update all sensor-related objects
-                } else {
-                    mCraftStatePacket.setAngularVelocity(mAngularVelocity);
-                    mCraftStatePacket.setBarometricPressure(mBarometricPressure);
-                    mCraftStatePacket.setLinearAcceleration(mLinearAcceleration);
-                    mCraftStatePacket.setMagneticField(mMagneticField);
-                    mCraftStatePacket.setOrientation(mOrientation);
-                    mCraftStatePacket.setLocation(mLocation);
+                //Create a new CraftStatePacket for every broadcast, since subscribers receive
+                //the published packet itself
+                mCraftStatePacket = new CraftStatePacket(mAngularVelocity, mBarometricPressure,
+                        mLinearAcceleration, mMagneticField, mOrientation, mLocation);
+                //Flag the data of any sensor that stopped delivering samples as invalid
+                mCraftStatePacket.setValidity(getValidity());
+                //Propagate the position from the latest GPS fix and add it to the packet
+                propagatePosition();
+                //Add the latest vertical state estimate (altitude, climb rate, barometer bias)
+                VerticalKalmanFilter.Estimate verticalEstimate =
+                        mVerticalKalmanFilter.getEstimate();
+                if (verticalEstimate != null) {
+                    mCraftStatePacket.setVerticalState(new CraftStatePacket.VerticalState(
+                            (float) verticalEstimate.getAltitude(),
+                            (float) verticalEstimate.getClimbRate(),
+                            (float) verticalEstimate.getBarometerBias()));
                 }
-                //Broadcast mCraftStatePacket and its contents
-                sendBroadcast(mCraftStatePacket.toIntent());
+                //Publish mCraftStatePacket and its contents
+                EventBus.getDefault().publish(FlightTopics.CRAFT_STATE, mCraftStatePacket);
+            }
+        }
+
+        //Resets the position propagator on a new GPS fix, then extrapolates it to the current time
+        private void propagatePosition() {
+            Location location = mLocation;
+            if (location != mPropagatedLocation) {
+                mPositionPropagator.onFix(location.getLatitude(), location.getLongitude(),
+                        location.getSpeed(), location.getBearing(), location.getAccuracy(),
+                        mLocationNanos);
+                mPropagatedLocation = location;
+            }
+            mPositionPropagator.propagate(System.nanoTime(), mAccelerationEast,
+                    mAccelerationNorth);
+            mCraftStatePacket.setPropagatedPosition(new CraftStatePacket.PropagatedPosition(
+                    mPositionPropagator.getLatitude(), mPositionPropagator.getLongitude(),
+                    (float) mPositionPropagator.getEast(), (float) mPositionPropagator.getNorth(),
+                    (float) mPositionPropagator.getVelocityEast(),
+                    (float) mPositionPropagator.getVelocityNorth(),
+                    (float) mPositionPropagator.getUncertainty(),
+                    (float) mPositionPropagator.getFixAge()));
+        }
+
+        //Returns the validity flags of the latest sensor data, based on the age of each sensor
+        private int getValidity() {
+            long nowNanos = System.nanoTime();
+            int validity = CraftStatePacket.VALID_ALL;
+            if (mGyroscopeTracker.isStale(nowNanos)) {
+                validity &= ~CraftStatePacket.VALID_ANGULAR_VELOCITY;
+            }
+            if (mBarometerTracker.isStale(nowNanos)) {
+                validity &= ~CraftStatePacket.VALID_BAROMETRIC_PRESSURE;
+            }
+            if (mAccelerometerTracker.isStale(nowNanos)) {
+                validity &= ~CraftStatePacket.VALID_LINEAR_ACCELERATION;
+            }
+            if (mCompassTracker.isStale(nowNanos)) {
+                validity &= ~CraftStatePacket.VALID_MAGNETIC_FIELD;
+            }
+            if (mRotationVectorTracker.isStale(nowNanos)) {
+                validity &= ~CraftStatePacket.VALID_ORIENTATION;
             }
+            if (mGpsTracker.isStale(nowNanos)) validity &= ~CraftStatePacket.VALID_LOCATION;
+            return validity;
         }
 
         //Checks whether all sensor data is ready to be packaged into a new CraftStatePacket
@@ -0,0 +1,329 @@
+package com.rabidllamastudios.avigate.services;
+
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Location;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.rabidllamastudios.avigate.AvigateApplication;
+import com.rabidllamastudios.avigate.helpers.EventBus;
+import com.rabidllamastudios.avigate.helpers.FlightPipeline;
+import com.rabidllamastudios.avigate.helpers.FlightTopics;
+import com.rabidllamastudios.avigate.helpers.LatencyTracer;
+import com.rabidllamastudios.avigate.helpers.RingBuffer;
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.LatencyTrace;
+import com.rabidllamastudios.avigate.models.ServoFrame;
+import com.rabidllamastudios.avigate.simulation.FlightSimulator;
+import com.rabidllamastudios.avigate.simulation.SensorFrame;
+
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service that replaces SensorService and UsbSerialService with a simulated craft (software in
+ * the loop). Each step applies the ServoFrames that FlightControlService wrote to the
+ * FlightPipeline since the previous step to a FlightSimulator. The attitude samples of the
+ * simulator are published on the FlightPipeline, and its sensor data on the EventBus as
+ * CraftStatePackets (CRAFT_STATE) in the same format as SensorService, so the control loop
+ * receives them as it would from the real services.
+ * The simulation (re)starts in trimmed level flight when the flight is configured, using the
+ * servo ranges of the craft profile. If the simulated craft crashes, the simulation stops until
+ * the flight is configured again. Time can be scaled to run faster or slower than real time.
+ * A step that fails is logged, and the simulation keeps stepping.
+ */
+public class SimulationService extends Service {
+    private static final String CLASS_NAME = SimulationService.class.getSimpleName();
+    private static final String PACKAGE_NAME = AvigateApplication.class.getPackage().getName();
+
+    public static final String BROADCAST_RATE = PACKAGE_NAME + ".extra.SIMULATION_BROADCAST_RATE";
+    public static final String TIME_SCALE = PACKAGE_NAME + ".extra.SIMULATION_TIME_SCALE";
+    public static final String SEED = PACKAGE_NAME + ".extra.SIMULATION_SEED";
+
+    //Default sensor data broadcast rate in milliseconds (ms)
+    private static final int DEFAULT_BROADCAST_RATE = 100;
+    //Interval at which latency statistics are broadcast (then reset) in milliseconds (ms)
+    private static final int LATENCY_REPORT_RATE = 1000;
+    private static final long DEFAULT_SEED = 0;
+    //Must match the mounting of the phone assumed by FlightControlService
+    private static final boolean PHONE_FACING_NOSE = false;
+    //Simulated earth magnetic field (east, north, up) in micro Tesla
+    private static final double[] MAGNETIC_FIELD = {0, 20, -45};
+    private static final ArduinoPacket.ServoType[] SERVO_TYPES = ArduinoPacket.ServoType.values();
+
+    private int mBroadcastRate = DEFAULT_BROADCAST_RATE;
+    private double mTimeScale = 1;
+    private long mSeed = DEFAULT_SEED;
+
+    //Only accessed on the simulation thread
+    private FlightSimulator mFlightSimulator = null;
+    private Location mLocation = null;
+    private double mLocationTime = -1;
+    private boolean mHasCrashed = false;
+    //Time the pending ServoFrames were dequeued by the latest poll
+    private long mPollNanos = 0;
+    private final FlightPipeline mFlightPipeline = FlightPipeline.getDefault();
+    private final LatencyTracer mLatencyTracer = new LatencyTracer();
+
+    //Written on the main thread and read on the simulation thread, hence volatile
+    private volatile String mConfigJson = null;
+    private volatile boolean mConfigured = false;
+
+    private ScheduledExecutorService mSimulationExecutor;
+    private boolean mSimulationScheduled = false;
+
+    public SimulationService() {}
+
+    /** Returns a configured Intent that can be used to start the service (SimulationService)
+     * @param context the application context from the activity invoking this method
+     * @param broadcastRate the broadcast rate of CraftStatePackets in milliseconds (ms)
+     * @param timeScale the simulated time per real time (e.g. 2 runs twice as fast)
+     * @param seed the seed of the simulated sensor noise
+     */
+    public static Intent getConfiguredIntent(Context context, int broadcastRate,
+                                             double timeScale, long seed) {
+        Intent intent = new Intent(context, SimulationService.class);
+        intent.putExtra(BROADCAST_RATE, broadcastRate);
+        intent.putExtra(TIME_SCALE, timeScale);
+        intent.putExtra(SEED, seed);
+        return intent;
+    }
+
+    @Override
+    public void onCreate() {
+        mSimulationExecutor = Executors.newSingleThreadScheduledExecutor();
+        registerReceiver(mSimulationReceiver, new IntentFilter(
+                FlightControlService.INTENT_ACTION_CONFIGURE_FLIGHT_CONTROL_SERVICE));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && !mSimulationScheduled) {
+            mSimulationScheduled = true;
+            mBroadcastRate = intent.getIntExtra(BROADCAST_RATE, DEFAULT_BROADCAST_RATE);
+            mTimeScale = intent.getDoubleExtra(TIME_SCALE, 1);
+            mSeed = intent.getLongExtra(SEED, DEFAULT_SEED);
+            mSimulationExecutor.scheduleAtFixedRate(new SimulationStepper(), 0, mBroadcastRate,
+                    TimeUnit.MILLISECONDS);
+            mSimulationExecutor.scheduleAtFixedRate(new LatencyReporter(), LATENCY_REPORT_RATE,
+                    LATENCY_REPORT_RATE, TimeUnit.MILLISECONDS);
+        }
+        Log.i(CLASS_NAME, "Service started");
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(mSimulationReceiver);
+        mSimulationExecutor.shutdownNow();
+        Log.i(CLASS_NAME, "Service stopped");
+        super.onDestroy();
+    }
+
+    //Applies ServoFrames from the FlightPipeline to the simulator in order, completing their
+    //LatencyTrace. Runs on the simulation thread. Frames wait in the pipeline until the next
+    //simulation step (servo delivery), and applying them takes no serial write (near zero).
+    private final RingBuffer.Handler<ServoFrame> mServoFrameHandler =
+            new RingBuffer.Handler<ServoFrame>() {
+        @Override
+        public void onEvent(ServoFrame servoFrame, long sequence, boolean endOfBatch) {
+            LatencyTrace latencyTrace = servoFrame.isTraced() ? servoFrame.getLatencyTrace() : null;
+            if (latencyTrace != null) {
+                latencyTrace.stamp(LatencyTrace.POINT_SERVO_RECEIVED, mPollNanos);
+                latencyTrace.stamp(LatencyTrace.POINT_WRITE_START);
+            }
+            for (ArduinoPacket.ServoType servoType : SERVO_TYPES) {
+                if (servoFrame.hasServoValue(servoType)) {
+                    mFlightSimulator.setServoValue(servoType, servoFrame.getServoValue(servoType));
+                }
+            }
+            if (latencyTrace != null) {
+                latencyTrace.stamp(LatencyTrace.POINT_WRITE_END);
+                mLatencyTracer.record(latencyTrace);
+            }
+        }
+    };
+
+    //Receives the flight configuration (main thread)
+    private BroadcastReceiver mSimulationReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getAction().equals(
+                    FlightControlService.INTENT_ACTION_CONFIGURE_FLIGHT_CONTROL_SERVICE)) {
+                mConfigJson = intent.getStringExtra(FlightControlService.EXTRA_CONFIG);
+                mConfigured = true;
+            }
+        }
+    };
+
+    //Advances the simulation by one (scaled) broadcast period and publishes its sensor data
+    private class SimulationStepper implements Runnable {
+        @Override
+        public void run() {
+            try {
+                step();
+            } catch (RuntimeException e) {
+                //scheduleAtFixedRate cancels a task that throws, which would stop the simulation
+                Log.e(CLASS_NAME, "Simulation step failed", e);
+            }
+        }
+
+        private void step() {
+            //Restart the simulation with the servo ranges of the craft profile once configured
+            if (mFlightSimulator == null || mConfigured) {
+                mConfigured = false;
+                String configJson = mConfigJson;
+                ArduinoPacket configArduinoPacket = null;
+                if (configJson != null) configArduinoPacket = new ArduinoPacket(configJson);
+                mFlightSimulator = new FlightSimulator(configArduinoPacket, mSeed);
+                mLocation = null;
+                mLocationTime = -1;
+                mHasCrashed = false;
+                Log.i(CLASS_NAME, "Simulation started");
+            }
+            //Apply the servo values written by the control loop since the last step
+            mPollNanos = System.nanoTime();
+            try {
+                mFlightPipeline.getServoFrames().poll(mServoFrameHandler);
+            } catch (RuntimeException e) {
+                //The frames are not released by a failed poll, so they would fail again on every
+                //step. The rest of the batch is skipped, as BatchConsumer does.
+                mFlightPipeline.getServoFrames().skip();
+                throw e;
+            }
+            if (mHasCrashed) return;
+            mFlightSimulator.step(mBroadcastRate / 1000.0 * mTimeScale);
+            if (mFlightSimulator.getModel().hasCrashed()) {
+                //Stop the simulation (no more sensor data) until the flight is reconfigured
+                mHasCrashed = true;
+                Log.i(CLASS_NAME, "Simulated craft crashed, simulation stopped");
+                return;
+            }
+            long sensorNanos = System.nanoTime();
+            CraftStatePacket craftStatePacket = createCraftStatePacket(
+                    mFlightSimulator.getSensorFrame());
+            //Publish the attitude samples to the control loop, as SensorService does
+            CraftStatePacket.AngularVelocity angularVelocity =
+                    craftStatePacket.getAngularVelocity();
+            mFlightPipeline.publishAngularVelocity(sensorNanos, angularVelocity.getX(),
+                    angularVelocity.getY(), angularVelocity.getZ());
+            Quaternion rawOrientation = craftStatePacket.getOrientation().getRawOrientation();
+            mFlightPipeline.publishOrientation(sensorNanos, (float) rawOrientation.w,
+                    (float) rawOrientation.x, (float) rawOrientation.y, (float) rawOrientation.z);
+            EventBus.getDefault().publish(FlightTopics.CRAFT_STATE, craftStatePacket);
+        }
+    }
+
+    //Converts a SensorFrame to a CraftStatePacket, with raw values in phone axes
+    private CraftStatePacket createCraftStatePacket(SensorFrame sensorFrame) {
+        //Phone axes are reversed along the craft's nose/tail axis if the phone faces the tail
+        int sign = PHONE_FACING_NOSE ? 1 : -1;
+        Quaternion rawOrientation = getRawOrientation(sensorFrame.getRoll(),
+                sensorFrame.getPitch(), sensorFrame.getHeading());
+        CraftStatePacket.AngularVelocity angularVelocity = new CraftStatePacket.AngularVelocity(
+                (float) (sign * Math.toRadians(sensorFrame.getPitchRate())),
+                (float) (sign * Math.toRadians(sensorFrame.getRollRate())),
+                (float) (sign * Math.toRadians(sensorFrame.getYawRate())));
+        CraftStatePacket.LinearAcceleration linearAcceleration =
+                new CraftStatePacket.LinearAcceleration(
+                        (float) (sign * sensorFrame.getAccelerationRight()),
+                        (float) (sign * sensorFrame.getAccelerationForward()),
+                        (float) -sensorFrame.getAccelerationDown());
+        CraftStatePacket.Orientation orientation = new CraftStatePacket.Orientation(
+                rawOrientation.w, rawOrientation.x, rawOrientation.y, rawOrientation.z);
+        CraftStatePacket craftStatePacket = new CraftStatePacket(angularVelocity,
+                new CraftStatePacket.BarometricPressure((float) sensorFrame.getPressure()),
+                linearAcceleration, getMagneticField(rawOrientation), orientation,
+                getLocation(sensorFrame));
+        craftStatePacket.setValidity(sensorFrame.getValidity());
+        if (sensorFrame.hasPropagatedPosition()) {
+            craftStatePacket.setPropagatedPosition(new CraftStatePacket.PropagatedPosition(
+                    sensorFrame.getLatitude(), sensorFrame.getLongitude(),
+                    (float) sensorFrame.getEast(), (float) sensorFrame.getNorth(),
+                    (float) sensorFrame.getVelocityEast(), (float) sensorFrame.getVelocityNorth(),
+                    (float) sensorFrame.getPositionUncertainty(),
+                    (float) sensorFrame.getFixAge()));
+        }
+        if (sensorFrame.hasVerticalState()) {
+            craftStatePacket.setVerticalState(new CraftStatePacket.VerticalState(
+                    (float) sensorFrame.getAltitude(), (float) sensorFrame.getClimbRate(),
+                    (float) sensorFrame.getBarometerBias()));
+        }
+        return craftStatePacket;
+    }
+
+    //Returns the RotationVector quaternion that CraftStatePacket.Orientation converts to the input
+    //craft attitude in degrees. Inverts the coordinate transform of getCraftOrientation.
+    private static Quaternion getRawOrientation(double roll, double pitch, double heading) {
+        //Yaw values are flipped 180 degrees if the phone is facing the tail
+        double yaw = PHONE_FACING_NOSE ? heading : heading - 180;
+        double cr = Math.cos(Math.toRadians(roll) / 2), sr = Math.sin(Math.toRadians(roll) / 2);
+        double cp = Math.cos(Math.toRadians(pitch) / 2), sp = Math.sin(Math.toRadians(pitch) / 2);
+        double cy = Math.cos(Math.toRadians(yaw) / 2), sy = Math.sin(Math.toRadians(yaw) / 2);
+        Quaternion craftOrientation = new Quaternion(cr * cp * cy + sr * sp * sy,
+                sr * cp * cy - cr * sp * sy, cr * sp * cy + sr * cp * sy,
+                cr * cp * sy - sr * sp * cy);
+        Quaternion coordinateTransform = new Quaternion();
+        coordinateTransform.multiply(new Quaternion().fromAngleAxis(Vector3.Axis.Y, 180));
+        coordinateTransform.multiply(new Quaternion().fromAngleAxis(Vector3.Axis.Z,
+                PHONE_FACING_NOSE ? 90 : -90));
+        Quaternion rawOrientation = coordinateTransform.invertAndCreate();
+        return rawOrientation.multiply(craftOrientation).multiply(coordinateTransform);
+    }
+
+    //Returns the simulated magnetic field in phone axes, for the input raw orientation
+    private static CraftStatePacket.MagneticField getMagneticField(Quaternion rawOrientation) {
+        double w = rawOrientation.w, x = rawOrientation.x;
+        double y = rawOrientation.y, z = rawOrientation.z;
+        double east = MAGNETIC_FIELD[0], north = MAGNETIC_FIELD[1], up = MAGNETIC_FIELD[2];
+        //Transposed rotation matrix of the rotation vector (world to device frame)
+        return new CraftStatePacket.MagneticField(
+                (float) ((1 - 2 * (y * y + z * z)) * east + 2 * (x * y + w * z) * north
+                        + 2 * (x * z - w * y) * up),
+                (float) (2 * (x * y - w * z) * east + (1 - 2 * (x * x + z * z)) * north
+                        + 2 * (y * z + w * x) * up),
+                (float) (2 * (x * z + w * y) * east + 2 * (y * z - w * x) * north
+                        + (1 - 2 * (x * x + y * y)) * up));
+    }
+
+    //Returns a Location of the latest simulated GPS fix. A new instance is created per fix.
+    private Location getLocation(SensorFrame sensorFrame) {
+        if (mLocation == null || sensorFrame.getGpsTime() != mLocationTime) {
+            Location location = new Location("simulation");
+            location.setLatitude(sensorFrame.getGpsLatitude());
+            location.setLongitude(sensorFrame.getGpsLongitude());
+            location.setAltitude(sensorFrame.getGpsAltitude());
+            location.setSpeed((float) sensorFrame.getGpsSpeed());
+            location.setBearing((float) sensorFrame.getGpsBearing());
+            location.setAccuracy((float) sensorFrame.getGpsAccuracy());
+            location.setTime(System.currentTimeMillis());
+            mLocation = location;
+            mLocationTime = sensorFrame.getGpsTime();
+        }
+        return mLocation;
+    }
+
+    //Broadcasts the sensor to (simulated) servo latency statistics, then resets them
+    private class LatencyReporter implements Runnable {
+        @Override
+        public void run() {
+            if (mLatencyTracer.getTraceCount() > 0) {
+                EventBus.getDefault().publish(FlightTopics.LATENCY, mLatencyTracer.report());
+            }
+        }
+    }
+}
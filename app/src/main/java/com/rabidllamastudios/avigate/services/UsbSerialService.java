@@ -12,7 +12,15 @@ import com.felhr.usbserial.CDCSerialDevice;
 import com.felhr.usbserial.UsbSerialDevice;
 import com.felhr.usbserial.UsbSerialInterface;
 import com.rabidllamastudios.avigate.AvigateApplication;
+import com.rabidllamastudios.avigate.helpers.BatchConsumer;
+import com.rabidllamastudios.avigate.helpers.EventBus;
+import com.rabidllamastudios.avigate.helpers.FlightPipeline;
+import com.rabidllamastudios.avigate.helpers.FlightTopics;
+import com.rabidllamastudios.avigate.helpers.LatencyTracer;
+import com.rabidllamastudios.avigate.helpers.RingBuffer;
 import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.LatencyTrace;
+import com.rabidllamastudios.avigate.models.ServoFrame;
 
 import android.app.PendingIntent;
 import android.app.Service;
@@ -23,13 +31,17 @@ import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
-import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Process;
 import android.util.Log;
 
 /**
  * UsbSerialService communicates with the CDC-ACM USB Serial Controller (e.g. Arduino) using USB-OTG
  * In this case, configuration & servo commands are sent to this service from other parts of the app
+ * Commands are received and Arduino output is published on the EventBus.
+ * Servo values from the control loop are ServoFrames of the FlightPipeline, encoded and written
+ * by a dedicated serial writer thread without allocating. Commands are delivered to the same
+ * thread between batches of frames, so it is the only thread that writes to the serial port.
  *
  * A good chunk of this code was originally taken from: https://github.com/felHR85/SerialPortExample
  * File created by Ryan Staatz on 11/12/15.
@@ -66,6 +78,7 @@ public class UsbSerialService extends Service {
     private static final String EXTRA_BAUD_RATE = PACKAGE_NAME + ".extra.BAUD_RATE";
     private static final int DEFAULT_BAUD_RATE = 115200;  //Default value for baud rate in bytes/sec
     private static final int DEFAULT_THROTTLE_RATE = 100; //Default value for throttle rate in ms
+    private static final int LATENCY_REPORT_RATE = 1000;  //Latency reporting window in ms
 
     //Start and end markers required for CDC device to recognize serial input as valid input
     private static final String SERIAL_START_MARKER = "@";
@@ -78,14 +91,26 @@ public class UsbSerialService extends Service {
     //See status flag volatile pattern #1: http://www.ibm.com/developerworks/library/j-jtp06197/
     private volatile boolean mSerialPortConnected = false;
 
-    //See cheap read-write lock pattern #5: http://www.ibm.com/developerworks/library/j-jtp06197/
-    private volatile ArduinoPacket mThrottledServoValues;
+    //Latest value of each servo, published as a full snapshot so each output stands alone.
+    //Guarded by mThrottleLock, as is whether a value arrived since the last snapshot.
+    private ArduinoPacket mThrottledServoValues;
+    private boolean mHasNewServoValues = false;
 
     private boolean mReceiveInProgress = false;
     private int mBaudRate = DEFAULT_BAUD_RATE;
 
     private Executor mIncomingSerialDataExecutor;
+    private final LatencyTracer mLatencyTracer = new LatencyTracer();
     private Executor mSerialPortExecutor;
+    private EventBus.Subscription<ArduinoPacket> mArduinoInputSubscription = null;
+    private BatchConsumer<ServoFrame> mServoFrameWriter = null;
+    //Encoded frames. Only accessed on the serial writer thread.
+    private final byte[] mFrameBuffer = new byte[ServoFrame.MAX_FRAME_LENGTH];
+    //Write buffers by frame length, since the serial port writes whole arrays
+    private final byte[][] mWriteBuffers = new byte[ServoFrame.MAX_FRAME_LENGTH + 1][];
+    //Time the current batch of ServoFrames was dequeued. Only accessed on the serial writer thread.
+    private long mBatchNanos = 0;
+    private boolean mIsBatchStart = true;
     private IntentFilter mUsbIntentFilter;
     private ScheduledExecutorService mScheduleBroadcastExecutor;
     private String mReceivedJsonData = "";
@@ -101,6 +126,9 @@ public class UsbSerialService extends Service {
         mIncomingSerialDataExecutor = Executors.newSingleThreadExecutor();
         mScheduleBroadcastExecutor = Executors.newSingleThreadScheduledExecutor();
         mSerialPortExecutor = Executors.newSingleThreadExecutor();
+        //Latency is only reported while traced servo values are being written
+        mScheduleBroadcastExecutor.scheduleAtFixedRate(new LatencyReporter(),
+                LATENCY_REPORT_RATE, LATENCY_REPORT_RATE, TimeUnit.MILLISECONDS);
 
         //Initialize other variables
         mThrottledServoValues = new ArduinoPacket();
@@ -161,8 +189,13 @@ public class UsbSerialService extends Service {
 
     //Closes the USB serial connection
     private void closeSerialPort() {
-        unregisterReceiver(mArduinoInputReceiver);
-        //Run all serial port commands (including the one below) on the serial port executor
+        EventBus.getDefault().unsubscribe(mArduinoInputSubscription);
+        mArduinoInputSubscription = null;
+        if (mServoFrameWriter != null) {
+            mServoFrameWriter.stop();
+            mServoFrameWriter = null;
+        }
+        //Close the port on the serial port executor (which opened it), once nothing writes to it
         mSerialPortExecutor.execute(new Runnable() {
             @Override
             public void run() {
@@ -210,13 +243,59 @@ public class UsbSerialService extends Service {
         mUsbManager.requestPermission(mUsbDevice, mPendingIntent);
     }
 
-    //Send received Arduino input json data to the Arduino
-    private BroadcastReceiver mArduinoInputReceiver = new BroadcastReceiver() {
+    //Writes received Arduino input json data to the Arduino. Runs on the serial writer thread.
+    private final EventBus.Subscriber<ArduinoPacket> mArduinoInputSubscriber =
+            new EventBus.Subscriber<ArduinoPacket>() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (mSerialPortConnected) {
-                //Process data on separate thread to prevent potential UI lock
-                mSerialPortExecutor.execute(new OutgoingSerialDataProcessor(intent));
+        public void onEvent(ArduinoPacket arduinoPacket) {
+            if (!mSerialPortConnected) return;
+            //Continue the LatencyTrace of traced servo values. Published packets are shared with
+            //other subscribers, so a copy is stamped.
+            LatencyTrace latencyTrace = arduinoPacket.getLatencyTrace();
+            if (latencyTrace != null) {
+                latencyTrace = new LatencyTrace(latencyTrace);
+                latencyTrace.stamp(LatencyTrace.POINT_SERVO_RECEIVED);
+                latencyTrace.stamp(LatencyTrace.POINT_WRITE_START);
+            }
+            String arduinoInputJson = arduinoPacket.toJsonString();
+            //Prepend start marker character and append end marker character
+            arduinoInputJson = SERIAL_START_MARKER + arduinoInputJson + SERIAL_END_MARKER;
+            Log.i("Sending data to Arduino", arduinoInputJson);
+            mSerialPort.write(arduinoInputJson.getBytes());
+            if (latencyTrace != null) {
+                latencyTrace.stamp(LatencyTrace.POINT_WRITE_END);
+                mLatencyTracer.record(latencyTrace);
+            }
+        }
+    };
+
+    //Encodes and writes ServoFrames from the FlightPipeline. Runs on the serial writer thread.
+    private final RingBuffer.Handler<ServoFrame> mServoFrameHandler =
+            new RingBuffer.Handler<ServoFrame>() {
+        @Override
+        public void onEvent(ServoFrame servoFrame, long sequence, boolean endOfBatch) {
+            //Frames of a batch queue behind the writes of the frames before them
+            if (mIsBatchStart) mBatchNanos = System.nanoTime();
+            mIsBatchStart = endOfBatch;
+            if (!mSerialPortConnected || !servoFrame.hasServoValue()) return;
+            //Continue the LatencyTrace of traced servo values
+            LatencyTrace latencyTrace = servoFrame.isTraced() ? servoFrame.getLatencyTrace() : null;
+            if (latencyTrace != null) {
+                latencyTrace.stamp(LatencyTrace.POINT_SERVO_RECEIVED, mBatchNanos);
+            }
+            int length = servoFrame.encode(mFrameBuffer);
+            byte[] writeBuffer = mWriteBuffers[length];
+            if (writeBuffer == null) {
+                writeBuffer = new byte[length];
+                mWriteBuffers[length] = writeBuffer;
+            }
+            System.arraycopy(mFrameBuffer, 0, writeBuffer, 0, length);
+            if (latencyTrace != null) latencyTrace.stamp(LatencyTrace.POINT_WRITE_START);
+            //The serial port copies the frame into its write buffer, so the array is reused
+            mSerialPort.write(writeBuffer);
+            if (latencyTrace != null) {
+                latencyTrace.stamp(LatencyTrace.POINT_WRITE_END);
+                mLatencyTracer.record(latencyTrace);
             }
         }
     };
@@ -296,9 +375,8 @@ public class UsbSerialService extends Service {
                     if (arduinoPacket.hasServoValue()) {
                         storeServoValues(arduinoPacket);
                     } else {
-                        //Broadcast the JSON string as a ArduinoPacket output Intent
-                        sendBroadcast(new ArduinoPacket(jsonDataFull).toIntent(
-                                ArduinoPacket.INTENT_ACTION_OUTPUT));
+                        //Publish the JSON string as an ArduinoPacket output
+                        EventBus.getDefault().publish(FlightTopics.ARDUINO_OUTPUT, arduinoPacket);
                     }
                     //If there is still more data beyond the end marker, process the data
                     if (endMarkerIndex < (incomingSerialData.length() - 1)) {
@@ -347,32 +425,13 @@ public class UsbSerialService extends Service {
         private void storeServoValue(ArduinoPacket.ServoType servoType, int servoValue) {
             //Needs synchronized method since mThrottleServoValues is modified on a different thread
             synchronized (mThrottleLock) {
-                //This will overwrite old servo values if still present (intended behavior)
+                //This will overwrite old servo values (intended behavior)
                 mThrottledServoValues.setServoValue(servoType, servoValue);
+                mHasNewServoValues = true;
             }
         }
     }
 
-    //Processes the incoming intent and writes serial data out to the USB device (e.g. Arduino)
-    private class OutgoingSerialDataProcessor implements Runnable {
-        private Intent mReceivedIntent;
-
-        public OutgoingSerialDataProcessor(Intent incomingIntent) {
-            mReceivedIntent = incomingIntent;
-        }
-
-        @Override
-        public void run() {
-            Bundle bundle = mReceivedIntent.getExtras();
-            if (bundle == null) return;
-            String arduinoInputJson = new ArduinoPacket(bundle).toJsonString();
-            //Prepend start marker character and append end marker character
-            arduinoInputJson = SERIAL_START_MARKER + arduinoInputJson + SERIAL_END_MARKER;
-            Log.i("Sending data to Arduino", arduinoInputJson);
-            mSerialPort.write(arduinoInputJson.getBytes());
-        }
-    }
-
     //A runnable that attempts to open a serial connection to the USB device (e.g. Arduino)
     private class SerialPortOpener implements Runnable {
         @Override
@@ -391,9 +450,15 @@ public class UsbSerialService extends Service {
                     //Serial port is now connected!
                     mSerialPortConnected = true;
 
-                    //Register a Broadcast Receiver to listen for Arduino input
-                    registerReceiver(mArduinoInputReceiver,
-                            new IntentFilter(ArduinoPacket.INTENT_ACTION_INPUT));
+                    //Start writing servo frames from the control loop
+                    mServoFrameWriter = new BatchConsumer<>(CLASS_NAME + " serial writer",
+                            Process.THREAD_PRIORITY_URGENT_DISPLAY,
+                            FlightPipeline.getDefault().getServoFrames(), mServoFrameHandler);
+                    mServoFrameWriter.start();
+                    //Subscribe to Arduino input, delivered on the serial writer thread
+                    mArduinoInputSubscription = EventBus.getDefault().subscribe(
+                            FlightTopics.ARDUINO_INPUT, mServoFrameWriter,
+                            mArduinoInputSubscriber);
 
                     //Send out an intent that the USB serial interface is ready
                     sendBroadcast(new Intent(INTENT_ACTION_USB_READY));
@@ -401,7 +466,7 @@ public class UsbSerialService extends Service {
                     //Request status from device in case the device is already running
                     ArduinoPacket statusArduinoPacket = new ArduinoPacket();
                     statusArduinoPacket.addStatusRequest();
-                    sendBroadcast(statusArduinoPacket.toIntent(ArduinoPacket.INTENT_ACTION_INPUT));
+                    EventBus.getDefault().publish(FlightTopics.ARDUINO_INPUT, statusArduinoPacket);
                     Log.i(CLASS_NAME, "Sending status request to Arduino");
 
                     mScheduleBroadcastExecutor.scheduleAtFixedRate(new ServoValueBroadcaster(),
@@ -421,17 +486,30 @@ public class UsbSerialService extends Service {
         }
     }
 
-    //Broadcasts servo values contained in mThrottledServoValues (an ArduinoPacket)
+    //Broadcasts the sensor to servo latency statistics of the last reporting window
+    private class LatencyReporter implements Runnable {
+        @Override
+        public void run() {
+            if (mLatencyTracer.getTraceCount() > 0) {
+                EventBus.getDefault().publish(FlightTopics.LATENCY, mLatencyTracer.report());
+            }
+        }
+    }
+
+    //Publishes a snapshot of all servo values in mThrottledServoValues (an ArduinoPacket) if any
+    //arrived since the last one
     private class ServoValueBroadcaster implements Runnable {
         @Override
         public void run() {
-            if (mThrottledServoValues.hasServoValue()) {
-                Log.i("Incoming servo values", mThrottledServoValues.toJsonString());
-                sendBroadcast(mThrottledServoValues.toIntent(ArduinoPacket.INTENT_ACTION_OUTPUT));
-                synchronized (mThrottleLock) {
-                    mThrottledServoValues = new ArduinoPacket();
-                }
+            ArduinoPacket servoValues;
+            synchronized (mThrottleLock) {
+                if (!mHasNewServoValues) return;
+                mHasNewServoValues = false;
+                //Publish a copy, since the published packet must not be modified
+                servoValues = new ArduinoPacket(mThrottledServoValues.toJsonString());
             }
+            Log.i("Incoming servo values", servoValues.toJsonString());
+            EventBus.getDefault().publish(FlightTopics.ARDUINO_OUTPUT, servoValues);
         }
     }
 
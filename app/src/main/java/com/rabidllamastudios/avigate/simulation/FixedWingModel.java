@@ -0,0 +1,412 @@
+package com.rabidllamastudios.avigate.simulation;
+
+/**
+ * Six degree of freedom rigid body model of a small fixed-wing craft (a ~1.2 kg foam trainer)
+ * Linear aerodynamic derivatives with a lift limit (stall), a propeller whose thrust falls off
+ * with airspeed, first order servo lag and a (steady or gusting) wind. The world frame is
+ * north-east-down (NED) with its origin on the ground, the body frame is forward-right-down.
+ * Surface inputs are normalized: +/-1 is full throw, positive aileron rolls right, positive
+ * elevator pitches the nose up and positive rudder yaws right. Throttle is 0 to 1.
+ * Integrated with a fixed physics step, so results only depend on the inputs (deterministic).
+ * Plain Java with no Android dependencies. step() does not allocate.
+ */
+public class FixedWingModel {
+    /** Fixed integration step in seconds. step() advances in multiples of this. */
+    public static final double PHYSICS_STEP = 0.002;
+    private static final double GRAVITY = 9.80665;
+    private static final double AIR_DENSITY = 1.225;
+    //Airspeed below which the aerodynamic angles are not defined
+    private static final double MIN_AIRSPEED = 0.1;
+
+    //Mass properties (kg, kg*m^2) and geometry (m^2, m)
+    private static final double MASS = 1.2;
+    private static final double INERTIA_X = 0.03;
+    private static final double INERTIA_Y = 0.04;
+    private static final double INERTIA_Z = 0.06;
+    private static final double WING_AREA = 0.25;
+    private static final double WING_SPAN = 1.2;
+    private static final double WING_CHORD = 0.21;
+
+    //Aerodynamic derivatives (per radian, per normalized deflection or per normalized rate)
+    private static final double CL_0 = 0.25;
+    private static final double CL_ALPHA = 4.8;
+    private static final double CL_MAX = 1.2;
+    private static final double CD_0 = 0.03;
+    private static final double CD_INDUCED = 0.06;
+    private static final double CY_BETA = -0.3;
+    private static final double CY_RUDDER = 0.15;
+    private static final double CROLL_BETA = -0.05;
+    private static final double CROLL_P = -0.45;
+    private static final double CROLL_R = 0.1;
+    private static final double CROLL_AILERON = 0.07;
+    private static final double CPITCH_0 = 0.012;
+    private static final double CPITCH_ALPHA = -0.6;
+    private static final double CPITCH_Q = -10;
+    private static final double CPITCH_ELEVATOR = 0.25;
+    private static final double CYAW_BETA = 0.06;
+    private static final double CYAW_P = -0.03;
+    private static final double CYAW_R = -0.1;
+    private static final double CYAW_RUDDER = 0.06;
+    private static final double CYAW_AILERON = -0.005;
+
+    //Propulsion: static thrust in N and the airspeed (m/s) at which thrust drops to zero
+    private static final double MAX_THRUST = 10;
+    private static final double PROPELLER_SPEED = 30;
+    //Time constant of the servos and the motor in seconds
+    private static final double SERVO_TIME_CONSTANT = 0.04;
+
+    //Position (m) and inertial velocity (m/s) in the NED frame
+    private double mNorth, mEast, mDown;
+    private double mVelocityNorth, mVelocityEast, mVelocityDown;
+    //Attitude quaternion (body to NED) and body rates (rad/s)
+    private double mQ0 = 1, mQ1, mQ2, mQ3;
+    private double mRollRate, mPitchRate, mYawRate;
+    //Kinematic acceleration in the NED frame (m/s^2), from the latest step
+    private double mAccelerationNorth, mAccelerationEast, mAccelerationDown;
+    //Commanded and actual (lagged) control inputs
+    private double mAileronCommand, mElevatorCommand, mRudderCommand, mThrottleCommand;
+    private double mAileron, mElevator, mRudder, mThrottle;
+    //Wind in the NED frame (m/s), the velocity of the air mass
+    private double mWindNorth, mWindEast, mWindDown;
+    private double mAirspeed;
+    private double mTime = 0;
+    private double mTimeRemainder = 0;
+    private boolean mHasCrashed = false;
+    //Trim inputs found by trim()
+    private double mTrimElevator = 0;
+    private double mTrimThrottle = 0;
+
+    public FixedWingModel() {}
+
+    /** Places the craft in steady level flight and sets the inputs that hold it there
+     * @param airspeed the airspeed in m/s
+     * @param altitude the altitude above the ground in meters
+     * @param heading the heading in degrees (0 is north, clockwise)
+     */
+    public void trim(double airspeed, double altitude, double heading) {
+        double dynamicPressure = 0.5 * AIR_DENSITY * airspeed * airspeed;
+        double liftCoefficient = MASS * GRAVITY / (dynamicPressure * WING_AREA);
+        double alpha = (liftCoefficient - CL_0) / CL_ALPHA;
+        double dragCoefficient = CD_0 + CD_INDUCED * liftCoefficient * liftCoefficient;
+        //Balance the forces along the body x axis (pitch equals alpha in level flight)
+        double thrust = dynamicPressure * WING_AREA
+                * (dragCoefficient * Math.cos(alpha) - liftCoefficient * Math.sin(alpha))
+                + MASS * GRAVITY * Math.sin(alpha);
+        mTrimThrottle = clamp(thrust / getStaticThrust(airspeed * Math.cos(alpha)), 0, 1);
+        mTrimElevator = clamp(-(CPITCH_0 + CPITCH_ALPHA * alpha) / CPITCH_ELEVATOR, -1, 1);
+        //Set the state
+        double headingRadians = Math.toRadians(heading);
+        mNorth = 0;
+        mEast = 0;
+        mDown = -altitude;
+        mVelocityNorth = airspeed * Math.cos(headingRadians) + mWindNorth;
+        mVelocityEast = airspeed * Math.sin(headingRadians) + mWindEast;
+        mVelocityDown = mWindDown;
+        setAttitude(0, Math.toDegrees(alpha), heading);
+        mRollRate = 0;
+        mPitchRate = 0;
+        mYawRate = 0;
+        mAileronCommand = mAileron = 0;
+        mRudderCommand = mRudder = 0;
+        mElevatorCommand = mElevator = mTrimElevator;
+        mThrottleCommand = mThrottle = mTrimThrottle;
+        mAccelerationNorth = mAccelerationEast = mAccelerationDown = 0;
+        mAirspeed = airspeed;
+        mHasCrashed = false;
+    }
+
+    /** Sets the attitude of the craft from Euler angles in degrees (heading 0 is north) */
+    public void setAttitude(double roll, double pitch, double heading) {
+        double halfRoll = Math.toRadians(roll) / 2;
+        double halfPitch = Math.toRadians(pitch) / 2;
+        double halfYaw = Math.toRadians(heading) / 2;
+        double cr = Math.cos(halfRoll), sr = Math.sin(halfRoll);
+        double cp = Math.cos(halfPitch), sp = Math.sin(halfPitch);
+        double cy = Math.cos(halfYaw), sy = Math.sin(halfYaw);
+        mQ0 = cr * cp * cy + sr * sp * sy;
+        mQ1 = sr * cp * cy - cr * sp * sy;
+        mQ2 = cr * sp * cy + sr * cp * sy;
+        mQ3 = cr * cp * sy - sr * sp * cy;
+    }
+
+    /** Sets the commanded control inputs. Surfaces are clamped to +/-1, throttle to 0 to 1. */
+    public void setControls(double aileron, double elevator, double rudder, double throttle) {
+        mAileronCommand = clamp(aileron, -1, 1);
+        mElevatorCommand = clamp(elevator, -1, 1);
+        mRudderCommand = clamp(rudder, -1, 1);
+        mThrottleCommand = clamp(throttle, 0, 1);
+    }
+
+    /** Sets the wind (the velocity of the air mass) in m/s in the NED frame */
+    public void setWind(double north, double east, double down) {
+        mWindNorth = north;
+        mWindEast = east;
+        mWindDown = down;
+    }
+
+    /** Advances the model by the input time in seconds, in fixed PHYSICS_STEP increments
+     * Any remainder smaller than PHYSICS_STEP is carried over to the next call
+     */
+    public void step(double dt) {
+        mTimeRemainder += dt;
+        while (mTimeRemainder >= PHYSICS_STEP) {
+            mTimeRemainder -= PHYSICS_STEP;
+            if (!mHasCrashed) integrate(PHYSICS_STEP);
+            mTime += PHYSICS_STEP;
+        }
+    }
+
+    //Integrates the equations of motion over one physics step (semi-implicit Euler)
+    private void integrate(double dt) {
+        //Servo and motor lag
+        double lag = dt / (SERVO_TIME_CONSTANT + dt);
+        mAileron += (mAileronCommand - mAileron) * lag;
+        mElevator += (mElevatorCommand - mElevator) * lag;
+        mRudder += (mRudderCommand - mRudder) * lag;
+        mThrottle += (mThrottleCommand - mThrottle) * lag;
+
+        //Rotation matrix (body to NED) from the attitude quaternion
+        double r11 = 1 - 2 * (mQ2 * mQ2 + mQ3 * mQ3);
+        double r12 = 2 * (mQ1 * mQ2 - mQ0 * mQ3);
+        double r13 = 2 * (mQ1 * mQ3 + mQ0 * mQ2);
+        double r21 = 2 * (mQ1 * mQ2 + mQ0 * mQ3);
+        double r22 = 1 - 2 * (mQ1 * mQ1 + mQ3 * mQ3);
+        double r23 = 2 * (mQ2 * mQ3 - mQ0 * mQ1);
+        double r31 = 2 * (mQ1 * mQ3 - mQ0 * mQ2);
+        double r32 = 2 * (mQ2 * mQ3 + mQ0 * mQ1);
+        double r33 = 1 - 2 * (mQ1 * mQ1 + mQ2 * mQ2);
+
+        //Air relative velocity in the body frame
+        double airNorth = mVelocityNorth - mWindNorth;
+        double airEast = mVelocityEast - mWindEast;
+        double airDown = mVelocityDown - mWindDown;
+        double u = r11 * airNorth + r21 * airEast + r31 * airDown;
+        double v = r12 * airNorth + r22 * airEast + r32 * airDown;
+        double w = r13 * airNorth + r23 * airEast + r33 * airDown;
+        mAirspeed = Math.sqrt(u * u + v * v + w * w);
+        double airspeed = Math.max(mAirspeed, MIN_AIRSPEED);
+        double alpha = Math.atan2(w, u);
+        double beta = Math.asin(clamp(v / airspeed, -1, 1));
+
+        //Aerodynamic forces (stability axes) and moments
+        double dynamicPressure = 0.5 * AIR_DENSITY * airspeed * airspeed * WING_AREA;
+        double normalizedP = mRollRate * WING_SPAN / (2 * airspeed);
+        double normalizedQ = mPitchRate * WING_CHORD / (2 * airspeed);
+        double normalizedR = mYawRate * WING_SPAN / (2 * airspeed);
+        double liftCoefficient = clamp(CL_0 + CL_ALPHA * alpha, -CL_MAX, CL_MAX);
+        double lift = dynamicPressure * liftCoefficient;
+        double drag = dynamicPressure
+                * (CD_0 + CD_INDUCED * liftCoefficient * liftCoefficient);
+        double sideForce = dynamicPressure * (CY_BETA * beta + CY_RUDDER * mRudder);
+        double thrust = getStaticThrust(u) * mThrottle;
+        double forceX = thrust - drag * Math.cos(alpha) + lift * Math.sin(alpha);
+        double forceY = sideForce;
+        double forceZ = -drag * Math.sin(alpha) - lift * Math.cos(alpha);
+        double rollMoment = dynamicPressure * WING_SPAN * (CROLL_BETA * beta
+                + CROLL_P * normalizedP + CROLL_R * normalizedR + CROLL_AILERON * mAileron);
+        double pitchMoment = dynamicPressure * WING_CHORD * (CPITCH_0 + CPITCH_ALPHA * alpha
+                + CPITCH_Q * normalizedQ + CPITCH_ELEVATOR * mElevator);
+        double yawMoment = dynamicPressure * WING_SPAN * (CYAW_BETA * beta
+                + CYAW_P * normalizedP + CYAW_R * normalizedR + CYAW_RUDDER * mRudder
+                + CYAW_AILERON * mAileron);
+
+        //Translational dynamics in the NED frame
+        mAccelerationNorth = (r11 * forceX + r12 * forceY + r13 * forceZ) / MASS;
+        mAccelerationEast = (r21 * forceX + r22 * forceY + r23 * forceZ) / MASS;
+        mAccelerationDown = (r31 * forceX + r32 * forceY + r33 * forceZ) / MASS + GRAVITY;
+        mVelocityNorth += mAccelerationNorth * dt;
+        mVelocityEast += mAccelerationEast * dt;
+        mVelocityDown += mAccelerationDown * dt;
+        mNorth += mVelocityNorth * dt;
+        mEast += mVelocityEast * dt;
+        mDown += mVelocityDown * dt;
+
+        //Rotational dynamics (principal axes)
+        double p = mRollRate, q = mPitchRate, r = mYawRate;
+        mRollRate += (rollMoment - (INERTIA_Z - INERTIA_Y) * q * r) / INERTIA_X * dt;
+        mPitchRate += (pitchMoment - (INERTIA_X - INERTIA_Z) * p * r) / INERTIA_Y * dt;
+        mYawRate += (yawMoment - (INERTIA_Y - INERTIA_X) * p * q) / INERTIA_Z * dt;
+
+        //Attitude kinematics: q_dot = 0.5 * q * (0, p, q, r)
+        p = mRollRate;
+        q = mPitchRate;
+        r = mYawRate;
+        double q0 = mQ0 + 0.5 * (-mQ1 * p - mQ2 * q - mQ3 * r) * dt;
+        double q1 = mQ1 + 0.5 * (mQ0 * p + mQ2 * r - mQ3 * q) * dt;
+        double q2 = mQ2 + 0.5 * (mQ0 * q - mQ1 * r + mQ3 * p) * dt;
+        double q3 = mQ3 + 0.5 * (mQ0 * r + mQ1 * q - mQ2 * p) * dt;
+        double norm = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        mQ0 = q0 / norm;
+        mQ1 = q1 / norm;
+        mQ2 = q2 / norm;
+        mQ3 = q3 / norm;
+
+        //The craft has crashed once it reaches the ground
+        if (mDown >= 0) {
+            mDown = 0;
+            mVelocityNorth = mVelocityEast = mVelocityDown = 0;
+            mRollRate = mPitchRate = mYawRate = 0;
+            mAccelerationNorth = mAccelerationEast = mAccelerationDown = 0;
+            mHasCrashed = true;
+        }
+    }
+
+    //Returns the propeller thrust at full throttle for the input forward airspeed (m/s)
+    private static double getStaticThrust(double forwardAirspeed) {
+        return MAX_THRUST * Math.max(0, 1 - forwardAirspeed / PROPELLER_SPEED);
+    }
+
+    //Constrains the input value to the input range
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /** Returns the kinematic acceleration along the body forward axis in m/s^2 */
+    public double getAccelerationForward() {
+        return (1 - 2 * (mQ2 * mQ2 + mQ3 * mQ3)) * mAccelerationNorth
+                + 2 * (mQ1 * mQ2 + mQ0 * mQ3) * mAccelerationEast
+                + 2 * (mQ1 * mQ3 - mQ0 * mQ2) * mAccelerationDown;
+    }
+
+    /** Returns the kinematic acceleration along the body right axis in m/s^2 */
+    public double getAccelerationRight() {
+        return 2 * (mQ1 * mQ2 - mQ0 * mQ3) * mAccelerationNorth
+                + (1 - 2 * (mQ1 * mQ1 + mQ3 * mQ3)) * mAccelerationEast
+                + 2 * (mQ2 * mQ3 + mQ0 * mQ1) * mAccelerationDown;
+    }
+
+    /** Returns the kinematic acceleration along the body down axis in m/s^2 */
+    public double getAccelerationDown() {
+        return 2 * (mQ1 * mQ3 + mQ0 * mQ2) * mAccelerationNorth
+                + 2 * (mQ2 * mQ3 - mQ0 * mQ1) * mAccelerationEast
+                + (1 - 2 * (mQ1 * mQ1 + mQ2 * mQ2)) * mAccelerationDown;
+    }
+
+    /** Returns the kinematic acceleration towards east in m/s^2 (NED frame) */
+    public double getAccelerationEast() {
+        return mAccelerationEast;
+    }
+
+    /** Returns the kinematic acceleration towards north in m/s^2 (NED frame) */
+    public double getAccelerationNorth() {
+        return mAccelerationNorth;
+    }
+
+    /** Returns the vertical kinematic acceleration in m/s^2 (positive is up) */
+    public double getAccelerationUp() {
+        return -mAccelerationDown;
+    }
+
+    /** Returns the actual (lagged) aileron deflection, normalized to +/-1 */
+    public double getAileron() {
+        return mAileron;
+    }
+
+    /** Returns the airspeed in m/s */
+    public double getAirspeed() {
+        return mAirspeed;
+    }
+
+    /** Returns the altitude above the ground in meters */
+    public double getAltitude() {
+        return -mDown;
+    }
+
+    /** Returns the climb rate in m/s (positive is up) */
+    public double getClimbRate() {
+        return -mVelocityDown;
+    }
+
+    /** Returns the position east of the origin in meters */
+    public double getEast() {
+        return mEast;
+    }
+
+    /** Returns the actual (lagged) elevator deflection, normalized to +/-1 */
+    public double getElevator() {
+        return mElevator;
+    }
+
+    /** Returns the groundspeed in m/s */
+    public double getGroundspeed() {
+        return Math.sqrt(mVelocityNorth * mVelocityNorth + mVelocityEast * mVelocityEast);
+    }
+
+    /** Returns the heading in degrees, 0 to 360 (0 is north, clockwise) */
+    public double getHeading() {
+        double heading = Math.toDegrees(Math.atan2(2 * (mQ0 * mQ3 + mQ1 * mQ2),
+                1 - 2 * (mQ2 * mQ2 + mQ3 * mQ3)));
+        return heading < 0 ? heading + 360 : heading;
+    }
+
+    /** Returns the position north of the origin in meters */
+    public double getNorth() {
+        return mNorth;
+    }
+
+    /** Returns the pitch angle in degrees (positive is nose up) */
+    public double getPitch() {
+        return Math.toDegrees(Math.asin(clamp(2 * (mQ0 * mQ2 - mQ3 * mQ1), -1, 1)));
+    }
+
+    /** Returns the pitch rate (about the body right axis) in degrees per second */
+    public double getPitchRate() {
+        return Math.toDegrees(mPitchRate);
+    }
+
+    /** Returns the roll angle in degrees (positive is right wing down) */
+    public double getRoll() {
+        return Math.toDegrees(Math.atan2(2 * (mQ0 * mQ1 + mQ2 * mQ3),
+                1 - 2 * (mQ1 * mQ1 + mQ2 * mQ2)));
+    }
+
+    /** Returns the roll rate (about the body forward axis) in degrees per second */
+    public double getRollRate() {
+        return Math.toDegrees(mRollRate);
+    }
+
+    /** Returns the actual (lagged) rudder deflection, normalized to +/-1 */
+    public double getRudder() {
+        return mRudder;
+    }
+
+    /** Returns the actual (lagged) throttle, 0 to 1 */
+    public double getThrottle() {
+        return mThrottle;
+    }
+
+    /** Returns the simulated time in seconds */
+    public double getTime() {
+        return mTime;
+    }
+
+    /** Returns the elevator input that holds level flight at the airspeed passed to trim() */
+    public double getTrimElevator() {
+        return mTrimElevator;
+    }
+
+    /** Returns the throttle input that holds level flight at the airspeed passed to trim() */
+    public double getTrimThrottle() {
+        return mTrimThrottle;
+    }
+
+    /** Returns the velocity towards east in m/s */
+    public double getVelocityEast() {
+        return mVelocityEast;
+    }
+
+    /** Returns the velocity towards north in m/s */
+    public double getVelocityNorth() {
+        return mVelocityNorth;
+    }
+
+    /** Returns the yaw rate (about the body down axis) in degrees per second */
+    public double getYawRate() {
+        return Math.toDegrees(mYawRate);
+    }
+
+    /** Returns true once the craft has reached the ground. The model stops moving. */
+    public boolean hasCrashed() {
+        return mHasCrashed;
+    }
+}
@@ -0,0 +1,419 @@
+package com.rabidllamastudios.avigate.simulation;
+
+import com.rabidllamastudios.avigate.helpers.LocalFrame;
+import com.rabidllamastudios.avigate.helpers.PositionPropagator;
+import com.rabidllamastudios.avigate.helpers.VerticalKalmanFilter;
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+
+import java.util.Random;
+
+/**
+ * Software-in-the-loop simulation of the craft: a FixedWingModel driven by the servo values the
+ * control loop emits (ArduinoPackets), observed through simulated sensors with configurable
+ * noise and latency. The sensor data is run through the same estimators as SensorService
+ * (PositionPropagator, VerticalKalmanFilter) and exposed as a SensorFrame.
+ * All randomness comes from the seed, and time only advances in step(), so a run with the same
+ * seed and inputs is reproducible and runs as fast as the host allows.
+ * Plain Java with no Android dependencies. step() does not allocate.
+ * Not thread safe: all methods should be called from the same thread.
+ */
+public class FlightSimulator {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    //Truth history kept for latency, in physics steps (~2 seconds)
+    private static final int HISTORY_LENGTH = 1024;
+    //Standard atmosphere pressure at sea level in hPa
+    private static final double SEA_LEVEL_PRESSURE = 1013.25;
+    //Correlation time of the GPS position error in seconds
+    private static final double GPS_ERROR_TIME_CONSTANT = 10;
+
+    //Default initial flight condition and home location
+    private static final double DEFAULT_AIRSPEED = 15;
+    private static final double DEFAULT_ALTITUDE = 100;
+    private static final double DEFAULT_HOME_LATITUDE = 47.6;
+    private static final double DEFAULT_HOME_LONGITUDE = -122.3;
+    //Default servo output range in degrees, used if the craft profile has none
+    private static final int DEFAULT_OUTPUT_MIN = 0;
+    private static final int DEFAULT_OUTPUT_MAX = 180;
+
+    //Default sensor noise (one standard deviation), latency and rates
+    private static final double DEFAULT_ATTITUDE_NOISE = 0.3;
+    private static final double DEFAULT_GYRO_NOISE = 0.5;
+    private static final double DEFAULT_ACCELERATION_NOISE = 0.05;
+    private static final double DEFAULT_BAROMETER_NOISE = 0.5;
+    private static final double DEFAULT_GPS_POSITION_NOISE = 2;
+    private static final double DEFAULT_GPS_SPEED_NOISE = 0.2;
+    private static final double DEFAULT_SENSOR_LATENCY = 0.02;
+    private static final double DEFAULT_GPS_LATENCY = 0.2;
+    private static final double DEFAULT_GPS_RATE = 5;
+
+    //Indices of the truth values recorded in each history slot
+    private static final int ROLL = 0;
+    private static final int PITCH = 1;
+    private static final int HEADING = 2;
+    private static final int ROLL_RATE = 3;
+    private static final int PITCH_RATE = 4;
+    private static final int YAW_RATE = 5;
+    private static final int ACCELERATION_FORWARD = 6;
+    private static final int ACCELERATION_RIGHT = 7;
+    private static final int ACCELERATION_DOWN = 8;
+    private static final int ACCELERATION_EAST = 9;
+    private static final int ACCELERATION_NORTH = 10;
+    private static final int ACCELERATION_UP = 11;
+    private static final int NORTH = 12;
+    private static final int EAST = 13;
+    private static final int ALTITUDE = 14;
+    private static final int VELOCITY_NORTH = 15;
+    private static final int VELOCITY_EAST = 16;
+    private static final int TRUTH_FIELD_COUNT = 17;
+
+    //Servos that drive the model
+    private static final ArduinoPacket.ServoType[] SIMULATED_SERVOS = {
+            ArduinoPacket.ServoType.AILERON, ArduinoPacket.ServoType.ELEVATOR,
+            ArduinoPacket.ServoType.RUDDER, ArduinoPacket.ServoType.THROTTLE};
+
+    private final FixedWingModel mModel = new FixedWingModel();
+    private final SensorFrame mSensorFrame = new SensorFrame();
+    private final Random mRandom;
+    private final double[][] mHistory = new double[HISTORY_LENGTH][TRUTH_FIELD_COUNT];
+    private int mHistoryIndex = 0;
+    private int mHistoryCount = 0;
+    private double mTimeRemainder = 0;
+
+    //Servo output ranges of the aileron, elevator, rudder and throttle (ServoType ordinal)
+    private final int[] mOutputMin = new int[ArduinoPacket.ServoType.values().length];
+    private final int[] mOutputMax = new int[ArduinoPacket.ServoType.values().length];
+    private double mAileron, mElevator, mRudder, mThrottle;
+
+    private double mAttitudeNoise = DEFAULT_ATTITUDE_NOISE;
+    private double mGyroNoise = DEFAULT_GYRO_NOISE;
+    private double mAccelerationNoise = DEFAULT_ACCELERATION_NOISE;
+    private double mBarometerNoise = DEFAULT_BAROMETER_NOISE;
+    private double mGpsPositionNoise = DEFAULT_GPS_POSITION_NOISE;
+    private double mGpsSpeedNoise = DEFAULT_GPS_SPEED_NOISE;
+    private double mSensorLatency = DEFAULT_SENSOR_LATENCY;
+    private double mGpsLatency = DEFAULT_GPS_LATENCY;
+    private double mGpsInterval = 1 / DEFAULT_GPS_RATE;
+    //Sensors that have dropped out (CraftStatePacket.VALID_ flags). Their data is held.
+    private int mDroppedSensors = 0;
+
+    private LocalFrame mLocalFrame;
+    private PositionPropagator mPositionPropagator;
+    private VerticalKalmanFilter mVerticalKalmanFilter;
+    private double mGpsErrorNorth, mGpsErrorEast;
+    private double mLastSensorTime;
+
+    /** Constructs a FlightSimulator in trimmed level flight (15 m/s at 100 m, heading north)
+     * @param configArduinoPacket the craft profile, for the servo output ranges. May be null.
+     * @param seed the seed of all random sensor noise
+     */
+    public FlightSimulator(ArduinoPacket configArduinoPacket, long seed) {
+        mRandom = new Random(seed);
+        for (ArduinoPacket.ServoType servoType : ArduinoPacket.ServoType.values()) {
+            int index = servoType.ordinal();
+            mOutputMin[index] = DEFAULT_OUTPUT_MIN;
+            mOutputMax[index] = DEFAULT_OUTPUT_MAX;
+            if (configArduinoPacket != null && configArduinoPacket.hasOutputMin(servoType)
+                    && configArduinoPacket.hasOutputMax(servoType)) {
+                mOutputMin[index] = configArduinoPacket.getOutputMin(servoType);
+                mOutputMax[index] = configArduinoPacket.getOutputMax(servoType);
+            }
+        }
+        mLocalFrame = new LocalFrame(DEFAULT_HOME_LATITUDE, DEFAULT_HOME_LONGITUDE);
+        reset(DEFAULT_AIRSPEED, DEFAULT_ALTITUDE, 0);
+    }
+
+    /** Restarts the simulation in trimmed level flight over the home location
+     * @param airspeed the airspeed in m/s
+     * @param altitude the altitude above the ground in meters
+     * @param heading the heading in degrees (0 is north, clockwise)
+     */
+    public void reset(double airspeed, double altitude, double heading) {
+        mModel.trim(airspeed, altitude, heading);
+        mAileron = 0;
+        mElevator = mModel.getTrimElevator();
+        mRudder = 0;
+        mThrottle = mModel.getTrimThrottle();
+        mHistoryIndex = 0;
+        mHistoryCount = 0;
+        mTimeRemainder = 0;
+        recordTruth();
+        mPositionPropagator = new PositionPropagator();
+        mVerticalKalmanFilter = new VerticalKalmanFilter();
+        mGpsErrorNorth = 0;
+        mGpsErrorEast = 0;
+        mLastSensorTime = mModel.getTime();
+        mSensorFrame.mGpsTime = -1;
+        mSensorFrame.mHasPropagatedPosition = false;
+        mSensorFrame.mHasVerticalState = false;
+        sampleSensors(0);
+    }
+
+    /** Applies the servo values of the input ArduinoPacket (as emitted by the control loop)
+     * Servos without a value in the packet hold their position. See setServoValue.
+     */
+    public void setServoValues(ArduinoPacket servoArduinoPacket) {
+        for (ArduinoPacket.ServoType servoType : SIMULATED_SERVOS) {
+            if (servoArduinoPacket.hasServoValue(servoType)) {
+                setServoValue(servoType, servoArduinoPacket.getServoValue(servoType));
+            }
+        }
+    }
+
+    /** Applies the input servo value in degrees. Does not allocate.
+     * Surfaces are mapped from their output range to +/-1 around the center of the range, and
+     * the throttle to 0 to 1. Other servos (e.g. the cutover) are ignored.
+     */
+    public void setServoValue(ArduinoPacket.ServoType servoType, int servoValue) {
+        int index = servoType.ordinal();
+        double range = mOutputMax[index] - mOutputMin[index];
+        if (range <= 0) return;
+        switch (servoType) {
+            case AILERON:
+                mAileron = getCenteredDeflection(servoValue, index);
+                break;
+            case ELEVATOR:
+                mElevator = getCenteredDeflection(servoValue, index);
+                break;
+            case RUDDER:
+                mRudder = getCenteredDeflection(servoValue, index);
+                break;
+            case THROTTLE:
+                mThrottle = (servoValue - mOutputMin[index]) / range;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Advances the simulation by the input time in seconds and samples the sensors
+     * The model advances in FixedWingModel.PHYSICS_STEP increments, remainders are carried over
+     */
+    public void step(double dt) {
+        mModel.setControls(mAileron, mElevator, mRudder, mThrottle);
+        mTimeRemainder += dt;
+        while (mTimeRemainder >= FixedWingModel.PHYSICS_STEP) {
+            mTimeRemainder -= FixedWingModel.PHYSICS_STEP;
+            mModel.step(FixedWingModel.PHYSICS_STEP);
+            recordTruth();
+        }
+        double sensorDt = mModel.getTime() - mLastSensorTime;
+        mLastSensorTime = mModel.getTime();
+        sampleSensors(sensorDt);
+    }
+
+    //Maps the servo value of the input servo (ServoType ordinal) to a deflection of +/-1
+    private double getCenteredDeflection(int servoValue, int index) {
+        double halfRange = (mOutputMax[index] - mOutputMin[index]) / 2.0;
+        return (servoValue - mOutputMin[index] - halfRange) / halfRange;
+    }
+
+    //Records the current state of the model into the truth history
+    private void recordTruth() {
+        mHistoryIndex = (mHistoryIndex + 1) % HISTORY_LENGTH;
+        if (mHistoryCount < HISTORY_LENGTH) mHistoryCount++;
+        double[] truth = mHistory[mHistoryIndex];
+        truth[ROLL] = mModel.getRoll();
+        truth[PITCH] = mModel.getPitch();
+        truth[HEADING] = mModel.getHeading();
+        truth[ROLL_RATE] = mModel.getRollRate();
+        truth[PITCH_RATE] = mModel.getPitchRate();
+        truth[YAW_RATE] = mModel.getYawRate();
+        truth[ACCELERATION_FORWARD] = mModel.getAccelerationForward();
+        truth[ACCELERATION_RIGHT] = mModel.getAccelerationRight();
+        truth[ACCELERATION_DOWN] = mModel.getAccelerationDown();
+        truth[ACCELERATION_EAST] = mModel.getAccelerationEast();
+        truth[ACCELERATION_NORTH] = mModel.getAccelerationNorth();
+        truth[ACCELERATION_UP] = mModel.getAccelerationUp();
+        truth[NORTH] = mModel.getNorth();
+        truth[EAST] = mModel.getEast();
+        truth[ALTITUDE] = mModel.getAltitude();
+        truth[VELOCITY_NORTH] = mModel.getVelocityNorth();
+        truth[VELOCITY_EAST] = mModel.getVelocityEast();
+    }
+
+    //Returns the truth values recorded the input latency (in seconds) ago
+    private double[] getDelayedTruth(double latency) {
+        int delaySteps = (int) Math.round(latency / FixedWingModel.PHYSICS_STEP);
+        delaySteps = Math.max(0, Math.min(delaySteps, mHistoryCount - 1));
+        return mHistory[(mHistoryIndex - delaySteps + HISTORY_LENGTH) % HISTORY_LENGTH];
+    }
+
+    //Samples all sensors (with latency & noise) and runs the estimators, filling mSensorFrame
+    private void sampleSensors(double dt) {
+        double time = mModel.getTime();
+        long nowNanos = (long) (time * NANOS_PER_SECOND);
+        SensorFrame frame = mSensorFrame;
+        frame.mTime = time;
+        frame.mValidity = CraftStatePacket.VALID_ALL & ~mDroppedSensors;
+        double[] truth = getDelayedTruth(mSensorLatency);
+        if (!isDropped(CraftStatePacket.VALID_ORIENTATION)) {
+            frame.mRoll = truth[ROLL] + noise(mAttitudeNoise);
+            frame.mPitch = truth[PITCH] + noise(mAttitudeNoise);
+            frame.mHeading = wrapHeading(truth[HEADING] + noise(mAttitudeNoise));
+        }
+        if (!isDropped(CraftStatePacket.VALID_ANGULAR_VELOCITY)) {
+            frame.mRollRate = truth[ROLL_RATE] + noise(mGyroNoise);
+            frame.mPitchRate = truth[PITCH_RATE] + noise(mGyroNoise);
+            frame.mYawRate = truth[YAW_RATE] + noise(mGyroNoise);
+        }
+        double accelerationEast = truth[ACCELERATION_EAST] + noise(mAccelerationNoise);
+        double accelerationNorth = truth[ACCELERATION_NORTH] + noise(mAccelerationNoise);
+        if (!isDropped(CraftStatePacket.VALID_LINEAR_ACCELERATION)) {
+            frame.mAccelerationForward = truth[ACCELERATION_FORWARD] + noise(mAccelerationNoise);
+            frame.mAccelerationRight = truth[ACCELERATION_RIGHT] + noise(mAccelerationNoise);
+            frame.mAccelerationDown = truth[ACCELERATION_DOWN] + noise(mAccelerationNoise);
+            mVerticalKalmanFilter.predict(truth[ACCELERATION_UP] + noise(mAccelerationNoise),
+                    dt);
+        }
+        if (!isDropped(CraftStatePacket.VALID_BAROMETRIC_PRESSURE)) {
+            frame.mBarometricAltitude = truth[ALTITUDE] + noise(mBarometerNoise);
+            frame.mPressure = SEA_LEVEL_PRESSURE
+                    * Math.pow(1 - frame.mBarometricAltitude / 44330.0, 5.255);
+            mVerticalKalmanFilter.updateBarometricAltitude(frame.mBarometricAltitude);
+        }
+        if (!isDropped(CraftStatePacket.VALID_LOCATION)
+                && (frame.mGpsTime < 0 || time - frame.mGpsTime >= mGpsInterval)) {
+            sampleGps(time, dt);
+            mPositionPropagator.onFix(frame.mGpsLatitude, frame.mGpsLongitude, frame.mGpsSpeed,
+                    frame.mGpsBearing, frame.mGpsAccuracy, nowNanos);
+            mVerticalKalmanFilter.updateGpsAltitude(frame.mGpsAltitude, frame.mGpsAccuracy);
+        }
+        //Estimator outputs, as SensorService adds them to its CraftStatePackets
+        if (mPositionPropagator.hasFix()) {
+            mPositionPropagator.propagate(nowNanos, accelerationEast, accelerationNorth);
+            frame.mHasPropagatedPosition = true;
+            frame.mLatitude = mPositionPropagator.getLatitude();
+            frame.mLongitude = mPositionPropagator.getLongitude();
+            frame.mEast = mPositionPropagator.getEast();
+            frame.mNorth = mPositionPropagator.getNorth();
+            frame.mVelocityEast = mPositionPropagator.getVelocityEast();
+            frame.mVelocityNorth = mPositionPropagator.getVelocityNorth();
+            frame.mPositionUncertainty = mPositionPropagator.getUncertainty();
+            frame.mFixAge = mPositionPropagator.getFixAge();
+        }
+        VerticalKalmanFilter.Estimate verticalEstimate = mVerticalKalmanFilter.getEstimate();
+        if (verticalEstimate != null) {
+            frame.mHasVerticalState = true;
+            frame.mAltitude = verticalEstimate.getAltitude();
+            frame.mClimbRate = verticalEstimate.getClimbRate();
+            frame.mBarometerBias = verticalEstimate.getBarometerBias();
+        }
+    }
+
+    //Takes a GPS fix from the truth GPS latency ago, with a slowly wandering position error
+    private void sampleGps(double time, double dt) {
+        SensorFrame frame = mSensorFrame;
+        double[] truth = getDelayedTruth(mGpsLatency);
+        double fixDt = frame.mGpsTime < 0 ? dt : time - frame.mGpsTime;
+        double decay = Math.exp(-fixDt / GPS_ERROR_TIME_CONSTANT);
+        double drive = mGpsPositionNoise * Math.sqrt(1 - decay * decay);
+        if (frame.mGpsTime < 0) {
+            mGpsErrorNorth = noise(mGpsPositionNoise);
+            mGpsErrorEast = noise(mGpsPositionNoise);
+        } else {
+            mGpsErrorNorth = mGpsErrorNorth * decay + noise(drive);
+            mGpsErrorEast = mGpsErrorEast * decay + noise(drive);
+        }
+        double velocityNorth = truth[VELOCITY_NORTH] + noise(mGpsSpeedNoise);
+        double velocityEast = truth[VELOCITY_EAST] + noise(mGpsSpeedNoise);
+        frame.mGpsLatitude = mLocalFrame.getLatitude(truth[NORTH] + mGpsErrorNorth);
+        frame.mGpsLongitude = mLocalFrame.getLongitude(truth[EAST] + mGpsErrorEast);
+        frame.mGpsAltitude = truth[ALTITUDE] + noise(1.5 * mGpsPositionNoise);
+        frame.mGpsSpeed = Math.sqrt(velocityNorth * velocityNorth + velocityEast * velocityEast);
+        frame.mGpsBearing = wrapHeading(Math.toDegrees(Math.atan2(velocityEast, velocityNorth)));
+        frame.mGpsAccuracy = mGpsPositionNoise;
+        frame.mGpsTime = time;
+    }
+
+    //Returns a sample of zero mean Gaussian noise with the input standard deviation
+    private double noise(double standardDeviation) {
+        if (standardDeviation <= 0) return 0;
+        return mRandom.nextGaussian() * standardDeviation;
+    }
+
+    //Returns true if the sensor of the input validity flag has dropped out
+    private boolean isDropped(int validityFlag) {
+        return (mDroppedSensors & validityFlag) != 0;
+    }
+
+    //Wraps a heading in degrees to 0 to 360
+    private static double wrapHeading(double heading) {
+        heading %= 360;
+        return heading < 0 ? heading + 360 : heading;
+    }
+
+    /** Returns the latest sensor snapshot. The same instance is updated by every step. */
+    public SensorFrame getSensorFrame() {
+        return mSensorFrame;
+    }
+
+    /** Returns the simulated craft, e.g. to read the true state or to set the wind */
+    public FixedWingModel getModel() {
+        return mModel;
+    }
+
+    /** Returns the simulated time in seconds */
+    public double getTime() {
+        return mModel.getTime();
+    }
+
+    /** Sets the standard deviation of the noise of the accelerometer in m/s^2 */
+    public void setAccelerationNoise(double accelerationNoise) {
+        mAccelerationNoise = accelerationNoise;
+    }
+
+    /** Sets the standard deviation of the noise of the roll, pitch and heading in degrees */
+    public void setAttitudeNoise(double attitudeNoise) {
+        mAttitudeNoise = attitudeNoise;
+    }
+
+    /** Sets the standard deviation of the noise of the barometric altitude in meters */
+    public void setBarometerNoise(double barometerNoise) {
+        mBarometerNoise = barometerNoise;
+    }
+
+    /** Sets the latency of the GPS fixes in seconds (at most ~2 seconds) */
+    public void setGpsLatency(double gpsLatency) {
+        mGpsLatency = gpsLatency;
+    }
+
+    /** Sets the standard deviation of the GPS position (meters) and speed (m/s) errors */
+    public void setGpsNoise(double positionNoise, double speedNoise) {
+        mGpsPositionNoise = positionNoise;
+        mGpsSpeedNoise = speedNoise;
+    }
+
+    /** Sets the rate of GPS fixes in Hz */
+    public void setGpsRate(double gpsRate) {
+        mGpsInterval = 1 / gpsRate;
+    }
+
+    /** Sets the standard deviation of the noise of the gyroscope in degrees per second */
+    public void setGyroNoise(double gyroNoise) {
+        mGyroNoise = gyroNoise;
+    }
+
+    /** Sets the home location (the origin of the simulated world). Takes effect on reset. */
+    public void setHome(double latitude, double longitude) {
+        mLocalFrame = new LocalFrame(latitude, longitude);
+    }
+
+    /** Drops out (or restores) the sensors of the input CraftStatePacket.VALID_ flags
+     * While dropped out, a sensor holds its last values and its validity flag is cleared
+     */
+    public void setSensorDropout(int validityFlags, boolean dropped) {
+        if (dropped) {
+            mDroppedSensors |= validityFlags;
+        } else {
+            mDroppedSensors &= ~validityFlags;
+        }
+    }
+
+    /** Sets the latency of the attitude, rate, acceleration and barometer data in seconds
+     * (at most ~2 seconds)
+     */
+    public void setSensorLatency(double sensorLatency) {
+        mSensorLatency = sensorLatency;
+    }
+}
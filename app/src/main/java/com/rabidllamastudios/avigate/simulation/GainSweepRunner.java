@@ -0,0 +1,407 @@
+package com.rabidllamastudios.avigate.simulation;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import com.rabidllamastudios.avigate.helpers.FlightController;
+import com.rabidllamastudios.avigate.helpers.ServoMixer;
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.PidGains;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Headless batch evaluation of candidate roll gains against scripted SweepScenarios
+ * Each candidate flies each scenario in a FlightSimulator, controlled by the same control law as
+ * FlightControlService (a FlightController set up from the craft profile, with the candidate roll
+ * gains), at the control loop rate and with sensor data at the sensor broadcast rate.
+ * Runs are spread over all cores with fork-join. Each scenario has a fixed seed, and results are
+ * stored by index, so a sweep is deterministic regardless of scheduling.
+ * Candidates are ranked by a cost combining the RMS roll error, overshoot and servo saturation.
+ * Plain Java: intended to run on the JVM (ForkJoinPool requires API 21 on a device). The default
+ * sweep runs as a unit test (GainSweepRunnerTest), and GainSweepBenchmark prints its ranked report
+ * when benchmarks are requested (-Pbenchmark).
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class GainSweepRunner {
+    //Default control loop rate in Hz and sensor broadcast period in seconds, as on the craft
+    private static final int DEFAULT_CONTROL_RATE = 50;
+    private static final double DEFAULT_SENSOR_PERIOD = 0.1;
+    //Default cost weights: degrees of RMS error per degree of overshoot and per unit saturation
+    private static final double DEFAULT_OVERSHOOT_WEIGHT = 0.5;
+    private static final double DEFAULT_SATURATION_WEIGHT = 20;
+    //Runs per fork-join leaf task
+    private static final int RUNS_PER_TASK = 4;
+
+    private static final ArduinoPacket.ServoType[] SERVO_TYPES = ArduinoPacket.ServoType.values();
+    //Surface servos, whose saturation is measured
+    private static final ArduinoPacket.ServoType[] SURFACES = {
+            ArduinoPacket.ServoType.AILERON, ArduinoPacket.ServoType.ELEVATOR,
+            ArduinoPacket.ServoType.RUDDER};
+
+    private final ArduinoPacket mConfigArduinoPacket;
+    private final int mParallelism;
+    private int mControlRate = DEFAULT_CONTROL_RATE;
+    private double mSensorPeriod = DEFAULT_SENSOR_PERIOD;
+    private double mOvershootWeight = DEFAULT_OVERSHOOT_WEIGHT;
+    private double mSaturationWeight = DEFAULT_SATURATION_WEIGHT;
+
+    /** Constructs a GainSweepRunner that uses all available cores
+     * @param configArduinoPacket the craft profile (servo ranges, gains of the other axes).
+     *                            Only read during a sweep.
+     */
+    public GainSweepRunner(ArduinoPacket configArduinoPacket) {
+        this(configArduinoPacket, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Constructs a GainSweepRunner
+     * @param configArduinoPacket the craft profile (servo ranges, gains of the other axes).
+     *                            Only read during a sweep.
+     * @param parallelism the number of threads to run scenarios on
+     */
+    public GainSweepRunner(ArduinoPacket configArduinoPacket, int parallelism) {
+        mConfigArduinoPacket = configArduinoPacket;
+        mParallelism = parallelism;
+    }
+
+    /** Returns all combinations of the input proportional, integral and derivative gains
+     * @param integratorLimit the integrator limit of all candidates (servo degrees)
+     */
+    public static List<PidGains> createGrid(double[] proportionalGains, double[] integralGains,
+                                            double[] derivativeGains, double integratorLimit) {
+        List<PidGains> candidates = new ArrayList<>();
+        for (double proportionalGain : proportionalGains) {
+            for (double integralGain : integralGains) {
+                for (double derivativeGain : derivativeGains) {
+                    candidates.add(new PidGains(proportionalGain, integralGain, derivativeGain,
+                            integratorLimit));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /** Returns a report of the input ranked results, one line per candidate
+     * @param results the results returned by run
+     * @param count the maximum number of candidates to report
+     */
+    public static String formatReport(List<CandidateResult> results, int count) {
+        StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "%4s %7s %7s %7s %8s %8s %8s %8s %7s%n", "rank", "kp", "ki", "kd", "cost",
+                "rms", "over", "sat %", "crashes"));
+        for (int i = 0; i < Math.min(count, results.size()); i++) {
+            CandidateResult result = results.get(i);
+            PidGains gains = result.getGains();
+            report.append(String.format(Locale.US, "%4d %7.3f %7.3f %7.3f %8.3f %8.3f %8.3f "
+                            + "%8.2f %7d%n", i + 1, gains.getProportionalGain(),
+                    gains.getIntegralGain(), gains.getDerivativeGain(), result.getCost(),
+                    result.getRmsRollError(), result.getOvershoot(),
+                    100 * result.getSaturation(), result.getCrashCount()));
+        }
+        return report.toString();
+    }
+
+    /** Evaluates every candidate against every scenario and returns the ranked results
+     * @param candidates the candidate roll gains
+     * @param scenarios the scenarios each candidate flies. Not modified during the sweep.
+     * @return one CandidateResult per candidate, lowest cost first (ties keep the input order)
+     */
+    public List<CandidateResult> run(List<PidGains> candidates, List<SweepScenario> scenarios) {
+        PidGains[] candidateArray = candidates.toArray(new PidGains[candidates.size()]);
+        SweepScenario[] scenarioArray = scenarios.toArray(new SweepScenario[scenarios.size()]);
+        ScenarioResult[] scenarioResults =
+                new ScenarioResult[candidateArray.length * scenarioArray.length];
+        ForkJoinPool forkJoinPool = new ForkJoinPool(mParallelism);
+        try {
+            forkJoinPool.invoke(new SweepTask(candidateArray, scenarioArray, scenarioResults, 0,
+                    scenarioResults.length));
+        } finally {
+            forkJoinPool.shutdown();
+        }
+        //Aggregate the results of each candidate over all scenarios
+        List<CandidateResult> results = new ArrayList<>();
+        for (int c = 0; c < candidateArray.length; c++) {
+            double rmsRollError = 0;
+            double overshoot = 0;
+            double saturation = 0;
+            int crashCount = 0;
+            for (int s = 0; s < scenarioArray.length; s++) {
+                ScenarioResult scenarioResult = scenarioResults[c * scenarioArray.length + s];
+                rmsRollError += scenarioResult.mRmsRollError / scenarioArray.length;
+                overshoot = Math.max(overshoot, scenarioResult.mOvershoot);
+                saturation += scenarioResult.mSaturation / scenarioArray.length;
+                if (scenarioResult.mCrashed) crashCount++;
+            }
+            double cost = Double.POSITIVE_INFINITY;
+            if (crashCount == 0) {
+                cost = rmsRollError + mOvershootWeight * overshoot
+                        + mSaturationWeight * saturation;
+            }
+            results.add(new CandidateResult(candidateArray[c], c, cost, rmsRollError, overshoot,
+                    saturation, crashCount));
+        }
+        Collections.sort(results, new Comparator<CandidateResult>() {
+            @Override
+            public int compare(CandidateResult first, CandidateResult second) {
+                int comparison = Double.compare(first.mCost, second.mCost);
+                if (comparison != 0) return comparison;
+                return first.mIndex < second.mIndex ? -1 : (first.mIndex == second.mIndex ? 0 : 1);
+            }
+        });
+        return results;
+    }
+
+    /** Sets the control loop rate in Hz (default 50) */
+    public void setControlRate(int controlRate) {
+        mControlRate = controlRate;
+    }
+
+    /** Sets the weights of the cost: cost = RMS roll error + overshootWeight * max overshoot
+     * + saturationWeight * the fraction of control steps with a saturated surface servo
+     */
+    public void setCostWeights(double overshootWeight, double saturationWeight) {
+        mOvershootWeight = overshootWeight;
+        mSaturationWeight = saturationWeight;
+    }
+
+    /** Sets the period of the sensor data (CraftStatePacket broadcasts) in seconds (default 0.1) */
+    public void setSensorPeriod(double sensorPeriod) {
+        mSensorPeriod = sensorPeriod;
+    }
+
+    //Flies the input scenario with the input roll gains, as FlightControlService stabilizes
+    private ScenarioResult evaluate(PidGains rollGains, SweepScenario scenario) {
+        FlightSimulator flightSimulator = new FlightSimulator(mConfigArduinoPacket,
+                scenario.getSeed());
+        FixedWingModel model = flightSimulator.getModel();
+        FlightController flightController = FlightController.fromProfile(mConfigArduinoPacket);
+        flightController.setGains(ArduinoPacket.ControlAxis.ROLL, rollGains);
+        ServoMixer servoMixer = ServoMixer.fromProfile(mConfigArduinoPacket);
+        FlightController.State flightState = new FlightController.State();
+        double dt = 1.0 / mControlRate;
+        int sensorDivider = Math.max(1, (int) Math.round(mSensorPeriod / dt));
+        int stepCount = (int) Math.round(scenario.getDuration() / dt);
+        double[] wind = new double[3];
+        boolean stateValid = false;
+        //Metrics: squared roll error, overshoot after each step, saturated control steps
+        double squaredErrorSum = 0;
+        double overshoot = 0;
+        int saturatedSteps = 0;
+        int stepIndex = -1;
+        double stepDirection = 0;
+        double rollSetpoint = 0;
+        for (int step = 0; step < stepCount; step++) {
+            double time = step * dt;
+            //Script the disturbances, then advance the craft by one control period
+            scenario.getWind(time, wind);
+            model.setWind(wind[0], wind[1], wind[2]);
+            flightSimulator.setSensorDropout(CraftStatePacket.VALID_ALL, false);
+            flightSimulator.setSensorDropout(scenario.getDroppedSensors(time), true);
+            flightSimulator.step(dt);
+            if (model.hasCrashed()) return new ScenarioResult(Double.POSITIVE_INFINITY,
+                    Double.POSITIVE_INFINITY, 1, true);
+            //The control loop only sees a new snapshot at the sensor broadcast rate
+            if (step % sensorDivider == 0) {
+                stateValid = readState(flightSimulator.getSensorFrame(), flightState);
+            }
+            //Track the roll steps, for the overshoot beyond each new setpoint
+            int currentStepIndex = scenario.getStepIndex(time);
+            if (currentStepIndex != stepIndex) {
+                double newSetpoint = scenario.getRollSetpoint(time);
+                stepDirection = Math.signum(newSetpoint - rollSetpoint);
+                rollSetpoint = newSetpoint;
+                stepIndex = currentStepIndex;
+            }
+            flightController.setSetpoint(ArduinoPacket.ControlAxis.ROLL, rollSetpoint);
+            if (stateValid) {
+                flightController.update(flightState, dt);
+            } else {
+                flightController.reset();
+            }
+            if (applyServoValues(flightController, servoMixer, flightSimulator)) {
+                saturatedSteps++;
+            }
+            double rollError = model.getRoll() - rollSetpoint;
+            squaredErrorSum += rollError * rollError;
+            overshoot = Math.max(overshoot, stepDirection * rollError);
+        }
+        return new ScenarioResult(Math.sqrt(squaredErrorSum / stepCount), overshoot,
+                (double) saturatedSteps / stepCount, false);
+    }
+
+    //Reads the input SensorFrame into the input State, as FlightControlService reads packets
+    //Returns false if the orientation or angular velocity is invalid (the controllers reset)
+    private static boolean readState(SensorFrame sensorFrame, FlightController.State state) {
+        if (!sensorFrame.isValid(CraftStatePacket.VALID_ORIENTATION
+                | CraftStatePacket.VALID_ANGULAR_VELOCITY)) {
+            return false;
+        }
+        state.setAttitude(sensorFrame.getRoll(), sensorFrame.getPitch(),
+                sensorFrame.getRollRate(), sensorFrame.getPitchRate(), sensorFrame.getYawRate());
+        if (sensorFrame.hasPropagatedPosition()
+                && sensorFrame.isValid(CraftStatePacket.VALID_LOCATION)) {
+            state.setSpeed(sensorFrame.getGroundspeed());
+        } else {
+            state.clearSpeed();
+        }
+        if (sensorFrame.hasVerticalState()
+                && sensorFrame.isValid(CraftStatePacket.VALID_BAROMETRIC_PRESSURE)) {
+            state.setAltitude(sensorFrame.getAltitude(), sensorFrame.getClimbRate());
+        } else {
+            state.clearAltitude();
+        }
+        return true;
+    }
+
+    //Applies the controller outputs to the simulated servos, as FlightControlService mixes them
+    //Returns true if any surface servo is at the limit of its range
+    private static boolean applyServoValues(FlightController flightController,
+                                            ServoMixer servoMixer,
+                                            FlightSimulator flightSimulator) {
+        servoMixer.clearInputs();
+        setMixerInput(flightController, servoMixer, ArduinoPacket.MixerInput.ROLL,
+                ArduinoPacket.ControlAxis.ROLL);
+        setMixerInput(flightController, servoMixer, ArduinoPacket.MixerInput.PITCH,
+                ArduinoPacket.ControlAxis.PITCH);
+        setMixerInput(flightController, servoMixer, ArduinoPacket.MixerInput.YAW,
+                ArduinoPacket.ControlAxis.YAW);
+        setMixerInput(flightController, servoMixer, ArduinoPacket.MixerInput.THROTTLE,
+                ArduinoPacket.ControlAxis.SPEED);
+        servoMixer.mix();
+        for (ArduinoPacket.ServoType servoType : SERVO_TYPES) {
+            if (servoMixer.isActive(servoType)) {
+                flightSimulator.setServoValue(servoType, servoMixer.getServoValue(servoType));
+            }
+        }
+        boolean saturated = false;
+        for (ArduinoPacket.ServoType servoType : SURFACES) {
+            saturated |= servoMixer.isSaturated(servoType);
+        }
+        return saturated;
+    }
+
+    //Sets the output of the input ControlAxis as the input MixerInput, if the axis is controlled
+    private static void setMixerInput(FlightController flightController, ServoMixer servoMixer,
+                                      ArduinoPacket.MixerInput mixerInput,
+                                      ArduinoPacket.ControlAxis controlAxis) {
+        if (flightController.isEnabled(controlAxis)) {
+            servoMixer.setInput(mixerInput, flightController.getOutput(controlAxis));
+        }
+    }
+
+    //Evaluates a range of (candidate, scenario) runs, splitting it in halves until it is small
+    private class SweepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final PidGains[] mCandidates;
+        private final SweepScenario[] mScenarios;
+        private final ScenarioResult[] mScenarioResults;
+        private final int mFrom;
+        private final int mTo;
+
+        private SweepTask(PidGains[] candidates, SweepScenario[] scenarios,
+                          ScenarioResult[] scenarioResults, int from, int to) {
+            mCandidates = candidates;
+            mScenarios = scenarios;
+            mScenarioResults = scenarioResults;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= RUNS_PER_TASK) {
+                for (int i = mFrom; i < mTo; i++) {
+                    mScenarioResults[i] = evaluate(mCandidates[i / mScenarios.length],
+                            mScenarios[i % mScenarios.length]);
+                }
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new SweepTask(mCandidates, mScenarios, mScenarioResults, mFrom, middle),
+                    new SweepTask(mCandidates, mScenarios, mScenarioResults, middle, mTo));
+        }
+    }
+
+    //The metrics of a single candidate flying a single scenario
+    private static class ScenarioResult {
+        private final double mRmsRollError;
+        private final double mOvershoot;
+        private final double mSaturation;
+        private final boolean mCrashed;
+
+        private ScenarioResult(double rmsRollError, double overshoot, double saturation,
+                               boolean crashed) {
+            mRmsRollError = rmsRollError;
+            mOvershoot = overshoot;
+            mSaturation = saturation;
+            mCrashed = crashed;
+        }
+    }
+
+    /** The metrics of a candidate aggregated over all scenarios of a sweep */
+    public static class CandidateResult {
+        private final PidGains mGains;
+        private final int mIndex;
+        private final double mCost;
+        private final double mRmsRollError;
+        private final double mOvershoot;
+        private final double mSaturation;
+        private final int mCrashCount;
+
+        private CandidateResult(PidGains gains, int index, double cost, double rmsRollError,
+                                double overshoot, double saturation, int crashCount) {
+            mGains = gains;
+            mIndex = index;
+            mCost = cost;
+            mRmsRollError = rmsRollError;
+            mOvershoot = overshoot;
+            mSaturation = saturation;
+            mCrashCount = crashCount;
+        }
+
+        /** Returns the cost (lower is better). Infinite if the craft crashed in any scenario. */
+        public double getCost() {
+            return mCost;
+        }
+
+        /** Returns the number of scenarios in which the craft crashed */
+        public int getCrashCount() {
+            return mCrashCount;
+        }
+
+        /** Returns the candidate roll gains */
+        public PidGains getGains() {
+            return mGains;
+        }
+
+        /** Returns the index of the candidate in the input list of the sweep */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /** Returns the largest overshoot beyond a roll step over all scenarios in degrees */
+        public double getOvershoot() {
+            return mOvershoot;
+        }
+
+        /** Returns the mean RMS roll error (true roll minus setpoint) over all scenarios in
+         * degrees
+         */
+        public double getRmsRollError() {
+            return mRmsRollError;
+        }
+
+        /** Returns the mean fraction of control steps with a surface servo at its limit */
+        public double getSaturation() {
+            return mSaturation;
+        }
+    }
+}
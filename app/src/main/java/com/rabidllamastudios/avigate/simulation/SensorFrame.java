@@ -0,0 +1,215 @@
+package com.rabidllamastudios.avigate.simulation;
+
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+
+/**
+ * One synthetic snapshot of the sensor data that SensorService would broadcast, in craft axes
+ * Attitude and rates as read by FlightControlService (degrees, positive roll is right wing down),
+ * raw sensor values (linear acceleration, barometric pressure, the latest GPS fix) and the
+ * outputs of the estimators (propagated position and vertical state).
+ * Filled in place by FlightSimulator, so reading a frame every step does not allocate.
+ */
+public class SensorFrame {
+    //Time of the snapshot in seconds of simulated time
+    double mTime;
+    int mValidity = CraftStatePacket.VALID_ALL;
+    //Attitude (degrees, heading 0 to 360) and body rates (degrees per second)
+    double mRoll, mPitch, mHeading;
+    double mRollRate, mPitchRate, mYawRate;
+    //Linear (kinematic) acceleration along the forward, right and down axes in m/s^2
+    double mAccelerationForward, mAccelerationRight, mAccelerationDown;
+    //Barometric pressure in hPa and the barometric altitude in meters
+    double mPressure, mBarometricAltitude;
+    //Latest GPS fix (degrees, meters, m/s, degrees, meters) and its time in seconds
+    double mGpsLatitude, mGpsLongitude, mGpsAltitude, mGpsSpeed, mGpsBearing, mGpsAccuracy;
+    double mGpsTime = -1;
+    //Propagated position (PositionPropagator). East and north are relative to the first fix.
+    boolean mHasPropagatedPosition = false;
+    double mLatitude, mLongitude, mEast, mNorth, mVelocityEast, mVelocityNorth;
+    double mPositionUncertainty, mFixAge;
+    //Vertical state (VerticalKalmanFilter)
+    boolean mHasVerticalState = false;
+    double mAltitude, mClimbRate, mBarometerBias;
+
+    public SensorFrame() {}
+
+    /** Returns the linear acceleration along the body down axis in m/s^2 */
+    public double getAccelerationDown() {
+        return mAccelerationDown;
+    }
+
+    /** Returns the linear acceleration along the body forward axis in m/s^2 */
+    public double getAccelerationForward() {
+        return mAccelerationForward;
+    }
+
+    /** Returns the linear acceleration along the body right axis in m/s^2 */
+    public double getAccelerationRight() {
+        return mAccelerationRight;
+    }
+
+    /** Returns the estimated altitude in meters (see hasVerticalState) */
+    public double getAltitude() {
+        return mAltitude;
+    }
+
+    /** Returns the estimated barometric altitude bias in meters (see hasVerticalState) */
+    public double getBarometerBias() {
+        return mBarometerBias;
+    }
+
+    /** Returns the barometric altitude in meters */
+    public double getBarometricAltitude() {
+        return mBarometricAltitude;
+    }
+
+    /** Returns the estimated climb rate in m/s, positive is up (see hasVerticalState) */
+    public double getClimbRate() {
+        return mClimbRate;
+    }
+
+    /** Returns the propagated east coordinate in meters (see hasPropagatedPosition) */
+    public double getEast() {
+        return mEast;
+    }
+
+    /** Returns the time since the last GPS fix in seconds (see hasPropagatedPosition) */
+    public double getFixAge() {
+        return mFixAge;
+    }
+
+    /** Returns the horizontal accuracy of the latest GPS fix in meters */
+    public double getGpsAccuracy() {
+        return mGpsAccuracy;
+    }
+
+    /** Returns the altitude of the latest GPS fix in meters */
+    public double getGpsAltitude() {
+        return mGpsAltitude;
+    }
+
+    /** Returns the course over ground of the latest GPS fix in degrees */
+    public double getGpsBearing() {
+        return mGpsBearing;
+    }
+
+    /** Returns the latitude of the latest GPS fix in degrees */
+    public double getGpsLatitude() {
+        return mGpsLatitude;
+    }
+
+    /** Returns the longitude of the latest GPS fix in degrees */
+    public double getGpsLongitude() {
+        return mGpsLongitude;
+    }
+
+    /** Returns the groundspeed of the latest GPS fix in m/s */
+    public double getGpsSpeed() {
+        return mGpsSpeed;
+    }
+
+    /** Returns the time of the latest GPS fix in seconds of simulated time. -1 before a fix. */
+    public double getGpsTime() {
+        return mGpsTime;
+    }
+
+    /** Returns the groundspeed of the propagated position in m/s (see hasPropagatedPosition) */
+    public double getGroundspeed() {
+        return Math.sqrt(mVelocityEast * mVelocityEast + mVelocityNorth * mVelocityNorth);
+    }
+
+    /** Returns the heading in degrees, 0 to 360 */
+    public double getHeading() {
+        return mHeading;
+    }
+
+    /** Returns the propagated latitude in degrees (see hasPropagatedPosition) */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    /** Returns the propagated longitude in degrees (see hasPropagatedPosition) */
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /** Returns the propagated north coordinate in meters (see hasPropagatedPosition) */
+    public double getNorth() {
+        return mNorth;
+    }
+
+    /** Returns the pitch angle in degrees */
+    public double getPitch() {
+        return mPitch;
+    }
+
+    /** Returns the pitch rate in degrees per second */
+    public double getPitchRate() {
+        return mPitchRate;
+    }
+
+    /** Returns the estimated horizontal position error in meters (see hasPropagatedPosition) */
+    public double getPositionUncertainty() {
+        return mPositionUncertainty;
+    }
+
+    /** Returns the barometric pressure in hPa */
+    public double getPressure() {
+        return mPressure;
+    }
+
+    /** Returns the roll angle in degrees */
+    public double getRoll() {
+        return mRoll;
+    }
+
+    /** Returns the roll rate in degrees per second */
+    public double getRollRate() {
+        return mRollRate;
+    }
+
+    /** Returns the time of the snapshot in seconds of simulated time */
+    public double getTime() {
+        return mTime;
+    }
+
+    /** Returns the validity flags (a combination of the CraftStatePacket.VALID_ constants) */
+    public int getValidity() {
+        return mValidity;
+    }
+
+    /** Returns the propagated velocity towards east in m/s (see hasPropagatedPosition) */
+    public double getVelocityEast() {
+        return mVelocityEast;
+    }
+
+    /** Returns the propagated velocity towards north in m/s (see hasPropagatedPosition) */
+    public double getVelocityNorth() {
+        return mVelocityNorth;
+    }
+
+    /** Returns the yaw rate in degrees per second */
+    public double getYawRate() {
+        return mYawRate;
+    }
+
+    /** Returns true once a GPS fix has been received */
+    public boolean hasGpsFix() {
+        return mGpsTime >= 0;
+    }
+
+    /** Returns true if the propagated position values are set */
+    public boolean hasPropagatedPosition() {
+        return mHasPropagatedPosition;
+    }
+
+    /** Returns true if the vertical state values are set */
+    public boolean hasVerticalState() {
+        return mHasVerticalState;
+    }
+
+    /** Returns true if all of the input validity flags (CraftStatePacket.VALID_ flags) are set */
+    public boolean isValid(int validityFlags) {
+        return (mValidity & validityFlags) == validityFlags;
+    }
+}
@@ -0,0 +1,170 @@
+package com.rabidllamastudios.avigate.simulation;
+
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A scripted flight used to evaluate a controller in the FlightSimulator: roll setpoint steps,
+ * wind gusts and sensor dropouts at fixed times, plus the seed of the sensor noise.
+ * Every candidate evaluated against a scenario sees the same noise, so results are comparable
+ * and reproducible. Events are added before a sweep; the queries do not allocate.
+ * Not thread safe while events are added. Once scripted, it can be shared between threads.
+ */
+public class SweepScenario {
+    private final String mName;
+    private final double mDuration;
+    private final long mSeed;
+
+    //Roll setpoint steps: time (s) and roll setpoint (degrees), sorted by time
+    private double[] mStepTimes = new double[0];
+    private double[] mStepRolls = new double[0];
+    //Gusts: start (s), duration (s) and peak wind (north, east, down in m/s)
+    private double[][] mGusts = new double[0][];
+    //Dropouts: start (s), duration (s) and the dropped sensors (CraftStatePacket.VALID_ flags)
+    private double[][] mDropouts = new double[0][];
+    private int[] mDropoutFlags = new int[0];
+
+    /** Constructs a SweepScenario without events (level flight in calm air)
+     * @param name the name of the scenario, used in reports
+     * @param duration the duration of the scenario in seconds
+     * @param seed the seed of the sensor noise
+     */
+    public SweepScenario(String name, double duration, long seed) {
+        mName = name;
+        mDuration = duration;
+        mSeed = seed;
+    }
+
+    /** Returns the default scenarios: roll steps, gusts, sensor dropouts and a combination
+     * @param seed the base seed. Each scenario uses a different seed derived from it.
+     */
+    public static List<SweepScenario> createDefaultScenarios(long seed) {
+        List<SweepScenario> scenarios = new ArrayList<>();
+        SweepScenario steps = new SweepScenario("Roll steps", 30, seed);
+        steps.addRollStep(2, 20);
+        steps.addRollStep(10, -20);
+        steps.addRollStep(18, 30);
+        steps.addRollStep(24, 0);
+        scenarios.add(steps);
+        SweepScenario gusts = new SweepScenario("Gusts", 30, seed + 1);
+        gusts.addGust(3, 1.5, 0, 6, 0);
+        gusts.addGust(10, 0.8, 0, -8, 2);
+        gusts.addGust(17, 3, 4, 5, -1.5);
+        gusts.addGust(24, 1, 0, -6, 0);
+        scenarios.add(gusts);
+        SweepScenario dropouts = new SweepScenario("Sensor dropouts", 30, seed + 2);
+        dropouts.addRollStep(2, 25);
+        dropouts.addDropout(4, 0.5, CraftStatePacket.VALID_ORIENTATION
+                | CraftStatePacket.VALID_ANGULAR_VELOCITY);
+        dropouts.addRollStep(12, -15);
+        dropouts.addDropout(13, 2, CraftStatePacket.VALID_LOCATION);
+        dropouts.addRollStep(20, 0);
+        dropouts.addDropout(20.5, 1, CraftStatePacket.VALID_ANGULAR_VELOCITY);
+        scenarios.add(dropouts);
+        SweepScenario gustySteps = new SweepScenario("Steps in gusts", 30, seed + 3);
+        gustySteps.addRollStep(2, -25);
+        gustySteps.addGust(3, 1, 0, 7, 0);
+        gustySteps.addRollStep(12, 25);
+        gustySteps.addGust(13, 2, 3, -6, 1);
+        gustySteps.addRollStep(22, 0);
+        scenarios.add(gustySteps);
+        return scenarios;
+    }
+
+    /** Drops out the sensors of the input CraftStatePacket.VALID_ flags
+     * @param time the start of the dropout in seconds
+     * @param duration the duration of the dropout in seconds
+     * @param validityFlags the sensors that drop out
+     */
+    public void addDropout(double time, double duration, int validityFlags) {
+        mDropouts = Arrays.copyOf(mDropouts, mDropouts.length + 1);
+        mDropouts[mDropouts.length - 1] = new double[]{time, duration};
+        mDropoutFlags = Arrays.copyOf(mDropoutFlags, mDropoutFlags.length + 1);
+        mDropoutFlags[mDropoutFlags.length - 1] = validityFlags;
+    }
+
+    /** Adds a (1 - cosine shaped) wind gust
+     * @param time the start of the gust in seconds
+     * @param duration the duration of the gust in seconds
+     * @param north the peak wind towards north in m/s
+     * @param east the peak wind towards east in m/s
+     * @param down the peak wind downwards in m/s
+     */
+    public void addGust(double time, double duration, double north, double east, double down) {
+        mGusts = Arrays.copyOf(mGusts, mGusts.length + 1);
+        mGusts[mGusts.length - 1] = new double[]{time, duration, north, east, down};
+    }
+
+    /** Commands the input roll setpoint (degrees) from the input time (s) onwards */
+    public void addRollStep(double time, double roll) {
+        int count = mStepTimes.length;
+        mStepTimes = Arrays.copyOf(mStepTimes, count + 1);
+        mStepRolls = Arrays.copyOf(mStepRolls, count + 1);
+        //Insertion sort, so steps can be added in any order
+        int index = count;
+        while (index > 0 && mStepTimes[index - 1] > time) {
+            mStepTimes[index] = mStepTimes[index - 1];
+            mStepRolls[index] = mStepRolls[index - 1];
+            index--;
+        }
+        mStepTimes[index] = time;
+        mStepRolls[index] = roll;
+    }
+
+    /** Returns the sensors that have dropped out at the input time (CraftStatePacket.VALID_) */
+    public int getDroppedSensors(double time) {
+        int droppedSensors = 0;
+        for (int i = 0; i < mDropouts.length; i++) {
+            if (time >= mDropouts[i][0] && time < mDropouts[i][0] + mDropouts[i][1]) {
+                droppedSensors |= mDropoutFlags[i];
+            }
+        }
+        return droppedSensors;
+    }
+
+    /** Returns the duration of the scenario in seconds */
+    public double getDuration() {
+        return mDuration;
+    }
+
+    /** Returns the name of the scenario */
+    public String getName() {
+        return mName;
+    }
+
+    /** Returns the roll setpoint in degrees at the input time (level before the first step) */
+    public double getRollSetpoint(double time) {
+        int step = getStepIndex(time);
+        return step < 0 ? 0 : mStepRolls[step];
+    }
+
+    /** Returns the seed of the sensor noise */
+    public long getSeed() {
+        return mSeed;
+    }
+
+    /** Returns the index of the last roll step at or before the input time (-1 if none) */
+    public int getStepIndex(double time) {
+        int step = -1;
+        while (step + 1 < mStepTimes.length && mStepTimes[step + 1] <= time) step++;
+        return step;
+    }
+
+    /** Writes the wind (north, east, down in m/s) at the input time into the input array */
+    public void getWind(double time, double[] wind) {
+        wind[0] = 0;
+        wind[1] = 0;
+        wind[2] = 0;
+        for (double[] gust : mGusts) {
+            if (time >= gust[0] && time < gust[0] + gust[1]) {
+                double shape = (1 - Math.cos(2 * Math.PI * (time - gust[0]) / gust[1])) / 2;
+                wind[0] += shape * gust[2];
+                wind[1] += shape * gust[3];
+                wind[2] += shape * gust[4];
+            }
+        }
+    }
+}
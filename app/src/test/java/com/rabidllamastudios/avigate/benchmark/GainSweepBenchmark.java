@@ -0,0 +1,76 @@
+package com.rabidllamastudios.avigate.benchmark;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.PidGains;
+import com.rabidllamastudios.avigate.simulation.GainSweepRunner;
+import com.rabidllamastudios.avigate.simulation.SweepScenario;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the default roll gain sweep of GainSweepRunner and prints its ranked report, with the time
+ * the sweep takes on one core and on all cores
+ * Plain Java: runs as a unit test on the JVM. Benchmarks only run on request, e.g.:
+ * ./gradlew testDebugUnitTest -Pbenchmark --tests *GainSweepBenchmark -i
+ */
+public class GainSweepBenchmark {
+    private static final int DEFAULT_REPORT_COUNT = 20;
+    private static final long DEFAULT_SEED = 1;
+    //Servo output range of the craft profile in degrees
+    private static final int OUTPUT_MIN = 0;
+    private static final int OUTPUT_MAX = 180;
+    private static final long NANOS_PER_MILLISECOND = 1000000L;
+
+    /** Runs the default sweep on one core and on all cores, and prints the report and timings
+     * Usage: GainSweepBenchmark [report count] [scenario seed]
+     */
+    public static void main(String[] args) {
+        int reportCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REPORT_COUNT;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_SEED;
+        List<PidGains> candidates = GainSweepRunner.createGrid(
+                new double[]{0.5, 1, 2, 3, 4, 6, 8}, new double[]{0, 0.2, 0.5, 1},
+                new double[]{0, 0.25, 0.5, 1, 1.5}, 10);
+        List<SweepScenario> scenarios = SweepScenario.createDefaultScenarios(seed);
+        int cores = Runtime.getRuntime().availableProcessors();
+        long sequentialNanos = time(new GainSweepRunner(createConfigArduinoPacket(), 1),
+                candidates, scenarios);
+        long start = System.nanoTime();
+        List<GainSweepRunner.CandidateResult> results =
+                new GainSweepRunner(createConfigArduinoPacket()).run(candidates, scenarios);
+        long parallelNanos = System.nanoTime() - start;
+        System.out.println(GainSweepRunner.formatReport(results, reportCount));
+        System.out.println(String.format(Locale.US, "%d candidates x %d scenarios: %d ms on 1 "
+                        + "core, %d ms on %d cores", candidates.size(), scenarios.size(),
+                sequentialNanos / NANOS_PER_MILLISECOND, parallelNanos / NANOS_PER_MILLISECOND,
+                cores));
+    }
+
+    /** Runs the benchmark with the default arguments */
+    @Test
+    public void benchmark() throws Exception {
+        main(new String[0]);
+    }
+
+    //Returns the time in nanoseconds the input runner takes to sweep the input candidates
+    private static long time(GainSweepRunner gainSweepRunner, List<PidGains> candidates,
+                             List<SweepScenario> scenarios) {
+        long start = System.nanoTime();
+        gainSweepRunner.run(candidates, scenarios);
+        return System.nanoTime() - start;
+    }
+
+    //Returns a craft profile with the full servo output range on all control surfaces
+    private static ArduinoPacket createConfigArduinoPacket() {
+        ArduinoPacket configArduinoPacket = new ArduinoPacket();
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.AILERON, OUTPUT_MIN,
+                OUTPUT_MAX);
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.ELEVATOR, OUTPUT_MIN,
+                OUTPUT_MAX);
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.RUDDER, OUTPUT_MIN,
+                OUTPUT_MAX);
+        return configArduinoPacket;
+    }
+}
@@ -0,0 +1,185 @@
+package com.rabidllamastudios.avigate.benchmark;
+
+import android.content.Intent;
+import android.util.Log;
+
+import com.rabidllamastudios.avigate.helpers.BundleableJsonObject;
+import com.rabidllamastudios.avigate.helpers.MessageRouter;
+import com.rabidllamastudios.avigate.helpers.TelemetryCodec;
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.ConnectionPacket;
+import com.rabidllamastudios.avigate.services.FlightControlService;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+
+/**
+ * Benchmark of the inbound dispatch of NetworkService: the routing table (MessageRouter) against
+ * the topic splitting dispatch it replaces
+ * For Arduino servo values and a connection status (binary), a command with extras (JSON) and a
+ * messageless command, reports the mean time from the arrival of a message on its topic to its
+ * decoded Intent for both dispatches (fastest of MEASURED_ROUNDS). The broadcast itself is the
+ * same for both and left out.
+ * The splitting dispatch logs the JSON payloads it receives, as it did. Log, Intent and org.json
+ * are framework classes, so it runs as a unit test with Robolectric. Its framework classes are not
+ * a device's: compare the two dispatches, not the absolute times. Benchmarks only run on request:
+ * ./gradlew testDebugUnitTest -Pbenchmark --tests *MessageDispatchBenchmark -i
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE)
+public class MessageDispatchBenchmark {
+    private static final int DEFAULT_ITERATIONS = 20000;
+    //Rounds of iterations measured per dispatch (after one warm up round): the fastest is
+    //reported, as slower rounds are slowed by other work on the machine rather than the dispatch
+    private static final int MEASURED_ROUNDS = 5;
+    private static final String CLASS_NAME = MessageDispatchBenchmark.class.getSimpleName();
+    //Topics of the receiving device, as NetworkService builds them
+    private static final String LOCAL_DEVICE_TYPE = "CONTROLLER";
+    private static final String PROBE_TOPIC = LOCAL_DEVICE_TYPE + "/probe/benchmark";
+    private static final String HEARTBEAT_TOPIC = "heartbeat";
+    private static final String BATCH_TOPIC = "batch";
+
+    private static final TelemetryCodec sTelemetryCodec = new TelemetryCodec();
+    private static long sSink = 0;  //Consumes results, so the measured work is not eliminated
+
+    /** Measures each message type and prints the results
+     * Usage: MessageDispatchBenchmark [iterations]
+     */
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        ArduinoPacket arduinoPacket = new ArduinoPacket();
+        arduinoPacket.setServoValue(ArduinoPacket.ServoType.AILERON, 97);
+        arduinoPacket.setServoValue(ArduinoPacket.ServoType.ELEVATOR, 84);
+        arduinoPacket.setServoValue(ArduinoPacket.ServoType.RUDDER, 90);
+        arduinoPacket.setServoValue(ArduinoPacket.ServoType.THROTTLE, 135);
+        Intent autotuneIntent = FlightControlService.getStartAutotuneIntent(
+                ArduinoPacket.ControlAxis.ROLL, 5);
+        String[] intentActions = {ArduinoPacket.INTENT_ACTION_OUTPUT,
+                ConnectionPacket.INTENT_ACTION, autotuneIntent.getAction(),
+                FlightControlService.INTENT_ACTION_RELEASE_ALTITUDE};
+        MessageRouter messageRouter = createMessageRouter(intentActions);
+        measure("servo values", intentActions[0], sTelemetryCodec.encode(
+                arduinoPacket.toIntent(ArduinoPacket.INTENT_ACTION_OUTPUT)), messageRouter,
+                iterations);
+        measure("connection", intentActions[1], sTelemetryCodec.encode(
+                new ConnectionPacket(true, 41.2f, 63.8f, 0.02f, 3.3f, 120f).toIntent()),
+                messageRouter, iterations);
+        measure("command", intentActions[2], new BundleableJsonObject(
+                autotuneIntent.getExtras()).toString().getBytes(), messageRouter, iterations);
+        measure("messageless", intentActions[3], new byte[0], messageRouter, iterations);
+        System.out.println("(sink " + sSink + ")");
+    }
+
+    /** Runs the benchmark with the default arguments */
+    @Test
+    public void benchmark() throws Exception {
+        main(new String[0]);
+    }
+
+    //Measures both dispatches of a message of the input Intent action, alternating rounds of
+    //iterations, and keeps the fastest round of each (the first round warms up)
+    private static void measure(String name, String intentAction, byte[] payload,
+                                MessageRouter messageRouter, int iterations) {
+        String topic = LOCAL_DEVICE_TYPE + "/" + intentAction;
+        long[] nanos = {Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int round = 0; round <= MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                //A new topic String per message, as the MQTT client delivers it
+                dispatchSplit(new String(topic), payload);
+            }
+            long splitNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                messageRouter.route(new String(topic), payload);
+            }
+            long routedNanos = System.nanoTime() - start;
+            if (round == 0) continue;
+            nanos[0] = Math.min(nanos[0], splitNanos);
+            nanos[1] = Math.min(nanos[1], routedNanos);
+        }
+        System.out.println(String.format(Locale.US, "%-13s %4d bytes   split %7.2f us   "
+                        + "routed %7.2f us", name, payload.length,
+                nanos[0] / 1000.0 / iterations, nanos[1] / 1000.0 / iterations));
+    }
+
+    //Returns a routing table with the handlers NetworkService builds for the input Intent actions
+    private static MessageRouter createMessageRouter(String[] intentActions) {
+        MessageRouter messageRouter = new MessageRouter();
+        for (final String intentAction : intentActions) {
+            final MessageRouter.MessageHandler jsonHandler = new MessageRouter.MessageHandler() {
+                private final Intent mMessagelessIntent = new Intent(intentAction);
+
+                @Override
+                public void onMessage(byte[] payload) {
+                    if (payload.length == 0) {
+                        consume(mMessagelessIntent);
+                        return;
+                    }
+                    Intent intent = new Intent(intentAction);
+                    try {
+                        intent.putExtras(new BundleableJsonObject(new String(payload)).toBundle());
+                    } catch (JSONException e) {
+                        e.printStackTrace();
+                    }
+                    consume(intent);
+                }
+            };
+            MessageRouter.MessageHandler handler = jsonHandler;
+            if (TelemetryCodec.hasSchema(intentAction)) {
+                handler = new MessageRouter.MessageHandler() {
+                    @Override
+                    public void onMessage(byte[] payload) {
+                        if (!TelemetryCodec.isEncoded(payload)) {
+                            jsonHandler.onMessage(payload);
+                            return;
+                        }
+                        Intent intent = sTelemetryCodec.decode(payload);
+                        if (intent != null && intent.getAction().equals(intentAction)) {
+                            consume(intent);
+                        }
+                    }
+                };
+            }
+            messageRouter.put(LOCAL_DEVICE_TYPE + "/" + intentAction, handler);
+        }
+        return messageRouter;
+    }
+
+    //Consumes a decoded Intent in place of its broadcast
+    private static void consume(Intent intent) {
+        sSink += intent.getAction().length();
+        if (intent.getExtras() != null) sSink += intent.getExtras().size();
+    }
+
+    //Dispatches a message as NetworkService did before its routing table (minus the broadcast)
+    private static void dispatchSplit(String topic, byte[] payload) {
+        if (topic.equals(PROBE_TOPIC)) return;
+        String[] topicSegments = topic.split("/");
+        String lastTopicSegment = topicSegments[topicSegments.length - 1];
+        if (lastTopicSegment.equals(HEARTBEAT_TOPIC)) return;
+        if (lastTopicSegment.equals(BATCH_TOPIC)) return;
+        if (TelemetryCodec.isEncoded(payload)) {
+            consume(sTelemetryCodec.decode(payload));
+            return;
+        }
+        String message = new String(payload);
+        Intent intent = new Intent(lastTopicSegment);
+        if (!message.equals("")) {
+            try {
+                Log.i(CLASS_NAME, "Message arrived: " + message);
+                intent.putExtras(new BundleableJsonObject(message).toBundle());
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        } else {
+            Log.i(CLASS_NAME, "Messageless topic arrived: " + lastTopicSegment);
+        }
+        consume(intent);
+    }
+}
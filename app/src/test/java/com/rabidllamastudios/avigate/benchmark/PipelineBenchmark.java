@@ -0,0 +1,364 @@
+package com.rabidllamastudios.avigate.benchmark;
+
+import com.rabidllamastudios.avigate.helpers.FlightPipeline;
+import com.rabidllamastudios.avigate.helpers.RingBuffer;
+import com.rabidllamastudios.avigate.helpers.TimingStatistics;
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+import com.rabidllamastudios.avigate.models.LatencyTrace;
+import com.rabidllamastudios.avigate.models.SensorSample;
+import com.rabidllamastudios.avigate.models.ServoFrame;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Benchmark of the sensor to serial path on the JVM: the FlightPipeline ring buffers against the
+ * broadcast based path they replaced
+ * Both paths run the same three threads (sensor, control, serial) and the same control work per
+ * sample (craft roll from the orientation, mapped to an aileron value). The broadcast path is
+ * modelled by what it cost in process: a packet and a Bundle-like map per hop, handed over to a
+ * single thread executor, with the servo values marshalled to JSON and parsed again before the
+ * serial frame is built. Binder transactions cannot run on the JVM, so it is a lower bound.
+ * Reports the throughput (samples published as fast as possible), the end to end latency
+ * percentiles at a paced sensor rate, and the bytes allocated per sample on the three threads.
+ * Serial frames are encoded but not written (there is no port).
+ * Plain Java: runs as a unit test on the JVM. Benchmarks only run on request, e.g.:
+ * ./gradlew testDebugUnitTest -Pbenchmark --tests *PipelineBenchmark -i
+ */
+public class PipelineBenchmark {
+    private static final int DEFAULT_SAMPLES = 200000;
+    private static final int DEFAULT_PACED_RATE = 1000;
+    private static final int PACED_SECONDS = 5;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    //Wait of a consumer thread for new slots before checking whether it should stop
+    private static final long PARK_TIMEOUT_MILLIS = 10;
+
+    /** Runs both paths unpaced (throughput) and paced (latency), and prints the results
+     * Usage: PipelineBenchmark [samples] [paced rate in Hz]
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int samples = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SAMPLES;
+        int pacedRate = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PACED_RATE;
+        //Warm up both paths (JIT compilation), then measure
+        run(new RingPath(), samples / 4, 0);
+        run(new BroadcastPath(), samples / 4, 0);
+        System.out.println("Throughput (" + samples + " samples, unpaced)");
+        print("ring buffers", run(new RingPath(), samples, 0));
+        print("broadcasts", run(new BroadcastPath(), samples, 0));
+        int pacedSamples = pacedRate * PACED_SECONDS;
+        System.out.println("Latency (" + pacedSamples + " samples at " + pacedRate + " Hz)");
+        print("ring buffers", run(new RingPath(), pacedSamples, pacedRate));
+        print("broadcasts", run(new BroadcastPath(), pacedSamples, pacedRate));
+    }
+
+    /** Runs the benchmark with the default arguments */
+    @Test
+    public void benchmark() throws Exception {
+        main(new String[0]);
+    }
+
+    //Publishes the input number of samples (at the input rate in Hz, or unpaced if 0) through
+    //the input path and waits until all of them have been encoded as serial frames
+    private static Result run(Path path, int samples, int rate) throws InterruptedException {
+        path.start();
+        long allocatedBytes = path.getAllocatedBytes();
+        long periodNanos = rate > 0 ? NANOS_PER_SECOND / rate : 0;
+        long start = System.nanoTime();
+        long deadline = start;
+        for (int i = 0; i < samples; i++) {
+            if (periodNanos > 0) {
+                deadline += periodNanos;
+                long remaining = deadline - System.nanoTime();
+                while (remaining > 0) {
+                    LockSupport.parkNanos(remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+            }
+            //A slowly rotating attitude, so every sample produces a new aileron value
+            double angle = i * 0.001;
+            path.publish(System.nanoTime(), (float) Math.cos(angle), (float) Math.sin(angle), 0,
+                    0);
+        }
+        while (path.getFrameCount() < samples) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        Result result = new Result(samples, elapsed, path.getLatencyStatistics(),
+                path.getAllocatedBytes() - allocatedBytes);
+        path.stop();
+        return result;
+    }
+
+    private static void print(String name, Result result) {
+        TimingStatistics latency = result.mLatencyStatistics;
+        System.out.println(String.format(Locale.US, "  %-13s %10.0f samples/s  latency p50 "
+                        + "%.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms  %.0f bytes/sample",
+                name, result.mSamples * (double) NANOS_PER_SECOND / result.mElapsedNanos,
+                latency.getPercentileMillis(50), latency.getPercentileMillis(99),
+                latency.getPercentileMillis(99.9), latency.getMaxMillis(),
+                (double) result.mAllocatedBytes / result.mSamples));
+    }
+
+    //Returns the aileron value of the control step for the input orientation
+    private static int control(CraftStatePacket.Orientation orientation) {
+        double roll = orientation.getCraftRoll(false);
+        return (int) Math.max(0, Math.min(180, Math.round(90 - 3 * roll)));
+    }
+
+    //Returns the bytes allocated so far by the input threads (-1 if not supported by the JVM)
+    private static long getAllocatedBytes(Thread... threads) {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) return -1;
+        long allocatedBytes = 0;
+        for (Thread thread : threads) {
+            allocatedBytes += ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(thread.getId());
+        }
+        return allocatedBytes;
+    }
+
+    //A sensor to serial path with a sensor (publishing) thread, a control thread and a serial
+    //thread. Latency statistics are only accessed on the serial thread until it has stopped.
+    private abstract static class Path {
+        protected final TimingStatistics mLatencyStatistics = new TimingStatistics();
+        protected final AtomicLong mFrameCount = new AtomicLong(0);
+        protected Thread mSensorThread;
+
+        abstract void start();
+
+        //Publishes an orientation sample on the sensor (calling) thread
+        abstract void publish(long deliveryNanos, float w, float x, float y, float z);
+
+        abstract void stop() throws InterruptedException;
+
+        abstract long getAllocatedBytes();
+
+        long getFrameCount() {
+            return mFrameCount.get();
+        }
+
+        TimingStatistics getLatencyStatistics() {
+            return mLatencyStatistics;
+        }
+
+        //Records a frame encoded on the serial thread
+        protected void onFrameEncoded(long deliveryNanos) {
+            mLatencyStatistics.record(System.nanoTime() - deliveryNanos);
+            mFrameCount.lazySet(mFrameCount.get() + 1);
+        }
+    }
+
+    //The FlightPipeline: attitude samples and servo frames in preallocated ring buffers
+    private static class RingPath extends Path {
+        private final FlightPipeline mFlightPipeline = new FlightPipeline();
+        private final byte[] mFrameBuffer = new byte[ServoFrame.MAX_FRAME_LENGTH];
+        private final byte[][] mWriteBuffers = new byte[ServoFrame.MAX_FRAME_LENGTH + 1][];
+        private final CraftStatePacket.Orientation mOrientation =
+                new CraftStatePacket.Orientation(1, 0, 0, 0);
+        private volatile boolean mIsRunning = false;
+        private Thread mControlThread;
+        private Thread mSerialThread;
+
+        @Override
+        void start() {
+            mSensorThread = Thread.currentThread();
+            mIsRunning = true;
+            mControlThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    RingBuffer<SensorSample> sensorSamples = mFlightPipeline.getSensorSamples();
+                    while (mIsRunning) {
+                        sensorSamples.await(mSensorSampleHandler, PARK_TIMEOUT_MILLIS,
+                                TimeUnit.MILLISECONDS);
+                    }
+                }
+            }, "control");
+            mSerialThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    RingBuffer<ServoFrame> servoFrames = mFlightPipeline.getServoFrames();
+                    while (mIsRunning) {
+                        servoFrames.await(mServoFrameHandler, PARK_TIMEOUT_MILLIS,
+                                TimeUnit.MILLISECONDS);
+                    }
+                }
+            }, "serial");
+            mControlThread.start();
+            mSerialThread.start();
+        }
+
+        @Override
+        void publish(long deliveryNanos, float w, float x, float y, float z) {
+            //Unlike the craft (where stale samples are dropped), retry so every sample is measured
+            while (!mFlightPipeline.publishOrientation(deliveryNanos, w, x, y, z)) {
+                Thread.yield();
+            }
+        }
+
+        @Override
+        void stop() throws InterruptedException {
+            mIsRunning = false;
+            mControlThread.join();
+            mSerialThread.join();
+        }
+
+        @Override
+        long getAllocatedBytes() {
+            return PipelineBenchmark.getAllocatedBytes(mSensorThread, mControlThread,
+                    mSerialThread);
+        }
+
+        //Runs the control step of each sample and publishes its servo frame (control thread)
+        private final RingBuffer.Handler<SensorSample> mSensorSampleHandler =
+                new RingBuffer.Handler<SensorSample>() {
+            @Override
+            public void onEvent(SensorSample sensorSample, long sequence, boolean endOfBatch) {
+                mOrientation.set(sensorSample.getW(), sensorSample.getX(), sensorSample.getY(),
+                        sensorSample.getZ());
+                int aileron = control(mOrientation);
+                RingBuffer<ServoFrame> servoFrames = mFlightPipeline.getServoFrames();
+                long servoSequence;
+                while ((servoSequence = servoFrames.claim()) < 0) {
+                    Thread.yield();
+                }
+                ServoFrame servoFrame = servoFrames.get(servoSequence);
+                servoFrame.clear();
+                servoFrame.setServoValue(ArduinoPacket.ServoType.AILERON, aileron);
+                servoFrame.getLatencyTrace().stamp(LatencyTrace.POINT_SENSOR_EVENT,
+                        sensorSample.getDeliveryNanos());
+                servoFrames.publish(servoSequence);
+            }
+        };
+
+        //Encodes each servo frame as UsbSerialService does (serial thread)
+        private final RingBuffer.Handler<ServoFrame> mServoFrameHandler =
+                new RingBuffer.Handler<ServoFrame>() {
+            @Override
+            public void onEvent(ServoFrame servoFrame, long sequence, boolean endOfBatch) {
+                int length = servoFrame.encode(mFrameBuffer);
+                byte[] writeBuffer = mWriteBuffers[length];
+                if (writeBuffer == null) {
+                    writeBuffer = new byte[length];
+                    mWriteBuffers[length] = writeBuffer;
+                }
+                System.arraycopy(mFrameBuffer, 0, writeBuffer, 0, length);
+                onFrameEncoded(servoFrame.getLatencyTrace().getStamp(
+                        LatencyTrace.POINT_SENSOR_EVENT));
+            }
+        };
+    }
+
+    //The broadcast based path: a packet and a Bundle-like map per hop, handed over to single
+    //thread executors, with the servo values marshalled to JSON and parsed again
+    private static class BroadcastPath extends Path {
+        private ExecutorService mControlExecutor;
+        private ExecutorService mSerialExecutor;
+        private final Thread[] mThreads = new Thread[2];
+
+        @Override
+        void start() {
+            mSensorThread = Thread.currentThread();
+            mControlExecutor = Executors.newSingleThreadExecutor(createThreadFactory(0));
+            mSerialExecutor = Executors.newSingleThreadExecutor(createThreadFactory(1));
+            //Start both threads, so their allocations can be measured from the first sample
+            mControlExecutor.submit(new Runnable() {
+                @Override
+                public void run() {}
+            });
+            mSerialExecutor.submit(new Runnable() {
+                @Override
+                public void run() {}
+            });
+            while (mThreads[0] == null || mThreads[1] == null) {
+                Thread.yield();
+            }
+        }
+
+        @Override
+        void publish(long deliveryNanos, float w, float x, float y, float z) {
+            //The snapshot, as the extras of its Intent
+            final Map<String, Object> bundle = new HashMap<>();
+            bundle.put("ori-w", (double) w);
+            bundle.put("ori-x", (double) x);
+            bundle.put("ori-y", (double) y);
+            bundle.put("ori-z", (double) z);
+            bundle.put("trc", new long[] {deliveryNanos});
+            mControlExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CraftStatePacket.Orientation orientation = new CraftStatePacket.Orientation(
+                            (Double) bundle.get("ori-w"), (Double) bundle.get("ori-x"),
+                            (Double) bundle.get("ori-y"), (Double) bundle.get("ori-z"));
+                    ArduinoPacket arduinoPacket = new ArduinoPacket();
+                    arduinoPacket.setServoValue(ArduinoPacket.ServoType.AILERON,
+                            control(orientation));
+                    final Map<String, Object> servoBundle = new HashMap<>();
+                    servoBundle.put("json", arduinoPacket.toJsonString());
+                    servoBundle.put("trc", bundle.get("trc"));
+                    mSerialExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            ArduinoPacket servoPacket =
+                                    new ArduinoPacket((String) servoBundle.get("json"));
+                            String frame = "@" + servoPacket.toJsonString() + "#";
+                            frame.getBytes();
+                            onFrameEncoded(((long[]) servoBundle.get("trc"))[0]);
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        void stop() throws InterruptedException {
+            mControlExecutor.shutdown();
+            mControlExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            mSerialExecutor.shutdown();
+            mSerialExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        @Override
+        long getAllocatedBytes() {
+            return PipelineBenchmark.getAllocatedBytes(mSensorThread, mThreads[0], mThreads[1]);
+        }
+
+        //Returns a ThreadFactory that stores the thread it creates at the input index
+        private ThreadFactory createThreadFactory(final int index) {
+            return new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, index == 0 ? "control" : "serial");
+                    mThreads[index] = thread;
+                    return thread;
+                }
+            };
+        }
+    }
+
+    //The measurements of one run
+    private static class Result {
+        private final int mSamples;
+        private final long mElapsedNanos;
+        private final TimingStatistics mLatencyStatistics;
+        private final long mAllocatedBytes;
+
+        private Result(int samples, long elapsedNanos, TimingStatistics latencyStatistics,
+                       long allocatedBytes) {
+            mSamples = samples;
+            mElapsedNanos = elapsedNanos;
+            mLatencyStatistics = latencyStatistics;
+            mAllocatedBytes = allocatedBytes;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.rabidllamastudios.avigate.benchmark;
+
+import android.content.Intent;
+import android.location.Location;
+import android.os.Bundle;
+
+import com.rabidllamastudios.avigate.helpers.BundleableJsonObject;
+import com.rabidllamastudios.avigate.helpers.TelemetryCodec;
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.ConnectionPacket;
+import com.rabidllamastudios.avigate.models.CraftStatePacket;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+
+/**
+ * Benchmark of the network payloads of NetworkService: the binary encoding of TelemetryCodec
+ * against the JSON encoding (BundleableJsonObject) it replaces for telemetry
+ * For a craft state (with propagated position and vertical state), Arduino servo values and a
+ * connection status, reports the payload size and the mean time to encode the Intent into a
+ * payload and to decode the payload into an Intent (as NetworkService does) for both encodings.
+ * Uses framework classes (Intent, Bundle, Location and org.json), so it runs as a unit test with
+ * Robolectric. Its framework classes are not a device's: compare the two encodings, not the
+ * absolute times. Benchmarks only run on request, e.g.:
+ * ./gradlew testDebugUnitTest -Pbenchmark --tests *TelemetryCodecBenchmark -i
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE)
+public class TelemetryCodecBenchmark {
+    private static final int DEFAULT_ITERATIONS = 20000;
+
+    private static long sSink = 0;  //Consumes results, so the measured work is not eliminated
+
+    /** Measures each message type and prints the results
+     * Usage: TelemetryCodecBenchmark [iterations]
+     */
+    public static void main(String[] args) throws JSONException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        measure("craft state", createCraftStateIntent(), iterations);
+        measure("servo values", createServoValuesIntent(), iterations);
+        measure("connection", new ConnectionPacket(true).toIntent(), iterations);
+        System.out.println("(sink " + sSink + ")");
+    }
+
+    /** Runs the benchmark with the default arguments */
+    @Test
+    public void benchmark() throws Exception {
+        main(new String[0]);
+    }
+
+    //Measures both encodings of the input Intent (after as many warm up iterations)
+    private static void measure(String name, Intent intent, int iterations)
+            throws JSONException {
+        TelemetryCodec telemetryCodec = new TelemetryCodec();
+        byte[] jsonPayload = encodeJson(intent);
+        byte[] binaryPayload = telemetryCodec.encode(intent);
+        long[] nanos = new long[4];
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sSink += encodeJson(intent).length;
+            }
+            nanos[0] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sSink += decodeJson(intent.getAction(), jsonPayload).getExtras().size();
+            }
+            nanos[1] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sSink += telemetryCodec.encode(intent).length;
+            }
+            nanos[2] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sSink += telemetryCodec.decode(binaryPayload).getExtras().size();
+            }
+            nanos[3] = System.nanoTime() - start;
+        }
+        System.out.println(String.format(Locale.US, "%-13s JSON %4d bytes, encode %7.2f us, "
+                        + "decode %7.2f us   binary %4d bytes, encode %7.2f us, decode %7.2f us",
+                name, jsonPayload.length, nanos[0] / 1000.0 / iterations,
+                nanos[1] / 1000.0 / iterations, binaryPayload.length,
+                nanos[2] / 1000.0 / iterations, nanos[3] / 1000.0 / iterations));
+    }
+
+    //Returns a craft state Intent as broadcast by SensorService in flight
+    private static Intent createCraftStateIntent() {
+        Location location = new Location("gps");
+        location.setLatitude(47.620506);
+        location.setLongitude(-122.349277);
+        location.setAltitude(158.4);
+        location.setAccuracy(4.5f);
+        location.setSpeed(17.2f);
+        location.setBearing(271.3f);
+        location.setTime(1476879812345L);
+        CraftStatePacket craftStatePacket = new CraftStatePacket(
+                new CraftStatePacket.AngularVelocity(0.0213f, -0.1047f, 0.0031f),
+                new CraftStatePacket.BarometricPressure(994.73f),
+                new CraftStatePacket.LinearAcceleration(0.312f, -1.207f, 0.088f),
+                new CraftStatePacket.MagneticField(21.44f, -4.87f, -41.26f),
+                new CraftStatePacket.Orientation(0.70412, -0.06231, 0.70391, 0.06158), location);
+        craftStatePacket.setPropagatedPosition(new CraftStatePacket.PropagatedPosition(
+                47.620511, -122.349391, -412.7f, 88.3f, -17.1f, 1.9f, 5.2f, 0.43f));
+        craftStatePacket.setVerticalState(new CraftStatePacket.VerticalState(
+                121.7f, 1.35f, -2.8f));
+        return craftStatePacket.toIntent();
+    }
+
+    //Returns an Arduino input Intent with the servo values of a control step
+    private static Intent createServoValuesIntent() {
+        ArduinoPacket arduinoPacket = new ArduinoPacket();
+        arduinoPacket.setServoValue(ArduinoPacket.ServoType.AILERON, 97);
+        arduinoPacket.setServoValue(ArduinoPacket.ServoType.ELEVATOR, 84);
+        arduinoPacket.setServoValue(ArduinoPacket.ServoType.RUDDER, 90);
+        arduinoPacket.setServoValue(ArduinoPacket.ServoType.THROTTLE, 135);
+        return arduinoPacket.toIntent(ArduinoPacket.INTENT_ACTION_INPUT);
+    }
+
+    //Decodes a JSON payload as NetworkService does
+    private static Intent decodeJson(String intentAction, byte[] payload) throws JSONException {
+        Intent intent = new Intent(intentAction);
+        intent.putExtras(new BundleableJsonObject(new String(payload)).toBundle());
+        return intent;
+    }
+
+    //Encodes an Intent into a JSON payload as NetworkService does
+    private static byte[] encodeJson(Intent intent) {
+        Bundle bundle = intent.getExtras();
+        return new BundleableJsonObject(bundle).toString().getBytes();
+    }
+}
@@ -0,0 +1,60 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the token buckets and the rate adaptation of AdaptiveRateLimiter
+ */
+public class AdaptiveRateLimiterTest {
+    private static final String TOPIC = "telemetry";
+    private static final double MAX_RATE = 10;
+    private static final double MIN_RATE = 1;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void tryAcquire_dropsMessagesOverTheRate() throws Exception {
+        AdaptiveRateLimiter rateLimiter = createRateLimiter();
+        long now = NANOS_PER_SECOND;
+        //A burst of two messages is allowed, then messages wait for the next token
+        assertTrue(rateLimiter.tryAcquire(TOPIC, now));
+        assertTrue(rateLimiter.tryAcquire(TOPIC, now));
+        assertFalse(rateLimiter.tryAcquire(TOPIC, now));
+        assertTrue(rateLimiter.tryAcquire(TOPIC, now + NANOS_PER_SECOND / 10));
+        assertTrue(rateLimiter.tryAcquire("unlimited", now));
+    }
+
+    @Test
+    public void update_adaptsRatesToCongestion() throws Exception {
+        AdaptiveRateLimiter rateLimiter = createRateLimiter();
+        rateLimiter.update(true);
+        assertEquals(MAX_RATE / 2, rateLimiter.getRate(TOPIC), DELTA);
+        for (int i = 0; i < 10; i++) rateLimiter.update(true);
+        assertEquals(MIN_RATE, rateLimiter.getRate(TOPIC), DELTA);
+        rateLimiter.update(false);
+        assertEquals(MIN_RATE + MAX_RATE / 10, rateLimiter.getRate(TOPIC), DELTA);
+        for (int i = 0; i < 20; i++) rateLimiter.update(false);
+        assertEquals(MAX_RATE, rateLimiter.getRate(TOPIC), DELTA);
+    }
+
+    @Test
+    public void addTopic_keepsTheAdaptedRate() throws Exception {
+        AdaptiveRateLimiter rateLimiter = createRateLimiter();
+        rateLimiter.update(true);
+        rateLimiter.addTopic(TOPIC, MAX_RATE, MIN_RATE);
+        assertEquals(MAX_RATE / 2, rateLimiter.getRate(TOPIC), DELTA);
+        assertEquals(1, rateLimiter.getTopics().size());
+        //New limits apply to the current rate
+        rateLimiter.addTopic(TOPIC, 2, MIN_RATE);
+        assertEquals(2, rateLimiter.getRate(TOPIC), DELTA);
+    }
+
+    //Returns a rate limiter with one limited topic
+    private static AdaptiveRateLimiter createRateLimiter() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter();
+        rateLimiter.addTopic(TOPIC, MAX_RATE, MIN_RATE);
+        return rateLimiter;
+    }
+}
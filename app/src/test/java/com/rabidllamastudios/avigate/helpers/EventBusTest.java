@@ -0,0 +1,136 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the delivery order and queue capacities of EventBus subscriptions, with an executor that
+ * only runs its tasks when the test says so (a subscriber that falls behind)
+ */
+public class EventBusTest {
+    private static final EventBus.Topic<Integer> TOPIC =
+            new EventBus.Topic<>("test.TOPIC", Integer.class);
+
+    @Test
+    public void subscribe_deliversEveryEventInOrderByDefault() throws Exception {
+        EventBus eventBus = new EventBus();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        EventBus.Subscription<Integer> subscription =
+                eventBus.subscribe(TOPIC, executor, subscriber);
+        for (int i = 0; i < 100; i++) eventBus.publish(TOPIC, i);
+        assertEquals(0, subscriber.mEvents.size());
+        //One drain task is scheduled for all queued events
+        assertEquals(1, executor.runAll());
+        assertEquals(100, subscriber.mEvents.size());
+        assertEquals(99, (int) subscriber.mEvents.get(99));
+        assertEquals(0, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void subscribe_latestOnlyDeliversTheLatestUndeliveredEvent() throws Exception {
+        EventBus eventBus = new EventBus();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        EventBus.Subscription<Integer> subscription =
+                eventBus.subscribe(TOPIC, executor, subscriber, EventBus.LATEST_ONLY);
+        for (int i = 0; i < 100; i++) eventBus.publish(TOPIC, i);
+        executor.runAll();
+        assertEquals(Arrays.asList(99), subscriber.mEvents);
+        assertEquals(99, subscription.getDroppedCount());
+        //A subscriber that keeps up receives every event
+        eventBus.publish(TOPIC, 100);
+        executor.runAll();
+        eventBus.publish(TOPIC, 101);
+        executor.runAll();
+        assertEquals(Arrays.asList(99, 100, 101), subscriber.mEvents);
+        assertEquals(99, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void subscribe_boundedQueueDropsTheOldestEvents() throws Exception {
+        EventBus eventBus = new EventBus();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        EventBus.Subscription<Integer> subscription =
+                eventBus.subscribe(TOPIC, executor, subscriber, 3);
+        for (int i = 0; i < 10; i++) eventBus.publish(TOPIC, i);
+        executor.runAll();
+        assertEquals(Arrays.asList(7, 8, 9), subscriber.mEvents);
+        assertEquals(7, subscription.getDroppedCount());
+        //Events are dropped, but never lost from a queue within its capacity
+        for (int i = 10; i < 13; i++) eventBus.publish(TOPIC, i);
+        executor.runAll();
+        assertEquals(Arrays.asList(7, 8, 9, 10, 11, 12), subscriber.mEvents);
+    }
+
+    @Test
+    public void subscribe_immediateIsNeverQueued() throws Exception {
+        EventBus eventBus = new EventBus();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        EventBus.Subscription<Integer> subscription =
+                eventBus.subscribe(TOPIC, EventBus.IMMEDIATE, subscriber, EventBus.LATEST_ONLY);
+        for (int i = 0; i < 5; i++) eventBus.publish(TOPIC, i);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), subscriber.mEvents);
+        assertEquals(0, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void unsubscribe_dropsUndeliveredEvents() throws Exception {
+        EventBus eventBus = new EventBus();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        EventBus.Subscription<Integer> subscription =
+                eventBus.subscribe(TOPIC, executor, subscriber, EventBus.LATEST_ONLY);
+        eventBus.publish(TOPIC, 1);
+        eventBus.unsubscribe(subscription);
+        eventBus.publish(TOPIC, 2);
+        executor.runAll();
+        assertEquals(0, subscriber.mEvents.size());
+        assertFalse(eventBus.hasSubscribers(TOPIC));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void subscribe_rejectsQueueWithoutCapacity() throws Exception {
+        new EventBus().subscribe(TOPIC, new ManualExecutor(), new RecordingSubscriber(), 0);
+    }
+
+    //Queues tasks until runAll is called
+    private static class ManualExecutor implements Executor {
+        private final Queue<Runnable> mTasks = new LinkedList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            mTasks.add(runnable);
+        }
+
+        //Runs the queued tasks (and any they schedule) and returns the number of tasks run
+        private int runAll() {
+            int count = 0;
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+                count++;
+            }
+            return count;
+        }
+    }
+
+    //Records the events it receives
+    private static class RecordingSubscriber implements EventBus.Subscriber<Integer> {
+        private final List<Integer> mEvents = new ArrayList<>();
+
+        @Override
+        public void onEvent(Integer event) {
+            mEvents.add(event);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.PidGains;
+import com.rabidllamastudios.avigate.simulation.FixedWingModel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Flies altitude hold with the default gains of FlightController on the FixedWingModel, as
+ * FlightControlService drives it: outputs in servo degrees over a 0 to 180 degree servo range,
+ * climb rate and pitch limited to 3 m/s and 15 degrees, and the throttle held at trim plus the
+ * climb rate feedforward (standing in for the speed loop). Roll hold is flown the same way, with
+ * the elevator and throttle held at trim.
+ */
+public class FlightControllerTest {
+    private static final double DT = 0.02;
+    private static final double CRUISE_AIRSPEED = 15;
+    private static final double INITIAL_ALTITUDE = 100;
+    private static final double SERVO_HALF_RANGE = 90;
+    private static final double THROTTLE_RANGE = 180;
+
+    @Test
+    public void altitudeHold_settlesOnClimbStep() throws Exception {
+        AltitudeStep altitudeStep = flyAltitudeStep(20, FlightController.DEFAULT_CLIMB_THROTTLE);
+        assertFalse(altitudeStep.mHasCrashed);
+        assertTrue(altitudeStep.mSettlingTime < 15);
+        assertTrue(altitudeStep.mOvershoot < 1.5);
+        assertTrue(altitudeStep.mMinAirspeed > CRUISE_AIRSPEED - 2);
+    }
+
+    @Test
+    public void altitudeHold_settlesOnDescentStep() throws Exception {
+        AltitudeStep altitudeStep = flyAltitudeStep(-20, FlightController.DEFAULT_CLIMB_THROTTLE);
+        assertFalse(altitudeStep.mHasCrashed);
+        assertTrue(altitudeStep.mSettlingTime < 25);
+        assertTrue(altitudeStep.mOvershoot < 1.5);
+    }
+
+    @Test
+    public void climbThrottle_holdsAirspeedInClimb() throws Exception {
+        AltitudeStep withoutFeedforward = flyAltitudeStep(20, 0);
+        AltitudeStep withFeedforward = flyAltitudeStep(20,
+                FlightController.DEFAULT_CLIMB_THROTTLE);
+        //Without the feedforward, the climb is paid for with airspeed and takes far longer
+        assertTrue(withoutFeedforward.mMinAirspeed < CRUISE_AIRSPEED - 4);
+        assertTrue(withFeedforward.mMinAirspeed > withoutFeedforward.mMinAirspeed + 2);
+        assertTrue(withFeedforward.mSettlingTime < withoutFeedforward.mSettlingTime / 2);
+    }
+
+    @Test
+    public void rollHold_levelsTheWingsFromABank() throws Exception {
+        RollStep rollStep = flyRollStep(30, 0, FlightController.DEFAULT_ROLL_GAINS);
+        assertFalse(rollStep.mHasCrashed);
+        assertTrue(rollStep.mSettlingTime < 1);
+        assertTrue(rollStep.mOvershoot < 0.5);
+        //The full aileron throw is used at a 30 degree error, the bank limit of navigation
+        assertEquals(SERVO_HALF_RANGE, rollStep.mMaxAileron, 1e-6);
+    }
+
+    @Test
+    public void rollHold_settlesOnBankStep() throws Exception {
+        //The bank angles commanded by WaypointNavigator in turns
+        for (double targetRoll : new double[] {20, -20}) {
+            RollStep rollStep = flyRollStep(0, targetRoll, FlightController.DEFAULT_ROLL_GAINS);
+            assertFalse(rollStep.mHasCrashed);
+            assertTrue(rollStep.mSettlingTime < 1);
+            assertTrue(rollStep.mOvershoot < 0.5);
+        }
+    }
+
+    @Test
+    public void defaultRollGains_leaveMarginToOscillation() throws Exception {
+        PidGains defaultGains = FlightController.DEFAULT_ROLL_GAINS;
+        RollStep defaultStep = flyRollStep(0, 5, defaultGains);
+        //Two and a half times the default gains barely settle within the 10 seconds
+        PidGains highGains = new PidGains(2.5 * defaultGains.getProportionalGain(), 0,
+                2.5 * defaultGains.getDerivativeGain(), 0);
+        RollStep highStep = flyRollStep(0, 5, highGains);
+        assertTrue(defaultStep.mSettlingTime < 0.5);
+        assertTrue(highStep.mSettlingTime > 5);
+        assertTrue(highStep.mOvershoot > 20 * defaultStep.mOvershoot);
+    }
+
+    //Flies roll hold with the input gains for 10 seconds, from trimmed flight at the input bank
+    //angle to the input roll setpoint, with the elevator and throttle held at trim
+    private static RollStep flyRollStep(double initialRoll, double targetRoll,
+                                        PidGains rollGains) {
+        FixedWingModel fixedWingModel = new FixedWingModel();
+        fixedWingModel.trim(CRUISE_AIRSPEED, INITIAL_ALTITUDE, 0);
+        fixedWingModel.setAttitude(initialRoll, fixedWingModel.getPitch(), 0);
+        double trimElevator = fixedWingModel.getElevator();
+        FlightController flightController = new FlightController();
+        flightController.setGains(ArduinoPacket.ControlAxis.ROLL, rollGains);
+        flightController.setOutputLimits(ArduinoPacket.ControlAxis.ROLL, -SERVO_HALF_RANGE,
+                SERVO_HALF_RANGE);
+        flightController.setSetpoint(ArduinoPacket.ControlAxis.ROLL, targetRoll);
+        FlightController.State state = new FlightController.State();
+        RollStep rollStep = new RollStep();
+        double change = targetRoll - initialRoll;
+        double settledSince = -1;
+        for (int i = 1; i <= 500; i++) {
+            state.setAttitude(fixedWingModel.getRoll(), fixedWingModel.getPitch(),
+                    fixedWingModel.getRollRate(), fixedWingModel.getPitchRate(),
+                    fixedWingModel.getYawRate());
+            flightController.update(state, DT);
+            double aileron = flightController.getOutput(ArduinoPacket.ControlAxis.ROLL);
+            rollStep.mMaxAileron = Math.max(rollStep.mMaxAileron, Math.abs(aileron));
+            fixedWingModel.setControls(aileron / SERVO_HALF_RANGE, trimElevator, 0,
+                    fixedWingModel.getTrimThrottle());
+            fixedWingModel.step(DT);
+            double error = fixedWingModel.getRoll() - targetRoll;
+            rollStep.mOvershoot = Math.max(rollStep.mOvershoot, Math.signum(change) * error);
+            if (Math.abs(error) > 2) {
+                settledSince = -1;
+            } else if (settledSince < 0) {
+                settledSince = i * DT;
+            }
+        }
+        rollStep.mSettlingTime = settledSince < 0 ? Double.POSITIVE_INFINITY : settledSince;
+        rollStep.mHasCrashed = fixedWingModel.hasCrashed();
+        return rollStep;
+    }
+
+    //Flies altitude hold from trimmed level flight to the input altitude change for 60 seconds
+    private static AltitudeStep flyAltitudeStep(double altitudeChange, double climbThrottle) {
+        FixedWingModel fixedWingModel = new FixedWingModel();
+        fixedWingModel.trim(CRUISE_AIRSPEED, INITIAL_ALTITUDE, 0);
+        FlightController flightController = new FlightController();
+        flightController.setGains(ArduinoPacket.ControlAxis.ROLL,
+                FlightController.DEFAULT_ROLL_GAINS);
+        flightController.setGains(ArduinoPacket.ControlAxis.PITCH,
+                FlightController.DEFAULT_PITCH_GAINS);
+        flightController.setGains(ArduinoPacket.ControlAxis.ALTITUDE,
+                FlightController.DEFAULT_ALTITUDE_GAINS);
+        flightController.setGains(ArduinoPacket.ControlAxis.CLIMB_RATE,
+                FlightController.DEFAULT_CLIMB_RATE_GAINS);
+        flightController.setOutputLimits(ArduinoPacket.ControlAxis.ROLL, -SERVO_HALF_RANGE,
+                SERVO_HALF_RANGE);
+        flightController.setOutputLimits(ArduinoPacket.ControlAxis.PITCH, -SERVO_HALF_RANGE,
+                SERVO_HALF_RANGE);
+        flightController.setOutputLimits(ArduinoPacket.ControlAxis.ALTITUDE, -3, 3);
+        flightController.setOutputLimits(ArduinoPacket.ControlAxis.CLIMB_RATE, -15, 15);
+        double targetAltitude = INITIAL_ALTITUDE + altitudeChange;
+        flightController.setSetpoint(ArduinoPacket.ControlAxis.ALTITUDE, targetAltitude);
+        FlightController.State state = new FlightController.State();
+        AltitudeStep altitudeStep = new AltitudeStep();
+        double settledSince = -1;
+        for (int i = 1; i <= 3000; i++) {
+            state.setAttitude(fixedWingModel.getRoll(), fixedWingModel.getPitch(),
+                    fixedWingModel.getRollRate(), fixedWingModel.getPitchRate(),
+                    fixedWingModel.getYawRate());
+            state.setAltitude(fixedWingModel.getAltitude(), fixedWingModel.getClimbRate());
+            flightController.update(state, DT);
+            double throttle = fixedWingModel.getTrimThrottle() + climbThrottle
+                    * flightController.getSetpoint(ArduinoPacket.ControlAxis.CLIMB_RATE)
+                    / THROTTLE_RANGE;
+            fixedWingModel.setControls(
+                    flightController.getOutput(ArduinoPacket.ControlAxis.ROLL) / SERVO_HALF_RANGE,
+                    flightController.getOutput(ArduinoPacket.ControlAxis.PITCH) / SERVO_HALF_RANGE,
+                    0, throttle);
+            fixedWingModel.step(DT);
+            double error = fixedWingModel.getAltitude() - targetAltitude;
+            altitudeStep.mOvershoot = Math.max(altitudeStep.mOvershoot,
+                    Math.signum(altitudeChange) * error);
+            altitudeStep.mMinAirspeed = Math.min(altitudeStep.mMinAirspeed,
+                    fixedWingModel.getAirspeed());
+            if (Math.abs(error) > 1) {
+                settledSince = -1;
+            } else if (settledSince < 0) {
+                settledSince = i * DT;
+            }
+        }
+        altitudeStep.mSettlingTime = settledSince < 0 ? Double.POSITIVE_INFINITY : settledSince;
+        altitudeStep.mHasCrashed = fixedWingModel.hasCrashed();
+        return altitudeStep;
+    }
+
+    //Results of an altitude step: the time after which the altitude stayed within 1 m of the
+    //target, the overshoot past the target in meters and the minimum airspeed in m/s
+    private static class AltitudeStep {
+        private double mSettlingTime;
+        private double mOvershoot = 0;
+        private double mMinAirspeed = Double.POSITIVE_INFINITY;
+        private boolean mHasCrashed;
+    }
+
+    //Results of a roll step: the time after which the roll stayed within 2 degrees of the target,
+    //the overshoot past the target in degrees and the maximum aileron output in servo degrees
+    private static class RollStep {
+        private double mSettlingTime;
+        private double mOvershoot = 0;
+        private double mMaxAileron = 0;
+        private boolean mHasCrashed;
+    }
+}
@@ -0,0 +1,68 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the RTT, loss and restart handling of HeartbeatMonitor, with two monitors as the peers
+ */
+public class HeartbeatMonitorTest {
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void onHeartbeat_measuresRoundTripTimeFromEcho() throws Exception {
+        HeartbeatMonitor controller = new HeartbeatMonitor();
+        HeartbeatMonitor craft = new HeartbeatMonitor();
+        //10 ms each way, and the craft holds the echoed heartbeat for 5 ms
+        craft.onHeartbeat(controller.createHeartbeat(0), millis(10));
+        controller.onHeartbeat(craft.createHeartbeat(millis(15)), millis(25));
+        assertEquals(20, controller.getRoundTripTimePercentileMillis(50), DELTA);
+        assertEquals(-1, craft.getRoundTripTimePercentileMillis(50), DELTA);
+    }
+
+    @Test
+    public void getLossRatio_countsMissingSequences() throws Exception {
+        HeartbeatMonitor controller = new HeartbeatMonitor();
+        HeartbeatMonitor craft = new HeartbeatMonitor();
+        byte[][] heartbeats = new byte[4][];
+        for (int i = 0; i < heartbeats.length; i++) {
+            heartbeats[i] = craft.createHeartbeat(millis(100 * i));
+        }
+        controller.onHeartbeat(heartbeats[0], millis(10));
+        controller.onHeartbeat(heartbeats[1], millis(110));
+        controller.onHeartbeat(heartbeats[3], millis(310));
+        assertEquals(0.25, controller.getLossRatio(), DELTA);
+        //A late heartbeat still counts as received
+        controller.onHeartbeat(heartbeats[2], millis(320));
+        assertEquals(0, controller.getLossRatio(), DELTA);
+        assertEquals(10, controller.getLastHeardAgeMillis(millis(320)), DELTA);
+    }
+
+    @Test
+    public void onHeartbeat_startsOverWhenThePeerRestarts() throws Exception {
+        HeartbeatMonitor controller = new HeartbeatMonitor();
+        HeartbeatMonitor craft = new HeartbeatMonitor();
+        for (int i = 0; i < 10; i++) {
+            craft.onHeartbeat(controller.createHeartbeat(millis(100 * i)), millis(100 * i + 5));
+            byte[] heartbeat = craft.createHeartbeat(millis(100 * i + 5));
+            if (i != 5) controller.onHeartbeat(heartbeat, millis(100 * i + 10));
+        }
+        assertTrue(controller.getLossRatio() > 0);
+        assertTrue(controller.getRoundTripTimePercentileMillis(50) > 0);
+        //The restarted craft sends sequences the controller has already received
+        HeartbeatMonitor restartedCraft = new HeartbeatMonitor();
+        controller.onHeartbeat(restartedCraft.createHeartbeat(0), millis(2000));
+        controller.onHeartbeat(restartedCraft.createHeartbeat(millis(100)), millis(2100));
+        assertEquals(0, controller.getLossRatio(), DELTA);
+        assertEquals(-1, controller.getRoundTripTimePercentileMillis(50), DELTA);
+        assertEquals(0, controller.getJitterMillis(), DELTA);
+        assertEquals(0, controller.getLastHeardAgeMillis(millis(2100)), DELTA);
+    }
+
+    //Returns the input time in ms as ns
+    private static long millis(long millis) {
+        return millis * NANOS_PER_MILLI;
+    }
+}
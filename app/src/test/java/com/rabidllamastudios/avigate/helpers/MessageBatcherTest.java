@@ -0,0 +1,116 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the batch window, size threshold and frame format of MessageBatcher. The batch window is
+ * timed on the main Looper, so it runs with Robolectric.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE)
+public class MessageBatcherTest {
+    private static final long BATCH_WINDOW = 20;
+    private static final int SIZE_THRESHOLD = 64;
+
+    @Test
+    public void add_sendsFrameAtTheEndOfTheBatchWindow() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        MessageBatcher messageBatcher = createMessageBatcher(callback);
+        messageBatcher.add("action.STATE", new byte[]{1, 2});
+        ShadowLooper.idleMainLooper(BATCH_WINDOW / 2);
+        messageBatcher.add("action.HEALTH", new byte[0]);
+        assertEquals(0, callback.mFrames.size());
+        //The window starts with the first message of the frame
+        ShadowLooper.idleMainLooper(BATCH_WINDOW / 2);
+        assertEquals(1, callback.mFrames.size());
+        assertEquals(2, (int) callback.mMessageCounts.get(0));
+        RecordingListener listener = new RecordingListener();
+        assertTrue(MessageBatcher.unbatch(callback.mFrames.get(0), listener));
+        assertEquals(Arrays.asList("action.STATE", "action.HEALTH"), listener.mIntentActions);
+        assertArrayEquals(new byte[]{1, 2}, listener.mPayloads.get(0));
+        assertArrayEquals(new byte[0], listener.mPayloads.get(1));
+    }
+
+    @Test
+    public void add_sendsFrameAtTheSizeThreshold() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        MessageBatcher messageBatcher = createMessageBatcher(callback);
+        messageBatcher.add("action.STATE", new byte[SIZE_THRESHOLD]);
+        assertEquals(1, callback.mFrames.size());
+        //Nothing is left for the batch window to send
+        ShadowLooper.idleMainLooper(BATCH_WINDOW);
+        assertEquals(1, callback.mFrames.size());
+    }
+
+    @Test
+    public void clear_discardsTheCurrentFrame() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        MessageBatcher messageBatcher = createMessageBatcher(callback);
+        messageBatcher.add("action.STATE", new byte[]{1});
+        messageBatcher.clear();
+        messageBatcher.flush();
+        ShadowLooper.idleMainLooper(BATCH_WINDOW);
+        assertEquals(0, callback.mFrames.size());
+    }
+
+    @Test
+    public void unbatch_rejectsMalformedFramesWhole() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        MessageBatcher messageBatcher = createMessageBatcher(callback);
+        messageBatcher.add("action.STATE", new byte[]{1, 2, 3});
+        messageBatcher.add("action.HEALTH", new byte[]{4});
+        messageBatcher.flush();
+        byte[] frame = callback.mFrames.get(0);
+        assertTrue(MessageBatcher.isFrame(frame));
+        RecordingListener listener = new RecordingListener();
+        assertFalse(MessageBatcher.unbatch(Arrays.copyOf(frame, frame.length - 1), listener));
+        byte[] newerFrame = frame.clone();
+        newerFrame[1]++;
+        assertFalse(MessageBatcher.unbatch(newerFrame, listener));
+        assertFalse(MessageBatcher.unbatch("{}".getBytes(), listener));
+        assertEquals(0, listener.mIntentActions.size());
+    }
+
+    //Records the frames sent and their message counts
+    private static class RecordingCallback implements MessageBatcher.Callback {
+        private final List<byte[]> mFrames = new ArrayList<>();
+        private final List<Integer> mMessageCounts = new ArrayList<>();
+
+        @Override
+        public void onFrameReady(byte[] frame, int messageCount) {
+            mFrames.add(frame);
+            mMessageCounts.add(messageCount);
+        }
+    }
+
+    //Records the messages of a frame
+    private static class RecordingListener implements MessageBatcher.MessageListener {
+        private final List<String> mIntentActions = new ArrayList<>();
+        private final List<byte[]> mPayloads = new ArrayList<>();
+
+        @Override
+        public void onMessage(String intentAction, byte[] payload) {
+            mIntentActions.add(intentAction);
+            mPayloads.add(payload);
+        }
+    }
+
+    //Returns a MessageBatcher timed on the main Looper
+    private static MessageBatcher createMessageBatcher(MessageBatcher.Callback callback) {
+        return new MessageBatcher(new Handler(Looper.getMainLooper()), BATCH_WINDOW,
+                SIZE_THRESHOLD, callback);
+    }
+}
@@ -0,0 +1,66 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the routes of MessageRouter
+ */
+public class MessageRouterTest {
+    private static final String STATE_TOPIC = "CONTROLLER/action.STATE";
+    private static final String HEARTBEAT_TOPIC = "CONTROLLER/heartbeat";
+
+    @Test
+    public void route_passesMessagesToTheHandlerOfTheirKey() throws Exception {
+        MessageRouter messageRouter = new MessageRouter();
+        RecordingHandler stateHandler = new RecordingHandler();
+        RecordingHandler heartbeatHandler = new RecordingHandler();
+        messageRouter.put(STATE_TOPIC, stateHandler);
+        messageRouter.put(HEARTBEAT_TOPIC, heartbeatHandler);
+        byte[] payload = {1, 2};
+        //A new key String per message, as the MQTT client delivers it
+        assertTrue(messageRouter.route(new String(STATE_TOPIC), payload));
+        assertEquals(1, stateHandler.mPayloads.size());
+        assertSame(payload, stateHandler.mPayloads.get(0));
+        assertEquals(0, heartbeatHandler.mPayloads.size());
+    }
+
+    @Test
+    public void route_rejectsKeysWithoutRoute() throws Exception {
+        MessageRouter messageRouter = new MessageRouter();
+        RecordingHandler stateHandler = new RecordingHandler();
+        messageRouter.put(STATE_TOPIC, stateHandler);
+        //Keys are matched whole, not by their last segment
+        assertFalse(messageRouter.route("CRAFT/action.STATE", new byte[0]));
+        assertFalse(messageRouter.route("action.STATE", new byte[0]));
+        assertEquals(0, stateHandler.mPayloads.size());
+    }
+
+    @Test
+    public void put_replacesTheHandlerAndClearRemovesAll() throws Exception {
+        MessageRouter messageRouter = new MessageRouter();
+        RecordingHandler firstHandler = new RecordingHandler();
+        RecordingHandler secondHandler = new RecordingHandler();
+        messageRouter.put(STATE_TOPIC, firstHandler);
+        messageRouter.put(STATE_TOPIC, secondHandler);
+        assertTrue(messageRouter.route(STATE_TOPIC, new byte[0]));
+        assertEquals(0, firstHandler.mPayloads.size());
+        assertEquals(1, secondHandler.mPayloads.size());
+        messageRouter.clear();
+        assertFalse(messageRouter.route(STATE_TOPIC, new byte[0]));
+    }
+
+    //Records the payloads routed to it
+    private static class RecordingHandler implements MessageRouter.MessageHandler {
+        private final List<byte[]> mPayloads = new ArrayList<>();
+
+        @Override
+        public void onMessage(byte[] payload) {
+            mPayloads.add(payload);
+        }
+    }
+}
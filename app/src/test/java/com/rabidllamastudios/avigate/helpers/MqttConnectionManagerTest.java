@@ -0,0 +1,51 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the reconnect backoff of MqttConnectionManager
+ */
+public class MqttConnectionManagerTest {
+    //RECONNECT_DELAY_MIN and RECONNECT_DELAY_MAX of MqttConnectionManager, in ms
+    private static final int DELAY_MIN = 500;
+    private static final int DELAY_MAX = 30000;
+
+    @Test
+    public void getReconnectDelay_doublesUpToTheLimit() throws Exception {
+        int[] expectedDelays = {500, 1000, 2000, 4000, 8000, 16000, 30000, 30000};
+        for (int i = 0; i < expectedDelays.length; i++) {
+            assertEquals(expectedDelays[i], MqttConnectionManager.getReconnectDelay(i,
+                    createExtremeRandom(true)));
+            assertEquals(expectedDelays[i] / 2, MqttConnectionManager.getReconnectDelay(i,
+                    createExtremeRandom(false)));
+        }
+    }
+
+    @Test
+    public void getReconnectDelay_staysWithinTheLimitsForManyFailures() throws Exception {
+        Random random = new Random(42);
+        int[] failedAttemptCounts = {0, 15, 16, 31, 32, 1000, Integer.MAX_VALUE};
+        for (int failedAttemptCount : failedAttemptCounts) {
+            for (int i = 0; i < 100; i++) {
+                int delay = MqttConnectionManager.getReconnectDelay(failedAttemptCount, random);
+                assertTrue(delay >= DELAY_MIN / 2);
+                assertTrue(delay <= DELAY_MAX);
+                if (failedAttemptCount > 15) assertTrue(delay >= DELAY_MAX / 2);
+            }
+        }
+    }
+
+    //Returns a Random whose nextInt(bound) always returns the largest value (or 0 if not largest)
+    private static Random createExtremeRandom(final boolean largest) {
+        return new Random() {
+            @Override
+            public int nextInt(int bound) {
+                return largest ? bound - 1 : 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,121 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of PidController: the response of each term, integrator clamping, anti-windup,
+ * output and slew rate limits, and reset.
+ */
+public class PidControllerTest {
+    private static final double DELTA = 1e-9;
+    private static final double DT = 0.02;
+
+    @Test
+    public void proportional_isGainTimesError() throws Exception {
+        PidController pidController = new PidController(2, 0, 0);
+        assertEquals(6, pidController.update(5, 2, DT), DELTA);
+        assertEquals(-4, pidController.update(0, 2, DT), DELTA);
+    }
+
+    @Test
+    public void integral_accumulatesErrorOverTime() throws Exception {
+        PidController pidController = new PidController(0, 3, 0);
+        //One second of a constant error of 1 integrates to the integral gain
+        for (int i = 0; i < 50; i++) {
+            pidController.update(1, 0, DT);
+        }
+        assertEquals(3, pidController.getIntegrator(), 1e-6);
+        assertEquals(3, pidController.getOutput(), 1e-6);
+    }
+
+    @Test
+    public void derivative_opposesMeasurementRate() throws Exception {
+        PidController pidController = new PidController(0, 0, 0.5);
+        //The first update has no previous measurement, so no rate
+        assertEquals(0, pidController.update(0, 0, DT), DELTA);
+        //The measurement rises by 0.1 in 0.02 s: 5 per second
+        assertEquals(-2.5, pidController.update(0, 0.1, DT), DELTA);
+        //A setpoint step alone does not move the derivative term
+        assertEquals(0, pidController.update(10, 0.1, DT), DELTA);
+    }
+
+    @Test
+    public void derivative_usesMeasuredRate() throws Exception {
+        PidController pidController = new PidController(0, 0, 2);
+        assertEquals(-1.5, pidController.update(0, 0, 0.75, DT), DELTA);
+    }
+
+    @Test
+    public void integrator_isClampedToLimit() throws Exception {
+        PidController pidController = new PidController(0, 10, 0);
+        pidController.setIntegratorLimit(1.5);
+        for (int i = 0; i < 500; i++) {
+            pidController.update(1, 0, DT);
+        }
+        assertEquals(1.5, pidController.getIntegrator(), DELTA);
+        for (int i = 0; i < 500; i++) {
+            pidController.update(-1, 0, DT);
+        }
+        assertEquals(-1.5, pidController.getIntegrator(), DELTA);
+    }
+
+    @Test
+    public void integrator_doesNotWindUpWhenSaturated() throws Exception {
+        PidController pidController = new PidController(1, 1, 0);
+        pidController.setOutputLimits(-1, 1);
+        //The proportional term alone saturates the output, so the error is not integrated
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, pidController.update(5, 0, DT), DELTA);
+        }
+        assertEquals(0, pidController.getIntegrator(), DELTA);
+        //Once the output is not saturated, the error is integrated again
+        pidController.update(-0.5, 0, DT);
+        assertTrue(pidController.getIntegrator() < 0);
+    }
+
+    @Test
+    public void output_isLimitedInRangeAndSlewRate() throws Exception {
+        PidController pidController = new PidController(1, 0, 0);
+        pidController.setOutputLimits(-10, 10);
+        pidController.setSlewRate(50);
+        //The first output is not slew rate limited
+        assertEquals(0, pidController.update(0, 0, DT), DELTA);
+        //At most 50 per second: 1 per update
+        assertEquals(1, pidController.update(8, 0, DT), DELTA);
+        assertEquals(2, pidController.update(8, 0, DT), DELTA);
+        for (int i = 0; i < 20; i++) {
+            pidController.update(100, 0, DT);
+        }
+        assertEquals(10, pidController.getOutput(), DELTA);
+    }
+
+    @Test
+    public void nonPositiveTimeStep_returnsPreviousOutput() throws Exception {
+        PidController pidController = new PidController(1, 1, 0);
+        double output = pidController.update(2, 0, DT);
+        assertEquals(output, pidController.update(7, 0, 0), DELTA);
+        assertEquals(output, pidController.update(7, 0, -DT), DELTA);
+    }
+
+    @Test
+    public void reset_clearsState() throws Exception {
+        PidController pidController = new PidController(0, 1, 1);
+        pidController.setSlewRate(1);
+        for (int i = 0; i < 50; i++) {
+            pidController.update(1, i * 0.01, DT);
+        }
+        assertNotEquals(0, pidController.getIntegrator(), DELTA);
+        pidController.reset();
+        assertEquals(0, pidController.getIntegrator(), DELTA);
+        assertEquals(0, pidController.getOutput(), DELTA);
+        //After a reset, the first update has no derivative kick and no slew rate limit
+        assertEquals(-99 * DT, pidController.update(1, 100, DT), DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputLimits_rejectsInvertedRange() throws Exception {
+        new PidController(1, 0, 0).setOutputLimits(1, -1);
+    }
+}
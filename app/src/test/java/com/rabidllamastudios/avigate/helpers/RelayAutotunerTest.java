@@ -0,0 +1,114 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.PidGains;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ultimate gain and period estimated by RelayAutotuner on a plant with known values,
+ * its abort paths, and the tuning rules
+ */
+public class RelayAutotunerTest {
+    private static final double DELTA = 1e-9;
+    private static final double DT = 0.001;
+    //Three identical first order lags: the phase is -180 degrees where each lag contributes 60,
+    //at w = sqrt(3) / tau, where the gain is 1/8. So Ku = 8 and Pu = 2 * pi * tau / sqrt(3).
+    private static final double TIME_CONSTANT = 0.2;
+    private static final double ULTIMATE_GAIN = 8;
+    private static final double ULTIMATE_PERIOD = 2 * Math.PI * TIME_CONSTANT / Math.sqrt(3);
+
+    @Test
+    public void update_estimatesUltimateGainAndPeriodOfKnownPlant() throws Exception {
+        double outputBias = 5;
+        RelayAutotuner relayAutotuner = new RelayAutotuner(0, outputBias, 10, 0.05, 10, 60);
+        ThirdOrderLag plant = new ThirdOrderLag();
+        double time = 0;
+        while (!relayAutotuner.isComplete() && !relayAutotuner.hasFailed() && time < 60) {
+            //The plant responds to the relay around its bias
+            double output = relayAutotuner.update(plant.mOutput, DT);
+            plant.update(output - outputBias);
+            time += DT;
+        }
+        assertTrue(relayAutotuner.isComplete());
+        assertFalse(relayAutotuner.hasFailed());
+        //Settling cycle plus the cycle window
+        assertTrue(relayAutotuner.getCycleCount() >= 5);
+        //The describing function is an approximation: a few percent off on this plant
+        assertEquals(ULTIMATE_GAIN, relayAutotuner.getUltimateGain(), 0.05 * ULTIMATE_GAIN);
+        assertEquals(ULTIMATE_PERIOD, relayAutotuner.getUltimatePeriod(),
+                0.05 * ULTIMATE_PERIOD);
+        //Once complete, the output is handed back at the bias
+        assertEquals(outputBias, relayAutotuner.update(plant.mOutput, DT), DELTA);
+    }
+
+    @Test
+    public void update_switchesRelayOutsideTheHysteresisBand() throws Exception {
+        RelayAutotuner relayAutotuner = new RelayAutotuner(10, 2, 3, 1, 20, 60);
+        //The relay starts high, and stays high within the band
+        assertEquals(5, relayAutotuner.update(10.5, DT), DELTA);
+        assertEquals(5, relayAutotuner.update(9.5, DT), DELTA);
+        //Above the band it switches low, and stays low until below the band
+        assertEquals(-1, relayAutotuner.update(11.5, DT), DELTA);
+        assertEquals(-1, relayAutotuner.update(9.5, DT), DELTA);
+        assertEquals(5, relayAutotuner.update(8.5, DT), DELTA);
+    }
+
+    @Test
+    public void update_failsAfterTimeout() throws Exception {
+        RelayAutotuner relayAutotuner = new RelayAutotuner(0, 2, 10, 1, 10, 1);
+        //The measurement never leaves the hysteresis band, so no cycle completes
+        for (int i = 0; i < 999; i++) relayAutotuner.update(0, DT);
+        assertFalse(relayAutotuner.hasFailed());
+        assertEquals(2, relayAutotuner.update(0, 2 * DT), DELTA);
+        assertTrue(relayAutotuner.hasFailed());
+        assertFalse(relayAutotuner.isComplete());
+        assertEquals(0, relayAutotuner.getUltimateGain(), DELTA);
+        assertEquals(2, relayAutotuner.update(0, DT), DELTA);
+    }
+
+    @Test
+    public void update_failsOnDeviationFromSetpoint() throws Exception {
+        RelayAutotuner relayAutotuner = new RelayAutotuner(20, 2, 10, 1, 15, 60);
+        assertEquals(-8, relayAutotuner.update(30, DT), DELTA);
+        assertFalse(relayAutotuner.hasFailed());
+        //Deviating on either side aborts the experiment and returns the bias
+        assertEquals(2, relayAutotuner.update(4, DT), DELTA);
+        assertTrue(relayAutotuner.hasFailed());
+        //A failed experiment stays failed, even back at the setpoint
+        assertEquals(2, relayAutotuner.update(20, DT), DELTA);
+        assertTrue(relayAutotuner.hasFailed());
+    }
+
+    @Test
+    public void computeGains_appliesTuningRules() throws Exception {
+        PidGains zieglerNichols = RelayAutotuner.computeGains(10, 2,
+                RelayAutotuner.TuningRule.ZIEGLER_NICHOLS, 5);
+        assertEquals(6, zieglerNichols.getProportionalGain(), DELTA);
+        assertEquals(6, zieglerNichols.getIntegralGain(), DELTA);
+        assertEquals(1.5, zieglerNichols.getDerivativeGain(), DELTA);
+        assertEquals(5, zieglerNichols.getIntegratorLimit(), DELTA);
+        PidGains tyreusLuyben = RelayAutotuner.computeGains(10, 2,
+                RelayAutotuner.TuningRule.TYREUS_LUYBEN, 5);
+        assertEquals(10 / 2.2, tyreusLuyben.getProportionalGain(), DELTA);
+        assertEquals(10 / 2.2 / 4.4, tyreusLuyben.getIntegralGain(), DELTA);
+        assertEquals(10 / 2.2 * 2 / 6.3, tyreusLuyben.getDerivativeGain(), DELTA);
+        //Tyreus-Luyben is the more conservative rule
+        assertTrue(tyreusLuyben.getProportionalGain() < zieglerNichols.getProportionalGain());
+    }
+
+    //Three identical first order lags in series with unit steady state gain, stepped with DT
+    private static class ThirdOrderLag {
+        private double mFirst = 0;
+        private double mSecond = 0;
+        private double mOutput = 0;
+
+        private void update(double input) {
+            double alpha = DT / TIME_CONSTANT;
+            mFirst += alpha * (input - mFirst);
+            mSecond += alpha * (mFirst - mSecond);
+            mOutput += alpha * (mSecond - mOutput);
+        }
+    }
+}
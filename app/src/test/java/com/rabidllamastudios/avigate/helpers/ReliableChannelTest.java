@@ -0,0 +1,112 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the reliable channel of UdpTransport (ReliableChannel) under loss, reordering and a full
+ * window, with one channel as the sender and another as the receiver
+ */
+public class ReliableChannelTest {
+
+    @Test
+    public void receive_deliversInOrderDespiteLossAndReordering() throws Exception {
+        ReliableChannel<String> receiver = new ReliableChannel<>();
+        List<String> delivered = new ArrayList<>();
+        //1 arrives before 0, 2 is lost and retransmitted after 3
+        assertTrue(receiver.receive(1, "b", delivered));
+        assertEquals(0, delivered.size());
+        assertTrue(receiver.receive(0, "a", delivered));
+        assertTrue(receiver.receive(3, "d", delivered));
+        assertEquals(Arrays.asList("a", "b"), delivered);
+        assertTrue(receiver.receive(2, "c", delivered));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), delivered);
+        //A copy of a delivered message is acknowledged again, but not delivered again
+        assertTrue(receiver.receive(1, "b", delivered));
+        assertEquals(4, delivered.size());
+    }
+
+    @Test
+    public void receive_doesNotAcknowledgeBeyondTheWindow() throws Exception {
+        ReliableChannel<String> receiver = new ReliableChannel<>();
+        List<String> delivered = new ArrayList<>();
+        assertFalse(receiver.receive(ReliableChannel.WINDOW, "late", delivered));
+        assertTrue(receiver.receive(ReliableChannel.WINDOW - 1, "last", delivered));
+        assertEquals(0, delivered.size());
+    }
+
+    @Test
+    public void send_refusesWithoutTakingASequenceWhenTheWindowIsFull() throws Exception {
+        ReliableChannel<String> sender = new ReliableChannel<>();
+        for (int i = 0; i < ReliableChannel.WINDOW; i++) assertTrue(sender.send("m" + i));
+        assertTrue(sender.isWindowFull());
+        assertFalse(sender.send("refused"));
+        assertEquals(ReliableChannel.WINDOW, sender.getNextSequence());
+        //Unacknowledged messages are kept, so the receiver never waits for a lost sequence
+        sender.acknowledge(0);
+        assertEquals(ReliableChannel.WINDOW, sender.getNextSequence());
+        assertTrue(sender.send("next"));
+        assertEquals(ReliableChannel.WINDOW, sender.getUnacknowledged().size());
+        assertEquals("m1", sender.getUnacknowledged().iterator().next());
+        List<String> unacknowledged = sender.resetSending();
+        assertEquals(ReliableChannel.WINDOW, unacknowledged.size());
+        assertEquals(0, sender.getNextSequence());
+    }
+
+    @Test
+    public void channel_deliversEverythingAcceptedOverALossyLink() throws Exception {
+        Random random = new Random(7);
+        ReliableChannel<Integer> sender = new ReliableChannel<>();
+        ReliableChannel<Integer> receiver = new ReliableChannel<>();
+        //Refused messages take no sequence, so the sequence of an accepted message is its index
+        List<Integer> accepted = new ArrayList<>();
+        Map<Integer, Integer> sequences = new HashMap<>();
+        List<Integer> delivered = new ArrayList<>();
+        int refusedCount = 0;
+        for (int round = 0; round < 2000; round++) {
+            //Every acknowledgement is lost for a while, so the window fills up
+            boolean isAckOutage = round >= 500 && round < 600;
+            for (int i = 0; i < 3; i++) {
+                int message = round * 3 + i;
+                if (sender.send(message)) {
+                    sequences.put(message, accepted.size());
+                    accepted.add(message);
+                } else {
+                    refusedCount++;
+                }
+            }
+            //Retransmit every unacknowledged message in shuffled order, losing half of the
+            //datagrams and half of the acknowledgements (all during the outage)
+            List<Integer> unacknowledged = new ArrayList<>(sender.getUnacknowledged());
+            Collections.shuffle(unacknowledged, random);
+            for (int message : unacknowledged) {
+                if (random.nextBoolean()) continue;
+                int sequence = sequences.get(message);
+                if (receiver.receive(sequence, message, delivered) && random.nextBoolean()
+                        && !isAckOutage) {
+                    sender.acknowledge(sequence);
+                }
+            }
+        }
+        assertTrue(refusedCount > 0);
+        assertEquals(accepted.subList(0, delivered.size()), delivered);
+        assertTrue(accepted.size() - delivered.size() <= ReliableChannel.WINDOW);
+        //Every message is delivered once the link recovers
+        while (!sender.getUnacknowledged().isEmpty()) {
+            for (int message : new ArrayList<>(sender.getUnacknowledged())) {
+                int sequence = sequences.get(message);
+                if (receiver.receive(sequence, message, delivered)) sender.acknowledge(sequence);
+            }
+        }
+        assertEquals(accepted, delivered);
+    }
+}
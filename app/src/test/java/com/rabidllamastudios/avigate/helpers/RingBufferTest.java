@@ -0,0 +1,126 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the claims, batches and cross-thread handoff of RingBuffer, with long[1] slots
+ */
+public class RingBufferTest {
+    private static final int CAPACITY = 4;
+
+    @Test
+    public void poll_processesPublishedSlotsInOneBatch() throws Exception {
+        RingBuffer<long[]> ringBuffer = createRingBuffer(CAPACITY);
+        publish(ringBuffer, 10);
+        publish(ringBuffer, 11);
+        publish(ringBuffer, 12);
+        assertEquals(3, ringBuffer.getPendingCount());
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(3, ringBuffer.poll(handler));
+        assertEquals(toList(10, 11, 12), handler.mValues);
+        assertEquals(toList(12), handler.mEndOfBatchValues);
+        assertEquals(0, ringBuffer.getPendingCount());
+        assertEquals(0, ringBuffer.poll(handler));
+    }
+
+    @Test
+    public void claim_dropsWhenFullUntilReleased() throws Exception {
+        RingBuffer<long[]> ringBuffer = createRingBuffer(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) publish(ringBuffer, i);
+        assertEquals(-1, ringBuffer.claim());
+        assertEquals(1, ringBuffer.getDropCount());
+        //Released slots are reused
+        assertEquals(CAPACITY, ringBuffer.skip());
+        publish(ringBuffer, 42);
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(1, ringBuffer.poll(handler));
+        assertEquals(toList(42), handler.mValues);
+        assertEquals(1, ringBuffer.getDropCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsCapacityNotPowerOfTwo() throws Exception {
+        createRingBuffer(3);
+    }
+
+    @Test
+    public void await_timesOutWithoutPublishedSlots() throws Exception {
+        RingBuffer<long[]> ringBuffer = createRingBuffer(CAPACITY);
+        assertEquals(0, ringBuffer.await(new RecordingHandler(), 1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void await_receivesSlotsOfAnotherThreadInOrder() throws Exception {
+        final int count = 100000;
+        final RingBuffer<long[]> ringBuffer = createRingBuffer(64);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) publish(ringBuffer, i);
+            }
+        });
+        producer.start();
+        final long[] lastValue = {-1};
+        final boolean[] isInOrder = {true};
+        final int[] processedCount = {0};
+        RingBuffer.Handler<long[]> handler = new RingBuffer.Handler<long[]>() {
+            @Override
+            public void onEvent(long[] slot, long sequence, boolean endOfBatch) {
+                if (slot[0] <= lastValue[0]) isInOrder[0] = false;
+                lastValue[0] = slot[0];
+                processedCount[0]++;
+            }
+        };
+        while (producer.isAlive() || ringBuffer.getPendingCount() > 0) {
+            ringBuffer.await(handler, 10, TimeUnit.MILLISECONDS);
+        }
+        producer.join();
+        ringBuffer.poll(handler);
+        //Values only go missing when they are dropped, and then they are counted
+        assertTrue(isInOrder[0]);
+        assertEquals(count, processedCount[0] + ringBuffer.getDropCount());
+    }
+
+    //Records the values of the processed slots, and those that ended a batch
+    private static class RecordingHandler implements RingBuffer.Handler<long[]> {
+        private final List<Long> mValues = new ArrayList<>();
+        private final List<Long> mEndOfBatchValues = new ArrayList<>();
+
+        @Override
+        public void onEvent(long[] slot, long sequence, boolean endOfBatch) {
+            mValues.add(slot[0]);
+            if (endOfBatch) mEndOfBatchValues.add(slot[0]);
+        }
+    }
+
+    //Returns a RingBuffer of the input capacity with long[1] slots
+    private static RingBuffer<long[]> createRingBuffer(int capacity) {
+        return new RingBuffer<>(capacity, new RingBuffer.Factory<long[]>() {
+            @Override
+            public long[] create() {
+                return new long[1];
+            }
+        });
+    }
+
+    //Claims a slot, fills it with the input value and publishes it (dropped if the ring is full)
+    private static void publish(RingBuffer<long[]> ringBuffer, long value) {
+        long sequence = ringBuffer.claim();
+        if (sequence < 0) return;
+        ringBuffer.get(sequence)[0] = value;
+        ringBuffer.publish(sequence);
+    }
+
+    //Returns the input values as a list
+    private static List<Long> toList(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long value : values) list.add(value);
+        return list;
+    }
+}
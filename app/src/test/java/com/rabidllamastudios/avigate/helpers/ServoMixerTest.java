@@ -0,0 +1,204 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.MixerChannel;
+import com.rabidllamastudios.avigate.models.ServoFrame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the mixes of ServoMixer: the unmixed default against the direct servo mapping it
+ * replaced, elevons, a V-tail, the expo lookup tables, trim and limits
+ */
+public class ServoMixerTest {
+
+    @Test
+    public void fromProfile_withoutMixesReproducesTheDirectMapping() throws Exception {
+        //Even and odd output ranges, so the integer servo center is covered
+        ArduinoPacket configArduinoPacket = new ArduinoPacket();
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.AILERON, 0, 180);
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.ELEVATOR, 10, 171);
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.RUDDER, 30, 150);
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.THROTTLE, 25, 160);
+        ServoMixer servoMixer = ServoMixer.fromProfile(configArduinoPacket);
+        for (double output = -120; output <= 120; output += 0.25) {
+            servoMixer.clearInputs();
+            servoMixer.setInput(ArduinoPacket.MixerInput.ROLL, output);
+            servoMixer.setInput(ArduinoPacket.MixerInput.PITCH, -output);
+            servoMixer.setInput(ArduinoPacket.MixerInput.YAW, output / 2);
+            servoMixer.setInput(ArduinoPacket.MixerInput.THROTTLE, output + 60);
+            servoMixer.mix();
+            assertEquals(getCenteredServoValue(configArduinoPacket,
+                    ArduinoPacket.ServoType.AILERON, output),
+                    servoMixer.getServoValue(ArduinoPacket.ServoType.AILERON));
+            assertEquals(getCenteredServoValue(configArduinoPacket,
+                    ArduinoPacket.ServoType.ELEVATOR, -output),
+                    servoMixer.getServoValue(ArduinoPacket.ServoType.ELEVATOR));
+            assertEquals(getCenteredServoValue(configArduinoPacket,
+                    ArduinoPacket.ServoType.RUDDER, output / 2),
+                    servoMixer.getServoValue(ArduinoPacket.ServoType.RUDDER));
+            assertEquals(getThrottleServoValue(configArduinoPacket, output + 60),
+                    servoMixer.getServoValue(ArduinoPacket.ServoType.THROTTLE));
+        }
+        //The cutover is not an output
+        assertFalse(servoMixer.isActive(ArduinoPacket.ServoType.CUTOVER));
+    }
+
+    @Test
+    public void mix_onlyDrivesChannelsWithAnActiveInput() throws Exception {
+        ArduinoPacket configArduinoPacket = new ArduinoPacket();
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.AILERON, 0, 180);
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.ELEVATOR, 0, 180);
+        ServoMixer servoMixer = ServoMixer.fromProfile(configArduinoPacket);
+        servoMixer.clearInputs();
+        servoMixer.setInput(ArduinoPacket.MixerInput.ROLL, 10);
+        servoMixer.mix();
+        assertTrue(servoMixer.isActive(ArduinoPacket.ServoType.AILERON));
+        assertFalse(servoMixer.isActive(ArduinoPacket.ServoType.ELEVATOR));
+        //Servos without an output range in the profile are not configured
+        assertFalse(servoMixer.isActive(ArduinoPacket.ServoType.RUDDER));
+        //Only the active channels are commanded
+        ServoOutputFilter servoOutputFilter = new ServoOutputFilter(1);
+        servoMixer.commandServoValues(servoOutputFilter);
+        assertTrue(servoOutputFilter.update(0.02));
+        ServoFrame servoFrame = new ServoFrame();
+        assertEquals(1, servoOutputFilter.writeServoValues(servoFrame));
+        assertEquals(100, servoFrame.getServoValue(ArduinoPacket.ServoType.AILERON));
+        assertFalse(servoFrame.hasServoValue(ArduinoPacket.ServoType.ELEVATOR));
+    }
+
+    @Test
+    public void fromProfile_mixesElevons() throws Exception {
+        //A flying wing: the left elevon on the aileron output, the right on the elevator output
+        ArduinoPacket configArduinoPacket = new ArduinoPacket();
+        MixerChannel leftElevon = new MixerChannel(true, 0);
+        leftElevon.setWeight(ArduinoPacket.MixerInput.ROLL, 1);
+        leftElevon.setWeight(ArduinoPacket.MixerInput.PITCH, 1);
+        MixerChannel rightElevon = new MixerChannel(true, 0);
+        rightElevon.setWeight(ArduinoPacket.MixerInput.ROLL, -1);
+        rightElevon.setWeight(ArduinoPacket.MixerInput.PITCH, 1);
+        setMixedOutput(configArduinoPacket, ArduinoPacket.ServoType.AILERON, leftElevon);
+        setMixedOutput(configArduinoPacket, ArduinoPacket.ServoType.ELEVATOR, rightElevon);
+        ServoMixer servoMixer = ServoMixer.fromProfile(configArduinoPacket);
+        mix(servoMixer, 10, 5, 0);
+        assertEquals(105, servoMixer.getServoValue(ArduinoPacket.ServoType.AILERON));
+        assertEquals(85, servoMixer.getServoValue(ArduinoPacket.ServoType.ELEVATOR));
+        //Pitch alone moves both elevons together
+        mix(servoMixer, 0, -20, 0);
+        assertEquals(70, servoMixer.getServoValue(ArduinoPacket.ServoType.AILERON));
+        assertEquals(70, servoMixer.getServoValue(ArduinoPacket.ServoType.ELEVATOR));
+    }
+
+    @Test
+    public void fromProfile_mixesVTail() throws Exception {
+        //The ruddervators on the elevator and rudder outputs
+        ArduinoPacket configArduinoPacket = new ArduinoPacket();
+        MixerChannel leftRuddervator = new MixerChannel(true, 0);
+        leftRuddervator.setWeight(ArduinoPacket.MixerInput.PITCH, 1);
+        leftRuddervator.setWeight(ArduinoPacket.MixerInput.YAW, 1);
+        MixerChannel rightRuddervator = new MixerChannel(true, 0);
+        rightRuddervator.setWeight(ArduinoPacket.MixerInput.PITCH, 1);
+        rightRuddervator.setWeight(ArduinoPacket.MixerInput.YAW, -1);
+        setMixedOutput(configArduinoPacket, ArduinoPacket.ServoType.ELEVATOR, leftRuddervator);
+        setMixedOutput(configArduinoPacket, ArduinoPacket.ServoType.RUDDER, rightRuddervator);
+        ServoMixer servoMixer = ServoMixer.fromProfile(configArduinoPacket);
+        mix(servoMixer, 0, 10, 4);
+        assertEquals(104, servoMixer.getServoValue(ArduinoPacket.ServoType.ELEVATOR));
+        assertEquals(96, servoMixer.getServoValue(ArduinoPacket.ServoType.RUDDER));
+        //Roll is not mixed onto a V-tail
+        mix(servoMixer, 30, 0, 0);
+        assertFalse(servoMixer.isActive(ArduinoPacket.ServoType.ELEVATOR));
+    }
+
+    @Test
+    public void setChannel_shapesInputWithExpoLookupTable() throws Exception {
+        double expo = 0.5;
+        ServoMixer servoMixer = new ServoMixer();
+        MixerChannel mixerChannel = new MixerChannel(true, 0, expo, MixerChannel.NO_LIMIT,
+                MixerChannel.NO_LIMIT);
+        mixerChannel.setWeight(ArduinoPacket.MixerInput.ROLL, 1);
+        servoMixer.setChannel(ArduinoPacket.ServoType.AILERON, mixerChannel, 0, 180);
+        //Half deflection falls on a table point: 90 * (0.5 * 0.5 + 0.5 * 0.125) = 28.125
+        assertEquals(118, mixRoll(servoMixer, 45));
+        assertEquals(62, mixRoll(servoMixer, -45));
+        //Between table points, the interpolation stays within a degree of the curve
+        for (double roll = -90; roll <= 90; roll += 0.5) {
+            double x = roll / 90;
+            double expected = 90 + 90 * ((1 - expo) * x + expo * x * x * x);
+            assertEquals(expected, mixRoll(servoMixer, roll), 1);
+        }
+        //Expo softens the center compared to a linear channel
+        assertTrue(mixRoll(servoMixer, 20) < 110);
+        //Inputs beyond the end of the curve are held at its end
+        assertEquals(180, mixRoll(servoMixer, 200));
+        assertEquals(0, mixRoll(servoMixer, -200));
+    }
+
+    @Test
+    public void setChannel_appliesTrimAndClampsToLimits() throws Exception {
+        ServoMixer servoMixer = new ServoMixer();
+        MixerChannel mixerChannel = new MixerChannel(true, 5, 0, 60, 200);
+        mixerChannel.setWeight(ArduinoPacket.MixerInput.ROLL, 1);
+        servoMixer.setChannel(ArduinoPacket.ServoType.AILERON, mixerChannel, 0, 180);
+        assertEquals(95, mixRoll(servoMixer, 0));
+        assertFalse(servoMixer.isSaturated(ArduinoPacket.ServoType.AILERON));
+        //The channel min applies; the channel max is beyond the servo max, which applies instead
+        assertEquals(60, mixRoll(servoMixer, -50));
+        assertTrue(servoMixer.isSaturated(ArduinoPacket.ServoType.AILERON));
+        assertEquals(180, mixRoll(servoMixer, 100));
+        assertTrue(servoMixer.isSaturated(ArduinoPacket.ServoType.AILERON));
+        //A throttle is trimmed from its min
+        MixerChannel throttleChannel = new MixerChannel(false, 10);
+        throttleChannel.setWeight(ArduinoPacket.MixerInput.THROTTLE, 1);
+        servoMixer.setChannel(ArduinoPacket.ServoType.THROTTLE, throttleChannel, 20, 160);
+        servoMixer.clearInputs();
+        servoMixer.setInput(ArduinoPacket.MixerInput.THROTTLE, 0);
+        servoMixer.mix();
+        assertEquals(30, servoMixer.getServoValue(ArduinoPacket.ServoType.THROTTLE));
+    }
+
+    //Configures the input servo with a 0 to 180 degree output range and the input mix
+    private static void setMixedOutput(ArduinoPacket configArduinoPacket,
+                                       ArduinoPacket.ServoType servoType,
+                                       MixerChannel mixerChannel) {
+        configArduinoPacket.setOutputRange(servoType, 0, 180);
+        configArduinoPacket.setMixerChannel(servoType, mixerChannel);
+    }
+
+    //Mixes the input attitude outputs
+    private static void mix(ServoMixer servoMixer, double roll, double pitch, double yaw) {
+        servoMixer.clearInputs();
+        if (roll != 0) servoMixer.setInput(ArduinoPacket.MixerInput.ROLL, roll);
+        if (pitch != 0) servoMixer.setInput(ArduinoPacket.MixerInput.PITCH, pitch);
+        if (yaw != 0) servoMixer.setInput(ArduinoPacket.MixerInput.YAW, yaw);
+        servoMixer.mix();
+    }
+
+    //Mixes the input roll output and returns the resulting aileron servo value
+    private static int mixRoll(ServoMixer servoMixer, double roll) {
+        servoMixer.clearInputs();
+        servoMixer.setInput(ArduinoPacket.MixerInput.ROLL, roll);
+        servoMixer.mix();
+        return servoMixer.getServoValue(ArduinoPacket.ServoType.AILERON);
+    }
+
+    //The direct mapping FlightControlService used before the mixer: the servo center plus the
+    //output, constrained to the output range of the servo
+    private static int getCenteredServoValue(ArduinoPacket configArduinoPacket,
+                                             ArduinoPacket.ServoType servoType, double output) {
+        int servoMin = configArduinoPacket.getOutputMin(servoType);
+        int servoMax = configArduinoPacket.getOutputMax(servoType);
+        int servoNeutral = (servoMax - servoMin) / 2 + servoMin;
+        return Math.max(servoMin, Math.min(servoMax, servoNeutral + (int) Math.round(output)));
+    }
+
+    //The direct mapping of the throttle before the mixer: the throttle min plus the output
+    private static int getThrottleServoValue(ArduinoPacket configArduinoPacket, double output) {
+        int throttleMin = configArduinoPacket.getOutputMin(ArduinoPacket.ServoType.THROTTLE);
+        int throttleMax = configArduinoPacket.getOutputMax(ArduinoPacket.ServoType.THROTTLE);
+        return Math.max(throttleMin, Math.min(throttleMax,
+                throttleMin + (int) Math.round(output)));
+    }
+}
@@ -0,0 +1,127 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.ServoFrame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the deadband, slew rate limit, keep-alive and reset of ServoOutputFilter
+ */
+public class ServoOutputFilterTest {
+    private static final ArduinoPacket.ServoType AILERON = ArduinoPacket.ServoType.AILERON;
+    private static final ArduinoPacket.ServoType ELEVATOR = ArduinoPacket.ServoType.ELEVATOR;
+    private static final double DT = 0.02;
+    //Not sent by a step
+    private static final int NOT_SENT = -1;
+
+    @Test
+    public void update_sendsFirstCommandAsIs() throws Exception {
+        ServoOutputFilter servoOutputFilter = new ServoOutputFilter(1);
+        servoOutputFilter.setChannel(AILERON, 2, 100);
+        assertEquals(150, step(servoOutputFilter, 150));
+        //Channels that are not commanded hold still and are not sent
+        assertFalse(servoOutputFilter.update(DT));
+        assertEquals(NOT_SENT, step(servoOutputFilter, 150));
+    }
+
+    @Test
+    public void update_suppressesDitherWithinTheDeadband() throws Exception {
+        ServoOutputFilter servoOutputFilter = new ServoOutputFilter(10);
+        servoOutputFilter.setChannel(AILERON, 2, Double.POSITIVE_INFINITY);
+        assertEquals(90, step(servoOutputFilter, 90));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(NOT_SENT, step(servoOutputFilter, 91 + (i % 2)));
+            assertEquals(NOT_SENT, step(servoOutputFilter, 90));
+        }
+        //A change beyond the deadband is sent at once
+        assertEquals(93, step(servoOutputFilter, 93));
+        //A change within it is sent once the channel settles on it
+        assertEquals(NOT_SENT, step(servoOutputFilter, 94));
+        assertEquals(94, step(servoOutputFilter, 94));
+        assertEquals(NOT_SENT, step(servoOutputFilter, 94));
+        assertEquals(3, servoOutputFilter.getValuesSent());
+        assertEquals(22, servoOutputFilter.getPacketsSuppressed());
+    }
+
+    @Test
+    public void update_slewsTowardsTargetAndSettlesOnIt() throws Exception {
+        ServoOutputFilter servoOutputFilter = new ServoOutputFilter(10);
+        //2 degrees per step, sent every 4 degrees
+        servoOutputFilter.setChannel(AILERON, 3, 100);
+        assertEquals(90, step(servoOutputFilter, 90));
+        int lastSent = 90;
+        for (int i = 1; i <= 15; i++) {
+            int sent = step(servoOutputFilter, 120);
+            if (i < 15) {
+                //Sent when 4 degrees from the last sent value
+                assertEquals(i % 2 == 0 ? 90 + 2 * i : NOT_SENT, sent);
+            } else {
+                //The last 2 degrees are within the deadband, but the slew does not stop short
+                assertEquals(120, sent);
+            }
+            if (sent != NOT_SENT) {
+                assertTrue(sent > lastSent);
+                lastSent = sent;
+            }
+        }
+        assertEquals(NOT_SENT, step(servoOutputFilter, 120));
+        //A new target slews back the other way
+        assertEquals(NOT_SENT, step(servoOutputFilter, 0));
+        assertEquals(116, step(servoOutputFilter, 0));
+    }
+
+    @Test
+    public void update_resendsCommandedChannelsAtTheKeepAliveInterval() throws Exception {
+        ServoOutputFilter servoOutputFilter = new ServoOutputFilter(1);
+        servoOutputFilter.setChannel(AILERON, 2, 100);
+        servoOutputFilter.command(AILERON, 90);
+        servoOutputFilter.command(ELEVATOR, 80);
+        assertTrue(servoOutputFilter.update(0.25));
+        servoOutputFilter.writeServoValues(new ServoFrame());
+        for (int i = 0; i < 3; i++) {
+            servoOutputFilter.command(AILERON, 90);
+            assertFalse(servoOutputFilter.update(0.25));
+        }
+        servoOutputFilter.command(AILERON, 90);
+        assertTrue(servoOutputFilter.update(0.25));
+        ServoFrame servoFrame = new ServoFrame();
+        assertEquals(1, servoOutputFilter.writeServoValues(servoFrame));
+        assertEquals(90, servoFrame.getServoValue(AILERON));
+        //Only channels commanded in the step are refreshed
+        assertFalse(servoFrame.hasServoValue(ELEVATOR));
+        assertEquals(1, servoOutputFilter.getKeepAlivesSent());
+        assertEquals(2, servoOutputFilter.getPacketsSent());
+        //The interval restarts with the keep-alive
+        servoOutputFilter.command(AILERON, 90);
+        assertFalse(servoOutputFilter.update(0.25));
+    }
+
+    @Test
+    public void reset_sendsEveryChannelOnItsNextCommand() throws Exception {
+        ServoOutputFilter servoOutputFilter = new ServoOutputFilter(10);
+        servoOutputFilter.setChannel(AILERON, 2, 100);
+        assertEquals(90, step(servoOutputFilter, 90));
+        assertEquals(NOT_SENT, step(servoOutputFilter, 90));
+        //The receiver takes over: a pending command is dropped
+        servoOutputFilter.command(AILERON, 100);
+        servoOutputFilter.reset();
+        assertFalse(servoOutputFilter.update(DT));
+        //When control is handed back, the unchanged value is sent again, as is
+        assertEquals(90, step(servoOutputFilter, 90));
+        servoOutputFilter.reset();
+        //A new value is sent at once, without slewing from the old one
+        assertEquals(150, step(servoOutputFilter, 150));
+    }
+
+    //Commands the aileron, updates the filter and returns the value sent (or NOT_SENT)
+    private static int step(ServoOutputFilter servoOutputFilter, int servoValue) {
+        servoOutputFilter.command(AILERON, servoValue);
+        if (!servoOutputFilter.update(DT)) return NOT_SENT;
+        ServoFrame servoFrame = new ServoFrame();
+        servoOutputFilter.writeServoValues(servoFrame);
+        return servoFrame.hasServoValue(AILERON) ? servoFrame.getServoValue(AILERON) : NOT_SENT;
+    }
+}
@@ -0,0 +1,115 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import android.content.Intent;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.ConnectionPacket;
+import com.rabidllamastudios.avigate.models.LinkQualityPacket;
+import com.rabidllamastudios.avigate.services.FlightControlService;
+import com.rabidllamastudios.avigate.services.UsbSerialService;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the round trip of each TelemetryCodec schema and the rejection of malformed payloads.
+ * Intent and Bundle are framework classes, so it runs with Robolectric.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE)
+public class TelemetryCodecTest {
+    private static final float DELTA = 1e-6f;
+
+    @Test
+    public void arduino_servoValuesRoundTripInBinary() throws Exception {
+        ArduinoPacket arduinoPacket = new ArduinoPacket();
+        arduinoPacket.setServoValue(ArduinoPacket.ServoType.AILERON, 97);
+        arduinoPacket.setServoValue(ArduinoPacket.ServoType.THROTTLE, 135);
+        byte[] payload = new TelemetryCodec().encode(
+                arduinoPacket.toIntent(ArduinoPacket.INTENT_ACTION_OUTPUT));
+        assertTrue(TelemetryCodec.isEncoded(payload));
+        assertTrue(payload.length < 10);
+        Intent intent = new TelemetryCodec().decode(payload);
+        assertEquals(ArduinoPacket.INTENT_ACTION_OUTPUT, intent.getAction());
+        ArduinoPacket decoded = new ArduinoPacket(intent.getExtras());
+        assertEquals(97, decoded.getServoValue(ArduinoPacket.ServoType.AILERON));
+        assertEquals(135, decoded.getServoValue(ArduinoPacket.ServoType.THROTTLE));
+        assertFalse(decoded.hasServoValue(ArduinoPacket.ServoType.ELEVATOR));
+    }
+
+    @Test
+    public void arduino_otherContentRoundTripsAsJson() throws Exception {
+        ArduinoPacket arduinoPacket = new ArduinoPacket("{\"status\":\"ready\"}");
+        byte[] payload = new TelemetryCodec().encode(
+                arduinoPacket.toIntent(ArduinoPacket.INTENT_ACTION_INPUT));
+        Intent intent = new TelemetryCodec().decode(payload);
+        assertEquals(ArduinoPacket.INTENT_ACTION_INPUT, intent.getAction());
+        assertTrue(new ArduinoPacket(intent.getExtras()).isStatusReady());
+    }
+
+    @Test
+    public void connection_roundTripsWithLinkMetrics() throws Exception {
+        ConnectionPacket connectionPacket =
+                new ConnectionPacket(true, 41.2f, 63.8f, 0.02f, 3.3f, 120f);
+        TelemetryCodec telemetryCodec = new TelemetryCodec();
+        ConnectionPacket decoded = new ConnectionPacket(telemetryCodec.decode(
+                telemetryCodec.encode(connectionPacket.toIntent())).getExtras());
+        assertTrue(decoded.isConnected());
+        assertEquals(41.2f, decoded.getRoundTripTimeMedian(), DELTA);
+        assertEquals(63.8f, decoded.getRoundTripTimeP95(), DELTA);
+        assertEquals(0.02f, decoded.getLossRatio(), DELTA);
+        assertEquals(3.3f, decoded.getJitter(), DELTA);
+        assertEquals(120f, decoded.getLastHeardAge(), DELTA);
+    }
+
+    @Test
+    public void linkQuality_roundTripsWithTopicRates() throws Exception {
+        LinkQualityPacket linkQualityPacket = new LinkQualityPacket("CRAFT", 35f, 4f, 0.1f, 7,
+                new String[]{"state", "health"}, new float[]{10f, 0.5f});
+        TelemetryCodec telemetryCodec = new TelemetryCodec();
+        LinkQualityPacket decoded = new LinkQualityPacket(telemetryCodec.decode(
+                telemetryCodec.encode(linkQualityPacket.toIntent())).getExtras());
+        assertEquals(35f, decoded.getRoundTripTime(), DELTA);
+        assertEquals(4f, decoded.getRoundTripVariation(), DELTA);
+        assertEquals(0.1f, decoded.getLossRatio(), DELTA);
+        assertEquals(7, decoded.getPendingDeliveryCount());
+        assertArrayEquals(new String[]{"state", "health"}, decoded.getTopics());
+        assertEquals(0.5f, decoded.getTopicRate("health"), DELTA);
+    }
+
+    @Test
+    public void usbStatus_roundTripsWithoutExtras() throws Exception {
+        TelemetryCodec telemetryCodec = new TelemetryCodec();
+        Intent intent = telemetryCodec.decode(telemetryCodec.encode(
+                new Intent(UsbSerialService.INTENT_ACTION_USB_DISCONNECTED)));
+        assertEquals(UsbSerialService.INTENT_ACTION_USB_DISCONNECTED, intent.getAction());
+    }
+
+    @Test
+    public void encode_leavesActionsWithoutSchemaToJson() throws Exception {
+        String intentAction = FlightControlService.INTENT_ACTION_RELEASE_ALTITUDE;
+        assertFalse(TelemetryCodec.hasSchema(intentAction));
+        assertNull(new TelemetryCodec().encode(new Intent(intentAction)));
+        assertFalse(TelemetryCodec.isEncoded("{}".getBytes()));
+    }
+
+    @Test
+    public void decode_rejectsTruncatedAndUnknownPayloads() throws Exception {
+        TelemetryCodec telemetryCodec = new TelemetryCodec();
+        byte[] payload = telemetryCodec.encode(new LinkQualityPacket("CRAFT", 35f, 4f, 0.1f, 7,
+                new String[]{"state"}, new float[]{10f}).toIntent());
+        for (int length = 0; length < payload.length; length++) {
+            assertNull(telemetryCodec.decode(Arrays.copyOf(payload, length)));
+        }
+        //A newer schema version
+        byte[] newerPayload = payload.clone();
+        newerPayload[2]++;
+        assertNull(telemetryCodec.decode(newerPayload));
+    }
+}
@@ -0,0 +1,94 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the convergence of VerticalKalmanFilter on noisy measurements of a known vertical state,
+ * its estimate of the barometer bias against GPS, and the published estimates
+ */
+public class VerticalKalmanFilterTest {
+    private static final double DELTA = 1e-9;
+    //Accelerometer & barometer at 50 Hz, GPS at 1 Hz
+    private static final double DT = 0.02;
+    private static final int GPS_INTERVAL = 50;
+    private static final double ACCELERATION_NOISE = 0.3;
+    private static final double BAROMETER_NOISE = 0.8;
+    private static final double GPS_ACCURACY = 2;
+
+    @Test
+    public void update_convergesOnConstantAltitude() throws Exception {
+        VerticalKalmanFilter verticalKalmanFilter = new VerticalKalmanFilter();
+        Random random = new Random(3);
+        //Without a barometer bias, both sensors measure the altitude
+        fly(verticalKalmanFilter, random, 100, 0, 0, 60);
+        VerticalKalmanFilter.Estimate estimate = verticalKalmanFilter.getEstimate();
+        assertEquals(100, estimate.getAltitude(), 0.5);
+        assertEquals(0, estimate.getClimbRate(), 0.2);
+        assertEquals(0, estimate.getBarometerBias(), 1);
+    }
+
+    @Test
+    public void update_estimatesBarometerBiasAgainstGps() throws Exception {
+        VerticalKalmanFilter verticalKalmanFilter = new VerticalKalmanFilter();
+        Random random = new Random(5);
+        double bias = 25;
+        double climbRate = 2;
+        //The barometer initializes the filter 25 m high, GPS brings the altitude down to the truth
+        fly(verticalKalmanFilter, random, 100, climbRate, bias, 120);
+        VerticalKalmanFilter.Estimate estimate = verticalKalmanFilter.getEstimate();
+        assertEquals(bias, estimate.getBarometerBias(), 1.5);
+        assertEquals(100 + climbRate * 120, estimate.getAltitude(), 1.5);
+        assertEquals(climbRate, estimate.getClimbRate(), 0.2);
+    }
+
+    @Test
+    public void getEstimate_publishesAnImmutableSnapshotOfEachUpdate() throws Exception {
+        VerticalKalmanFilter verticalKalmanFilter = new VerticalKalmanFilter();
+        //No estimate, and no prediction, before the first altitude measurement
+        verticalKalmanFilter.predict(1, DT);
+        assertNull(verticalKalmanFilter.getEstimate());
+        verticalKalmanFilter.updateBarometricAltitude(50);
+        VerticalKalmanFilter.Estimate initialEstimate = verticalKalmanFilter.getEstimate();
+        assertEquals(50, initialEstimate.getAltitude(), DELTA);
+        assertEquals(0, initialEstimate.getClimbRate(), DELTA);
+        assertEquals(0, initialEstimate.getBarometerBias(), DELTA);
+        //A later update publishes a new estimate, and leaves the one already read as it was
+        verticalKalmanFilter.predict(1, 0.1);
+        VerticalKalmanFilter.Estimate predictedEstimate = verticalKalmanFilter.getEstimate();
+        assertNotSame(initialEstimate, predictedEstimate);
+        assertEquals(0.1, predictedEstimate.getClimbRate(), DELTA);
+        assertEquals(50.005, predictedEstimate.getAltitude(), DELTA);
+        assertEquals(50, initialEstimate.getAltitude(), DELTA);
+        //A gap in the acceleration data is skipped
+        verticalKalmanFilter.predict(1, 1);
+        assertSame(predictedEstimate, verticalKalmanFilter.getEstimate());
+        verticalKalmanFilter.reset();
+        assertNull(verticalKalmanFilter.getEstimate());
+        verticalKalmanFilter.updateGpsAltitude(80, GPS_ACCURACY);
+        assertEquals(80, verticalKalmanFilter.getEstimate().getAltitude(), DELTA);
+    }
+
+    //Flies the filter for the input duration (in seconds) at a constant climb rate, from the input
+    //altitude, with noisy acceleration, barometer (plus the input bias) and GPS measurements
+    private static void fly(VerticalKalmanFilter verticalKalmanFilter, Random random,
+                            double altitude, double climbRate, double barometerBias,
+                            double duration) {
+        int steps = (int) Math.round(duration / DT);
+        for (int i = 0; i <= steps; i++) {
+            double trueAltitude = altitude + climbRate * i * DT;
+            if (i > 0) {
+                verticalKalmanFilter.predict(random.nextGaussian() * ACCELERATION_NOISE, DT);
+            }
+            verticalKalmanFilter.updateBarometricAltitude(trueAltitude + barometerBias
+                    + random.nextGaussian() * BAROMETER_NOISE);
+            if (i % GPS_INTERVAL == 0) {
+                verticalKalmanFilter.updateGpsAltitude(trueAltitude
+                        + random.nextGaussian() * GPS_ACCURACY * 1.5, GPS_ACCURACY);
+            }
+        }
+    }
+}
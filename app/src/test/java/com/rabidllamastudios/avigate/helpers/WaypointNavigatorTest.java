@@ -0,0 +1,157 @@
+package com.rabidllamastudios.avigate.helpers;
+
+import com.rabidllamastudios.avigate.models.MissionPacket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the leg precomputation, L1 lateral guidance and leg switching of WaypointNavigator on a
+ * mission flown north from home, then east, then back home
+ */
+public class WaypointNavigatorTest {
+    private static final double DELTA = 1e-6;
+    private static final double HOME_LATITUDE = 47.6;
+    private static final double HOME_LONGITUDE = -122.3;
+    private static final double LEG_LENGTH = 1000;
+    private static final double ACCEPTANCE_RADIUS = 20;
+    private static final double CRUISE_SPEED = 20;
+
+    private final LocalFrame mHomeFrame = new LocalFrame(HOME_LATITUDE, HOME_LONGITUDE);
+
+    @Test
+    public void constructor_precomputesLegsFromAndBackToHome() throws Exception {
+        WaypointNavigator waypointNavigator = new WaypointNavigator(createMission(false));
+        //Home to the first waypoint, first to second waypoint, second waypoint back home
+        assertEquals(3, waypointNavigator.getLegCount());
+        assertEquals(0, waypointNavigator.getLegIndex());
+        assertEquals(100, waypointNavigator.getTargetAltitude(), DELTA);
+        //Below the minimum groundspeed, the desired heading is the bearing of the leg
+        update(waypointNavigator, 0, 0, 0, 0);
+        assertEquals(0, waypointNavigator.getDesiredHeading(), 1e-3);
+        assertEquals(0, waypointNavigator.getBankAngle(), DELTA);
+        update(waypointNavigator, LEG_LENGTH, 0, 0, 0);
+        assertEquals(1, waypointNavigator.getLegIndex());
+        assertEquals(90, waypointNavigator.getDesiredHeading(), 1e-3);
+        assertEquals(120, waypointNavigator.getTargetAltitude(), DELTA);
+        update(waypointNavigator, LEG_LENGTH, LEG_LENGTH, 0, 0);
+        assertEquals(2, waypointNavigator.getLegIndex());
+        assertEquals(225, waypointNavigator.getDesiredHeading(), 1e-3);
+        //Home has no altitude
+        assertTrue(Double.isNaN(waypointNavigator.getTargetAltitude()));
+    }
+
+    @Test
+    public void constructor_usesTheFirstWaypointAsHomeIfThereIsNone() throws Exception {
+        MissionPacket missionPacket = new MissionPacket();
+        missionPacket.addWaypoint(HOME_LATITUDE, HOME_LONGITUDE, Double.NaN);
+        missionPacket.addWaypoint(mHomeFrame.getLatitude(LEG_LENGTH), HOME_LONGITUDE, Double.NaN);
+        WaypointNavigator waypointNavigator = new WaypointNavigator(missionPacket);
+        assertEquals(3, waypointNavigator.getLegCount());
+        //The zero length leg to the first waypoint is flown through at once
+        update(waypointNavigator, 0, 0, CRUISE_SPEED, 0);
+        assertEquals(1, waypointNavigator.getLegIndex());
+        assertEquals(0, waypointNavigator.getDesiredHeading(), 1e-3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsMissionWithoutWaypoints() throws Exception {
+        new WaypointNavigator(new MissionPacket());
+    }
+
+    @Test
+    public void update_banksBackTowardsTheLegOnEitherSide() throws Exception {
+        WaypointNavigator waypointNavigator = new WaypointNavigator(createMission(false));
+        //On the leg, flying along it: no turn
+        update(waypointNavigator, 300, 0, CRUISE_SPEED, 0);
+        assertEquals(0, waypointNavigator.getCrossTrackError(), 1e-3);
+        assertEquals(0, waypointNavigator.getBankAngle(), 1e-3);
+        //Right (east) of a northbound leg: bank left, and aim left of the leg bearing
+        update(waypointNavigator, 300, 50, CRUISE_SPEED, 0);
+        assertEquals(50, waypointNavigator.getCrossTrackError(), 1e-3);
+        assertTrue(waypointNavigator.getBankAngle() < 0);
+        assertTrue(waypointNavigator.getLateralAcceleration() < 0);
+        assertTrue(waypointNavigator.getDesiredHeading() > 270);
+        //Left (west) of the leg: bank right
+        update(waypointNavigator, 300, -50, CRUISE_SPEED, 0);
+        assertEquals(-50, waypointNavigator.getCrossTrackError(), 1e-3);
+        assertTrue(waypointNavigator.getBankAngle() > 0);
+        assertTrue(waypointNavigator.getDesiredHeading() > 0);
+        assertTrue(waypointNavigator.getDesiredHeading() < 90);
+        //Already heading 20 degrees towards the leg: less bank is needed
+        double leftBank = waypointNavigator.getBankAngle();
+        update(waypointNavigator, 300, -50, CRUISE_SPEED * Math.cos(Math.toRadians(20)),
+                CRUISE_SPEED * Math.sin(Math.toRadians(20)));
+        assertTrue(Math.abs(waypointNavigator.getBankAngle()) < leftBank);
+        //Far off the leg and flying away from it, the bank is limited to 30 degrees
+        update(waypointNavigator, 300, 5000, CRUISE_SPEED, CRUISE_SPEED);
+        assertEquals(-30, waypointNavigator.getBankAngle(), 1e-3);
+    }
+
+    @Test
+    public void update_switchesLegWithinTheAcceptanceRadius() throws Exception {
+        WaypointNavigator waypointNavigator = new WaypointNavigator(createMission(false));
+        //Slow, so the turn anticipation is only a few meters
+        double speed = 5;
+        update(waypointNavigator, LEG_LENGTH - 30, 0, speed, 0);
+        assertEquals(0, waypointNavigator.getLegIndex());
+        //Beside the waypoint, short of the end of the leg
+        update(waypointNavigator, LEG_LENGTH - 12, 15, speed, 0);
+        assertEquals(1, waypointNavigator.getLegIndex());
+    }
+
+    @Test
+    public void update_anticipatesTheTurnAtCruiseSpeed() throws Exception {
+        //A 90 degree turn at 30 degrees of bank and 20 m/s has a radius of about 71 m, which is
+        //the turn anticipation (tan of half the turn angle is 1)
+        WaypointNavigator slowNavigator = new WaypointNavigator(createMission(false));
+        update(slowNavigator, LEG_LENGTH - 50, 0, 5, 0);
+        assertEquals(0, slowNavigator.getLegIndex());
+        WaypointNavigator fastNavigator = new WaypointNavigator(createMission(false));
+        update(fastNavigator, LEG_LENGTH - 80, 0, CRUISE_SPEED, 0);
+        assertEquals(0, fastNavigator.getLegIndex());
+        update(fastNavigator, LEG_LENGTH - 50, 0, CRUISE_SPEED, 0);
+        assertEquals(1, fastNavigator.getLegIndex());
+        //Heading north, south of the eastbound leg: bank right to turn onto it
+        assertTrue(fastNavigator.getBankAngle() > 0);
+    }
+
+    @Test
+    public void update_completesOrRepeatsAfterTheLegBackHome() throws Exception {
+        WaypointNavigator waypointNavigator = new WaypointNavigator(createMission(false));
+        flyToHome(waypointNavigator);
+        assertTrue(waypointNavigator.isComplete());
+        assertEquals(0, waypointNavigator.getBankAngle(), DELTA);
+        WaypointNavigator repeatNavigator = new WaypointNavigator(createMission(true));
+        flyToHome(repeatNavigator);
+        assertFalse(repeatNavigator.isComplete());
+        assertEquals(0, repeatNavigator.getLegIndex());
+    }
+
+    //Returns a mission from home, 1000 m north, then 1000 m east, with an acceptance radius
+    private MissionPacket createMission(boolean repeat) {
+        MissionPacket missionPacket = new MissionPacket();
+        missionPacket.setHome(HOME_LATITUDE, HOME_LONGITUDE);
+        missionPacket.addWaypoint(mHomeFrame.getLatitude(LEG_LENGTH), HOME_LONGITUDE, 100);
+        missionPacket.addWaypoint(mHomeFrame.getLatitude(LEG_LENGTH),
+                mHomeFrame.getLongitude(LEG_LENGTH), 120);
+        missionPacket.setAcceptanceRadius(ACCEPTANCE_RADIUS);
+        missionPacket.setRepeat(repeat);
+        return missionPacket;
+    }
+
+    //Flies slowly through each waypoint and back home
+    private void flyToHome(WaypointNavigator waypointNavigator) {
+        update(waypointNavigator, LEG_LENGTH, 0, 0, 0);
+        update(waypointNavigator, LEG_LENGTH, LEG_LENGTH, 0, 0);
+        update(waypointNavigator, 0, 0, 0, 0);
+    }
+
+    //Updates the navigator with a position (in meters from home) and velocity (in m/s)
+    private void update(WaypointNavigator waypointNavigator, double north, double east,
+                        double velocityNorth, double velocityEast) {
+        waypointNavigator.update(mHomeFrame.getLatitude(north), mHomeFrame.getLongitude(east),
+                velocityEast, velocityNorth);
+    }
+}
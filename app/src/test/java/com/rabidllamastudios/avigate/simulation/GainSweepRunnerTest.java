@@ -0,0 +1,68 @@
+package com.rabidllamastudios.avigate.simulation;
+
+import com.rabidllamastudios.avigate.models.ArduinoPacket;
+import com.rabidllamastudios.avigate.models.PidGains;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs roll gain sweeps of GainSweepRunner. GainSweepBenchmark prints the ranked report of the
+ * default sweep on request.
+ */
+public class GainSweepRunnerTest {
+    private static final long SEED = 1;
+    private static final int REPORT_COUNT = 20;
+    //Servo output range of the craft profile in degrees
+    private static final int OUTPUT_MIN = 0;
+    private static final int OUTPUT_MAX = 180;
+
+    @Test
+    public void defaultSweep_ranksStableGainsFirst() throws Exception {
+        List<PidGains> candidates = GainSweepRunner.createGrid(
+                new double[]{0.5, 1, 2, 3, 4, 6, 8}, new double[]{0, 0.2, 0.5, 1},
+                new double[]{0, 0.25, 0.5, 1, 1.5}, 10);
+        List<GainSweepRunner.CandidateResult> results = new GainSweepRunner(
+                createConfigArduinoPacket()).run(candidates,
+                SweepScenario.createDefaultScenarios(SEED));
+        assertEquals(candidates.size(), results.size());
+        assertEquals(0, results.get(0).getCrashCount());
+        for (int i = 1; i < results.size(); i++) {
+            assertTrue(results.get(i - 1).getCost() <= results.get(i).getCost());
+        }
+        //A header line, then one line per reported candidate
+        String[] reportLines = GainSweepRunner.formatReport(results, REPORT_COUNT).split("\n");
+        assertEquals(REPORT_COUNT + 1, reportLines.length);
+        assertTrue(reportLines[1].trim().startsWith("1 "));
+    }
+
+    @Test
+    public void sweep_isIndependentOfParallelism() throws Exception {
+        List<PidGains> candidates = GainSweepRunner.createGrid(new double[]{1, 3},
+                new double[]{0, 0.5}, new double[]{0, 0.5}, 10);
+        List<SweepScenario> scenarios = SweepScenario.createDefaultScenarios(SEED);
+        List<GainSweepRunner.CandidateResult> sequentialResults = new GainSweepRunner(
+                createConfigArduinoPacket(), 1).run(candidates, scenarios);
+        List<GainSweepRunner.CandidateResult> parallelResults = new GainSweepRunner(
+                createConfigArduinoPacket(), 3).run(candidates, scenarios);
+        for (int i = 0; i < candidates.size(); i++) {
+            assertEquals(sequentialResults.get(i).getIndex(), parallelResults.get(i).getIndex());
+            assertEquals(sequentialResults.get(i).getCost(), parallelResults.get(i).getCost(), 0);
+        }
+    }
+
+    //Returns a craft profile with the full servo output range on all control surfaces
+    private static ArduinoPacket createConfigArduinoPacket() {
+        ArduinoPacket configArduinoPacket = new ArduinoPacket();
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.AILERON, OUTPUT_MIN,
+                OUTPUT_MAX);
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.ELEVATOR, OUTPUT_MIN,
+                OUTPUT_MAX);
+        configArduinoPacket.setOutputRange(ArduinoPacket.ServoType.RUDDER, OUTPUT_MIN,
+                OUTPUT_MAX);
+        return configArduinoPacket;
+    }
+}